@@ -0,0 +1,522 @@
+package edu.stanford.nlp.kbp.slotfilling.classify;
+
+import edu.stanford.nlp.classify.LinearClassifier;
+import edu.stanford.nlp.io.IOUtils;
+import edu.stanford.nlp.kbp.slotfilling.SlotfillingSystem;
+import edu.stanford.nlp.kbp.slotfilling.common.Props;
+import edu.stanford.nlp.util.Function;
+import edu.stanford.nlp.util.HashIndex;
+import edu.stanford.nlp.util.Index;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.text.DecimalFormat;
+import java.util.*;
+
+import static edu.stanford.nlp.util.logging.Redwood.Util.*;
+
+/**
+ * <p>A compact, versioned binary format for relation classifiers, as an alternative to Java serialization.</p>
+ *
+ * <p>A model file is a magic number and a format version, followed by whatever the classifier writes through a
+ * {@link BinaryModel.Writer} in its {@link RelationClassifier#save(BinaryModel.Writer)} method; all numbers are
+ * little-endian. Feature dictionaries are written once per distinct index, as a table of strings sorted by their UTF-8 bytes,
+ * followed by a hash table over them.
+ * Weights are written as raw, 8-byte aligned blocks of doubles, with the features permuted into dictionary order.</p>
+ *
+ * <p>On load, the file is memory-mapped. Dictionaries are searched in place (see {@link MappedStringIndex}), and weight
+ * blocks are either used in place (the perceptron models), or bulk-copied into the arrays a {@link LinearClassifier}
+ * needs. Loading thus never builds a serialized object graph, nor hash maps over the features.
+ * Blocks are mapped at most {@link BinaryModel.Reader#CHUNK} bytes at a time, so weights of any size can be read.</p>
+ *
+ * <p>A model loaded from this format can still be saved with Java serialization: the mapped feature dictionaries
+ * serialize as ordinary {@link HashIndex}es, and mapped perceptron weights are copied onto the heap first.</p>
+ *
+ * <p>{@link RelationClassifier#save(String)} writes this format for paths ending in {@link BinaryModel#EXTENSION},
+ * and {@link RelationClassifier#load(String, Properties, Class)} reads it whenever a file starts with the magic number.
+ * {@link BinaryModel#main(String[])} converts an existing serialized model.</p>
+ */
+public class BinaryModel {
+
+  /** The extension of a binary model */
+  public static final String EXTENSION = Props.BIN_EXT;
+  /** The version of the format written by this class; version 1 had no hash tables over the dictionaries */
+  public static final int VERSION = 2;
+
+  private static final int MAGIC = 0x4D50424B;  // "KBPM", little-endian
+  /** A reference to a dictionary not yet written, which follows */
+  private static final int NEW_DICTIONARY = -1;
+  /** A reference to a hashed feature index, whose size follows */
+  private static final int HASHED_DICTIONARY = -2;
+  /** A reference to a hashed feature index with signed hashing, whose size follows */
+  private static final int SIGNED_HASHED_DICTIONARY = -3;
+
+  private BinaryModel() {}
+
+  /** Whether the model at a path (file, classpath or URL) is in the binary format */
+  public static boolean isBinaryModel(String path) {
+    InputStream is = null;
+    try {
+      is = IOUtils.getInputStreamFromURLOrClasspathOrFileSystem(path);
+      byte[] header = new byte[4];
+      int read = 0;
+      while (read < header.length) {
+        int n = is.read(header, read, header.length - read);
+        if (n < 0) { return false; }
+        read += n;
+      }
+      return ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN).getInt() == MAGIC;
+    } catch (IOException e) {
+      return false;
+    } finally {
+      if (is != null) {
+        try { is.close(); } catch (IOException ignored) { }
+      }
+    }
+  }
+
+  /** The permutation a dictionary applies to the ids of an index: the position of each id in the sorted table */
+  private static class Dictionary {
+    final int id;
+    final int[] position;
+
+    Dictionary(int id, int[] position) {
+      this.id = id;
+      this.position = position;
+    }
+  }
+
+  /**
+   * Writes a binary model, sequentially.
+   */
+  public static class Writer {
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+    private long flushed = 0;
+    private final Map<Index<String>, Dictionary> dictionaries = new IdentityHashMap<Index<String>, Dictionary>();
+
+    public Writer(String path) throws IOException {
+      this.file = new RandomAccessFile(path, "rw");
+      this.file.setLength(0);
+      this.channel = file.getChannel();
+      writeInt(MAGIC);
+      writeInt(VERSION);
+    }
+
+    private void flush() throws IOException {
+      buffer.flip();
+      while (buffer.hasRemaining()) { flushed += channel.write(buffer); }
+      buffer.clear();
+    }
+
+    private ByteBuffer reserve(int bytes) throws IOException {
+      if (buffer.remaining() < bytes) { flush(); }
+      return buffer;
+    }
+
+    private long position() {
+      return flushed + buffer.position();
+    }
+
+    /** Pad to a multiple of 8 bytes, so that the block which follows can be read as doubles in place */
+    private void align() throws IOException {
+      while (position() % 8 != 0) { reserve(1).put((byte) 0); }
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+      int offset = 0;
+      while (offset < bytes.length) {
+        if (!buffer.hasRemaining()) { flush(); }
+        int length = Math.min(buffer.remaining(), bytes.length - offset);
+        buffer.put(bytes, offset, length);
+        offset += length;
+      }
+    }
+
+    public void writeInt(int value) throws IOException {
+      reserve(4).putInt(value);
+    }
+
+    public void writeDouble(double value) throws IOException {
+      reserve(8).putDouble(value);
+    }
+
+    public void writeBoolean(boolean value) throws IOException {
+      reserve(1).put(value ? (byte) 1 : (byte) 0);
+    }
+
+    public void writeString(String value) throws IOException {
+      byte[] bytes = value.getBytes(MappedStringIndex.UTF8);
+      writeInt(bytes.length);
+      writeBytes(bytes);
+    }
+
+    /** Write a list of strings, in order; e.g., a label index */
+    public void writeStrings(Collection<String> values) throws IOException {
+      writeInt(values.size());
+      for (String value : values) { writeString(value); }
+    }
+
+    /**
+     * Write a feature dictionary. An index is written once; later calls with the same index only write a reference to it.
+     * @param index The index to write.
+     * @return The position of each id of the index in the written dictionary, to pass to the methods writing weights.
+     *         Null if ids are unchanged (a hashed index).
+     */
+    public int[] writeDictionary(Index<String> index) throws IOException {
+      Dictionary dictionary = dictionaries.get(index);
+      if (dictionary != null) {
+        writeInt(dictionary.id);
+        return dictionary.position;
+      }
+      if (index instanceof HashedFeatureIndex) {
+        writeInt(((HashedFeatureIndex) index).signed ? SIGNED_HASHED_DICTIONARY : HASHED_DICTIONARY);
+        writeInt(((HashedFeatureIndex) index).numBuckets);
+        dictionaries.put(index, new Dictionary(dictionaries.size(), null));
+        return null;
+      }
+      // Sort the strings by their bytes
+      final byte[][] bytes = new byte[index.size()][];
+      Integer[] order = new Integer[index.size()];
+      for (int i = 0; i < bytes.length; ++i) {
+        bytes[i] = index.get(i).getBytes(MappedStringIndex.UTF8);
+        order[i] = i;
+      }
+      Arrays.sort(order, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer a, Integer b) {
+          byte[] x = bytes[a];
+          byte[] y = bytes[b];
+          int shared = Math.min(x.length, y.length);
+          for (int k = 0; k < shared; ++k) {
+            int diff = (x[k] & 0xFF) - (y[k] & 0xFF);
+            if (diff != 0) { return diff; }
+          }
+          return x.length - y.length;
+        }
+      });
+      int[] position = new int[bytes.length];
+      int[] hashCodes = new int[bytes.length];
+      long tableLength = 0;
+      for (int p = 0; p < order.length; ++p) {
+        position[order[p]] = p;
+        hashCodes[p] = index.get(order[p]).hashCode();
+        tableLength += bytes[order[p]].length;
+      }
+      if (tableLength > Integer.MAX_VALUE) { throw new IOException("Feature dictionary too large: " + tableLength + " bytes"); }
+      // Write the table
+      writeInt(NEW_DICTIONARY);
+      writeInt(bytes.length);
+      writeInt((int) tableLength);
+      int offset = 0;
+      for (Integer i : order) {
+        writeInt(offset);
+        offset += bytes[i].length;
+      }
+      writeInt(offset);
+      for (Integer i : order) { writeBytes(bytes[i]); }
+      int[] slots = MappedStringIndex.hashTable(hashCodes);
+      writeInt(slots.length);
+      for (int slot : slots) { writeInt(slot); }
+      dictionaries.put(index, new Dictionary(dictionaries.size(), position));
+      return position;
+    }
+
+    /** The id whose value goes at a position of a permuted block; ids beyond the dictionary are not permuted */
+    private static int[] inverse(int[] position, int length) {
+      int[] inverse = new int[length];
+      for (int i = 0; i < length; ++i) { inverse[i] = i; }
+      if (position != null) {
+        for (int id = 0; id < Math.min(length, position.length); ++id) { inverse[position[id]] = id; }
+      }
+      return inverse;
+    }
+
+    /**
+     * Write a vector of weights, indexed by feature.
+     * @param values The weights.
+     * @param features The dictionary positions of the features, as returned by {@link Writer#writeDictionary(Index)}.
+     */
+    public void writeVector(double[] values, int[] features) throws IOException {
+      writeInt(values.length);
+      align();
+      for (int id : inverse(features, values.length)) { writeDouble(values[id]); }
+    }
+
+    /**
+     * Write a matrix of weights, whose rows are indexed by feature.
+     * @param rows The weights.
+     * @param features The dictionary positions of the features, as returned by {@link Writer#writeDictionary(Index)}.
+     */
+    public void writeMatrix(double[][] rows, int[] features) throws IOException {
+      int numColumns = rows.length == 0 ? 0 : rows[0].length;
+      writeInt(rows.length);
+      writeInt(numColumns);
+      align();
+      for (int id : inverse(features, rows.length)) {
+        if (rows[id].length != numColumns) { throw new IOException("Ragged weight matrix"); }
+        for (double value : rows[id]) { writeDouble(value); }
+      }
+    }
+
+    /** Write a linear classifier: its labels, its feature dictionary, and its weights */
+    public void writeLinearClassifier(LinearClassifier<String, String> classifier) throws IOException {
+      writeStrings(classifier.labelIndex().objectsList());
+      int[] features = writeDictionary(classifier.featureIndex());
+      writeMatrix(classifier.weights(), features);
+    }
+
+    public void close() throws IOException {
+      flush();
+      channel.force(false);
+      file.close();
+    }
+  }
+
+  /**
+   * Reads a binary model, sequentially, in the order it was written.
+   * Blocks of weights and dictionaries are mapped rather than read, and remain valid after the reader is closed.
+   */
+  public static class Reader {
+    /** The size of the window small reads are mapped through */
+    private static final int WINDOW = 1 << 24;
+    /** The most bytes mapped at once; a single mapping cannot exceed 2GB */
+    public static final int CHUNK = 1 << 30;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final ByteBuffer heap;
+    private final long size;
+    private long position = 0;
+    private final int version;
+    private ByteBuffer window;
+    private long windowStart;
+    private final List<Index<String>> dictionaries = new ArrayList<Index<String>>();
+
+    /**
+     * Open a binary model. A model on the file system is memory-mapped; a model on the classpath (or at a URL)
+     * is read into memory first.
+     */
+    public Reader(String path) throws IOException {
+      File onDisk = new File(path);
+      if (onDisk.isFile()) {
+        this.file = new RandomAccessFile(onDisk, "r");
+        this.channel = file.getChannel();
+        this.heap = null;
+        this.size = channel.size();
+      } else {
+        InputStream is = IOUtils.getInputStreamFromURLOrClasspathOrFileSystem(path);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+          byte[] chunk = new byte[1 << 16];
+          int read;
+          while ((read = is.read(chunk)) >= 0) { bytes.write(chunk, 0, read); }
+        } finally {
+          is.close();
+        }
+        this.file = null;
+        this.channel = null;
+        this.heap = ByteBuffer.wrap(bytes.toByteArray());
+        this.size = heap.capacity();
+      }
+      if (readInt() != MAGIC) { throw new IOException("Not a binary model: " + path); }
+      this.version = readInt();
+      if (version < 1 || version > VERSION) { throw new IOException("Unsupported binary model version " + version + " (expected at most " + VERSION + "): " + path); }
+    }
+
+    private ByteBuffer map(long start, long length) throws IOException {
+      if (start + length > size) { throw new EOFException("Read past the end of the model"); }
+      if (channel != null) {
+        return channel.map(FileChannel.MapMode.READ_ONLY, start, length).order(ByteOrder.LITTLE_ENDIAN);
+      } else {
+        ByteBuffer slice = heap.duplicate();
+        slice.position((int) start);
+        slice.limit((int) (start + length));
+        return slice.slice().order(ByteOrder.LITTLE_ENDIAN);
+      }
+    }
+
+    /** Map a block, and advance past it; blocks of more than {@link Reader#CHUNK} bytes must be read in parts */
+    private ByteBuffer block(long length) throws IOException {
+      if (length > CHUNK) { throw new IOException("Block of " + length + " bytes is too large to map at once"); }
+      ByteBuffer block = map(position, length);
+      position += length;
+      return block;
+    }
+
+    /** Position the window over the next few bytes, and advance past them */
+    private ByteBuffer require(int bytes) throws IOException {
+      if (window == null || position < windowStart || position + bytes > windowStart + window.capacity()) {
+        if (position + bytes > size) { throw new EOFException("Read past the end of the model"); }
+        windowStart = position;
+        window = map(position, Math.min(size - position, Math.max(WINDOW, bytes)));
+      }
+      window.position((int) (position - windowStart));
+      position += bytes;
+      return window;
+    }
+
+    private void align() {
+      position = (position + 7) & ~7L;
+    }
+
+    public int readInt() throws IOException {
+      return require(4).getInt();
+    }
+
+    public double readDouble() throws IOException {
+      return require(8).getDouble();
+    }
+
+    public boolean readBoolean() throws IOException {
+      return require(1).get() != 0;
+    }
+
+    public String readString() throws IOException {
+      byte[] bytes = new byte[readInt()];
+      require(bytes.length).get(bytes);
+      return new String(bytes, MappedStringIndex.UTF8);
+    }
+
+    public List<String> readStrings() throws IOException {
+      int length = readInt();
+      List<String> values = new ArrayList<String>(length);
+      for (int i = 0; i < length; ++i) { values.add(readString()); }
+      return values;
+    }
+
+    /** Read a list of strings as a label index */
+    public Index<String> readLabelIndex() throws IOException {
+      Index<String> index = new HashIndex<String>(readStrings());
+      index.lock();
+      return index;
+    }
+
+    /** Read a feature dictionary, as written by {@link Writer#writeDictionary(Index)} */
+    public Index<String> readDictionary() throws IOException {
+      int reference = readInt();
+      if (reference >= 0) {
+        if (reference >= dictionaries.size()) { throw new IOException("Reference to an unknown dictionary: " + reference); }
+        return dictionaries.get(reference);
+      }
+      Index<String> dictionary;
+      if (reference == HASHED_DICTIONARY || reference == SIGNED_HASHED_DICTIONARY) {
+        dictionary = new HashedFeatureIndex(readInt(), reference == SIGNED_HASHED_DICTIONARY);
+      } else if (reference == NEW_DICTIONARY) {
+        int numStrings = readInt();
+        int tableLength = readInt();
+        IntBuffer offsets = block(4L * (numStrings + 1)).asIntBuffer();
+        ByteBuffer strings = block(tableLength);
+        IntBuffer slots = null;
+        if (version >= 2) {
+          int numSlots = readInt();
+          slots = block(4L * numSlots).asIntBuffer();
+        }
+        dictionary = new MappedStringIndex(numStrings, offsets, strings, slots);
+      } else {
+        throw new IOException("Corrupt dictionary reference: " + reference);
+      }
+      dictionaries.add(dictionary);
+      return dictionary;
+    }
+
+    /** Copy doubles into an array, mapping at most {@link Reader#CHUNK} bytes at a time, and advance past them */
+    private void readDoubles(double[] values, int offset, int length) throws IOException {
+      while (length > 0) {
+        int count = Math.min(length, CHUNK / 8);
+        block(8L * count).asDoubleBuffer().get(values, offset, count);
+        offset += count;
+        length -= count;
+      }
+    }
+
+    /**
+     * Map a vector of weights, as written by {@link Writer#writeVector(double[], int[])}, in dictionary order.
+     * A vector too large to map at once is copied onto the heap instead.
+     */
+    public DoubleBuffer readVector() throws IOException {
+      int length = readInt();
+      align();
+      if (8L * length <= CHUNK) { return block(8L * length).asDoubleBuffer(); }
+      double[] values = new double[length];
+      readDoubles(values, 0, length);
+      return DoubleBuffer.wrap(values);
+    }
+
+    /** Read a matrix of weights, as written by {@link Writer#writeMatrix(double[][], int[])}, in dictionary order */
+    public double[][] readMatrix() throws IOException {
+      int numRows = readInt();
+      int numColumns = readInt();
+      align();
+      double[][] rows = new double[numRows][numColumns];
+      long rowBytes = 8L * numColumns;
+      if (rowBytes > CHUNK) {
+        for (double[] row : rows) { readDoubles(row, 0, numColumns); }
+        return rows;
+      }
+      // Map as many whole rows at a time as fit in a chunk
+      int rowsPerChunk = (int) Math.min(Math.max(numRows, 1), CHUNK / Math.max(rowBytes, 1));
+      for (int start = 0; start < numRows; start += rowsPerChunk) {
+        int end = Math.min(numRows, start + rowsPerChunk);
+        DoubleBuffer values = block(rowBytes * (end - start)).asDoubleBuffer();
+        for (int row = start; row < end; ++row) { values.get(rows[row]); }
+      }
+      return rows;
+    }
+
+    /** Read a linear classifier, as written by {@link Writer#writeLinearClassifier(LinearClassifier)} */
+    public LinearClassifier<String, String> readLinearClassifier() throws IOException {
+      Index<String> labelIndex = readLabelIndex();
+      Index<String> featureIndex = readDictionary();
+      double[][] weights = readMatrix();
+      return new LinearClassifier<String, String>(weights, featureIndex, labelIndex);
+    }
+
+    public void close() throws IOException {
+      if (file != null) { file.close(); }
+    }
+  }
+
+  /**
+   * Convert a serialized model into the binary format, and compare the time it takes to load each.
+   * Usage: BinaryModel [properties file] [serialized model] [binary model (default: the serialized path, with the binary extension)]
+   * The type of the model is taken from the properties (train.model).
+   */
+  public static void main(final String[] args) throws IOException {
+    Properties props = new Properties();
+    InputStream input = new FileInputStream(args[0]);
+    try {
+      props.load(input);
+    } finally {
+      input.close();
+    }
+    SlotfillingSystem.exec(new Function<Properties, Object>() {
+      @Override
+      public Object apply(Properties props) {
+        String serPath = args[1];
+        String binPath = args.length > 2 ? args[2]
+            : (serPath.endsWith(Props.SER_EXT) ? serPath.substring(0, serPath.length() - Props.SER_EXT.length()) : serPath) + EXTENSION;
+        DecimalFormat df = new DecimalFormat("0.00");
+        try {
+          long start = System.currentTimeMillis();
+          RelationClassifier model = Props.TRAIN_MODEL.load(serPath, props);
+          long serMillis = System.currentTimeMillis() - start;
+          model.save(binPath);
+          start = System.currentTimeMillis();
+          Props.TRAIN_MODEL.load(binPath, props);
+          long binMillis = System.currentTimeMillis() - start;
+          log("converted " + serPath + " (" + new File(serPath).length() + " bytes) to " + binPath + " (" + new File(binPath).length() + " bytes)");
+          log("load time: serialized " + serMillis + " ms; binary " + binMillis + " ms; speedup " + df.format(((double) serMillis) / Math.max(binMillis, 1)) + "x");
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+        return null;
+      }
+    }, props);
+  }
+}
@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.*;
+import java.util.concurrent.*;
 
 import edu.stanford.nlp.kbp.slotfilling.common.Maybe;
 import edu.stanford.nlp.kbp.slotfilling.common.Pointer;
@@ -182,7 +183,7 @@ public class EnsembleRelationExtractor extends RelationClassifier {
     // note[gabor]: this is necessary since JointBayes shuffles the data around
     for (int s = 0; s < numSamples; s++) {
       KBPDataset<String, String> clone = new KBPDataset<String,String>(
-          new HashIndex<String>(trainSet.featureIndex()),
+          KBPDataset.copyIndex(trainSet.featureIndex()),
           new HashIndex<String>(trainSet.labelIndex()));
       for (int i = 0; i < trainSet.size(); ++i) {
         clone.addDatum(posLabels[i], negLabels[i], unkLabels[i], data[i], trainSet.getSentenceGlossKey(i));
@@ -204,7 +205,7 @@ public class EnsembleRelationExtractor extends RelationClassifier {
     int[][][] data = trainSet.getDataArray();
     
     for (int p = 0; p < numSamples; p++) {
-      result.add(new KBPDataset<String,String>(new HashIndex<String>(trainSet.featureIndex()),
+      result.add(new KBPDataset<String,String>(KBPDataset.copyIndex(trainSet.featureIndex()),
                                                 new HashIndex<String>(trainSet.labelIndex())));
     }
     
@@ -240,7 +241,7 @@ public class EnsembleRelationExtractor extends RelationClassifier {
 
     for (int p = 0; p < numSamples; p++) {
       Random random = new Random(p);  // new random for each sample
-      KBPDataset<String, String> sample = new KBPDataset<String,String>(new HashIndex<String>(trainSet.featureIndex()),
+      KBPDataset<String, String> sample = new KBPDataset<String,String>(KBPDataset.copyIndex(trainSet.featureIndex()),
           new HashIndex<String>(trainSet.labelIndex()));
       
       for (int i = 0; i < n; i++) {
@@ -253,44 +254,165 @@ public class EnsembleRelationExtractor extends RelationClassifier {
     return result;
   }
   
+  /** The threads members are scored on, shared by every ensemble; created on first use */
+  private static ExecutorService memberExecutor = null;
+  /** Set on the threads of {@link EnsembleRelationExtractor#memberExecutor}, so that nested ensembles do not wait on their own pool */
+  private static final ThreadLocal<Boolean> onMemberThread = new ThreadLocal<Boolean>();
+
+  private static synchronized ExecutorService memberExecutor() {
+    if (memberExecutor == null) {
+      memberExecutor = Executors.newFixedThreadPool(Props.TEST_ENSEMBLE_THREADS, new ThreadFactory() {
+        private int numThreads = 0;
+        @Override
+        public synchronized Thread newThread(final Runnable runnable) {
+          Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+              onMemberThread.set(true);
+              runnable.run();
+            }
+          }, "ensemble-member-" + (numThreads++));
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return memberExecutor;
+  }
+
+  /**
+   * Returns true if, given the predictions of the members scored so far, the ensemble is certain to predict no relation.
+   * This is only the case for {@link Props.EnsembleCombinationMethod#AGREE_ALL}, once no relation is predicted by every
+   * member scored so far, and {@link Props.EnsembleCombinationMethod#AGREE_FIRST}, once the first member predicts nothing.
+   */
+  private boolean decidedEmpty(List<Counter<Pair<String, Maybe<KBPRelationProvenance>>>> memberPredictions) {
+    switch (Props.TEST_ENSEMBLE_COMBINATION) {
+      case AGREE_ALL:
+        Set<String> agreed = null;
+        for (Counter<Pair<String, Maybe<KBPRelationProvenance>>> predictions : memberPredictions) {
+          if (predictions == null) { continue; }
+          Set<String> relations = new HashSet<String>();
+          for (Pair<String, Maybe<KBPRelationProvenance>> key : predictions.keySet()) { relations.add(key.first); }
+          if (agreed == null) { agreed = relations; } else { agreed.retainAll(relations); }
+          if (agreed.isEmpty()) { return true; }
+        }
+        return false;
+      case AGREE_FIRST:
+        return memberPredictions.get(0) != null && memberPredictions.get(0).size() == 0;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Score every member of the ensemble on a sentence group.
+   * The first member is scored on the calling thread, and the rest concurrently on the shared member threads.
+   * @return The predictions of each member, in order; or null, if scoring stopped early as the ensemble is certain
+   *         to predict nothing (see {@link Props#TEST_ENSEMBLE_EARLYEXIT}).
+   */
+  private List<Counter<Pair<String, Maybe<KBPRelationProvenance>>>> scoreMembers(final SentenceGroup group, final Maybe<CoreMap[]> rawSentences) {
+    int numMembers = classifiers.size();
+    List<Counter<Pair<String, Maybe<KBPRelationProvenance>>>> memberPredictions =
+        new ArrayList<Counter<Pair<String, Maybe<KBPRelationProvenance>>>>(Collections.<Counter<Pair<String, Maybe<KBPRelationProvenance>>>>nCopies(numMembers, null));
+    boolean earlyExit = Props.TEST_ENSEMBLE_EARLYEXIT;
+
+    // Case: score members in turn
+    if (numMembers <= 1 || Props.TEST_ENSEMBLE_THREADS <= 1 || onMemberThread.get() != null) {
+      for (int i = 0; i < numMembers; ++i) {
+        memberPredictions.set(i, classifiers.get(i).classifyRelations(group, rawSentences));
+        if (earlyExit && decidedEmpty(memberPredictions)) { return null; }
+      }
+      return memberPredictions;
+    }
+
+    // Case: score members concurrently
+    CompletionService<Pair<Integer, Counter<Pair<String, Maybe<KBPRelationProvenance>>>>> completion =
+        new ExecutorCompletionService<Pair<Integer, Counter<Pair<String, Maybe<KBPRelationProvenance>>>>>(memberExecutor());
+    List<Future<Pair<Integer, Counter<Pair<String, Maybe<KBPRelationProvenance>>>>>> futures =
+        new ArrayList<Future<Pair<Integer, Counter<Pair<String, Maybe<KBPRelationProvenance>>>>>>();
+    try {
+      for (int i = 1; i < numMembers; ++i) {
+        final int member = i;
+        futures.add(completion.submit(new Callable<Pair<Integer, Counter<Pair<String, Maybe<KBPRelationProvenance>>>>>() {
+          @Override
+          public Pair<Integer, Counter<Pair<String, Maybe<KBPRelationProvenance>>>> call() throws Exception {
+            return Pair.makePair(member, classifiers.get(member).classifyRelations(group, rawSentences));
+          }
+        }));
+      }
+      memberPredictions.set(0, classifiers.get(0).classifyRelations(group, rawSentences));
+      if (earlyExit && decidedEmpty(memberPredictions)) { return null; }
+      for (int i = 1; i < numMembers; ++i) {
+        Pair<Integer, Counter<Pair<String, Maybe<KBPRelationProvenance>>>> scored = completion.take().get();
+        memberPredictions.set(scored.first, scored.second);
+        if (earlyExit && decidedEmpty(memberPredictions)) { return null; }
+      }
+      return memberPredictions;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    } finally {
+      // Don't start members whose predictions are no longer needed
+      for (Future<?> future : futures) { future.cancel(false); }
+    }
+  }
+
   @Override
   public Counter<Pair<String,Maybe<KBPRelationProvenance>>> classifyRelations(SentenceGroup group, Maybe<CoreMap[]> rawSentences) {
     Counter<Pair<String, Maybe<KBPRelationProvenance>>> result = new ClassicCounter<Pair<String, Maybe<KBPRelationProvenance>>>();
 
-    // Intermediate Variables
-    Map<String, KBPRelationProvenance> valueToProvenance = new HashMap<String, KBPRelationProvenance>();
-    Set<String> relationPredictions = new HashSet<String>();
-    Counter<String> highestWeightForPrediction = new ClassicCounter<String>();
-    List<Counter<String>> classifierPredictions = new ArrayList<Counter<String>>();
+    // Collect Predictions
+    List<Counter<Pair<String, Maybe<KBPRelationProvenance>>>> memberPredictions = scoreMembers(group, rawSentences);
+    if (memberPredictions == null || memberPredictions.isEmpty()) { return result; }
+    int numMembers = memberPredictions.size();
 
-    // Collect Predictions And Statistics
-    for (RelationClassifier classifier : classifiers) {
-      Counter<String> predictions = new ClassicCounter<String>();
-      for (Map.Entry<Pair<String, Maybe<KBPRelationProvenance>>, Double> entry : classifier.classifyRelations(group, rawSentences).entrySet()) {
-        predictions.incrementCount(entry.getKey().first, entry.getValue());  // register prediction
-        relationPredictions.add(entry.getKey().first);                       // add to key set
-        if (entry.getKey().second.isDefined() &&                             // register provenance if highest weight so far
-            highestWeightForPrediction.getCount(entry.getKey().first) < entry.getValue()) {
-          valueToProvenance.put(entry.getKey().first, entry.getKey().second.get());
+    // Index the predicted relations
+    Map<String, Integer> relationIndex = new HashMap<String, Integer>();
+    List<String> relations = new ArrayList<String>();
+    for (Counter<Pair<String, Maybe<KBPRelationProvenance>>> predictions : memberPredictions) {
+      for (Pair<String, Maybe<KBPRelationProvenance>> key : predictions.keySet()) {
+        if (!relationIndex.containsKey(key.first)) {
+          relationIndex.put(key.first, relations.size());
+          relations.add(key.first);
         }
-        highestWeightForPrediction.setCount(entry.getKey().first,            // update highest confidence weight
-                                            Math.max(highestWeightForPrediction.getCount(entry.getKey().first), entry.getValue()));
       }
-      classifierPredictions.add(predictions);
+    }
+    int numRelations = relations.size();
+
+    // Collect Statistics
+    // These are merged in the order of the members, so that ties (and floating point sums) come out as if they were scored in turn
+    double[][] weights = new double[numMembers][numRelations];
+    boolean[][] predicted = new boolean[numMembers][numRelations];
+    double[] highestWeightForPrediction = new double[numRelations];
+    KBPRelationProvenance[] valueToProvenance = new KBPRelationProvenance[numRelations];
+    for (int member = 0; member < numMembers; ++member) {
+      for (Map.Entry<Pair<String, Maybe<KBPRelationProvenance>>, Double> entry : memberPredictions.get(member).entrySet()) {
+        int relation = relationIndex.get(entry.getKey().first);
+        double weight = entry.getValue();
+        weights[member][relation] += weight;                                // register prediction
+        predicted[member][relation] = true;
+        if (entry.getKey().second.isDefined() &&                           // register provenance if highest weight so far
+            highestWeightForPrediction[relation] < weight) {
+          valueToProvenance[relation] = entry.getKey().second.get();
+        }
+        highestWeightForPrediction[relation] = Math.max(highestWeightForPrediction[relation], weight);  // update highest confidence weight
+      }
     }
 
     // Populate Results
-    for (String relation : relationPredictions) {
+    for (int relation = 0; relation < numRelations; ++relation) {
       // Assess classifier agreement
       int classifiersWhoAgree = 0;
-      boolean firstClassifierAgrees = classifierPredictions.get(0).containsKey(relation);
-      double firstClassifierWeight = classifierPredictions.get(0).getCount(relation);
+      boolean firstClassifierAgrees = predicted[0][relation];
+      double firstClassifierWeight = weights[0][relation];
       double noisyOrInverse = 1.0;
       double maxWeight = 0.0;
       double secondMaxWeight = 0.0;
-      for (Counter<String> prediction : classifierPredictions) {
-        if (prediction.containsKey(relation)) {
-          double weight = prediction.getCount(relation);
+      for (int member = 0; member < numMembers; ++member) {
+        if (predicted[member][relation]) {
+          double weight = weights[member][relation];
           classifiersWhoAgree += 1;
           noisyOrInverse *= (1.0 - weight);
           if (weight > maxWeight) {
@@ -302,31 +424,31 @@ public class EnsembleRelationExtractor extends RelationClassifier {
         }
       }
       // Add relation
+      Pair<String, Maybe<KBPRelationProvenance>> key = Pair.makePair(relations.get(relation), Maybe.fromNull(valueToProvenance[relation]));
       switch (Props.TEST_ENSEMBLE_COMBINATION) {
         case AGREE_ANY:
           if (classifiersWhoAgree > 0) {
-            result.setCount(Pair.makePair(relation, Maybe.fromNull(valueToProvenance.get(relation))), 1.0 - noisyOrInverse);
+            result.setCount(key, 1.0 - noisyOrInverse);
           }
           break;
         case AGREE_ALL:
           if (classifiersWhoAgree >= classifiers.size()) {
-            result.setCount(Pair.makePair(relation, Maybe.fromNull(valueToProvenance.get(relation))), 1.0 - noisyOrInverse);
+            result.setCount(key, 1.0 - noisyOrInverse);
           }
           break;
         case AGREE_MOST:
           if (classifiersWhoAgree >= classifiers.size() / 2) {
-            result.setCount(Pair.makePair(relation, Maybe.fromNull(valueToProvenance.get(relation))), 1.0 - noisyOrInverse);
+            result.setCount(key, 1.0 - noisyOrInverse);
           }
           break;
         case AGREE_TWO:
           if (classifiersWhoAgree >= 2) {
-            result.setCount(Pair.makePair(relation, Maybe.fromNull(valueToProvenance.get(relation))),
-                            1.0 - (1.0 - maxWeight)*(1.0 - secondMaxWeight));  // noisy or of top two weights
+            result.setCount(key, 1.0 - (1.0 - maxWeight)*(1.0 - secondMaxWeight));  // noisy or of top two weights
           }
           break;
         case AGREE_FIRST:
           if (firstClassifierAgrees) {
-            result.setCount(Pair.makePair(relation, Maybe.fromNull(valueToProvenance.get(relation))), firstClassifierWeight);
+            result.setCount(key, firstClassifierWeight);
           }
           break;
         default:
@@ -365,4 +487,32 @@ public class EnsembleRelationExtractor extends RelationClassifier {
     for (RelationClassifier classifier : classifiers)
       classifier.save(out);
   }
+
+  @Override
+  public void load(BinaryModel.Reader in) throws IOException {
+    int numSamples = in.readInt();
+    method = EnsembleMethod.valueOf(in.readString());
+
+    modelTypes =  new ArrayList<ModelType>();
+    for (int s = 0; s < numSamples; s++) {
+      modelTypes.add(ModelType.valueOf(in.readString()));
+    }
+
+    classifiers =  new ArrayList<RelationClassifier>();
+    for (int s = 0; s < numSamples; s++) {
+      RelationClassifier classifier = modelTypes.get(s).construct(properties);
+      classifier.load(in);
+      classifiers.add(classifier);
+    }
+  }
+
+  @Override
+  public void save(BinaryModel.Writer out) throws IOException {
+    out.writeInt(modelTypes.size());
+    out.writeString(method.name());
+    for (ModelType type : modelTypes)
+      out.writeString(type.name());
+    for (RelationClassifier classifier : classifiers)
+      classifier.save(out);
+  }
 }
@@ -0,0 +1,191 @@
+package edu.stanford.nlp.kbp.slotfilling.classify;
+
+import edu.stanford.nlp.util.HashIndex;
+import edu.stanford.nlp.util.Index;
+
+import java.util.*;
+
+/**
+ * <p>A feature index implementing the hashing trick: every feature string is mapped to one of a fixed number
+ * of buckets by a hash of the string, rather than being stored. The size of the index, and therefore the size of any
+ * model trained against it, is fixed regardless of how many distinct features the training corpus has.</p>
+ *
+ * <p>This is a drop-in replacement for a {@link HashIndex} of feature strings: every feature is "in" the index,
+ * {@link HashedFeatureIndex#get(int)} returns a name for an id, and the index never grows.
+ * Classifiers which look features up through their index (e.g., LinearClassifier, or
+ * {@link edu.stanford.nlp.kbp.slotfilling.common.SentenceGroup#featureIndices(edu.stanford.nlp.util.Index)})
+ * therefore hash at inference time exactly as they did at training time.
+ * Classifiers which train on the feature <i>names</i> of a dataset instead see id names, and must map
+ * features through {@link HashedFeatureIndex#bucketName(String)} at inference time.
+ * Names are only for display and for such classifiers: they are never hashed back to their id, so a name
+ * must not be looked up with {@link HashedFeatureIndex#indexOf(String)}; use the ids of the dataset instead.</p>
+ *
+ * <p>With signed hashing, a second hash of the feature gives it a sign, so that features colliding in a bucket tend to
+ * cancel out rather than add up. An index over B buckets then has 2B ids: a feature with a positive sign in bucket b
+ * has id b, and one with a negative sign has id B + b. Linear models that keep their own weight vectors
+ * (the perceptron models) keep one weight per bucket, sized by {@link HashedFeatureIndex#numWeights(Index)}, and
+ * if the index {@link HashedFeatureIndex#isSigned(Index)}, give an id of B or more the negated weight of its bucket.
+ * Other classifiers see the two ids of a bucket as two separate features.</p>
+ */
+public class HashedFeatureIndex extends HashIndex<String> {
+  private static final long serialVersionUID = 1L;
+
+  /** The prefix of the name of an id; e.g., the positive id of bucket 42 is named "#hash42", and its negative id "-#hash42" */
+  public static final String BUCKET_PREFIX = "#hash";
+
+  /** The seeds of the hash for the bucket, and of the hash for the sign */
+  private static final int BUCKET_SEED = 0x9747b28c;
+  private static final int SIGN_SEED = 0x5bd1e995;
+
+  public final int numBuckets;
+  public final boolean signed;
+
+  public HashedFeatureIndex(int numBuckets) {
+    this(numBuckets, false);
+  }
+
+  public HashedFeatureIndex(int numBuckets, boolean signed) {
+    super();
+    if (numBuckets <= 0 || (signed && numBuckets > Integer.MAX_VALUE / 2)) { throw new IllegalArgumentException("Invalid number of buckets: " + numBuckets); }
+    this.numBuckets = numBuckets;
+    this.signed = signed;
+  }
+
+  /** The bucket a feature is hashed into */
+  public int bucket(String feature) {
+    int hash = murmurHash(feature, BUCKET_SEED);
+    return (hash & 0x7FFFFFFF) % numBuckets;
+  }
+
+  /** The sign of a feature: -1 or +1 with signed hashing, and always +1 otherwise */
+  public int sign(String feature) {
+    return signed && murmurHash(feature, SIGN_SEED) < 0 ? -1 : 1;
+  }
+
+  /** The name of the id a (raw) feature is hashed to; see {@link HashedFeatureIndex#get(int)} */
+  public String bucketName(String feature) {
+    return get(indexOf(feature));
+  }
+
+  /**
+   * The number of weights a linear model over a feature index needs: one per bucket for a hashed index,
+   * and one per feature otherwise.
+   */
+  public static int numWeights(Index<String> index) {
+    return index instanceof HashedFeatureIndex ? ((HashedFeatureIndex) index).numBuckets : index.size();
+  }
+
+  /**
+   * Whether a feature index is hashed with signs, so that the ids from {@link HashedFeatureIndex#numWeights(Index)}
+   * up stand for negatively signed features. Models record this when they are trained, and only then fold such ids
+   * onto their buckets; for any other index, an id past the end of the weights is an error.
+   */
+  public static boolean isSigned(Index<String> index) {
+    return index instanceof HashedFeatureIndex && ((HashedFeatureIndex) index).signed;
+  }
+
+  @Override
+  public int size() {
+    return signed ? 2 * numBuckets : numBuckets;
+  }
+
+  @Override
+  public String get(int i) {
+    if (i < 0 || i >= size()) { throw new ArrayIndexOutOfBoundsException("Index " + i + " outside of [0, " + size() + ")"); }
+    return i < numBuckets ? BUCKET_PREFIX + i : "-" + BUCKET_PREFIX + (i - numBuckets);
+  }
+
+  /** The id of a feature: its bucket, offset by the number of buckets if its sign is negative */
+  @Override
+  public int indexOf(String feature) {
+    int bucket = bucket(feature);
+    return sign(feature) < 0 ? numBuckets + bucket : bucket;
+  }
+
+  @Override
+  public int indexOf(String feature, boolean add) {
+    return indexOf(feature);
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    return o instanceof String;
+  }
+
+  /** A no-op; every feature is already in the index */
+  @Override
+  public boolean add(String feature) {
+    return false;
+  }
+
+  /** A no-op; every feature is already in the index */
+  @Override
+  public boolean addAll(Collection<? extends String> features) {
+    return false;
+  }
+
+  @Override
+  public List<String> objectsList() {
+    return new AbstractList<String>() {
+      @Override
+      public String get(int index) { return HashedFeatureIndex.this.get(index); }
+      @Override
+      public int size() { return HashedFeatureIndex.this.size(); }
+    };
+  }
+
+  @Override
+  public Collection<String> objects(final int[] indices) {
+    return new AbstractList<String>() {
+      @Override
+      public String get(int index) { return HashedFeatureIndex.this.get(indices[index]); }
+      @Override
+      public int size() { return indices.length; }
+    };
+  }
+
+  @Override
+  public Iterator<String> iterator() {
+    return objectsList().iterator();
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return this == o || (o instanceof HashedFeatureIndex &&
+        ((HashedFeatureIndex) o).numBuckets == numBuckets && ((HashedFeatureIndex) o).signed == signed);
+  }
+
+  @Override
+  public int hashCode() {
+    return signed ? -numBuckets : numBuckets;
+  }
+
+  @Override
+  public String toString() {
+    return "HashedFeatureIndex[" + numBuckets + (signed ? " signed" : "") + " buckets]";
+  }
+
+  /**
+   * The 32 bit MurmurHash3 of a string's characters.
+   * String.hashCode() is not used, as it collides readily on the short, similar strings features tend to be.
+   */
+  private static int murmurHash(String str, int seed) {
+    int h = seed;
+    for (int i = 0; i < str.length(); ++i) {
+      int k = str.charAt(i);
+      k *= 0xcc9e2d51;
+      k = Integer.rotateLeft(k, 15);
+      k *= 0x1b873593;
+      h ^= k;
+      h = Integer.rotateLeft(h, 13);
+      h = h * 5 + 0xe6546b64;
+    }
+    h ^= str.length();
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+}
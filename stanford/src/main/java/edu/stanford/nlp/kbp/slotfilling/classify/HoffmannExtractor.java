@@ -5,18 +5,23 @@ import edu.stanford.nlp.kbp.slotfilling.common.*;
 import edu.stanford.nlp.kbp.slotfilling.ir.KBPRelationProvenance;
 import edu.stanford.nlp.stats.ClassicCounter;
 import edu.stanford.nlp.stats.Counter;
+import edu.stanford.nlp.stats.Counters;
 import edu.stanford.nlp.util.*;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.DoubleBuffer;
+import java.text.DecimalFormat;
 import java.util.*;
 
 import static edu.stanford.nlp.util.logging.Redwood.Util.log;
+import static edu.stanford.nlp.util.logging.Redwood.Util.threadAndRun;
 
 /**
  * Implements as closely as possible the MultiR algorithm from (Hoffmann et al., 2011)
  * @author Mihai
  */
-public class HoffmannExtractor extends RelationClassifier {
+public class HoffmannExtractor extends RelationClassifier implements WeightPrecision.Reducible {
   private static final long serialVersionUID = 1L;
   private static final int LABEL_ALL = -1;
 
@@ -41,7 +46,24 @@ public class HoffmannExtractor extends RelationClassifier {
      */
     double [] avgWeights;
 
-    LabelWeights(int numFeatures) {
+    /** The average vector, if memory-mapped from a binary model rather than held in avgWeights */
+    transient DoubleBuffer mappedAvgWeights;
+
+    /** The average vector as floats, if stored at {@link WeightPrecision#FLOAT} */
+    float [] floatAvgWeights;
+
+    /** The average vector as bytes, if stored at {@link WeightPrecision#INT8}: weight = quantizationScale * quantizedAvgWeights[i] */
+    byte [] quantizedAvgWeights;
+    double quantizationScale;
+
+    /**
+     * If true, the features are hashed with signs (see {@link HashedFeatureIndex#signed}): an id in [size(), 2 * size())
+     * is the negatively signed feature of the weight at id - size(). Otherwise, every id must be less than size().
+     */
+    boolean signed;
+
+    LabelWeights(int numFeatures, boolean signed) {
+      this.signed = signed;
       weights = new double[numFeatures];
       Arrays.fill(weights, 0.0);
       survivalIterations = 0;
@@ -49,10 +71,117 @@ public class HoffmannExtractor extends RelationClassifier {
       Arrays.fill(avgWeights, 0.0);
     }
 
+    /** Weights for a trained model, using a memory-mapped average vector */
+    LabelWeights(DoubleBuffer mappedAvgWeights, boolean signed) {
+      this.signed = signed;
+      this.mappedAvgWeights = mappedAvgWeights;
+    }
+
+    /** The number of features in the average vector */
+    int size() {
+      if (avgWeights != null) return avgWeights.length;
+      if (mappedAvgWeights != null) return mappedAvgWeights.capacity();
+      if (floatAvgWeights != null) return floatAvgWeights.length;
+      return quantizedAvgWeights.length;
+    }
+
+    /** The average vector at full width, dequantized if need be */
+    double [] averagedWeights() {
+      if (avgWeights != null) return avgWeights;
+      double [] values = new double[size()];
+      for(int i = 0; i < values.length; i ++){
+        if (mappedAvgWeights != null) values[i] = mappedAvgWeights.get(i);
+        else if (floatAvgWeights != null) values[i] = floatAvgWeights[i];
+        else values[i] = quantizationScale * quantizedAvgWeights[i];
+      }
+      return values;
+    }
+
+    /**
+     * Keep only the average vector, at the given precision. This is for inference only:
+     * the training weights are dropped. Weights which are already at a lower precision are left as they are.
+     */
+    void setPrecision(WeightPrecision precision) {
+      weights = null;
+      if (precision == WeightPrecision.DOUBLE || quantizedAvgWeights != null ||
+          (precision == WeightPrecision.FLOAT && floatAvgWeights != null)) {
+        return;
+      }
+      double [] values = averagedWeights();
+      switch (precision) {
+        case FLOAT:
+          floatAvgWeights = new float[values.length];
+          for(int i = 0; i < values.length; i ++) floatAvgWeights[i] = (float) values[i];
+          break;
+        case INT8:
+          double maxAbs = 0.0;
+          for (double v : values) maxAbs = Math.max(maxAbs, Math.abs(v));
+          quantizationScale = maxAbs / 127.0;
+          quantizedAvgWeights = new byte[values.length];
+          if (quantizationScale > 0.0) {
+            for(int i = 0; i < values.length; i ++) quantizedAvgWeights[i] = (byte) Math.round(values[i] / quantizationScale);
+          }
+          floatAvgWeights = null;
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown precision: " + precision);
+      }
+      avgWeights = null;
+      mappedAvgWeights = null;
+    }
+
+    /** Copy a memory-mapped average vector onto the heap; e.g., before serializing */
+    void unmap() {
+      if (mappedAvgWeights != null) {
+        avgWeights = new double[mappedAvgWeights.capacity()];
+        mappedAvgWeights.duplicate().get(avgWeights);
+        mappedAvgWeights = null;
+      }
+    }
+
+    /** The mapped vector is transient; serialize it as an ordinary one */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+      unmap();
+      out.defaultWriteObject();
+    }
+
     void clear() {
       weights = null;
     }
 
+    /**
+     * A copy of these weights for training on one shard of the data, with an empty averaging buffer
+     * @see HoffmannExtractor#trainEpochInParallel(KBPDataset, int, Counter, Counter)
+     */
+    LabelWeights copyForShard() {
+      LabelWeights copy = new LabelWeights(weights.length, signed);
+      System.arraycopy(weights, 0, copy.weights, 0, weights.length);
+      return copy;
+    }
+
+    /** Adds the latest weight vector to the average vector, and starts counting its survival anew */
+    void flushAverage() {
+      addToAverage();
+      survivalIterations = 0;
+    }
+
+    /**
+     * Replace the weights with the mean of the weights of the shard copies,
+     * and add the averaging buffers of the copies to the average vector
+     */
+    void mix(List<LabelWeights> shards) {
+      Arrays.fill(weights, 0.0);
+      for(LabelWeights shard: shards) {
+        for(int i = 0; i < weights.length; i ++){
+          weights[i] += shard.weights[i];
+          avgWeights[i] += shard.avgWeights[i];
+        }
+      }
+      for(int i = 0; i < weights.length; i ++){
+        weights[i] /= shards.size();
+      }
+    }
+
     void updateSurvivalIterations() {
       survivalIterations ++;
     }
@@ -71,8 +200,12 @@ public class HoffmannExtractor extends RelationClassifier {
 
       // actual update
       for(int d: datum){
-        if(d > weights.length) expand();
-        weights[d] += weight;
+        if(d >= weights.length) {
+          if(!signed || d >= 2 * weights.length) expand();
+          weights[d - weights.length] -= weight;  // a negatively signed hashed feature
+        } else {
+          weights[d] += weight;
+        }
       }
 
       // this is a new vector, so let's reset its survival counter
@@ -84,30 +217,64 @@ public class HoffmannExtractor extends RelationClassifier {
     }
 
     double dotProduct(Counter<Integer> vector) {
-      return dotProduct(vector, weights);
+      return dotProduct(vector, weights, signed);
     }
 
-    double avgDotProduct(Collection<String> features, Index<String> featureIndex) {
-      Counter<Integer> vector = new ClassicCounter<Integer>();
-      for(String feat: features) {
-        int idx = featureIndex.indexOf(feat);
-        if(idx >= 0) vector.incrementCount(idx);
+    /**
+     * The dot product of the averaged weights with a datum, given as the indices of its features (duplicates included).
+     * If the features are {@link LabelWeights#signed}, an index past the end of the vector is a negatively signed hashed feature.
+     */
+    double avgDotProduct(int[] features) {
+      double dotProd = 0;
+      int n = size();
+      int limit = signed ? 2 * n : n;
+      if (mappedAvgWeights != null) {
+        for (int feature : features) {
+          checkKey(feature, limit);
+          if (feature < n) dotProd += mappedAvgWeights.get(feature);
+          else dotProd -= mappedAvgWeights.get(feature - n);
+        }
+      } else if (floatAvgWeights != null) {
+        for (int feature : features) {
+          checkKey(feature, limit);
+          if (feature < n) dotProd += floatAvgWeights[feature];
+          else dotProd -= floatAvgWeights[feature - n];
+        }
+      } else if (quantizedAvgWeights != null) {
+        int quantizedDotProd = 0;
+        for (int feature : features) {
+          checkKey(feature, limit);
+          if (feature < n) quantizedDotProd += quantizedAvgWeights[feature];
+          else quantizedDotProd -= quantizedAvgWeights[feature - n];
+        }
+        dotProd = quantizationScale * quantizedDotProd;
+      } else {
+        for (int feature : features) {
+          checkKey(feature, limit);
+          if (feature < n) dotProd += avgWeights[feature];
+          else dotProd -= avgWeights[feature - n];
+        }
       }
-
-      return dotProduct(vector, avgWeights);
+      return dotProd;
     }
 
-    static double dotProduct(Counter<Integer> vector, double [] weights) {
+    static double dotProduct(Counter<Integer> vector, double [] weights, boolean signed) {
       double dotProd = 0;
       for (Map.Entry<Integer, Double> entry : vector.entrySet()) {
         if(entry.getKey() == null) throw new RuntimeException("NULL key in " + entry.getKey() + "/" + entry.getValue());
         if(entry.getValue() == null) throw new RuntimeException("NULL value in " + entry.getKey() + "/" + entry.getValue());
         if(weights == null) throw new RuntimeException("NULL weights!");
-        if(entry.getKey() < 0 || entry.getKey() >= weights.length) throw new RuntimeException("Invalid key " + entry.getKey() + ". Should be >= 0 and < " + weights.length);
-        dotProd += entry.getValue() * weights[entry.getKey()];
+        checkKey(entry.getKey(), signed ? 2 * weights.length : weights.length);
+        // a key past the end of the vector is a negatively signed hashed feature
+        if(entry.getKey() >= weights.length) dotProd -= entry.getValue() * weights[entry.getKey() - weights.length];
+        else dotProd += entry.getValue() * weights[entry.getKey()];
       }
       return dotProd;
     }
+
+    private static void checkKey(int key, int limit) {
+      if(key < 0 || key >= limit) throw new RuntimeException("Invalid key " + key + ". Should be >= 0 and < " + limit);
+    }
   }
 
   /** Stores weight information for each known Z label (including NIL) */
@@ -129,6 +296,17 @@ public class HoffmannExtractor extends RelationClassifier {
     log("epochs = " + epochs);
   }
 
+  /** A copy of a model being trained, for training on one shard of the data; the copy starts from the current weights */
+  private HoffmannExtractor(HoffmannExtractor model) {
+    this.epochs = model.epochs;
+    this.labelIndex = model.labelIndex;
+    this.zFeatureIndex = model.zFeatureIndex;
+    this.nilIndex = model.nilIndex;
+    this.zWeights = new LabelWeights[model.zWeights.length];
+    for(int i = 0; i < zWeights.length; i ++)
+      zWeights[i] = model.zWeights[i].copyForShard();
+  }
+
   @Override
   public TrainingStatistics train(KBPDataset<String, String> dataset) {
     log("Training the \"at least once\" classify using "
@@ -143,7 +321,10 @@ public class HoffmannExtractor extends RelationClassifier {
 
     zWeights = new LabelWeights[labelIndex.size()];
     for(int i = 0; i < zWeights.length; i ++)
-      zWeights[i] = new LabelWeights(dataset.featureIndex().size());
+      zWeights[i] = new LabelWeights(HashedFeatureIndex.numWeights(dataset.featureIndex()), HashedFeatureIndex.isSigned(dataset.featureIndex()));
+
+    int numThreads = Math.max(1, Math.min(Props.PERCEPTRON_THREADS, dataset.size()));
+    if(numThreads > 1) log("Training with iterative parameter mixing over " + numThreads + " shards");
 
     // repeat for a number of epochs
     for(int t = 0; t < epochs; t ++){
@@ -156,17 +337,18 @@ public class HoffmannExtractor extends RelationClassifier {
       Counter<Integer> negUpdateStats = new ClassicCounter<Integer>();
 
       // traverse the relation dataset
-      for(int i = 0; i < dataset.size(); i ++){
-        int [][] crtGroup = dataset.getDataArray()[i];
-        Set<Integer> goldPos = dataset.getPositiveLabelsArray()[i];
-
-        trainJointly(crtGroup, goldPos, posUpdateStats, negUpdateStats);
-
-        // update the number of iterations an weight vector has survived
-        for(LabelWeights zw: zWeights) zw.updateSurvivalIterations();
+      long epochStart = System.currentTimeMillis();
+      if(numThreads > 1) {
+        trainEpochInParallel(dataset, numThreads, posUpdateStats, negUpdateStats);
+      } else {
+        for(int i = 0; i < dataset.size(); i ++){
+          trainOneGroup(dataset, i, posUpdateStats, negUpdateStats);
+        }
       }
+      double epochSeconds = Math.max(System.currentTimeMillis() - epochStart, 1) / 1000.0;
 
-      log("Epoch #" + t + " completed. Inspected " +
+      log("Epoch #" + t + " completed in " + epochSeconds + " seconds (" +
+              ((int) (dataset.size() / epochSeconds)) + " groups/sec). Inspected " +
               dataset.size() + " datum groups. Performed " +
               posUpdateStats.getCount(LABEL_ALL) + " ++ updates and " +
               negUpdateStats.getCount(LABEL_ALL) + " -- updates.");
@@ -181,6 +363,61 @@ public class HoffmannExtractor extends RelationClassifier {
     return TrainingStatistics.undefined();
   }
 
+  /** Train on the i-th datum group of a dataset, and age the current weight vectors by one iteration */
+  private void trainOneGroup(KBPDataset<String, String> dataset, int i,
+                             Counter<Integer> posUpdateStats, Counter<Integer> negUpdateStats) {
+    int [][] crtGroup = dataset.getDataArray()[i];
+    Set<Integer> goldPos = dataset.getPositiveLabelsArray()[i];
+
+    trainJointly(crtGroup, goldPos, posUpdateStats, negUpdateStats);
+
+    // update the number of iterations an weight vector has survived
+    for(LabelWeights zw: zWeights) zw.updateSurvivalIterations();
+  }
+
+  /**
+   * Train one epoch with iterative parameter mixing (McDonald et al., 2010).
+   * The (already randomized) dataset is split into one contiguous shard per thread; a copy of the current weights
+   * is trained on each shard, and the weights are then replaced by the mean of the copies. The averaging buffers of the
+   * copies are added to the average vector of this model. Shards are mixed in order, so the result depends only on
+   * the data order and the number of threads.
+   */
+  private void trainEpochInParallel(final KBPDataset<String, String> dataset, int numThreads,
+                                    Counter<Integer> posUpdateStats, Counter<Integer> negUpdateStats) {
+    final List<HoffmannExtractor> shards = new ArrayList<HoffmannExtractor>();
+    final List<Pair<Counter<Integer>, Counter<Integer>>> shardStats = new ArrayList<Pair<Counter<Integer>, Counter<Integer>>>();
+    List<Runnable> tasks = new ArrayList<Runnable>();
+    for(int s = 0; s < numThreads; s ++){
+      final int start = (int) (((long) dataset.size()) * s / numThreads);
+      final int end = (int) (((long) dataset.size()) * (s + 1) / numThreads);
+      final HoffmannExtractor shard = new HoffmannExtractor(this);
+      final Pair<Counter<Integer>, Counter<Integer>> stats =
+          Pair.<Counter<Integer>, Counter<Integer>>makePair(new ClassicCounter<Integer>(), new ClassicCounter<Integer>());
+      shards.add(shard);
+      shardStats.add(stats);
+      tasks.add(new Runnable() {
+        @Override
+        public void run() {
+          for(int i = start; i < end; i ++){
+            shard.trainOneGroup(dataset, i, stats.first, stats.second);
+          }
+          for(LabelWeights zw: shard.zWeights) zw.flushAverage();
+        }
+      });
+    }
+    threadAndRun("Training on " + numThreads + " shards", tasks, numThreads);
+
+    for(int l = 0; l < zWeights.length; l ++){
+      List<LabelWeights> shardWeights = new ArrayList<LabelWeights>();
+      for(HoffmannExtractor shard: shards) shardWeights.add(shard.zWeights[l]);
+      zWeights[l].mix(shardWeights);
+    }
+    for(Pair<Counter<Integer>, Counter<Integer>> stats: shardStats) {
+      Counters.addInPlace(posUpdateStats, stats.first);
+      Counters.addInPlace(negUpdateStats, stats.second);
+    }
+  }
+
   private void trainJointly(
           int [][] crtGroup,
           Set<Integer> goldPos,
@@ -483,16 +720,24 @@ public class HoffmannExtractor extends RelationClassifier {
   @Override
   public Counter<Pair<String, Maybe<KBPRelationProvenance>>> classifyRelations(SentenceGroup input, Maybe<CoreMap[]> rawSentences) {
     // TODO(gabor) A deeper rewrite than splicing in classifyMentions()
-    return RelationClassifier.firstProvenance(classifyMentions(RelationClassifier.tupleToFeatureList(input)), input);
+    return RelationClassifier.firstProvenance(classifyMentions(input.featureIndices(zFeatureIndex)), input);
   }
 
   public Counter<String> classifyMentions(List<Collection<String>> mentions) {
+    return classifyMentions(featuresToIndices(mentions, zFeatureIndex));
+  }
+
+  /**
+   * Classify a group of mentions, given as the indices of their features in this classifier's feature index.
+   * @see SentenceGroup#featureIndices(Index)
+   */
+  public Counter<String> classifyMentions(int[][] mentions) {
     Counter<String> bestZScores = new ClassicCounter<String>();
 
     // traverse of all mention of this tuple
-    for (int i = 0; i < mentions.size(); i++) {
+    for (int i = 0; i < mentions.length; i++) {
       // get all scores for this mention
-      Collection<String> mentionFeatures = mentions.get(i);
+      int[] mentionFeatures = mentions[i];
       Counter<String> mentionScores = classifyMention(mentionFeatures);
 
       Pair<String, Double> topPrediction = JointBayesRelationExtractor.sortPredictions(mentionScores).get(0);
@@ -512,19 +757,48 @@ public class HoffmannExtractor extends RelationClassifier {
     return bestZScores;
   }
 
-  private Counter<String> classifyMention(Collection<String> testDatum) {
+  private Counter<String> classifyMention(int[] testDatum) {
     Counter<String> scores = new ClassicCounter<String>();
     for(int labelIdx = 0; labelIdx < zWeights.length; labelIdx ++){
-      double score = zWeights[labelIdx].avgDotProduct(testDatum, zFeatureIndex);
+      double score = zWeights[labelIdx].avgDotProduct(testDatum);
       scores.setCount(labelIndex.get(labelIdx), score);
     }
     return scores;
   }
+
+  /**
+   * The implementation of {@link HoffmannExtractor#classifyMentions(List)} before features were interned once per
+   * mention: every feature string is looked up, into a new Counter, once per label.
+   * Kept as the baseline for {@link HoffmannExtractor#main(String[])}.
+   */
+  private Counter<String> classifyMentionsWithStrings(List<Collection<String>> mentions) {
+    Counter<String> bestZScores = new ClassicCounter<String>();
+    for (Collection<String> mention : mentions) {
+      Counter<String> mentionScores = new ClassicCounter<String>();
+      for(int labelIdx = 0; labelIdx < zWeights.length; labelIdx ++){
+        Counter<Integer> vector = new ClassicCounter<Integer>();
+        for(String feat: mention) {
+          int idx = zFeatureIndex.indexOf(feat);
+          if(idx >= 0) vector.incrementCount(idx);
+        }
+        mentionScores.setCount(labelIndex.get(labelIdx), LabelWeights.dotProduct(vector, zWeights[labelIdx].avgWeights, zWeights[labelIdx].signed));
+      }
+      Pair<String, Double> topPrediction = JointBayesRelationExtractor.sortPredictions(mentionScores).get(0);
+      String l = topPrediction.first();
+      double s = topPrediction.second();
+      if(! l.equals(RelationMention.UNRELATED) &&
+         (! bestZScores.containsKey(l) || bestZScores.getCount(l) < s)) {
+        bestZScores.setCount(l, s);
+      }
+    }
+    return bestZScores;
+  }
   
   @Override
   public void save(ObjectOutputStream out) throws IOException {
     for(LabelWeights zw: zWeights) {
       zw.clear();
+      zw.unmap();
     }
     
     assert(zWeights != null);
@@ -548,9 +822,118 @@ public class HoffmannExtractor extends RelationClassifier {
     labelIndex = ErasureUtils.uncheckedCast(in.readObject());
     nilIndex = labelIndex.indexOf(RelationMention.UNRELATED);
     zFeatureIndex = ErasureUtils.uncheckedCast(in.readObject());
+    setWeightPrecision(Props.TEST_MODEL_PRECISION);
+  }
+
+  @Override
+  public void save(BinaryModel.Writer out) throws IOException {
+    out.writeStrings(labelIndex.objectsList());
+    int[] features = out.writeDictionary(zFeatureIndex);
+    out.writeInt(zWeights.length);
+    for(LabelWeights zw: zWeights) {
+      out.writeVector(zw.averagedWeights(), features);
+    }
+  }
+
+  @Override
+  public void load(BinaryModel.Reader in) throws IOException {
+    labelIndex = in.readLabelIndex();
+    nilIndex = labelIndex.indexOf(RelationMention.UNRELATED);
+    zFeatureIndex = in.readDictionary();
+    int length = in.readInt();
+    zWeights = new LabelWeights[length];
+    for(int i = 0; i < zWeights.length; i ++){
+      zWeights[i] = new LabelWeights(in.readVector(), HashedFeatureIndex.isSigned(zFeatureIndex));
+    }
+    setWeightPrecision(Props.TEST_MODEL_PRECISION);
+  }
+
+  /** Keep the averaged weights at a reduced precision, for inference; the model can no longer be trained */
+  @Override
+  public void setWeightPrecision(WeightPrecision precision) {
+    if (precision == WeightPrecision.DOUBLE) { return; }
+    long numWeights = 0;
+    for(LabelWeights zw: zWeights) {
+      zw.setPrecision(precision);
+      numWeights += zw.size();
+    }
+    log("keeping " + numWeights + " averaged weights at " + precision + " precision (" +
+        (numWeights * precision.bytesPerWeight / (1 << 20)) + " MB)");
   }
 
   public static HoffmannExtractor load(String modelPath, Properties props) throws IOException, ClassNotFoundException {
     return RelationClassifier.load(modelPath, props, HoffmannExtractor.class);
   }
+
+  /** The bytes allocated so far by the current thread, or -1 if the JVM does not count them */
+  private static long allocatedBytes() {
+    java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+
+  /**
+   * A benchmark of classifying mentions given as feature strings, on a random model, against the implementation it
+   * replaced; reports the throughput and the bytes allocated per mention of each.
+   * Usage: HoffmannExtractor [number of features (default 100000)] [number of labels (default 42)] [number of groups (default 10000)]
+   */
+  public static void main(String[] args) {
+    int numFeatures = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+    int numLabels = args.length > 1 ? Integer.parseInt(args[1]) : 42;
+    int numGroups = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+    Random rand = new Random(42);
+
+    // A random model
+    HoffmannExtractor model = new HoffmannExtractor(1);
+    model.labelIndex = new HashIndex<String>();
+    model.labelIndex.add(RelationMention.UNRELATED);
+    for (int l = 1; l < numLabels; ++l) { model.labelIndex.add("relation" + l); }
+    model.nilIndex = model.labelIndex.indexOf(RelationMention.UNRELATED);
+    model.zFeatureIndex = new HashIndex<String>();
+    for (int f = 0; f < numFeatures; ++f) { model.zFeatureIndex.add("feature_" + f); }
+    model.zWeights = new LabelWeights[numLabels];
+    for (int l = 0; l < numLabels; ++l) {
+      model.zWeights[l] = new LabelWeights(numFeatures, false);
+      model.zWeights[l].weights = null;
+      for (int f = 0; f < numFeatures; ++f) { model.zWeights[l].avgWeights[f] = rand.nextGaussian() * 0.01; }
+    }
+    // Random groups of mentions, of 1-10 mentions of 50 features each; one feature in ten is not in the model
+    List<List<Collection<String>>> groups = new ArrayList<List<Collection<String>>>();
+    long numMentions = 0;
+    for (int g = 0; g < numGroups; ++g) {
+      List<Collection<String>> group = new ArrayList<Collection<String>>();
+      for (int m = 1 + rand.nextInt(10); m > 0; --m) {
+        List<String> mention = new ArrayList<String>();
+        for (int k = 0; k < 50; ++k) {
+          mention.add(rand.nextInt(10) == 0 ? "unseen_" + rand.nextInt() : "feature_" + rand.nextInt(numFeatures));
+        }
+        group.add(mention);
+      }
+      groups.add(group);
+      numMentions += group.size();
+    }
+
+    DecimalFormat df = new DecimalFormat("0.0");
+    for (int trial = 0; trial < 5; ++trial) {
+      long allocatedBefore = allocatedBytes();
+      long start = System.nanoTime();
+      double checksumBefore = 0.0;
+      for (List<Collection<String>> group : groups) { checksumBefore += model.classifyMentionsWithStrings(group).totalCount(); }
+      double secondsBefore = ((double) (System.nanoTime() - start)) / 1e9;
+      long allocatedAfter = allocatedBytes();
+      start = System.nanoTime();
+      double checksumAfter = 0.0;
+      for (List<Collection<String>> group : groups) { checksumAfter += model.classifyMentions(group).totalCount(); }
+      double secondsAfter = ((double) (System.nanoTime() - start)) / 1e9;
+      long allocatedEnd = allocatedBytes();
+      log("trial " + trial + ": " + numMentions + " mentions; " +
+          "before " + df.format(numMentions / secondsBefore) + " mentions/sec" +
+          (allocatedBefore >= 0 ? ", " + df.format(((double) (allocatedAfter - allocatedBefore)) / numMentions) + " bytes/mention" : "") + "; " +
+          "after " + df.format(numMentions / secondsAfter) + " mentions/sec" +
+          (allocatedBefore >= 0 ? ", " + df.format(((double) (allocatedEnd - allocatedAfter)) / numMentions) + " bytes/mention" : "") + "; " +
+          "checksums " + checksumBefore + " / " + checksumAfter);
+    }
+  }
 }
@@ -873,14 +873,15 @@ public class JointBayesRelationExtractor extends RelationClassifier {
   public Triple<Double, Double, Double> trainingAccuracy(KBPDataset<String, String> dataset) {
     int[][][] data = dataset.getDataArray();
     int[][] zLabels = new int[data.length][];
+    // The names of a hashed index cannot be hashed again; its ids are the same in the classifiers, so classify those instead
+    boolean hashed = dataset.featureIndex() instanceof HashedFeatureIndex;
 
     // Run inference
     for (int exI = 0; exI < data.length; ++exI) {
       zLabels[exI] = new int[data[exI].length];
-      List<Datum<String, String>> sentences = dataset.getDatumGroup(exI);
-      for (int groupI = 0; groupI < sentences.size(); ++groupI) {
-        Collection<String> sentence = sentences.get(groupI).asFeatures();
-        Counter<String> labels = classifyLocally(sentence);
+      List<Datum<String, String>> sentences = hashed ? null : dataset.getDatumGroup(exI);
+      for (int groupI = 0; groupI < data[exI].length; ++groupI) {
+        Counter<String> labels = hashed ? classifyLocally(data[exI][groupI]) : classifyLocally(sentences.get(groupI).asFeatures());
         zLabels[exI][groupI] = zLabelIndex.indexOf(Counters.argmax(labels));
       }
     }
@@ -1923,6 +1924,37 @@ public class JointBayesRelationExtractor extends RelationClassifier {
     throw new RuntimeException("ERROR: classification mode " + localClassificationMode + " not supported!");
   }
 
+  /**
+   * As {@link JointBayesRelationExtractor#classifyLocally(Collection)}, but for a sentence given as the indices of
+   * its features in the Z classifiers' feature index.
+   * @return Probabilities (NOT log probs!) for each known label
+   */
+  private Counter<String> classifyLocally(int[] sentence) {
+    if(localClassificationMode == LOCAL_CLASSIFICATION_MODE.WEIGHTED_VOTE) {
+      Counter<String> sumProbs = new ClassicCounter<String>();
+
+      for(int fold = 0; fold < numberOfFolds; fold ++) {
+        sumProbs.addAll(probabilityOf(zClassifiers[fold], sentence));
+      }
+
+      for(String l: sumProbs.keySet())
+        sumProbs.setCount(l, sumProbs.getCount(l) / numberOfFolds);
+      return sumProbs;
+    }
+
+    if(localClassificationMode == LOCAL_CLASSIFICATION_MODE.SINGLE_MODEL) {
+      return probabilityOf(zSingleClassifier, sentence);
+    }
+
+    throw new RuntimeException("ERROR: classification mode " + localClassificationMode + " not supported!");
+  }
+
+  private static Counter<String> probabilityOf(LinearClassifier<String, String> zClassifier, int[] sentence) {
+    Counter<String> probs = zClassifier.scoresOf(sentence);
+    Counters.logNormalizeInPlace(probs);
+    return Counters.exp(probs);
+  }
+
   public Counter<String> classifyOracleMentions(
       List<Collection<String>> sentences,
       Set<String> goldLabels) {
@@ -2153,6 +2185,48 @@ public class JointBayesRelationExtractor extends RelationClassifier {
     endTrack("Loading Joint Bayes relation extractor (from input stream)");
   }
 
+  @Override
+  public void save(BinaryModel.Writer out) throws IOException {
+    out.writeStrings(knownDependencies);
+    out.writeStrings(zLabelIndex.objectsList());
+    out.writeInt(zClassifiers.length);
+    for (LinearClassifier<String, String> zClassifier : zClassifiers)
+      out.writeLinearClassifier(zClassifier);
+    out.writeBoolean(zSingleClassifier != null);
+    if (zSingleClassifier != null)
+      out.writeLinearClassifier(zSingleClassifier);
+    out.writeInt(yClassifiers.keySet().size());
+    for (String yLabel : yClassifiers.keySet()) {
+      out.writeString(yLabel);
+      out.writeLinearClassifier(yClassifiers.get(yLabel));
+    }
+  }
+
+  @Override
+  public void load(BinaryModel.Reader in) throws IOException {
+    startTrack("Loading Joint Bayes relation extractor (from binary model)");
+    knownDependencies = new HashSet<String>(in.readStrings());
+    zLabelIndex = in.readLabelIndex();
+
+    numberOfFolds = in.readInt();
+    zClassifiers = ErasureUtils.uncheckedCast(new LinearClassifier[numberOfFolds]);
+    for(int i = 0; i < numberOfFolds; i ++){
+      zClassifiers[i] = in.readLinearClassifier();
+    }
+    zSingleClassifier = in.readBoolean() ? in.readLinearClassifier() : null;
+
+    int numLabels = in.readInt();
+    yClassifiers = new HashMap<String, LinearClassifier<String, String>>();
+    for (int i = 0; i < numLabels; i++) {
+      String yLabel = in.readString();
+      LinearClassifier<String, String> classifier = in.readLinearClassifier();
+      yClassifiers.put(yLabel, classifier);
+      logger.log("Loaded Y classifier for label " + yLabel +
+          ": " + classifier.toAllWeightsString());
+    }
+    endTrack("Loading Joint Bayes relation extractor (from binary model)");
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o) return true;
@@ -65,6 +65,9 @@ public class KBPDataset<L, F> implements Serializable {
   /** The size of the dataset, in examples */
   protected int size;
 
+  /** A scratch buffer for interning the features of a datum, reused across calls to {@link KBPDataset#addFeatures(List)} */
+  private transient int[] featureBuffer = new int[64];
+
   public KBPDataset() {
     this(10);
   }
@@ -296,6 +299,8 @@ public class KBPDataset<L, F> implements Serializable {
   /**
    * Applies a feature count threshold to the KBPDataset.
    * All features that occur fewer than <i>threshold</i> times are expunged.
+   * For a {@link HashedFeatureIndex}, the index is left as is (it cannot be rebuilt), and only the
+   * infrequent buckets are removed from the data.
    */
   public void applyFeatureCountThreshold(int threshold) {
     data = trimToSize(data);
@@ -304,39 +309,51 @@ public class KBPDataset<L, F> implements Serializable {
     //
     // rebuild the feature index
     //
-    Index<F> newFeatureIndex = new HashIndex<F>();
     int[] featMap = new int[featureIndex.size()];
-    for (int i = 0; i < featMap.length; i++) {
-      F feat = featureIndex.get(i);
-      if (counts[i] >= threshold) {
-        int newIndex = newFeatureIndex.size();
-        newFeatureIndex.add(feat);
-        featMap[i] = newIndex;
-      } else {
-        featMap[i] = -1;
+    if (featureIndex instanceof HashedFeatureIndex) {
+      for (int i = 0; i < featMap.length; i++) {
+        featMap[i] = counts[i] >= threshold ? i : -1;
+      }
+    } else {
+      Index<F> newFeatureIndex = new HashIndex<F>();
+      for (int i = 0; i < featMap.length; i++) {
+        F feat = featureIndex.get(i);
+        if (counts[i] >= threshold) {
+          int newIndex = newFeatureIndex.size();
+          newFeatureIndex.add(feat);
+          featMap[i] = newIndex;
+        } else {
+          featMap[i] = -1;
+        }
       }
+      featureIndex = newFeatureIndex;
     }
 
-    featureIndex = newFeatureIndex;
-
     //
     // rebuild the data
     //
     for (int i = 0; i < size; i++) {
       for(int j = 0; j < data[i].length; j ++){
-        List<Integer> featList = new ArrayList<Integer>(data[i][j].length);
-        for (int k = 0; k < data[i][j].length; k++) {
-          if (featMap[data[i][j][k]] >= 0) {
-            featList.add(featMap[data[i][j][k]]);
+        int[] features = data[i][j];
+        int kept = 0;
+        for (int k = 0; k < features.length; k++) {
+          if (featMap[features[k]] >= 0) {
+            features[kept++] = featMap[features[k]];  // kept <= k, so this is safe to do in place
           }
         }
-        data[i][j] = new int[featList.size()];
-        for(int k = 0; k < data[i][j].length; k ++) {
-          data[i][j][k] = featList.get(k);
-        }
+        data[i][j] = kept == features.length ? features : Arrays.copyOf(features, kept);
       }
     }
   }
+
+  /**
+   * Copy a feature or label index, so that the copy can grow independently of the original.
+   * A {@link HashedFeatureIndex} never grows, and is returned as is.
+   */
+  public static <E> Index<E> copyIndex(Index<E> index) {
+    if (index instanceof HashedFeatureIndex) { return index; }
+    return new HashIndex<E>(index);
+  }
   
 //  public void addDatum(Set<L> yPos, Set<L> yNeg, List<Datum<L, F>> group, Maybe<? extends List<String>> sentenceGlossKeys) {
 //    addDatum(yPos, yNeg, new HashSet<L>(0), group, sentenceGlossKeys);
@@ -404,20 +421,17 @@ public class KBPDataset<L, F> implements Serializable {
     int [][] groupFeatures = new int[group.size()][];
     int datumIndex = 0;
     for(Collection<F> features: group){
-      int[] intFeatures = new int[features.size()];
+      if (featureBuffer == null || featureBuffer.length < features.size()) { featureBuffer = new int[Math.max(64, features.size())]; }
       int j = 0;
       for (F feature : features) {
-        featureIndex.add(feature);
-        int index = featureIndex.indexOf(feature);
+        int index = featureIndex.indexOf(feature, true);  // adds the feature, if the index is not locked
         if (index >= 0) {
-          intFeatures[j] = featureIndex.indexOf(feature);
+          featureBuffer[j] = index;
           j++;
         }
       }
       
-      int [] trimmedFeatures = new int[j];
-      System.arraycopy(intFeatures, 0, trimmedFeatures, 0, j);
-      groupFeatures[datumIndex] = trimmedFeatures;
+      groupFeatures[datumIndex] = Arrays.copyOf(featureBuffer, j);
       datumIndex ++;
     }
     assert(datumIndex == group.size());
@@ -0,0 +1,225 @@
+package edu.stanford.nlp.kbp.slotfilling.classify;
+
+import edu.stanford.nlp.util.HashIndex;
+
+import java.io.ObjectStreamException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * <p>A read-only index over a sorted table of strings, as written by {@link BinaryModel.Writer#writeDictionary(edu.stanford.nlp.util.Index)}.
+ * The table is used in place (e.g., in a memory-mapped model file) rather than copied into a hash map:
+ * {@link MappedStringIndex#indexOf(String)} probes an open-addressing hash table, keyed on {@link String#hashCode()},
+ * and compares the candidate strings to the key as they are decoded, so a lookup allocates nothing.
+ * {@link MappedStringIndex#get(int)} decodes a string from the table.</p>
+ *
+ * <p>The hash table is stored in the model file. Files written before it was (format version 1) have none;
+ * the table is then built on the heap on the first lookup.</p>
+ *
+ * <p>This is a drop-in replacement for a locked {@link HashIndex} of strings. It serializes as a plain HashIndex,
+ * so a model loaded from a binary file can still be saved in the serialized format.</p>
+ */
+public class MappedStringIndex extends HashIndex<String> {
+  private static final long serialVersionUID = 1L;
+
+  static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final int numStrings;
+  /** The offset of each string in the table, plus the end of the table */
+  private final IntBuffer offsets;
+  /** The UTF-8 bytes of the strings, concatenated in sorted order */
+  private final ByteBuffer strings;
+  /** The hash table: a power of two of slots, each the position of a string plus one, or 0 if empty; built lazily if null */
+  private volatile IntBuffer slots;
+
+  MappedStringIndex(int numStrings, IntBuffer offsets, ByteBuffer strings, IntBuffer slots) {
+    super();
+    this.numStrings = numStrings;
+    this.offsets = offsets;
+    this.strings = strings;
+    this.slots = slots;
+  }
+
+  /** The number of slots in the hash table of a dictionary of the given size */
+  static int numSlots(int numStrings) {
+    int numSlots = 2;
+    while (numSlots < 2 * numStrings) { numSlots <<= 1; }
+    return numSlots;
+  }
+
+  /** The first slot to probe for a string with the given hash code */
+  static int slot(int hashCode, int numSlots) {
+    return (hashCode ^ (hashCode >>> 16)) & (numSlots - 1);
+  }
+
+  /**
+   * Fill in a hash table, by linear probing.
+   * @param hashCodes The hash code of the string at each position of the table.
+   */
+  static int[] hashTable(int[] hashCodes) {
+    int[] table = new int[numSlots(hashCodes.length)];
+    for (int position = 0; position < hashCodes.length; ++position) {
+      int slot = slot(hashCodes[position], table.length);
+      while (table[slot] != 0) { slot = (slot + 1) & (table.length - 1); }
+      table[slot] = position + 1;
+    }
+    return table;
+  }
+
+  private IntBuffer slots() {
+    IntBuffer table = slots;
+    if (table == null) {
+      int[] hashCodes = new int[numStrings];
+      for (int i = 0; i < numStrings; ++i) { hashCodes[i] = get(i).hashCode(); }
+      table = IntBuffer.wrap(hashTable(hashCodes));
+      slots = table;
+    }
+    return table;
+  }
+
+  /**
+   * Whether the string at a position of the table is the given string. The string is compared as it is decoded,
+   * with unpaired surrogates in the key compared as '?', as the UTF-8 encoder writes them.
+   */
+  private boolean matches(int i, String key) {
+    int position = offsets.get(i);
+    int end = offsets.get(i + 1);
+    int k = 0;
+    int keyLength = key.length();
+    while (position < end) {
+      // Decode a code point of the table
+      int b = strings.get(position) & 0xFF;
+      int codePoint;
+      if (b < 0x80) {
+        codePoint = b;
+        position += 1;
+      } else if (b < 0xE0) {
+        codePoint = ((b & 0x1F) << 6) | (strings.get(position + 1) & 0x3F);
+        position += 2;
+      } else if (b < 0xF0) {
+        codePoint = ((b & 0x0F) << 12) | ((strings.get(position + 1) & 0x3F) << 6) | (strings.get(position + 2) & 0x3F);
+        position += 3;
+      } else {
+        codePoint = ((b & 0x07) << 18) | ((strings.get(position + 1) & 0x3F) << 12) |
+            ((strings.get(position + 2) & 0x3F) << 6) | (strings.get(position + 3) & 0x3F);
+        position += 4;
+      }
+      // Compare it to the next code point of the key
+      if (k >= keyLength) { return false; }
+      char c = key.charAt(k);
+      int keyCodePoint;
+      if (Character.isHighSurrogate(c) && k + 1 < keyLength && Character.isLowSurrogate(key.charAt(k + 1))) {
+        keyCodePoint = Character.toCodePoint(c, key.charAt(k + 1));
+        k += 2;
+      } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+        keyCodePoint = '?';
+        k += 1;
+      } else {
+        keyCodePoint = c;
+        k += 1;
+      }
+      if (codePoint != keyCodePoint) { return false; }
+    }
+    return k == keyLength;
+  }
+
+  @Override
+  public int size() {
+    return numStrings;
+  }
+
+  @Override
+  public String get(int i) {
+    if (i < 0 || i >= numStrings) { throw new ArrayIndexOutOfBoundsException("Index " + i + " outside of [0, " + numStrings + ")"); }
+    int start = offsets.get(i);
+    byte[] bytes = new byte[offsets.get(i + 1) - start];
+    for (int k = 0; k < bytes.length; ++k) { bytes[k] = strings.get(start + k); }
+    return new String(bytes, UTF8);
+  }
+
+  @Override
+  public int indexOf(String feature) {
+    IntBuffer table = slots();
+    int mask = table.capacity() - 1;
+    for (int slot = slot(feature.hashCode(), table.capacity()); ; slot = (slot + 1) & mask) {
+      int entry = table.get(slot);
+      if (entry == 0) { return -1; }
+      if (matches(entry - 1, feature)) { return entry - 1; }
+    }
+  }
+
+  /** The index is locked; new strings are never added */
+  @Override
+  public int indexOf(String feature, boolean add) {
+    return indexOf(feature);
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    return o instanceof String && indexOf((String) o) >= 0;
+  }
+
+  /** A no-op; the index is locked */
+  @Override
+  public boolean add(String feature) {
+    return false;
+  }
+
+  /** A no-op; the index is locked */
+  @Override
+  public boolean addAll(Collection<? extends String> features) {
+    return false;
+  }
+
+  @Override
+  public boolean isLocked() {
+    return true;
+  }
+
+  @Override
+  public List<String> objectsList() {
+    return new AbstractList<String>() {
+      @Override
+      public String get(int index) { return MappedStringIndex.this.get(index); }
+      @Override
+      public int size() { return numStrings; }
+    };
+  }
+
+  @Override
+  public Collection<String> objects(final int[] indices) {
+    return new AbstractList<String>() {
+      @Override
+      public String get(int index) { return MappedStringIndex.this.get(indices[index]); }
+      @Override
+      public int size() { return indices.length; }
+    };
+  }
+
+  @Override
+  public Iterator<String> iterator() {
+    return objectsList().iterator();
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return this == o;
+  }
+
+  @Override
+  public int hashCode() {
+    return System.identityHashCode(this);
+  }
+
+  @Override
+  public String toString() {
+    return "MappedStringIndex[" + numStrings + " strings]";
+  }
+
+  /** Buffers do not serialize; serialize as an ordinary index */
+  private Object writeReplace() throws ObjectStreamException {
+    return new HashIndex<String>(objectsList());
+  }
+}
@@ -5,9 +5,11 @@ import static edu.stanford.nlp.util.logging.Redwood.Util.BOLD;
 import static edu.stanford.nlp.util.logging.Redwood.Util.endTrack;
 import static edu.stanford.nlp.util.logging.Redwood.Util.startTrack;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OptionalDataException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -20,6 +22,7 @@ import java.util.Set;
 
 import edu.stanford.nlp.classify.Dataset;
 import edu.stanford.nlp.classify.GeneralDataset;
+import edu.stanford.nlp.classify.LinearClassifier;
 import edu.stanford.nlp.classify.LinearClassifierFactory;
 import edu.stanford.nlp.classify.ProbabilisticClassifier;
 import edu.stanford.nlp.classify.LogPrior;
@@ -51,6 +54,9 @@ public class OneVsAllRelationExtractor extends RelationClassifier {
   
   public final boolean useRobustLR;
 
+  /** If the training features were hashed, the index they were hashed with; features are hashed the same way before classifying */
+  private Maybe<HashedFeatureIndex> featureHashing = Maybe.Nothing();
+
   @SuppressWarnings("UnusedDeclaration") // Used via reflection
   public OneVsAllRelationExtractor(Properties props) {
     this(false);
@@ -84,6 +90,11 @@ public class OneVsAllRelationExtractor extends RelationClassifier {
     Counter<String> labels = new ClassicCounter<String>();
     for(Collection<String> mention: relation) {
       // System.err.println("Classifying slot " + mention.mention().getArg(1).getExtentString());
+      for (HashedFeatureIndex hashing : featureHashing) {
+        List<String> hashed = new ArrayList<String>(mention.size());
+        for (String feature : mention) { hashed.add(hashing.bucketName(feature)); }
+        mention = hashed;
+      }
       Datum<String, String> datum = new BasicDatum<String, String>(mention);
       Pair<String, Double> label = annotateDatum(datum);
       if(! label.first().equals(RelationMention.UNRELATED)) {
@@ -143,6 +154,7 @@ public class OneVsAllRelationExtractor extends RelationClassifier {
     assert(classifiers != null);
     out.writeObject(classifiers);
     out.writeDouble(sigma);
+    out.writeObject(featureHashing.orNull());
   }
 
   @Override
@@ -150,11 +162,52 @@ public class OneVsAllRelationExtractor extends RelationClassifier {
     Map<String, ProbabilisticClassifier<String, String>> classifiers =
         ErasureUtils.uncheckedCast(in.readObject());
     double sigma = in.readDouble();
+    HashedFeatureIndex featureHashing = null;
+    try {
+      featureHashing = ErasureUtils.uncheckedCast(in.readObject());
+    } catch (EOFException e) {
+      // Case: a model saved before feature hashing was supported
+    } catch (OptionalDataException e) {
+      // Case: a model saved before feature hashing was supported
+    }
     this.classifiers = classifiers;
     this.sigma = sigma;
+    this.featureHashing = featureHashing == null ? Maybe.<HashedFeatureIndex>Nothing() : Maybe.Just(featureHashing);
     in.close();
   }
 
+  @SuppressWarnings("unchecked")
+  @Override
+  public void save(BinaryModel.Writer out) throws IOException {
+    assert(classifiers != null);
+    out.writeDouble(sigma);
+    out.writeBoolean(featureHashing.isDefined());
+    for (HashedFeatureIndex index : featureHashing) { out.writeDictionary(index); }
+    out.writeInt(classifiers.size());
+    for (Map.Entry<String, ProbabilisticClassifier<String, String>> entry : classifiers.entrySet()) {
+      if (!(entry.getValue() instanceof LinearClassifier)) {
+        throw new IOException("Only linear classifiers can be saved in the binary model format: " + entry.getValue().getClass());
+      }
+      out.writeString(entry.getKey());
+      out.writeLinearClassifier((LinearClassifier<String, String>) entry.getValue());
+    }
+  }
+
+  @Override
+  public void load(BinaryModel.Reader in) throws IOException {
+    double sigma = in.readDouble();
+    HashedFeatureIndex featureHashing = in.readBoolean() ? (HashedFeatureIndex) in.readDictionary() : null;
+    int numClassifiers = in.readInt();
+    Map<String, ProbabilisticClassifier<String, String>> classifiers = new HashMap<String, ProbabilisticClassifier<String, String>>();
+    for (int i = 0; i < numClassifiers; ++i) {
+      String label = in.readString();
+      classifiers.put(label, in.readLinearClassifier());
+    }
+    this.classifiers = classifiers;
+    this.sigma = sigma;
+    this.featureHashing = featureHashing == null ? Maybe.<HashedFeatureIndex>Nothing() : Maybe.Just(featureHashing);
+  }
+
   public static OneVsAllRelationExtractor load(String modelPath) throws IOException, ClassNotFoundException {
     return RelationClassifier.load(modelPath, new Properties(), OneVsAllRelationExtractor.class);
   }
@@ -181,6 +234,9 @@ public class OneVsAllRelationExtractor extends RelationClassifier {
   public TrainingStatistics train(KBPDataset<String, String> dataset) {
     Map<String, GeneralDataset<String, String>> trainSets =
         new HashMap<String, GeneralDataset<String, String>>();
+    // If the features are hashed, the datums below are of bucket names, and so must be the features we classify
+    this.featureHashing = dataset.featureIndex() instanceof HashedFeatureIndex
+        ? Maybe.Just((HashedFeatureIndex) dataset.featureIndex()) : Maybe.<HashedFeatureIndex>Nothing();
 
     // create a binary dataset for each relation
     for (String relation : dataset.labelIndex) {
@@ -3,15 +3,19 @@ package edu.stanford.nlp.kbp.slotfilling.classify;
 import edu.stanford.nlp.ie.machinereading.structure.RelationMention;
 import edu.stanford.nlp.kbp.slotfilling.common.*;
 import edu.stanford.nlp.kbp.slotfilling.ir.KBPRelationProvenance;
+import edu.stanford.nlp.math.ArrayMath;
 import edu.stanford.nlp.stats.ClassicCounter;
 import edu.stanford.nlp.stats.Counter;
 import edu.stanford.nlp.stats.Counters;
 import edu.stanford.nlp.util.*;
 
 import java.io.*;
+import java.nio.DoubleBuffer;
+import java.text.DecimalFormat;
 import java.util.*;
 
 import static edu.stanford.nlp.util.logging.Redwood.Util.log;
+import static edu.stanford.nlp.util.logging.Redwood.Util.threadAndRun;
 
 /**
  * Other variants of a latent-variable averaged perceptron classifier for relation classification
@@ -22,7 +26,7 @@ import static edu.stanford.nlp.util.logging.Redwood.Util.log;
  * @author Mihai
  *
  */
-public class PerceptronExtractor extends RelationClassifier {
+public class PerceptronExtractor extends RelationClassifier implements WeightPrecision.Reducible {
   private static final long serialVersionUID = 1L;
   
   private static boolean SOFT_UNKNOWN = false;
@@ -49,8 +53,25 @@ public class PerceptronExtractor extends RelationClassifier {
      * The weight for each vector is the number of iterations it survived 
      */
     double [] avgWeights;
+
+    /** The average vector, if memory-mapped from a binary model rather than held in avgWeights */
+    transient DoubleBuffer mappedAvgWeights;
+
+    /** The average vector as floats, if stored at {@link WeightPrecision#FLOAT} */
+    float [] floatAvgWeights;
+
+    /** The average vector as bytes, if stored at {@link WeightPrecision#INT8}: weight = quantizationScale * quantizedAvgWeights[i] */
+    byte [] quantizedAvgWeights;
+    double quantizationScale;
+
+    /**
+     * If true, the features are hashed with signs (see {@link HashedFeatureIndex#signed}): an id in [size(), 2 * size())
+     * is the negatively signed feature of the weight at id - size(). Otherwise, every id must be less than size().
+     */
+    boolean signed;
     
-    LabelWeights(int numFeatures) {
+    LabelWeights(int numFeatures, boolean signed) {
+      this.signed = signed;
       weights = new double[numFeatures];
       Arrays.fill(weights, 0.0);
       survivalIterations = 0;
@@ -58,9 +79,116 @@ public class PerceptronExtractor extends RelationClassifier {
       Arrays.fill(avgWeights, 0.0);
     }
     
+    /** Weights for a trained model, using a memory-mapped average vector */
+    LabelWeights(DoubleBuffer mappedAvgWeights, boolean signed) {
+      this.signed = signed;
+      this.mappedAvgWeights = mappedAvgWeights;
+    }
+
+    /** The number of features in the average vector */
+    int size() {
+      if (avgWeights != null) return avgWeights.length;
+      if (mappedAvgWeights != null) return mappedAvgWeights.capacity();
+      if (floatAvgWeights != null) return floatAvgWeights.length;
+      return quantizedAvgWeights.length;
+    }
+
+    /** The average vector at full width, dequantized if need be */
+    double [] averagedWeights() {
+      if (avgWeights != null) return avgWeights;
+      double [] values = new double[size()];
+      for(int i = 0; i < values.length; i ++){
+        if (mappedAvgWeights != null) values[i] = mappedAvgWeights.get(i);
+        else if (floatAvgWeights != null) values[i] = floatAvgWeights[i];
+        else values[i] = quantizationScale * quantizedAvgWeights[i];
+      }
+      return values;
+    }
+
+    /**
+     * Keep only the average vector, at the given precision. This is for inference only:
+     * the training weights are dropped. Weights which are already at a lower precision are left as they are.
+     */
+    void setPrecision(WeightPrecision precision) {
+      weights = null;
+      if (precision == WeightPrecision.DOUBLE || quantizedAvgWeights != null ||
+          (precision == WeightPrecision.FLOAT && floatAvgWeights != null)) {
+        return;
+      }
+      double [] values = averagedWeights();
+      switch (precision) {
+        case FLOAT:
+          floatAvgWeights = new float[values.length];
+          for(int i = 0; i < values.length; i ++) floatAvgWeights[i] = (float) values[i];
+          break;
+        case INT8:
+          double maxAbs = 0.0;
+          for (double v : values) maxAbs = Math.max(maxAbs, Math.abs(v));
+          quantizationScale = maxAbs / 127.0;
+          quantizedAvgWeights = new byte[values.length];
+          if (quantizationScale > 0.0) {
+            for(int i = 0; i < values.length; i ++) quantizedAvgWeights[i] = (byte) Math.round(values[i] / quantizationScale);
+          }
+          floatAvgWeights = null;
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown precision: " + precision);
+      }
+      avgWeights = null;
+      mappedAvgWeights = null;
+    }
+
+    /** Copy a memory-mapped average vector onto the heap; e.g., before serializing */
+    void unmap() {
+      if (mappedAvgWeights != null) {
+        avgWeights = new double[mappedAvgWeights.capacity()];
+        mappedAvgWeights.duplicate().get(avgWeights);
+        mappedAvgWeights = null;
+      }
+    }
+
+    /** The mapped vector is transient; serialize it as an ordinary one */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+      unmap();
+      out.defaultWriteObject();
+    }
+
     void clear() {
       weights = null;
     }
+
+    /**
+     * A copy of these weights for training on one shard of the data, with an empty averaging buffer
+     * @see PerceptronExtractor#trainEpochInParallel(KBPDataset, int)
+     */
+    LabelWeights copyForShard() {
+      LabelWeights copy = new LabelWeights(weights.length, signed);
+      System.arraycopy(weights, 0, copy.weights, 0, weights.length);
+      return copy;
+    }
+
+    /** Adds the latest weight vector to the average vector, and starts counting its survival anew */
+    void flushAverage() {
+      addToAverage();
+      survivalIterations = 0;
+    }
+
+    /**
+     * Replace the weights with the mean of the weights of the shard copies,
+     * and add the averaging buffers of the copies to the average vector
+     */
+    void mix(List<LabelWeights> shards) {
+      Arrays.fill(weights, 0.0);
+      for(LabelWeights shard: shards) {
+        for(int i = 0; i < weights.length; i ++){
+          weights[i] += shard.weights[i];
+          avgWeights[i] += shard.avgWeights[i];
+        }
+      }
+      for(int i = 0; i < weights.length; i ++){
+        weights[i] /= shards.size();
+      }
+    }
     
     void updateSurvivalIterations() {
       survivalIterations ++;
@@ -80,8 +208,12 @@ public class PerceptronExtractor extends RelationClassifier {
       
       // actual update
       for(int d: datum){
-        if(d > weights.length) expand();
-        weights[d] += weight;
+        if(d >= weights.length) {
+          if(!signed || d >= 2 * weights.length) expand();
+          weights[d - weights.length] -= weight;  // a negatively signed hashed feature
+        } else {
+          weights[d] += weight;
+        }
       }
       
       // this is a new vector, so let's reset its survival counter
@@ -93,7 +225,7 @@ public class PerceptronExtractor extends RelationClassifier {
     }
     
     double dotProduct(Counter<Integer> vector) {
-      return dotProduct(vector, weights);
+      return dotProduct(vector, weights, signed);
     }
     
     void normalize(double norm) {
@@ -103,27 +235,61 @@ public class PerceptronExtractor extends RelationClassifier {
       }
     }
     
-    double avgDotProduct(Collection<String> features, Index<String> featureIndex) {
-      Counter<Integer> vector = new ClassicCounter<Integer>();
-      for(String feat: features) {
-        int idx = featureIndex.indexOf(feat);
-        if(idx >= 0) vector.incrementCount(idx);
+    /**
+     * The dot product of the averaged weights with a datum, given as the indices of its features (duplicates included).
+     * If the features are {@link LabelWeights#signed}, an index past the end of the vector is a negatively signed hashed feature.
+     */
+    double avgDotProduct(int[] features) {
+      double dotProd = 0;
+      int n = size();
+      int limit = signed ? 2 * n : n;
+      if (mappedAvgWeights != null) {
+        for (int feature : features) {
+          checkKey(feature, limit);
+          if (feature < n) dotProd += mappedAvgWeights.get(feature);
+          else dotProd -= mappedAvgWeights.get(feature - n);
+        }
+      } else if (floatAvgWeights != null) {
+        for (int feature : features) {
+          checkKey(feature, limit);
+          if (feature < n) dotProd += floatAvgWeights[feature];
+          else dotProd -= floatAvgWeights[feature - n];
+        }
+      } else if (quantizedAvgWeights != null) {
+        int quantizedDotProd = 0;
+        for (int feature : features) {
+          checkKey(feature, limit);
+          if (feature < n) quantizedDotProd += quantizedAvgWeights[feature];
+          else quantizedDotProd -= quantizedAvgWeights[feature - n];
+        }
+        dotProd = quantizationScale * quantizedDotProd;
+      } else {
+        for (int feature : features) {
+          checkKey(feature, limit);
+          if (feature < n) dotProd += avgWeights[feature];
+          else dotProd -= avgWeights[feature - n];
+        }
       }
-      
-      return dotProduct(vector, avgWeights);
+      return dotProd;
     }
     
-    static double dotProduct(Counter<Integer> vector, double [] weights) {
+    static double dotProduct(Counter<Integer> vector, double [] weights, boolean signed) {
       double dotProd = 0;
       for (Map.Entry<Integer, Double> entry : vector.entrySet()) {
         if(entry.getKey() == null) throw new RuntimeException("NULL key in " + entry.getKey() + "/" + entry.getValue());
         if(entry.getValue() == null) throw new RuntimeException("NULL value in " + entry.getKey() + "/" + entry.getValue());
         if(weights == null) throw new RuntimeException("NULL weights!");
-        if(entry.getKey() < 0 || entry.getKey() >= weights.length) throw new RuntimeException("Invalid key " + entry.getKey() + ". Should be >= 0 and < " + weights.length);
-        dotProd += entry.getValue() * weights[entry.getKey()];
+        checkKey(entry.getKey(), signed ? 2 * weights.length : weights.length);
+        // a key past the end of the vector is a negatively signed hashed feature
+        if(entry.getKey() >= weights.length) dotProd -= entry.getValue() * weights[entry.getKey() - weights.length];
+        else dotProd += entry.getValue() * weights[entry.getKey()];
       }
       return dotProd;
     }
+
+    private static void checkKey(int key, int limit) {
+      if(key < 0 || key >= limit) throw new RuntimeException("Invalid key " + key + ". Should be >= 0 and < " + limit);
+    }
   }
   
   /** Stores weight information for each known Z label (including NIL) */
@@ -163,11 +329,30 @@ public class PerceptronExtractor extends RelationClassifier {
     log("gamma = " + gamma);
     this.verbose = false;
   }
+
+  /** A copy of a model being trained, for training on one shard of the data; the copy starts from the current weights */
+  private PerceptronExtractor(PerceptronExtractor model) {
+    this.epochs = model.epochs;
+    this.softmaxEnabled = model.softmaxEnabled;
+    this.modelType = model.modelType;
+    this.gamma = model.gamma;
+    this.verbose = model.verbose;
+    this.labelIndex = model.labelIndex;
+    this.zFeatureIndex = model.zFeatureIndex;
+    this.nilIndex = model.nilIndex;
+    this.zWeights = new LabelWeights[model.zWeights.length];
+    for(int i = 0; i < zWeights.length; i ++)
+      zWeights[i] = model.zWeights[i].copyForShard();
+    this.posUpdateStats = new ClassicCounter<Integer>();
+    this.negUpdateStats = new ClassicCounter<Integer>();
+    this.unknownUpdateStats = new ClassicCounter<Integer>();
+  }
   
   @Override
   public void save(ObjectOutputStream out) throws IOException {
     for(LabelWeights zw: zWeights) {
       zw.clear();
+      zw.unmap();
     }
 
     assert(zWeights != null);
@@ -190,6 +375,43 @@ public class PerceptronExtractor extends RelationClassifier {
     labelIndex = ErasureUtils.uncheckedCast(in.readObject());
     nilIndex = labelIndex.indexOf(RelationMention.UNRELATED);
     zFeatureIndex = ErasureUtils.uncheckedCast(in.readObject());
+    setWeightPrecision(Props.TEST_MODEL_PRECISION);
+  }
+
+  @Override
+  public void save(BinaryModel.Writer out) throws IOException {
+    out.writeStrings(labelIndex.objectsList());
+    int[] features = out.writeDictionary(zFeatureIndex);
+    out.writeInt(zWeights.length);
+    for(LabelWeights zw: zWeights) {
+      out.writeVector(zw.averagedWeights(), features);
+    }
+  }
+
+  @Override
+  public void load(BinaryModel.Reader in) throws IOException {
+    labelIndex = in.readLabelIndex();
+    nilIndex = labelIndex.indexOf(RelationMention.UNRELATED);
+    zFeatureIndex = in.readDictionary();
+    int length = in.readInt();
+    zWeights = new LabelWeights[length];
+    for(int i = 0; i < zWeights.length; i ++){
+      zWeights[i] = new LabelWeights(in.readVector(), HashedFeatureIndex.isSigned(zFeatureIndex));
+    }
+    setWeightPrecision(Props.TEST_MODEL_PRECISION);
+  }
+
+  /** Keep the averaged weights at a reduced precision, for inference; the model can no longer be trained */
+  @Override
+  public void setWeightPrecision(WeightPrecision precision) {
+    if (precision == WeightPrecision.DOUBLE) { return; }
+    long numWeights = 0;
+    for(LabelWeights zw: zWeights) {
+      zw.setPrecision(precision);
+      numWeights += zw.size();
+    }
+    log("keeping " + numWeights + " averaged weights at " + precision + " precision (" +
+        (numWeights * precision.bytesPerWeight / (1 << 20)) + " MB)");
   }
 
   @Override
@@ -206,8 +428,10 @@ public class PerceptronExtractor extends RelationClassifier {
 
     zWeights = new LabelWeights[labelIndex.size()];
     for(int i = 0; i < zWeights.length; i ++)
-      zWeights[i] = new LabelWeights(dataset.featureIndex().size());
+      zWeights[i] = new LabelWeights(HashedFeatureIndex.numWeights(dataset.featureIndex()), HashedFeatureIndex.isSigned(dataset.featureIndex()));
 
+    int numThreads = Math.max(1, Math.min(Props.PERCEPTRON_THREADS, dataset.size()));
+    if(numThreads > 1) log("Training with iterative parameter mixing over " + numThreads + " shards");
     int iterations = 0;
     for(int t = 0; t < epochs; t ++){
       // randomize the data set in each epoch
@@ -219,34 +443,20 @@ public class PerceptronExtractor extends RelationClassifier {
       negUpdateStats = new ClassicCounter<Integer>();
       unknownUpdateStats = new ClassicCounter<Integer>();
 
-      for(int i = 0; i < dataset.size(); i ++){
-        int [][] crtGroup = dataset.getDataArray()[i];
-        Set<Integer> goldPos = dataset.getPositiveLabelsArray()[i];
-        Set<Integer> goldNeg = dataset.getNegativeLabelsArray()[i];
-        iterations ++;
-        if(verbose) inputStats(i, goldPos, goldNeg, crtGroup);
-
-        if(modelType == edu.stanford.nlp.kbp.slotfilling.classify.ModelType.AT_LEAST_ONCE_INC) {
-          trainJointlyOneGroupIncomplete(crtGroup, goldPos, goldNeg);
-        } else if(modelType == edu.stanford.nlp.kbp.slotfilling.classify.ModelType.PERCEPTRON) {
-          trainLocallyOneGroup(crtGroup, goldPos, goldNeg, false);
-        } else if(modelType == ModelType.PERCEPTRON_INC) {
-          trainLocallyOneGroup(crtGroup, goldPos, goldNeg, true);
-        } else {
-          throw new RuntimeException("Unsupported model type: " + modelType);
-        }
-        
-        if(verbose){
-          System.err.println("Group #" + i + " completed.");
-          System.err.println("=============================================================");
-        }
-        
-        for(LabelWeights zw: zWeights) {
-          zw.updateSurvivalIterations();
+      long epochStart = System.currentTimeMillis();
+      if(numThreads > 1) {
+        trainEpochInParallel(dataset, numThreads);
+        iterations += dataset.size();
+      } else {
+        for(int i = 0; i < dataset.size(); i ++){
+          trainOneGroup(dataset, i);
+          iterations ++;
         }
       }
+      double epochSeconds = Math.max(System.currentTimeMillis() - epochStart, 1) / 1000.0;
       
-      log("Epoch #" + t + " completed. Inspected " +
+      log("Epoch #" + t + " completed in " + epochSeconds + " seconds (" +
+          ((int) (dataset.size() / epochSeconds)) + " groups/sec). Inspected " +
           dataset.size() + " datum groups. Performed " +
           posUpdateStats.getCount(LABEL_ALL) + " ++ updates and " +
           negUpdateStats.getCount(LABEL_ALL) + " -- updates and " +
@@ -267,6 +477,74 @@ public class PerceptronExtractor extends RelationClassifier {
     statistics = Maybe.Just(TrainingStatistics.undefined());
     return TrainingStatistics.undefined();
   }
+
+  /** Train on the i-th datum group of a dataset, and age the current weight vectors by one iteration */
+  private void trainOneGroup(KBPDataset<String, String> dataset, int i) {
+    int [][] crtGroup = dataset.getDataArray()[i];
+    Set<Integer> goldPos = dataset.getPositiveLabelsArray()[i];
+    Set<Integer> goldNeg = dataset.getNegativeLabelsArray()[i];
+    if(verbose) inputStats(i, goldPos, goldNeg, crtGroup);
+
+    if(modelType == edu.stanford.nlp.kbp.slotfilling.classify.ModelType.AT_LEAST_ONCE_INC) {
+      trainJointlyOneGroupIncomplete(crtGroup, goldPos, goldNeg);
+    } else if(modelType == edu.stanford.nlp.kbp.slotfilling.classify.ModelType.PERCEPTRON) {
+      trainLocallyOneGroup(crtGroup, goldPos, goldNeg, false);
+    } else if(modelType == ModelType.PERCEPTRON_INC) {
+      trainLocallyOneGroup(crtGroup, goldPos, goldNeg, true);
+    } else {
+      throw new RuntimeException("Unsupported model type: " + modelType);
+    }
+
+    if(verbose){
+      System.err.println("Group #" + i + " completed.");
+      System.err.println("=============================================================");
+    }
+
+    for(LabelWeights zw: zWeights) {
+      zw.updateSurvivalIterations();
+    }
+  }
+
+  /**
+   * Train one epoch with iterative parameter mixing (McDonald et al., 2010).
+   * The (already randomized) dataset is split into one contiguous shard per thread; a copy of the current weights
+   * is trained on each shard, and the weights are then replaced by the mean of the copies. Each copy averages its own
+   * weight vectors, and these averages are added to the average vector of this model, so that the average still runs over
+   * every iteration. Shards are mixed in order, so the result depends only on the data order and the number of threads.
+   */
+  private void trainEpochInParallel(final KBPDataset<String, String> dataset, int numThreads) {
+    final List<PerceptronExtractor> shards = new ArrayList<PerceptronExtractor>();
+    List<Runnable> tasks = new ArrayList<Runnable>();
+    for(int s = 0; s < numThreads; s ++){
+      final int start = (int) (((long) dataset.size()) * s / numThreads);
+      final int end = (int) (((long) dataset.size()) * (s + 1) / numThreads);
+      final PerceptronExtractor shard = new PerceptronExtractor(this);
+      shards.add(shard);
+      tasks.add(new Runnable() {
+        @Override
+        public void run() {
+          for(int i = start; i < end; i ++){
+            shard.trainOneGroup(dataset, i);
+          }
+          for(LabelWeights zw: shard.zWeights) {
+            zw.flushAverage();
+          }
+        }
+      });
+    }
+    threadAndRun("Training on " + numThreads + " shards", tasks, numThreads);
+
+    for(int l = 0; l < zWeights.length; l ++){
+      List<LabelWeights> shardWeights = new ArrayList<LabelWeights>();
+      for(PerceptronExtractor shard: shards) shardWeights.add(shard.zWeights[l]);
+      zWeights[l].mix(shardWeights);
+    }
+    for(PerceptronExtractor shard: shards) {
+      Counters.addInPlace(posUpdateStats, shard.posUpdateStats);
+      Counters.addInPlace(negUpdateStats, shard.negUpdateStats);
+      Counters.addInPlace(unknownUpdateStats, shard.unknownUpdateStats);
+    }
+  }
   
   private void trainLocallyOneGroup(int [][] crtGroup,
       Set<Integer> goldPos, 
@@ -763,59 +1041,91 @@ public class PerceptronExtractor extends RelationClassifier {
   }
 
   public Counter<String> classifyMentions(List<Collection<String>> sentences) {
-    String[] zLabels = new String[sentences.size()];
-    Counter<String> [] zLogProbs = 
-      ErasureUtils.uncheckedCast(new Counter[sentences.size()]);
-      
+    return classifyMentions(featuresToIndices(sentences, zFeatureIndex));
+  }
+
+  /**
+   * Classify a group of mentions, given as the indices of their features in this classifier's feature index.
+   * Nothing is allocated per mention: the label scores of each mention are computed into an array reused across the group,
+   * in one pass over the (label-major) averaged weights, and the noisy-or is accumulated in an array indexed by label.
+   * @see SentenceGroup#featureIndices(Index)
+   */
+  public Counter<String> classifyMentions(int[][] sentences) {
+    int numLabels = zWeights.length;
+    double[] scores = new double[numLabels];
+    // the noisy-or of the local probabilities of each label, over the mentions predicting that label
+    double[] noisyOr = new double[numLabels];
+    Arrays.fill(noisyOr, 1.0);
+    boolean[] predicted = new boolean[numLabels];
+
     //
     // Z level predictions
     //
+    for (int[] sentence : sentences) {
+      // scan all labels; this includes NIL, which is needed for proper softmax
+      for(int labelIdx = 0; labelIdx < numLabels; labelIdx ++){
+        scores[labelIdx] = gamma * zWeights[labelIdx].avgDotProduct(sentence);
+      }
+      // the most probable label under the softmax is the highest scoring label;
+      // this is an arbitrary decision to disambiguate ties
+      int best = 0;
+      for(int labelIdx = 1; labelIdx < numLabels; labelIdx ++){
+        if (scores[labelIdx] > scores[best] ||
+            (scores[labelIdx] == scores[best] && labelIndex.get(labelIdx).compareTo(labelIndex.get(best)) < 0)) {
+          best = labelIdx;
+        }
+      }
+      // we do not output NIL labels
+      if(best != nilIndex) {
+        double prob = Math.exp(scores[best] - ArrayMath.logSum(scores));
+        noisyOr[best] *= (1.0 - prob);
+        predicted[best] = true;
+      }
+    }
+
+    //
+    // Y level predictions
+    // we assign to each predicted label a score equal to the noisy or of the local probabilities
+    //
+    Counter<String> joint = new ClassicCounter<String>();
+    for(int y = 0; y < numLabels; y ++){
+      if (predicted[y]) {
+        joint.setCount(labelIndex.get(y), 1.0 - noisyOr[y]);
+      }
+    }
+    return joint;
+  }
+
+  /**
+   * The implementation of {@link PerceptronExtractor#classifyMentions(int[][])} before it was made allocation free,
+   * with a Counter per mention and a sorted list of predictions; kept as the baseline for {@link PerceptronExtractor#main(String[])}.
+   */
+  private Counter<String> classifyMentionsWithCounters(int[][] sentences) {
     Counter<String> localNoisyOr = new ClassicCounter<String>();
-    Counter<String> localBest = new ClassicCounter<String>();
-    for (int i = 0; i < sentences.size(); i++) {
-      Collection<String> sentence = sentences.get(i);
+    for (int[] sentence : sentences) {
       Counter<String> probs = classifyLocally(sentence);
-      
-      zLogProbs[i] = new ClassicCounter<String>();
-      for(String l: probs.keySet()) {
-        zLogProbs[i].setCount(l, Math.log(probs.getCount(l)));
-      }
-      
       List<Pair<String, Double>> sortedProbs = JointBayesRelationExtractor.sortPredictions(probs);
       Pair<String, Double> prediction = sortedProbs.get(0);
       String l = prediction.first();
       double s = prediction.second();
-      zLabels[i] = l;
       // we do not output NIL labels
-      if(! zLabels[i].equals(RelationMention.UNRELATED)) {
+      if(! l.equals(RelationMention.UNRELATED)) {
         double crt = (localNoisyOr.containsKey(l) ? localNoisyOr.getCount(l) : 1.0);
         crt = crt * (1.0 - s);
         localNoisyOr.setCount(l, crt);
-        
-        double prev = localBest.getCount(l);
-        if(s > prev) {
-          localBest.setCount(l, s);
-        }
       }
     }
-    
-    //
-    // Y level predictions
-    // we assign to each predicted label a score equal to the noisy or of the local probabilities
-    //
     Counter<String> joint = new ClassicCounter<String>();
     for(String y: localNoisyOr.keySet()) {
-      double zProb = (1.0 - localNoisyOr.getCount(y)); 
-      joint.setCount(y, zProb);
+      joint.setCount(y, 1.0 - localNoisyOr.getCount(y));
     }
     return joint;
-    // return localBest;
   }
 
   @Override
   public Counter<Pair<String, Maybe<KBPRelationProvenance>>> classifyRelations(SentenceGroup input, Maybe<CoreMap[]> rawSentence) {
     // TODO(gabor) A deeper rewrite than splicing in classifyMentions()
-    return RelationClassifier.firstProvenance( classifyMentions(RelationClassifier.tupleToFeatureList(input)), input );
+    return RelationClassifier.firstProvenance( classifyMentions(input.featureIndices(zFeatureIndex)), input );
   }
   
   private static List<Pair<Integer, Double>> sortPredictions(Counter<Integer> scores) {
@@ -843,14 +1153,14 @@ public class PerceptronExtractor extends RelationClassifier {
     });
   }
   
-  private Counter<String> classifyLocally(Collection<String> testDatum) {
+  private Counter<String> classifyLocally(int[] testDatum) {
     // fetch all scores 
     Counter<Integer> allLabelScores = new ClassicCounter<Integer>();
     // stores all scores also here; needed for the softmax normalization
     List<Double> scores = new ArrayList<Double>();
     // scan all labels; this includes NIL, which is needed for proper softmax
     for(int labelIdx = 0; labelIdx < zWeights.length; labelIdx ++){
-      double score = zWeights[labelIdx].avgDotProduct(testDatum, zFeatureIndex);
+      double score = zWeights[labelIdx].avgDotProduct(testDatum);
       allLabelScores.setCount(labelIdx, score);
       scores.add(score);
     }
@@ -868,4 +1178,54 @@ public class PerceptronExtractor extends RelationClassifier {
   public static PerceptronExtractor load(String modelPath, Properties props) throws IOException, ClassNotFoundException {
     return RelationClassifier.load(modelPath, props, PerceptronExtractor.class);
   }
+
+  /**
+   * A benchmark of mention classification on a random model, against the Counter-based implementation it replaced.
+   * Usage: PerceptronExtractor [number of features (default 1000000)] [number of labels (default 42)] [number of groups (default 10000)]
+   */
+  public static void main(String[] args) throws IOException {
+    int numFeatures = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    int numLabels = args.length > 1 ? Integer.parseInt(args[1]) : 42;
+    int numGroups = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+    Random rand = new Random(42);
+
+    // A random model
+    PerceptronExtractor model = new PerceptronExtractor(new Properties());
+    model.labelIndex = new HashIndex<String>();
+    model.labelIndex.add(RelationMention.UNRELATED);
+    for (int l = 1; l < numLabels; ++l) { model.labelIndex.add("relation" + l); }
+    model.nilIndex = model.labelIndex.indexOf(RelationMention.UNRELATED);
+    model.zWeights = new LabelWeights[numLabels];
+    for (int l = 0; l < numLabels; ++l) {
+      model.zWeights[l] = new LabelWeights(numFeatures, false);
+      model.zWeights[l].weights = null;
+      for (int f = 0; f < numFeatures; ++f) { model.zWeights[l].avgWeights[f] = rand.nextGaussian() * 0.01; }
+    }
+    // Random groups of mentions, of 1-10 mentions of 50 features each
+    int[][][] groups = new int[numGroups][][];
+    long numMentions = 0;
+    for (int g = 0; g < numGroups; ++g) {
+      groups[g] = new int[1 + rand.nextInt(10)][50];
+      for (int[] mention : groups[g]) {
+        for (int k = 0; k < mention.length; ++k) { mention[k] = rand.nextInt(numFeatures); }
+      }
+      numMentions += groups[g].length;
+    }
+
+    DecimalFormat df = new DecimalFormat("0.0");
+    for (int trial = 0; trial < 5; ++trial) {
+      long start = System.nanoTime();
+      double checksumBefore = 0.0;
+      for (int[][] group : groups) { checksumBefore += model.classifyMentionsWithCounters(group).totalCount(); }
+      double secondsBefore = ((double) (System.nanoTime() - start)) / 1e9;
+      start = System.nanoTime();
+      double checksumAfter = 0.0;
+      for (int[][] group : groups) { checksumAfter += model.classifyMentions(group).totalCount(); }
+      double secondsAfter = ((double) (System.nanoTime() - start)) / 1e9;
+      log("trial " + trial + ": " + numMentions + " mentions; " +
+          "before " + df.format(numMentions / secondsBefore) + " mentions/sec; " +
+          "after " + df.format(numMentions / secondsAfter) + " mentions/sec; " +
+          "checksums " + checksumBefore + " / " + checksumAfter);
+    }
+  }
 }
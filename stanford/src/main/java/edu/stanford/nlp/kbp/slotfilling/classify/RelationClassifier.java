@@ -10,6 +10,7 @@ import edu.stanford.nlp.stats.ClassicCounter;
 import edu.stanford.nlp.stats.Counter;
 import edu.stanford.nlp.stats.Counters;
 import edu.stanford.nlp.util.CoreMap;
+import edu.stanford.nlp.util.Index;
 import edu.stanford.nlp.util.MetaClass;
 import edu.stanford.nlp.util.Pair;
 
@@ -90,7 +91,28 @@ public abstract class RelationClassifier implements Serializable {
   public abstract TrainingStatistics train(KBPDataset<String, String> trainSet);
   public abstract void load(ObjectInputStream in) throws IOException, ClassNotFoundException;
   public abstract void save(ObjectOutputStream out) throws IOException;
-  
+
+  /**
+   * Save this classifier in the binary model format.
+   * By default, classifiers do not support the format.
+   * @see BinaryModel
+   */
+  public void save(BinaryModel.Writer out) throws IOException {
+    throw new IOException(getClass().getSimpleName() + " does not support the binary model format");
+  }
+
+  /**
+   * Load this classifier from the binary model format, in the order it was written by {@link RelationClassifier#save(BinaryModel.Writer)}.
+   * @see BinaryModel
+   */
+  public void load(BinaryModel.Reader in) throws IOException {
+    throw new IOException(getClass().getSimpleName() + " does not support the binary model format");
+  }
+
+  /**
+   * Save this classifier to a path; as a binary model if the path ends in {@link BinaryModel#EXTENSION},
+   * or as a serialized object otherwise.
+   */
   public void save(String path) throws IOException {
     // make sure the directory specified by path exists
     int lastSlash = path.lastIndexOf(File.separator);
@@ -100,7 +122,16 @@ public abstract class RelationClassifier implements Serializable {
         //noinspection ResultOfMethodCallIgnored
         dir.mkdirs();
     }
-    
+
+    if (path.endsWith(BinaryModel.EXTENSION)) {
+      BinaryModel.Writer out = new BinaryModel.Writer(path);
+      try {
+        save(out);
+      } finally {
+        out.close();
+      }
+      return;
+    }
     ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(path));
     save(out);
     out.close();
@@ -128,6 +159,25 @@ public abstract class RelationClassifier implements Serializable {
     return mentions;
   }
 
+  /**
+   * Interns the feature sets of a list of mentions against a feature index.
+   * Features not in the index are dropped.
+   * @see SentenceGroup#featureIndices(Index)
+   */
+  protected static int[][] featuresToIndices(List<Collection<String>> mentions, Index<String> featureIndex) {
+    int[][] indices = new int[mentions.size()][];
+    for (int i = 0; i < indices.length; ++i) {
+      int[] buffer = new int[mentions.get(i).size()];
+      int size = 0;
+      for (String feature : mentions.get(i)) {
+        int index = featureIndex.indexOf(feature);
+        if (index >= 0) { buffer[size++] = index; }
+      }
+      indices[i] = size == buffer.length ? buffer : Arrays.copyOf(buffer, size);
+    }
+    return indices;
+  }
+
   /**
    * Converts a Counter of relations as strings to a Counter of relations as RelationType objects.
    */
@@ -142,6 +192,19 @@ public abstract class RelationClassifier implements Serializable {
   protected
   static <E extends RelationClassifier> E load(String modelPath, Properties props, Class<E> extractor) throws IOException, ClassNotFoundException {
     startTrack("Loading model [" + extractor.getSimpleName() + "] from " + modelPath);
+    if (BinaryModel.isBinaryModel(modelPath)) {
+      log("constructing class via reflection...");
+      E ex = new MetaClass(extractor).createInstance(props);
+      log("mapping binary model...");
+      BinaryModel.Reader in = new BinaryModel.Reader(modelPath);
+      try {
+        ex.load(in);
+      } finally {
+        in.close();
+      }
+      endTrack("Loading model [" + extractor.getSimpleName() + "] from " + modelPath);
+      return ex;
+    }
     log("opening input streams...");
     InputStream is = null;
     ObjectInputStream in = null;
@@ -0,0 +1,145 @@
+package edu.stanford.nlp.kbp.slotfilling.classify;
+
+import edu.stanford.nlp.io.IOUtils;
+import edu.stanford.nlp.kbp.slotfilling.SlotfillingSystem;
+import edu.stanford.nlp.kbp.slotfilling.common.Props;
+import edu.stanford.nlp.ling.Datum;
+import edu.stanford.nlp.stats.Counter;
+import edu.stanford.nlp.stats.Counters;
+import edu.stanford.nlp.util.Function;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.DecimalFormat;
+import java.util.*;
+
+import static edu.stanford.nlp.util.logging.Redwood.Util.*;
+
+/**
+ * The precision at which the averaged weights of a perceptron model ({@link PerceptronExtractor}, {@link HoffmannExtractor})
+ * are stored for inference. At any precision below DOUBLE, the training weights are dropped, and the model can no longer be trained.
+ *
+ * @see Props#TEST_MODEL_PRECISION
+ */
+public enum WeightPrecision {
+  /** Full precision: the weights are kept as trained (or as memory-mapped) */
+  DOUBLE(8),
+  /** Single precision floats */
+  FLOAT(4),
+  /** Signed bytes, with one scale per label: weight = scale * byte */
+  INT8(1);
+
+  /** The memory taken by a single weight, in bytes */
+  public final int bytesPerWeight;
+
+  WeightPrecision(int bytesPerWeight) {
+    this.bytesPerWeight = bytesPerWeight;
+  }
+
+  /**
+   * A classifier whose weights can be stored at a reduced precision.
+   */
+  public interface Reducible {
+    /** Store the weights of this classifier at the given precision; a no-op for DOUBLE */
+    void setWeightPrecision(WeightPrecision precision);
+
+    /** @see PerceptronExtractor#classifyMentions(List) */
+    Counter<String> classifyMentions(List<Collection<String>> mentions);
+
+    /** @see PerceptronExtractor#classifyMentions(int[][]) */
+    Counter<String> classifyMentions(int[][] mentions);
+  }
+
+  /**
+   * Compare a model at reduced precision against the same model at full precision, on a dataset.
+   * For each model, the top (non-NIL) prediction of every group is scored against the group's positive labels;
+   * the fraction of groups where the two models make the same top prediction, and the largest difference in any score, are also reported.
+   */
+  public static void compare(Reducible full, Reducible reduced, WeightPrecision precision, KBPDataset<String, String> dataset) {
+    int numGold = 0;
+    int[] numPredicted = new int[2];
+    int[] numCorrect = new int[2];
+    int agreements = 0;
+    double maxScoreDifference = 0.0;
+    // The names of a hashed index cannot be hashed again; its ids are the same in the model, so classify those instead
+    int[][][] data = dataset.featureIndex() instanceof HashedFeatureIndex ? dataset.getDataArray() : null;
+    for (int group = 0; group < dataset.size(); ++group) {
+      Set<String> gold = dataset.getPositiveLabels(group);
+      numGold += gold.size();
+      Counter<String> fullScores;
+      Counter<String> reducedScores;
+      if (data != null) {
+        fullScores = full.classifyMentions(data[group]);
+        reducedScores = reduced.classifyMentions(data[group]);
+      } else {
+        List<Collection<String>> mentions = new ArrayList<Collection<String>>();
+        for (Datum<String, String> datum : dataset.getDatumGroup(group)) { mentions.add(datum.asFeatures()); }
+        fullScores = full.classifyMentions(mentions);
+        reducedScores = reduced.classifyMentions(mentions);
+      }
+      String[] top = new String[2];
+      int model = 0;
+      for (Counter<String> scores : Arrays.asList(fullScores, reducedScores)) {
+        if (scores.size() > 0) {
+          top[model] = Counters.argmax(scores);
+          numPredicted[model] += 1;
+          if (gold.contains(top[model])) { numCorrect[model] += 1; }
+        }
+        model += 1;
+      }
+      if (top[0] == null ? top[1] == null : top[0].equals(top[1])) { agreements += 1; }
+      for (String label : Counters.union(fullScores, reducedScores).keySet()) {
+        maxScoreDifference = Math.max(maxScoreDifference, Math.abs(fullScores.getCount(label) - reducedScores.getCount(label)));
+      }
+    }
+    DecimalFormat df = new DecimalFormat("0.000");
+    String[] names = new String[]{ DOUBLE.name(), precision.name() };
+    for (int model = 0; model < 2; ++model) {
+      double p = numPredicted[model] == 0 ? 0.0 : ((double) numCorrect[model]) / ((double) numPredicted[model]);
+      double r = numGold == 0 ? 0.0 : ((double) numCorrect[model]) / ((double) numGold);
+      double f1 = p + r == 0.0 ? 0.0 : 2.0 * p * r / (p + r);
+      log(names[model] + ": P " + df.format(p) + " R " + df.format(r) + " F1 " + df.format(f1));
+    }
+    log(precision + " agrees with " + DOUBLE + " on " + agreements + " of " + dataset.size() + " groups; " +
+        "largest score difference " + df.format(maxScoreDifference));
+  }
+
+  /**
+   * Report the accuracy of a model at each reduced precision against the full precision model.
+   * Usage: WeightPrecision [properties file] [model path] [dataset, serialized with IOUtils.writeObjectToFile]
+   * The type of the model is taken from the properties (train.model).
+   */
+  public static void main(final String[] args) throws IOException {
+    Properties props = new Properties();
+    InputStream input = new FileInputStream(args[0]);
+    try {
+      props.load(input);
+    } finally {
+      input.close();
+    }
+    SlotfillingSystem.exec(new Function<Properties, Object>() {
+      @Override
+      public Object apply(Properties props) {
+        try {
+          KBPDataset<String, String> dataset = IOUtils.readObjectFromFile(args[2]);
+          Props.TEST_MODEL_PRECISION = DOUBLE;
+          RelationClassifier full = Props.TRAIN_MODEL.load(args[1], props);
+          if (!(full instanceof Reducible)) { fatal("model type " + Props.TRAIN_MODEL + " does not support reduced precision weights"); }
+          for (WeightPrecision precision : new WeightPrecision[]{ FLOAT, INT8 }) {
+            forceTrack("Comparing " + precision + " against " + DOUBLE);
+            RelationClassifier reduced = Props.TRAIN_MODEL.load(args[1], props);
+            ((Reducible) reduced).setWeightPrecision(precision);
+            compare((Reducible) full, (Reducible) reduced, precision, dataset);
+            endTrack("Comparing " + precision + " against " + DOUBLE);
+          }
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        } catch (ClassNotFoundException e) {
+          throw new RuntimeException(e);
+        }
+        return null;
+      }
+    }, props);
+  }
+}
@@ -0,0 +1,36 @@
+package edu.stanford.nlp.kbp.slotfilling.common;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * A persistent map from string keys to byte values: what the key/value caches of {@link PostgresUtils} need
+ * from a backend other than Postgres. Values are serialized by the cache callbacks
+ * (see {@link PostgresUtils.KeyValueCallback}), so a store only ever deals in bytes.
+ * Implementations must be safe to call from any number of threads.
+ *
+ * @see Props#CACHE_BACKEND
+ * @see LogStructuredKeyValueStore
+ */
+public interface KeyValueStore {
+
+  /** The value of a key, or Nothing if the key is not in the store */
+  public Maybe<byte[]> get(String key) throws IOException;
+
+  public boolean containsKey(String key);
+
+  /** Set the value of a key, replacing any existing value */
+  public void put(String key, byte[] value) throws IOException;
+
+  /** Every key in the store, in ascending order; keys added while iterating may or may not be included */
+  public Iterator<String> keys();
+
+  /** The number of keys in the store */
+  public int size();
+
+  /** Make every put so far durable */
+  public void flush() throws IOException;
+
+  /** Flush and release the store; it cannot be used afterwards */
+  public void close() throws IOException;
+}
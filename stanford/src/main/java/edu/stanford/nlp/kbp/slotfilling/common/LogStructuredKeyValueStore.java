@@ -0,0 +1,313 @@
+package edu.stanford.nlp.kbp.slotfilling.common;
+
+import edu.stanford.nlp.util.logging.Redwood;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * <p>An embedded {@link KeyValueStore} in a single, append-only file.</p>
+ *
+ * <p>Every put appends a record to the end of the file: the lengths of the key and the value, the key, the value,
+ * and a CRC32 checksum of all of these. An in-memory index maps each key to its latest record, so a read is a single
+ * positional read of the file. When the store is opened, the file is scanned to rebuild the index; the scan stops at the
+ * first record which is truncated or fails its checksum (e.g., one cut short by a crash), and the file is truncated
+ * there. The store is thus always a prefix of the puts made to it; puts since the last {@link LogStructuredKeyValueStore#flush()}
+ * may be lost in a crash, but never corrupt the store.</p>
+ *
+ * <p>Reads run concurrently with each other and with a put; puts are serialized. Overwritten records are garbage;
+ * once there is more garbage than live data (and at least {@link LogStructuredKeyValueStore#MIN_GARBAGE_BYTES}),
+ * the store is compacted: the live records are copied, in key order, into a new file, which then atomically
+ * replaces the old one. Reads and puts wait for a compaction to finish.</p>
+ */
+public class LogStructuredKeyValueStore implements KeyValueStore {
+  private static final Redwood.RedwoodChannels logger = Redwood.channels("KVStore");
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final int MAGIC = 0x4B564C47;  // "KVLG"
+  private static final int VERSION = 1;
+  /** The magic number and version */
+  private static final int FILE_HEADER = 8;
+  /** The key and value lengths */
+  private static final int RECORD_HEADER = 8;
+  /** The checksum */
+  private static final int RECORD_TRAILER = 4;
+  /** The least garbage worth compacting */
+  public static final long MIN_GARBAGE_BYTES = 64L << 20;
+
+  /** The location of a record in the file */
+  private static class Entry {
+    public final long offset;
+    public final int keyLength;
+    public final int valueLength;
+
+    private Entry(long offset, int keyLength, int valueLength) {
+      this.offset = offset;
+      this.keyLength = keyLength;
+      this.valueLength = valueLength;
+    }
+
+    public int recordLength() {
+      return RECORD_HEADER + keyLength + valueLength + RECORD_TRAILER;
+    }
+  }
+
+  private final File file;
+  private RandomAccessFile raf;
+  private FileChannel channel;
+  private final Map<String, Entry> index = new ConcurrentHashMap<String, Entry>();
+
+  /** Reads (including of the index alone) and puts hold the read lock; compaction, which rebuilds the index, holds the write lock */
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  /** Serializes puts; guards the fields below */
+  private final Object writeLock = new Object();
+  private long end;
+  private long liveBytes = 0;
+  private long garbageBytes = 0;
+
+  /** Open a store, creating the file if it does not exist */
+  public LogStructuredKeyValueStore(File file) throws IOException {
+    this.file = file;
+    File dir = file.getAbsoluteFile().getParentFile();
+    if (dir != null && !dir.exists() && !dir.mkdirs()) { throw new IOException("Could not create directory: " + dir); }
+    open();
+  }
+
+  /** Open the file, and rebuild the index from it */
+  private void open() throws IOException {
+    this.raf = new RandomAccessFile(file, "rw");
+    this.channel = raf.getChannel();
+    index.clear();
+    liveBytes = 0;
+    garbageBytes = 0;
+    long length = channel.size();
+    if (length < FILE_HEADER) {
+      // A new store (or one which crashed before its header was written)
+      ByteBuffer header = ByteBuffer.allocate(FILE_HEADER);
+      header.putInt(MAGIC).putInt(VERSION).flip();
+      channel.truncate(0);
+      writeFully(header, 0);
+      channel.force(true);
+      end = FILE_HEADER;
+      return;
+    }
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+    try {
+      if (in.readInt() != MAGIC) { throw new IOException("Not a key/value store: " + file); }
+      int version = in.readInt();
+      if (version != VERSION) { throw new IOException("Unsupported key/value store version " + version + ": " + file); }
+      long position = FILE_HEADER;
+      CRC32 crc = new CRC32();
+      while (position + RECORD_HEADER + RECORD_TRAILER <= length) {
+        int keyLength = in.readInt();
+        int valueLength = in.readInt();
+        if (keyLength < 0 || valueLength < 0 ||
+            position + RECORD_HEADER + keyLength + valueLength + RECORD_TRAILER > length) {
+          break;
+        }
+        byte[] key = new byte[keyLength];
+        in.readFully(key);
+        byte[] value = new byte[valueLength];
+        in.readFully(value);
+        int checksum = in.readInt();
+        crc.reset();
+        crc.update(lengths(keyLength, valueLength));
+        crc.update(key);
+        crc.update(value);
+        if ((int) crc.getValue() != checksum) { break; }
+        Entry entry = new Entry(position, keyLength, valueLength);
+        Entry previous = index.put(new String(key, UTF8), entry);
+        if (previous != null) {
+          liveBytes -= previous.recordLength();
+          garbageBytes += previous.recordLength();
+        }
+        liveBytes += entry.recordLength();
+        position += entry.recordLength();
+      }
+      end = position;
+    } finally {
+      in.close();
+    }
+    if (end < length) {
+      logger.warn("discarding " + (length - end) + " bytes of incomplete writes at the end of " + file);
+      channel.truncate(end);
+      channel.force(true);
+    }
+    logger.log("opened " + file + ": " + index.size() + " keys, " + (liveBytes >> 20) + " MB live, " + (garbageBytes >> 20) + " MB garbage");
+  }
+
+  private static byte[] lengths(int keyLength, int valueLength) {
+    return ByteBuffer.allocate(RECORD_HEADER).putInt(keyLength).putInt(valueLength).array();
+  }
+
+  private void writeFully(ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      position += channel.write(buffer, position);
+    }
+  }
+
+  private void readFully(ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position);
+      if (read < 0) { throw new EOFException("Unexpected end of " + file); }
+      position += read;
+    }
+  }
+
+  @Override
+  public Maybe<byte[]> get(String key) throws IOException {
+    lock.readLock().lock();
+    try {
+      Entry entry = index.get(key);
+      if (entry == null) { return Maybe.Nothing(); }
+      ByteBuffer value = ByteBuffer.allocate(entry.valueLength);
+      readFully(value, entry.offset + RECORD_HEADER + entry.keyLength);
+      return Maybe.Just(value.array());
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public boolean containsKey(String key) {
+    lock.readLock().lock();
+    try {
+      return index.containsKey(key);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void put(String key, byte[] value) throws IOException {
+    byte[] keyBytes = key.getBytes(UTF8);
+    CRC32 crc = new CRC32();
+    crc.update(lengths(keyBytes.length, value.length));
+    crc.update(keyBytes);
+    crc.update(value);
+    ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + keyBytes.length + value.length + RECORD_TRAILER);
+    record.putInt(keyBytes.length).putInt(value.length).put(keyBytes).put(value).putInt((int) crc.getValue());
+    record.flip();
+
+    boolean doCompact;
+    synchronized (writeLock) {
+      lock.readLock().lock();
+      try {
+        Entry entry = new Entry(end, keyBytes.length, value.length);
+        writeFully(record, end);
+        end += entry.recordLength();
+        // Only now is the record visible to readers
+        Entry previous = index.put(key, entry);
+        if (previous != null) {
+          liveBytes -= previous.recordLength();
+          garbageBytes += previous.recordLength();
+        }
+        liveBytes += entry.recordLength();
+        doCompact = garbageBytes > Math.max(MIN_GARBAGE_BYTES, liveBytes);
+      } finally {
+        lock.readLock().unlock();
+      }
+    }
+    if (doCompact) { compact(); }
+  }
+
+  @Override
+  public Iterator<String> keys() {
+    List<String> keys;
+    lock.readLock().lock();
+    try {
+      keys = new ArrayList<String>(index.keySet());
+    } finally {
+      lock.readLock().unlock();
+    }
+    Collections.sort(keys);
+    return keys.iterator();
+  }
+
+  @Override
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return index.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Rewrite the store with only its live records, in key order, dropping any overwritten records.
+   * This happens automatically once the store is more than half garbage.
+   */
+  public void compact() throws IOException {
+    synchronized (writeLock) {
+      lock.writeLock().lock();
+      try {
+        long before = end;
+        File compacted = new File(file.getPath() + ".compact");
+        RandomAccessFile out = new RandomAccessFile(compacted, "rw");
+        try {
+          FileChannel outChannel = out.getChannel();
+          outChannel.truncate(0);
+          ByteBuffer header = ByteBuffer.allocate(FILE_HEADER);
+          header.putInt(MAGIC).putInt(VERSION).flip();
+          while (header.hasRemaining()) { outChannel.write(header); }
+          Iterator<String> keys = keys();
+          while (keys.hasNext()) {
+            Entry entry = index.get(keys.next());
+            long copied = 0;
+            while (copied < entry.recordLength()) {
+              copied += channel.transferTo(entry.offset + copied, entry.recordLength() - copied, outChannel);
+            }
+          }
+          outChannel.force(true);
+        } finally {
+          out.close();
+        }
+        channel.close();
+        raf.close();
+        if (!compacted.renameTo(file)) {
+          // Keep serving the original file
+          open();
+          throw new IOException("Could not replace " + file + " with its compaction");
+        }
+        open();
+        logger.log("compacted " + file + " from " + (before >> 20) + " MB to " + (end >> 20) + " MB");
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    synchronized (writeLock) {
+      channel.force(false);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    synchronized (writeLock) {
+      lock.writeLock().lock();
+      try {
+        channel.force(true);
+        channel.close();
+        raf.close();
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "LogStructuredKeyValueStore[" + file + ", " + index.size() + " keys]";
+  }
+}
@@ -0,0 +1,135 @@
+package edu.stanford.nlp.kbp.slotfilling.common;
+
+import edu.stanford.nlp.util.logging.Redwood;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of JDBC connections to a single database.
+ * Connections are opened lazily, up to the maximum size of the pool; once every connection is open and borrowed,
+ * {@link PostgresConnectionPool#borrow()} blocks until one is released.
+ * A borrowed connection is used by a single thread until it is released, so anything cached per connection
+ * (e.g., prepared statements) needs no further synchronization.
+ *
+ * @see PostgresUtils#withConnection(String, PostgresUtils.Callback)
+ */
+public class PostgresConnectionPool {
+
+  private final String uri;
+  private final String username;
+  private final String password;
+  private final int maxConnections;
+
+  private final BlockingQueue<Connection> idle = new LinkedBlockingQueue<Connection>();
+  private final List<Connection> open = new ArrayList<Connection>();
+
+  private final AtomicLong borrows = new AtomicLong(0);
+  private final AtomicLong waits = new AtomicLong(0);
+  private final AtomicLong waitNanos = new AtomicLong(0);
+
+  public PostgresConnectionPool(String uri, String username, String password, int maxConnections) {
+    if (maxConnections < 1) { throw new IllegalArgumentException("A connection pool needs at least one connection: " + maxConnections); }
+    this.uri = uri;
+    this.username = username;
+    this.password = password;
+    this.maxConnections = maxConnections;
+  }
+
+  /** Open a new connection, if the pool is not yet full; null otherwise */
+  private Connection maybeOpen() throws SQLException {
+    synchronized (open) {
+      if (open.size() >= maxConnections) { return null; }
+      Connection conn = DriverManager.getConnection(uri, username, password);
+      conn.setAutoCommit(true);
+      open.add(conn);
+      return conn;
+    }
+  }
+
+  /**
+   * Take a connection from the pool, opening one if none is idle and the pool is not full, and otherwise waiting for one.
+   * The connection is in auto-commit mode, and must be given back with {@link PostgresConnectionPool#release(Connection)}.
+   */
+  public Connection borrow() throws SQLException {
+    borrows.incrementAndGet();
+    Connection conn = idle.poll();
+    if (conn == null) { conn = maybeOpen(); }
+    if (conn == null) {
+      long start = System.nanoTime();
+      try {
+        conn = idle.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SQLException("Interrupted waiting for a connection to " + uri, e);
+      }
+      waits.incrementAndGet();
+      waitNanos.addAndGet(System.nanoTime() - start);
+    }
+    return conn;
+  }
+
+  /** Give a borrowed connection back to the pool; a connection which was closed is dropped, to be replaced on demand */
+  public void release(Connection conn) {
+    boolean closed;
+    try {
+      closed = conn.isClosed();
+      if (!closed && !conn.getAutoCommit()) {
+        conn.commit();
+        conn.setAutoCommit(true);
+      }
+    } catch (SQLException e) {
+      Redwood.Util.warn("dropping a broken connection from the pool: " + e.getMessage());
+      try { conn.close(); } catch (SQLException ignored) { }
+      closed = true;
+    }
+    if (closed) {
+      synchronized (open) { open.remove(conn); }
+    } else {
+      idle.offer(conn);
+    }
+  }
+
+  /** The number of connections currently open, whether idle or borrowed */
+  public int size() {
+    synchronized (open) { return open.size(); }
+  }
+
+  /** The number of open connections not currently borrowed */
+  public int idle() {
+    return idle.size();
+  }
+
+  /** A one-line summary of the use of the pool: its size, and how often and how long threads waited for a connection */
+  public String statistics() {
+    long numWaits = waits.get();
+    return "connection pool: " + size() + "/" + maxConnections + " open, " + idle() + " idle; " +
+        borrows.get() + " borrows, " + numWaits + " waited" +
+        (numWaits > 0 ? " (mean " + (waitNanos.get() / numWaits / 1000000) + " ms)" : "");
+  }
+
+  /** Close every open connection, committing any open transaction */
+  public void close() {
+    synchronized (open) {
+      for (Connection conn : open) {
+        try {
+          try {
+            if (!conn.getAutoCommit()) { conn.commit(); }
+          } finally {
+            conn.close();
+          }
+        } catch (SQLException e) {
+          Redwood.Util.err(e);
+        }
+      }
+      open.clear();
+      idle.clear();
+    }
+  }
+}
@@ -1,10 +1,12 @@
 package edu.stanford.nlp.kbp.slotfilling.common;
 
+import edu.stanford.nlp.kbp.slotfilling.SlotfillingSystem;
 import edu.stanford.nlp.kbp.slotfilling.ir.KBPRelationProvenance;
 import edu.stanford.nlp.pipeline.Annotation;
 import edu.stanford.nlp.pipeline.AnnotationSerializer;
 import edu.stanford.nlp.stats.Counter;
 import edu.stanford.nlp.util.Factory;
+import edu.stanford.nlp.util.Function;
 import edu.stanford.nlp.util.IterableIterator;
 import edu.stanford.nlp.util.Pair;
 import edu.stanford.nlp.util.StringUtils;
@@ -13,8 +15,11 @@ import edu.stanford.nlp.util.logging.Redwood;
 import java.io.*;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.GZIPInputStream;
@@ -28,135 +33,509 @@ import java.util.zip.GZIPOutputStream;
 public class PostgresUtils {
 
   /**
-   * A map saving named connections that can be re-used multiple times.
-   * The primary motivation for this is to allow disabling auto-commit, which
-   * provides a significant speedup for repeated insertions.
+   * The pool of connections every callback runs with; created on first use, as the connection
+   * settings are only known once the properties are loaded.
    */
-  private static final Map<String, Connection> namedConnections = new HashMap<String, Connection>();
+  private static PostgresConnectionPool pool = null;
+
+  /** The queue of batched writes, if {@link Props#PSQL_BATCH} is set */
+  private static final WriteBehindQueue writeBehind = new WriteBehindQueue();
+
+  /** The tables known to exist, so that their existence is only checked once */
+  private static final Set<String> knownTables = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  /** The open tables of the local backend, if {@link Props#CACHE_BACKEND} is LOCAL */
+  private static final Map<String, KeyValueStore> localStores = new HashMap<String, KeyValueStore>();
 
   /** The logger for Postgres messages */
   private static final Redwood.RedwoodChannels logger = Redwood.channels("PSQL");
 
   /**
-   * Register a shutdown hook, which commits all active transactions and closes any
+   * Register a shutdown hook, which writes out all queued writes and closes any
    * open connections.
-   * For every open connection, a thread is started to close that connection.
-   * The time taken by this hook should be the maximum time it takes to close any
-   * particular connection.
    */
   static {
     Runtime.getRuntime().addShutdownHook(new Thread() {
       @Override
       public void run() {
-        // Flush batch
-        for (final Map.Entry<Pair<String, Connection>, StatementBundle> entry : KeyValueCallback.stmts.entrySet()) {
-          new Thread() {
-            @Override
-            public void run() {
-              try {
-                entry.getValue().insert.executeUpdate();
-              } catch (SQLException e) {
-                logger.err(e);
-              }
+        // Flush queued writes
+        try {
+          flush();
+          logger.log(writeBehind.statistics());
+        } catch (Throwable e) {
+          logger.err(e);
+        }
+        writeBehind.close();
+        // Close local tables
+        synchronized (localStores) {
+          for (KeyValueStore store : localStores.values()) {
+            try {
+              store.close();
+            } catch (IOException e) {
+              logger.err(e);
             }
-          }.start();
+          }
+          localStores.clear();
         }
         // Close connections
-        for (final Connection conn : namedConnections.values()) {
-          new Thread() {
-            @Override
-            public void run() {
-              try {
-                try {
-                  // Commit
-                  if (!conn.getAutoCommit()) {
-                    conn.commit();
-                  }
-                } catch (SQLException e) { logger.err(e); }
-                finally { conn.close(); }
-                logger.log("closed Postgres connection: " + conn);
-              } catch (Throwable e) {
-                logger.err(e);
-              }
-            }
-          }.start();
+        synchronized (PostgresUtils.class) {
+          if (pool != null) {
+            logger.log(pool.statistics());
+            pool.close();
+            logger.log("closed Postgres connections");
+          }
         }
       }
     });
   }
 
+  /** The connection pool, created on first use */
+  private static synchronized PostgresConnectionPool pool() {
+    if (pool == null) {
+      pool = new PostgresConnectionPool(uri(), Props.PSQL_USERNAME, Props.PSQL_PASSWORD, Props.PSQL_POOL_SIZE);
+    }
+    return pool;
+  }
+
+  /** Whether the key/value caches are kept in local files rather than in Postgres */
+  private static boolean isLocal() {
+    return Props.CACHE_BACKEND == Props.CacheBackend.LOCAL;
+  }
+
+  /** The file of a table of the local backend */
+  private static File localFile(String table) {
+    return new File(Props.CACHE_LOCAL_DIR, table + ".kv");
+  }
+
+  /** The store of a table of the local backend, opened on first use */
+  private static KeyValueStore localStore(String table) {
+    synchronized (localStores) {
+      KeyValueStore store = localStores.get(table);
+      if (store == null) {
+        try {
+          store = new LogStructuredKeyValueStore(localFile(table));
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+        localStores.put(table, store);
+      }
+      return store;
+    }
+  }
+
+  /**
+   * Write out every queued write, blocking until they are in the database.
+   * This happens automatically on shutdown, but can be called explicitly, e.g., before another process reads the cache.
+   */
+  public static void flush() {
+    writeBehind.flush();
+    synchronized (localStores) {
+      for (KeyValueStore store : localStores.values()) {
+        try {
+          store.flush();
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    }
+  }
+
+  /** A one-line summary of the write queue (its depth, and the latency of writing out a batch) and the connection pool */
+  public static String statistics() {
+    synchronized (PostgresUtils.class) {
+      return writeBehind.statistics() + "; " + (pool == null ? "no connection pool" : pool.statistics());
+    }
+  }
+
   public static interface Callback {
     public void apply(Connection psql) throws SQLException;
   }
 
+  /**
+   * The prepared statements for a table, on a single connection.
+   * As a connection is borrowed by one thread at a time, so are its statements.
+   */
   private static class StatementBundle {
     public final Connection psql;
+    public final String table;
     public final PreparedStatement query;
     public final PreparedStatement queryKey;
-    public PreparedStatement insert;
+    public final PreparedStatement insert;
     public final PreparedStatement delete;
     public final PreparedStatement increment;
 
-    private int numWritesQueued = 0;
-    private Set<String> queued = new HashSet<String>();
+    /** The multi-row versions of insert and increment, for a full batch; prepared on first use */
+    private PreparedStatement batchInsert = null;
+    private PreparedStatement batchIncrement = null;
 
-    private StatementBundle(Connection psql, PreparedStatement query, PreparedStatement queryKey, CallableStatement insert,
-                            PreparedStatement delete, CallableStatement increment) throws SQLException {
+    private StatementBundle(Connection psql, String table) throws SQLException {
       this.psql = psql;
-      this.query = query;
-      this.queryKey = queryKey;
-      this.insert = insert;
-      this.delete = delete;
-      this.increment = increment;
+      this.table = table;
+      this.query = psql.prepareStatement("SELECT value FROM " + table + " WHERE key = ?");
+      this.queryKey = psql.prepareStatement("SELECT key FROM " + table + " WHERE key = ?");
+      this.insert = psql.prepareCall("SELECT _jdbc_set_" + table.toLowerCase() + "(?, ?);");
+      this.delete = psql.prepareStatement("DELETE FROM " + table + " WHERE key = ?");
+      this.increment = psql.prepareCall("SELECT _jdbc_increment_" + table.toLowerCase() + "(?, ?);");
     }
 
-    public boolean doInsert(String toInsert) throws SQLException {
-      // register insert
-      numWritesQueued += 1;
-      // flush queue
-      if ((numWritesQueued % 1000) == 0) {
-        flush();
+    /**
+     * A statement setting (or incrementing) the values of a number of keys at once. The parameters are the key and
+     * the value of each row, in order. Statements for a full batch are reused; others should be closed after use.
+     */
+    public PreparedStatement multiRow(boolean isIncrement, int numRows) throws SQLException {
+      if (numRows == batchSize()) {
+        if (isIncrement && batchIncrement == null) { batchIncrement = psql.prepareStatement(multiRowSQL(true, numRows)); }
+        if (!isIncrement && batchInsert == null) { batchInsert = psql.prepareStatement(multiRowSQL(false, numRows)); }
+        return isIncrement ? batchIncrement : batchInsert;
       }
-      // update operation
-      if (Props.PSQL_BATCH) {
-        insert.addBatch();
-        queued.add(toInsert);
-        return true;
-      } else {
-        return insert.execute();
+      return psql.prepareStatement(multiRowSQL(isIncrement, numRows));
+    }
+
+    public boolean isReused(PreparedStatement stmt) {
+      return stmt == batchInsert || stmt == batchIncrement;
+    }
+
+    private String multiRowSQL(boolean isIncrement, int numRows) {
+      StringBuilder sql = new StringBuilder();
+      sql.append("SELECT ").append(isIncrement ? "_jdbc_increment_" : "_jdbc_set_").append(table.toLowerCase())
+          .append("(k, v) FROM (VALUES ");
+      for (int i = 0; i < numRows; ++i) {
+        if (i > 0) { sql.append(", "); }
+        sql.append("(?, ?)");
       }
+      return sql.append(") AS rows(k, v);").toString();
     }
+  }
 
-    public boolean doIncrement(String toIncrement) throws SQLException {
-      // register insert
-      numWritesQueued += 1;
-      // flush queue
-      if ((numWritesQueued % 10000) == 0) {
-        flush();
+  /** The number of rows written per statement; Postgres allows at most 32767 parameters, two per row */
+  private static int batchSize() {
+    return Math.max(1, Math.min(Props.PSQL_BATCH_SIZE, 16383));
+  }
+
+  /**
+   * <p>Queues the writes to key/value tables, and writes them from a background thread, in multi-row statements.
+   * A batch is written once {@link Props#PSQL_BATCH_SIZE} writes are queued, or once the oldest has waited
+   * {@link Props#PSQL_BATCH_FLUSHMS}; a batch is written in a single transaction, on a connection of the writer's own.
+   * The writer never borrows from the connection pool, so a thread may queue (or flush) writes while it holds a pooled
+   * connection without starving the writer.</p>
+   *
+   * <p>Writes to the same key coalesce while queued: a put replaces whatever is queued for its key, and an increment
+   * adds to the queued increment (or value) of its key. Queued puts are visible to reads before they reach the database;
+   * a read of a key with a queued increment waits for the increment to be written.
+   * Writers block once the queue is several batches deep, until the background thread catches up.</p>
+   *
+   * <p>A batch which fails is retried, with backoff, on a fresh connection. A batch which fails every attempt is dropped,
+   * and the failure is thrown from any {@link WriteBehindQueue#flush()} waiting on one of its writes.</p>
+   */
+  private static class WriteBehindQueue implements Runnable {
+    /**
+     * A queued write: either a value to put, serialized by its callback when it was queued
+     * (see {@link KeyValueCallback#toBytes(Object)}), or an amount to increment the value by
+     */
+    private static class Write {
+      public final String table;
+      public final String key;
+      public final KeyValueCallback<?> callback;
+      public final byte[] bytes;
+      public final double increment;
+      public final boolean isIncrement;
+
+      private Write(String table, String key, KeyValueCallback<?> callback, byte[] bytes, double increment, boolean isIncrement) {
+        this.table = table;
+        this.key = key;
+        this.callback = callback;
+        this.bytes = bytes;
+        this.increment = increment;
+        this.isIncrement = isIncrement;
       }
-      // update operation
-      if (Props.PSQL_BATCH) {
-        increment.addBatch();
-        queued.add(toIncrement);
-        return true;
-      } else {
-        return increment.execute();
+
+      /** The value put by this write, deserialized anew */
+      public Object value() throws IOException {
+        return callback.fromBytes(bytes);
       }
+
+      /** Bind this write to its two parameters of a statement */
+      public void bind(PreparedStatement stmt, int index) throws SQLException {
+        stmt.setString(index, key);
+        if (isIncrement) {
+          stmt.setDouble(index + 1, increment);
+        } else {
+          try {
+            callback.bindBytes(stmt, index + 1, bytes);
+          } catch (IOException e) {
+            throw new SQLException("Could not bind the value of " + key, e);
+          }
+        }
+      }
+    }
+
+    /** The number of times a batch is tried before it is dropped, and the wait before the first retry (doubling after) */
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long RETRY_BACKOFF_MS = 1000;
+
+    private final Object lock = new Object();
+    /** The writes waiting for the writer thread, by table and key */
+    private Map<Pair<String, String>, Write> queued = new LinkedHashMap<Pair<String, String>, Write>();
+    /** The writes the writer thread is writing right now */
+    private Map<Pair<String, String>, Write> inFlight = Collections.emptyMap();
+    private Thread writer = null;
+    private boolean flushRequested = false;
+    /** The writer's connection, used only by the writer thread; opened on first use, and reopened after a failure */
+    private Connection connection = null;
+    /** The last batch dropped after failing every attempt: the range of writes it covered, and why */
+    private long failedFrom = 0;
+    private long failedThrough = 0;
+    private Exception failure = null;
+    /** The number of writes ever queued, and the number of those which have been written (or failed) */
+    private long numQueued = 0;
+    private long numDone = 0;
+
+    // Statistics
+    private long numBatches = 0;
+    private long numRowsWritten = 0;
+    private long numFailedBatches = 0;
+    private long totalFlushNanos = 0;
+    private long maxFlushNanos = 0;
+
+    public void put(KeyValueCallback<?> callback, String table, String key, byte[] bytes) {
+      enqueue(new Write(table, key, callback, bytes, 0.0, false));
+    }
+
+    public void increment(String table, String key, double increment) {
+      enqueue(new Write(table, key, null, null, increment, true));
     }
 
-    /** Flush to disk -- in part for efficiency and in part for consistency on reads */
-    public void flush() throws SQLException {
-      if (queued.size() > 0) {
-        insert.executeBatch();
-        insert.clearBatch();
-        increment.executeBatch();
-        increment.clearBatch();
-        queued.clear();
+    private void enqueue(Write write) {
+      Pair<String, String> key = Pair.makePair(write.table, write.key);
+      synchronized (lock) {
+        if (writer == null) {
+          writer = new Thread(this, "PSQL write-behind");
+          writer.setDaemon(true);
+          writer.start();
+        }
+        // Let the writer catch up if the queue is too deep
+        while (queued.size() >= 4 * batchSize()) {
+          flushRequested = true;
+          lock.notifyAll();
+          try {
+            lock.wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            break;
+          }
+        }
+        // Coalesce with a queued write of the same key
+        Write previous = queued.remove(key);
+        if (previous != null && write.isIncrement) {
+          if (previous.isIncrement) {
+            write = new Write(write.table, write.key, null, null, previous.increment + write.increment, true);
+          } else if (previous.callback instanceof CounterCallback) {
+            CounterCallback<?> counter = (CounterCallback<?>) previous.callback;
+            try {
+              write = new Write(write.table, write.key, counter, counter.toBytes(counter.fromBytes(previous.bytes) + write.increment), 0.0, false);
+            } catch (IOException e) {
+              throw new IllegalStateException("Cannot increment a queued value: " + write.table + "[" + write.key + "]", e);
+            }
+          } else {
+            throw new IllegalStateException("Cannot increment a non-numeric value: " + write.table + "[" + write.key + "]");
+          }
+        }
+        queued.put(key, write);
+        numQueued += 1;
+        if (queued.size() >= batchSize()) { lock.notifyAll(); }
       }
     }
 
-    public void ensureWritable(String key) throws SQLException {
-      if (Props.PSQL_BATCH && queued.contains(key)) { flush(); }
+    /**
+     * The queued put of a key, if one is queued; Nothing if the database should be read instead.
+     * If an increment of the key is queued, the queue is flushed first.
+     */
+    public Maybe<Write> queuedPut(String table, String key) {
+      Pair<String, String> pair = Pair.makePair(table, key);
+      synchronized (lock) {
+        Write write = queued.get(pair);
+        if (write == null) { write = inFlight.get(pair); }
+        if (write == null) { return Maybe.Nothing(); }
+        if (!write.isIncrement) { return Maybe.Just(write); }
+      }
+      flush();
+      return Maybe.Nothing();
+    }
+
+    /**
+     * Block until every write queued before this call has been written.
+     * @throws RuntimeException If some of those writes could not be written, and were dropped.
+     */
+    public void flush() {
+      synchronized (lock) {
+        long start = numDone;
+        long target = numQueued;
+        while (numDone < target && writer != null) {
+          flushRequested = true;
+          lock.notifyAll();
+          try {
+            lock.wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+          }
+        }
+        if (failure != null && failedFrom < target && failedThrough > start) {
+          throw new RuntimeException("Could not write " + (failedThrough - failedFrom) + " queued writes", failure);
+        }
+      }
+    }
+
+    /** The number of writes waiting to be written */
+    public int depth() {
+      synchronized (lock) { return queued.size() + inFlight.size(); }
+    }
+
+    public String statistics() {
+      synchronized (lock) {
+        return "write queue: depth " + (queued.size() + inFlight.size()) + "; " +
+            numRowsWritten + " rows in " + numBatches + " batches (" + numFailedBatches + " failed)" +
+            (numBatches > 0 ? "; flush latency mean " + (totalFlushNanos / numBatches / 1000000) + " ms, max " + (maxFlushNanos / 1000000) + " ms" : "");
+      }
+    }
+
+    @Override
+    public void run() {
+      //noinspection InfiniteLoopStatement
+      while (true) {
+        Map<Pair<String, String>, Write> batch;
+        long batchStart;
+        long batchEnd;
+        synchronized (lock) {
+          // Wait for a full batch, a flush, or the flush interval
+          long deadline = System.currentTimeMillis() + Props.PSQL_BATCH_FLUSHMS;
+          long remaining;
+          while (queued.size() < batchSize() && !flushRequested && (remaining = deadline - System.currentTimeMillis()) > 0) {
+            try {
+              lock.wait(remaining);
+            } catch (InterruptedException e) {
+              return;
+            }
+          }
+          flushRequested = false;
+          if (queued.isEmpty()) {
+            numDone = numQueued;
+            lock.notifyAll();
+            continue;
+          }
+          batch = queued;
+          inFlight = batch;
+          queued = new LinkedHashMap<Pair<String, String>, Write>();
+          batchStart = numDone;
+          batchEnd = numQueued;
+          lock.notifyAll();
+        }
+        // Write the batch, retrying on failure; it stays visible to reads until it is done
+        long start = System.nanoTime();
+        Exception lastFailure = null;
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; ++attempt) {
+          if (attempt > 0) {
+            try {
+              Thread.sleep(RETRY_BACKOFF_MS << (attempt - 1));
+            } catch (InterruptedException e) {
+              return;
+            }
+          }
+          try {
+            write(batch.values());
+            lastFailure = null;
+            break;
+          } catch (SQLException e) {
+            logger.warn("Could not write " + batch.size() + " queued rows (attempt " + (attempt + 1) + " of " + MAX_ATTEMPTS + ")");
+            logSQLException(e);
+            lastFailure = e;
+          } catch (RuntimeException e) {
+            logger.warn(e);
+            lastFailure = e;
+          }
+          closeConnection();
+        }
+        if (lastFailure != null) { logger.err("Dropping " + batch.size() + " queued rows after " + MAX_ATTEMPTS + " attempts"); }
+        long elapsed = System.nanoTime() - start;
+        synchronized (lock) {
+          inFlight = Collections.emptyMap();
+          numDone = batchEnd;
+          numBatches += 1;
+          if (lastFailure == null) {
+            numRowsWritten += batch.size();
+          } else {
+            numFailedBatches += 1;
+            failedFrom = batchStart;
+            failedThrough = batchEnd;
+            failure = lastFailure;
+          }
+          totalFlushNanos += elapsed;
+          maxFlushNanos = Math.max(maxFlushNanos, elapsed);
+          lock.notifyAll();
+        }
+        logger.debug("wrote " + batch.size() + " rows in " + (elapsed / 1000000) + " ms (queue depth " + depth() + ")");
+      }
+    }
+
+    /** Write a batch of writes in a single transaction, with one statement per table, kind of write, and batch of rows */
+    private void write(Collection<Write> batch) throws SQLException {
+      // Group the writes, keeping their order
+      Map<Pair<String, Boolean>, List<Write>> groups = new LinkedHashMap<Pair<String, Boolean>, List<Write>>();
+      for (Write write : batch) {
+        Pair<String, Boolean> group = Pair.makePair(write.table, write.isIncrement);
+        List<Write> writes = groups.get(group);
+        if (writes == null) {
+          writes = new ArrayList<Write>();
+          groups.put(group, writes);
+        }
+        writes.add(write);
+      }
+      // Write the groups
+      Connection psql = connection();
+      try {
+        psql.setAutoCommit(false);
+        for (Map.Entry<Pair<String, Boolean>, List<Write>> group : groups.entrySet()) {
+          StatementBundle stmts = KeyValueCallback.ensureStatements(psql, group.getKey().first);
+          List<Write> writes = group.getValue();
+          for (int start = 0; start < writes.size(); start += batchSize()) {
+            int end = Math.min(writes.size(), start + batchSize());
+            PreparedStatement stmt = stmts.multiRow(group.getKey().second, end - start);
+            for (int i = start; i < end; ++i) { writes.get(i).bind(stmt, 2 * (i - start) + 1); }
+            stmt.execute();
+            if (!stmts.isReused(stmt)) { stmt.close(); }
+          }
+        }
+        psql.commit();
+      } catch (SQLException e) {
+        try { psql.rollback(); } catch (SQLException ignored) { }
+        throw e;
+      }
+    }
+
+    /** The writer's connection, opening it if it is not open */
+    private Connection connection() throws SQLException {
+      if (connection == null || connection.isClosed()) {
+        connection = DriverManager.getConnection(uri(), Props.PSQL_USERNAME, Props.PSQL_PASSWORD);
+      }
+      return connection;
+    }
+
+    /** Close the writer's connection, e.g., after a failure; it is reopened on the next write */
+    private void closeConnection() {
+      if (connection != null) {
+        KeyValueCallback.forgetStatements(connection);
+        try { connection.close(); } catch (SQLException ignored) { }
+        connection = null;
+      }
+    }
+
+    /** Close the writer's connection on shutdown, once the queue is flushed */
+    public void close() {
+      synchronized (lock) {
+        if (connection != null) {
+          try { connection.close(); } catch (SQLException e) { logger.err(e); }
+        }
+      }
     }
   }
 
@@ -165,8 +544,8 @@ public class PostgresUtils {
    * @param <E> The type of object being stored in the "value"
    */
   public static abstract class KeyValueCallback<E> implements Callback {
-    // package private (closest to "family" permissions I can think of)
-    static Map<Pair<String, Connection>, StatementBundle> stmts = new HashMap<Pair<String, Connection>,StatementBundle>();
+    /** The prepared statements for each table and connection; each bundle is only used by the thread holding its connection */
+    private static final Map<Pair<String, Connection>, StatementBundle> stmts = new ConcurrentHashMap<Pair<String, Connection>, StatementBundle>();
 
     public static String keyToString(KBTriple key) {
       //noinspection StringBufferReplaceableByString
@@ -179,34 +558,57 @@ public class PostgresUtils {
     }
 
     // package private (closest to "family" permissions I can think of)
-    void ensureStatements(Connection psql, String table) throws SQLException {
-      if (!stmts.containsKey(Pair.makePair(table, psql))) {
-        stmts.put(Pair.makePair(table, psql), new StatementBundle(psql,
-            psql.prepareStatement("SELECT value FROM " + table + " WHERE key = ?"),
-            psql.prepareStatement("SELECT key FROM " + table + " WHERE key = ?"),
-            psql.prepareCall("SELECT _jdbc_set_" + table.toLowerCase() + "(?, ?);"),
-            psql.prepareStatement("DELETE FROM " + table + " WHERE key = ?"),
-            psql.prepareCall("SELECT _jdbc_increment_" + table.toLowerCase() + "(?, ?);")
-        ));
-      }
-    }
-
-    public synchronized boolean containsKey(Connection psql, String table, String key) throws SQLException {
-      // Ensure cached statement
-      ensureStatements(psql, table);
-      PreparedStatement queryKey = stmts.get(Pair.makePair(table, psql)).queryKey;
+    static StatementBundle ensureStatements(Connection psql, String table) throws SQLException {
+      Pair<String, Connection> key = Pair.makePair(table, psql);
+      StatementBundle bundle = stmts.get(key);
+      if (bundle == null) {
+        bundle = new StatementBundle(psql, table);
+        stmts.put(key, bundle);
+      }
+      return bundle;
+    }
+
+    /** Drop the prepared statements of a connection which was closed */
+    static void forgetStatements(Connection psql) {
+      Iterator<Pair<String, Connection>> keys = stmts.keySet().iterator();
+      while (keys.hasNext()) {
+        if (keys.next().second == psql) { keys.remove(); }
+      }
+    }
+
+    public boolean containsKey(Connection psql, String table, String key) throws SQLException {
+      if (isLocal()) { return localStore(table).containsKey(key); }
+      // Check queued writes
+      if (Props.PSQL_BATCH && writeBehind.queuedPut(table, key).isDefined()) { return true; }
+      PreparedStatement queryKey = ensureStatements(psql, table).queryKey;
       // Run query
       queryKey.setString(1, key);
       ResultSet results = queryKey.executeQuery();
       return results.next();
     }
 
-    public synchronized Maybe<E> get(Connection psql, String table, String key) throws SQLException {
-      // Ensure cached statement
-      ensureStatements(psql, table);
-      PreparedStatement query = stmts.get(Pair.makePair(table, psql)).query;
-      // Ensure inserts are pushed
-      stmts.get(Pair.makePair(table, psql)).flush();
+    public Maybe<E> get(Connection psql, String table, String key) throws SQLException {
+      if (isLocal()) {
+        try {
+          Maybe<byte[]> bytes = localStore(table).get(key);
+          if (!bytes.isDefined()) { return Maybe.Nothing(); }
+          return Maybe.Just(fromBytes(bytes.get()));
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+      // Queued writes are visible before they reach the database
+      if (Props.PSQL_BATCH) {
+        for (WriteBehindQueue.Write queued : writeBehind.queuedPut(table, key)) {
+          try {
+            @SuppressWarnings("unchecked") E value = (E) queued.value();
+            return Maybe.Just(value);
+          } catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      }
+      PreparedStatement query = ensureStatements(psql, table).query;
       // Run query
       query.setString(1, key);
       ResultSet results = query.executeQuery();
@@ -217,28 +619,58 @@ public class PostgresUtils {
         throw new RuntimeException(e);
       }
     }
-    public synchronized boolean put(Connection psql, String table, String key, E value) throws SQLException {
-      // Ensure cached statement
-      ensureStatements(psql, table);
-      // Flush anything that may get overwritten
-      stmts.get(Pair.makePair(table, psql)).ensureWritable(key);
-      // Get prepared statements
-      PreparedStatement insert = stmts.get(Pair.makePair(table, psql)).insert;
-      // Run insert
+
+    /**
+     * Set the value of a key. If writes are batched ({@link Props#PSQL_BATCH}), the value is serialized here, and only
+     * its bytes are queued; so the caller is free to modify or share the value once this returns.
+     */
+    public boolean put(Connection psql, String table, String key, E value) throws SQLException {
       if (key.length() > 255) {
         logger.warn("String is too long to be a key [truncating]: " + key);
         key = key.substring(0, 255);
       }
+      // Write locally
+      if (isLocal()) {
+        try {
+          localStore(table).put(key, toBytes(value));
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+        return true;
+      }
+      // Queue the write
+      if (Props.PSQL_BATCH) {
+        try {
+          writeBehind.put(this, table, key, toBytes(value));
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+        return true;
+      }
+      // Run insert
+      PreparedStatement insert = ensureStatements(psql, table).insert;
       insert.setString(1, key);
       try {
-        setValue(insert, value);
+        setValue(insert, 2, value);
       } catch (IOException e) {
         throw new RuntimeException(e);
       }
-      return stmts.get(Pair.makePair(table, psql)).doInsert(key);
+      return insert.execute();
+    }
+
+    /**
+     * The keys of a table, in order. Queued writes are flushed first, before taking the lock on this callback, as the
+     * write-behind thread may need it.
+     */
+    public IterableIterator<String> keys(final Connection psql, final String table) {
+      if (isLocal()) { return new IterableIterator<String>(localStore(table).keys()); }
+      PostgresUtils.flush();
+      synchronized (this) {
+        return scanKeys(psql, table);
+      }
     }
 
-    public synchronized IterableIterator<String> keys(final Connection psql, final String table) {
+    private IterableIterator<String> scanKeys(final Connection psql, final String table) {
       try {
         Statement stmt = psql.createStatement();
         stmt.setFetchSize(1000);
@@ -259,7 +691,26 @@ public class PostgresUtils {
       }
     }
 
-    public synchronized IterableIterator<E> values(final Connection psql, final String table) {
+    /** The values of a table, in key order; see {@link KeyValueCallback#keys(Connection, String)} */
+    public IterableIterator<E> values(final Connection psql, final String table) {
+      if (isLocal()) {
+        final Iterator<Map.Entry<String, E>> entries = localEntries(table);
+        return new IterableIterator<E>(new Iterator<E>() {
+          @Override
+          public boolean hasNext() { return entries.hasNext(); }
+          @Override
+          public E next() { return entries.next().getValue(); }
+          @Override
+          public void remove() { throw new UnsupportedOperationException(); }
+        });
+      }
+      PostgresUtils.flush();
+      synchronized (this) {
+        return scanValues(psql, table);
+      }
+    }
+
+    private IterableIterator<E> scanValues(final Connection psql, final String table) {
       try {
         Statement stmt = psql.createStatement();
         stmt.setFetchSize(100);
@@ -282,7 +733,16 @@ public class PostgresUtils {
       }
     }
 
-    public synchronized IterableIterator<Map.Entry<String, E>> entries(final Connection psql, final String table) {
+    /** The entries of a table, in key order; see {@link KeyValueCallback#keys(Connection, String)} */
+    public IterableIterator<Map.Entry<String, E>> entries(final Connection psql, final String table) {
+      if (isLocal()) { return new IterableIterator<Map.Entry<String, E>>(localEntries(table)); }
+      PostgresUtils.flush();
+      synchronized (this) {
+        return scanEntries(psql, table);
+      }
+    }
+
+    private IterableIterator<Map.Entry<String, E>> scanEntries(final Connection psql, final String table) {
       try {
         Statement stmt = psql.createStatement();
         stmt.setFetchSize(100);
@@ -305,21 +765,86 @@ public class PostgresUtils {
       }
     }
 
+    /** The entries of a table of the local backend, in key order, read lazily */
+    private Iterator<Map.Entry<String, E>> localEntries(String table) {
+      final KeyValueStore store = localStore(table);
+      final Iterator<String> keys = store.keys();
+      return CollectionUtils.iteratorFromMaybeFactory(new Factory<Maybe<Map.Entry<String, E>>>() {
+        @Override
+        public Maybe<Map.Entry<String, E>> create() {
+          try {
+            while (keys.hasNext()) {
+              String key = keys.next();
+              Maybe<byte[]> value = store.get(key);
+              if (value.isDefined()) {
+                return Maybe.Just((Map.Entry<String, E>) new AbstractMap.SimpleEntry<String, E>(key, fromBytes(value.get())));
+              }
+            }
+            return null;
+          } catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      });
+    }
+
     /**
      * Flush pending data to the database.
+     * Writes are queued across tables, so this writes out the queued writes of every table.
      * @param psql The connection to use.
      * @param table The table to flush all pending operations on.
      * @throws SQLException
      */
     public void flush(Connection psql, String table) throws SQLException {
-      // Ensure cached statement
-      ensureStatements(psql, table);
-      // Flush anything that may get overwritten
-      stmts.get(Pair.makePair(table, psql)).flush();
+      PostgresUtils.flush();
+    }
+
+    /** Bind a value to the given parameter of a statement */
+    protected abstract void setValue(PreparedStatement stmt, int index, E value) throws SQLException, IOException;
+
+    /**
+     * Bind a value serialized by {@link KeyValueCallback#toBytes(Object)} to the given parameter of a statement.
+     * By default, this deserializes the value and binds it with {@link KeyValueCallback#setValue}; callbacks which
+     * store bytes bind them directly.
+     * With {@link Props#PSQL_BATCH}, this is called from the write-behind thread, while callers of this callback may be
+     * waiting on that thread (e.g., in {@link KeyValueCallback#put(Connection, String, String, Object)}); it must not
+     * synchronize on the callback.
+     */
+    protected void bindBytes(PreparedStatement stmt, int index, byte[] bytes) throws SQLException, IOException {
+      setValue(stmt, index, fromBytes(bytes));
     }
 
-    protected abstract void setValue(PreparedStatement stmt, E value) throws SQLException, IOException;
+    /** Bind bytes to the given parameter of a statement, as a binary stream */
+    protected static void setBytes(PreparedStatement stmt, int index, byte[] bytes) throws SQLException {
+      stmt.setBinaryStream(index, new ByteArrayInputStream(bytes), bytes.length);
+    }
     protected abstract E getValue(ResultSet sresults) throws SQLException, IOException;
+
+    /** Serialize a value, for a backend which stores bytes (see {@link KeyValueStore}) */
+    protected abstract byte[] toBytes(E value) throws IOException;
+    /** Deserialize a value written by {@link KeyValueCallback#toBytes(Object)} */
+    protected abstract E fromBytes(byte[] bytes) throws IOException;
+
+    /** Serialize an object with Java serialization, gzipped */
+    protected static byte[] serialize(Object value) throws IOException {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      ObjectOutputStream oos = new ObjectOutputStream(new GZIPOutputStream(out));
+      oos.writeObject(value);
+      oos.close();
+      return out.toByteArray();
+    }
+
+    /** Deserialize an object written by {@link KeyValueCallback#serialize(Object)} */
+    protected static Object deserialize(byte[] bytes) throws IOException {
+      ObjectInputStream ois = new ObjectInputStream(new GZIPInputStream(new ByteArrayInputStream(bytes)));
+      try {
+        return ois.readObject();
+      } catch (ClassNotFoundException e) {
+        throw new IOException(e);
+      } finally {
+        ois.close();
+      }
+    }
   }
 
   /**
@@ -327,14 +852,24 @@ public class PostgresUtils {
    */
   public static abstract class KeyStringCallback extends KeyValueCallback<String> {
     @Override
-    protected synchronized void setValue(PreparedStatement stmt, String value) throws SQLException, IOException {
-      stmt.setString(2, value);
+    protected void setValue(PreparedStatement stmt, int index, String value) throws SQLException, IOException {
+      stmt.setString(index, value);
     }
 
     @Override
     protected synchronized String getValue(ResultSet results) throws SQLException, IOException {
       return results.getString("value");
     }
+
+    @Override
+    protected byte[] toBytes(String value) throws IOException {
+      return value.getBytes("UTF-8");
+    }
+
+    @Override
+    protected String fromBytes(byte[] bytes) throws IOException {
+      return new String(bytes, "UTF-8");
+    }
   }
 
   /**
@@ -348,14 +883,14 @@ public class PostgresUtils {
     }
 
     /** A utility method for saving a single Annotation */
-    public synchronized boolean putSingle(Connection psql, String table, String key, Annotation value) throws SQLException {
+    public boolean putSingle(Connection psql, String table, String key, Annotation value) throws SQLException {
       List<Annotation> anns = new ArrayList<Annotation>();
       anns.add(value);
       return put(psql, table, key, anns);
     }
 
     /** A utility method for getting a single Annotation */
-    public synchronized Maybe<Annotation> getSingle(Connection psql, String table, String key) throws SQLException {
+    public Maybe<Annotation> getSingle(Connection psql, String table, String key) throws SQLException {
       Maybe<List<Annotation>> anns = get(psql, table, key);
       if (!anns.isDefined()) { return Maybe.Nothing(); }
       if (anns.get().isEmpty()) { return Maybe.Nothing(); }
@@ -364,7 +899,29 @@ public class PostgresUtils {
     }
 
     @Override
-    protected synchronized void setValue(PreparedStatement stmt, List<Annotation> value) throws SQLException, IOException {
+    protected void setValue(PreparedStatement stmt, int index, List<Annotation> value) throws SQLException, IOException {
+      setBytes(stmt, index, toBytes(value));
+    }
+
+    @Override
+    protected void bindBytes(PreparedStatement stmt, int index, byte[] bytes) throws SQLException, IOException {
+      setBytes(stmt, index, bytes);
+    }
+
+    @Override
+    protected synchronized List<Annotation> getValue(ResultSet results) throws SQLException, IOException {
+      return fromBytes(results.getBytes("value"));
+    }
+
+    /** Serializes with the annotation serializer, locking it rather than this callback, as reads hold the callback's lock */
+    @Override
+    protected byte[] toBytes(List<Annotation> value) throws IOException {
+      synchronized (serializer) {
+        return serializeAnnotations(value);
+      }
+    }
+
+    private byte[] serializeAnnotations(List<Annotation> value) throws IOException {
       // Create streams
       ByteArrayOutputStream out = new ByteArrayOutputStream();
       GZIPOutputStream gzipOut = new GZIPOutputStream(out);
@@ -377,16 +934,20 @@ public class PostgresUtils {
       }
       // Clean up
       if (streamImpl != null) { streamImpl.close(); } else { gzipOut.close(); }
-      // Write to Postgres
-      byte[] data = out.toByteArray();
-      stmt.setBinaryStream(2, new ByteArrayInputStream(data), data.length);
+      return out.toByteArray();
     }
 
     @Override
-    protected synchronized List<Annotation> getValue(ResultSet results) throws SQLException, IOException {
+    protected List<Annotation> fromBytes(byte[] bytes) throws IOException {
+      synchronized (serializer) {
+        return deserializeAnnotations(bytes);
+      }
+    }
+
+    private List<Annotation> deserializeAnnotations(byte[] bytes) throws IOException {
       try {
-        // Create streams (read from postgres)
-        ByteArrayInputStream input = new ByteArrayInputStream(results.getBytes("value"));
+        // Create streams
+        ByteArrayInputStream input = new ByteArrayInputStream(bytes);
         GZIPInputStream gzipIn = new GZIPInputStream(input);
         InputStream streamImpl = null;
         // Read length
@@ -408,48 +969,82 @@ public class PostgresUtils {
   }
 
   /**
-   * A callback with utility functions for reading from a (key, datum) store
+   * A callback with utility functions for reading from a (key, datum) store.
+   * The datums of a key are stored with {@link SentenceGroupCodec}; datums it cannot encode, and datums cached
+   * before it existed, are stored as a gzipped, serialized map.
    */
   public static abstract class KeyDatumCallback extends KeyValueCallback<Map<KBPair, SentenceGroup>> {
 
     @Override
-    protected synchronized void setValue(PreparedStatement stmt, Map<KBPair, SentenceGroup> value) throws SQLException, IOException {
-      // TODO(gabor) empty for DEFT
+    protected void setValue(PreparedStatement stmt, int index, Map<KBPair, SentenceGroup> value) throws SQLException, IOException {
+      setBytes(stmt, index, toBytes(value));
+    }
+
+    @Override
+    protected void bindBytes(PreparedStatement stmt, int index, byte[] bytes) throws SQLException, IOException {
+      setBytes(stmt, index, bytes);
+    }
+
+    @Override
+    protected synchronized Map<KBPair, SentenceGroup> getValue(ResultSet results) throws SQLException, IOException {
+      return fromBytes(results.getBytes("value"));
+    }
+
+    @Override
+    protected byte[] toBytes(Map<KBPair, SentenceGroup> value) throws IOException {
+      try {
+        return SentenceGroupCodec.encode(value, Props.CACHE_DATUMS_DEFLATE);
+      } catch (IllegalArgumentException e) {
+        logger.debug("falling back to Java serialization: " + e.getMessage());
+        return serialize(value instanceof HashMap ? value : new HashMap<KBPair, SentenceGroup>(value));
+      }
     }
 
     @Override
-    protected synchronized HashMap<KBPair, SentenceGroup> getValue(ResultSet results) throws SQLException, IOException {
-      return new HashMap<KBPair, SentenceGroup>();  // TODO(gabor) empty for DEFT
+    @SuppressWarnings("unchecked")
+    protected Map<KBPair, SentenceGroup> fromBytes(byte[] bytes) throws IOException {
+      if (SentenceGroupCodec.isEncoded(bytes)) { return SentenceGroupCodec.decode(bytes); }
+      return (Map<KBPair, SentenceGroup>) deserialize(bytes);
     }
   }
 
 
   /**
-   * A callback with utility functions for reading from a (key, provenance) store
+   * A callback with utility functions for reading from a (key, provenance) store.
+   * Provenances are stored with {@link SentenceGroupCodec} where possible, like datums.
    */
   public static abstract class KeyProvenanceCallback extends KeyValueCallback<KBPRelationProvenance> {
 
     @Override
-    protected synchronized void setValue(PreparedStatement stmt, KBPRelationProvenance value) throws SQLException, IOException {
-      ByteArrayOutputStream out = new ByteArrayOutputStream();
-      ObjectOutputStream oos = new ObjectOutputStream(new GZIPOutputStream(out));
-      oos.writeObject(value);
-      oos.close();
-      byte[] data = out.toByteArray();
-      stmt.setBinaryStream(2, new ByteArrayInputStream(data), data.length);
+    protected void setValue(PreparedStatement stmt, int index, KBPRelationProvenance value) throws SQLException, IOException {
+      setBytes(stmt, index, toBytes(value));
+    }
+
+    @Override
+    protected void bindBytes(PreparedStatement stmt, int index, byte[] bytes) throws SQLException, IOException {
+      setBytes(stmt, index, bytes);
     }
 
     @Override
     protected synchronized KBPRelationProvenance getValue(ResultSet results) throws SQLException, IOException {
+      return fromBytes(results.getBytes("value"));
+    }
+
+    @Override
+    protected byte[] toBytes(KBPRelationProvenance value) throws IOException {
       try {
-        ObjectInputStream ois = new ObjectInputStream(new GZIPInputStream(new ByteArrayInputStream(results.getBytes("value"))));
-        KBPRelationProvenance rtn = (KBPRelationProvenance) ois.readObject();
-        ois.close();
-        return rtn;
-      } catch (ClassNotFoundException e) {
-        throw new IOException(e);
+        return SentenceGroupCodec.encodeProvenance(value, Props.CACHE_DATUMS_DEFLATE);
+      } catch (IllegalArgumentException e) {
+        logger.debug("falling back to Java serialization: " + e.getMessage());
+        return serialize(value);
       }
     }
+
+    @Override
+    protected KBPRelationProvenance fromBytes(byte[] bytes) throws IOException {
+      if (SentenceGroupCodec.isEncoded(bytes)) { return SentenceGroupCodec.decodeProvenance(bytes); }
+      return (KBPRelationProvenance) deserialize(bytes);
+    }
   }
 
   /**
@@ -479,16 +1074,25 @@ public class PostgresUtils {
      */
     protected void incrementCount(Connection psql, String table, KEY keyAsObject, double value) throws SQLException {
       String key = key2string(keyAsObject);
-      // Ensure cached statement
-      ensureStatements(psql, table);
-      // Flush anything that may get overwritten
-      stmts.get(Pair.makePair(table, psql)).ensureWritable(key);
-      // Get prepared statements
-      PreparedStatement increment = stmts.get(Pair.makePair(table, psql)).increment;
-      // Run insert
+      // Increment locally
+      if (isLocal()) {
+        KeyValueStore store = localStore(table);
+        //noinspection SynchronizationOnLocalVariableOrMethodParameter
+        synchronized (store) {
+          setCount(psql, table, keyAsObject, getCount(psql, table, keyAsObject) + value);
+        }
+        return;
+      }
+      // Queue the increment
+      if (Props.PSQL_BATCH) {
+        writeBehind.increment(table, key, value);
+        return;
+      }
+      // Run increment
+      PreparedStatement increment = ensureStatements(psql, table).increment;
       increment.setString(1, key);
       increment.setDouble(2, value);
-      stmts.get(Pair.makePair(table, psql)).doIncrement(key);
+      increment.execute();
     }
 
     /**
@@ -515,14 +1119,24 @@ public class PostgresUtils {
     }
 
     @Override
-    protected void setValue(PreparedStatement stmt, Double value) throws SQLException, IOException {
-      stmt.setDouble(2, value);
+    protected void setValue(PreparedStatement stmt, int index, Double value) throws SQLException, IOException {
+      stmt.setDouble(index, value);
     }
 
     @Override
     protected Double getValue(ResultSet results) throws SQLException, IOException {
       return results.getDouble("value");
     }
+
+    @Override
+    protected byte[] toBytes(Double value) throws IOException {
+      return ByteBuffer.allocate(8).putDouble(value).array();
+    }
+
+    @Override
+    protected Double fromBytes(byte[] bytes) throws IOException {
+      return ByteBuffer.wrap(bytes).getDouble();
+    }
   }
 
   /**
@@ -601,15 +1215,23 @@ public class PostgresUtils {
    */
   public static abstract class SetCallback extends KeyValueCallback<Boolean> {
     @Override
-    protected synchronized void setValue(PreparedStatement stmt, Boolean value) throws SQLException, IOException {
-      stmt.setBoolean(2, value);
+    protected void setValue(PreparedStatement stmt, int index, Boolean value) throws SQLException, IOException {
+      stmt.setBoolean(index, value);
     }
     @Override
     protected synchronized Boolean getValue(ResultSet results) throws SQLException, IOException {
       return results.getBoolean("value");
     }
+    @Override
+    protected byte[] toBytes(Boolean value) throws IOException {
+      return new byte[]{ value ? (byte) 1 : (byte) 0 };
+    }
+    @Override
+    protected Boolean fromBytes(byte[] bytes) throws IOException {
+      return bytes[0] != 0;
+    }
     protected boolean contains(Connection psql, String table, String key) throws SQLException { return get(psql, table, key).getOrElse(false); }
-    public synchronized boolean add(Connection psql, String table, String key) throws SQLException { return put(psql, table, key, true); }
+    public boolean add(Connection psql, String table, String key) throws SQLException { return put(psql, table, key, true); }
   }
 
 
@@ -629,52 +1251,53 @@ public class PostgresUtils {
     return "jdbc:postgresql://" + host + ":" + Props.PSQL_PORT + "/" + Props.PSQL_DB;
   }
 
-  /** Manages a postgres connection, calling the passed Callback as a callback with the active connection */
+  /** Manages a postgres connection, calling the passed Callback as a callback with the active connection; the callback runs in a single transaction */
   public static void withConnection(Callback callback) {
     try {
-      Connection psql = DriverManager.getConnection(PostgresUtils.uri(), Props.PSQL_USERNAME, Props.PSQL_PASSWORD);
-      psql.setAutoCommit(false);
+      Connection psql = pool().borrow();
       try {
+        psql.setAutoCommit(false);
         callback.apply(psql);
       } catch (SQLException e) {
         throw new RuntimeException(e);
       } finally {
-        if (!psql.getAutoCommit()) { psql.commit(); }
-        psql.close();
+        pool().release(psql);  // commits
       }
     } catch (SQLException e) {
       throw new RuntimeException(e);
     }
   }
 
+  /**
+   * Calls the passed Callback with a pooled connection, in auto-commit mode.
+   * The connection is held by this callback alone until it returns; callbacks on other threads run concurrently,
+   * on other connections, up to {@link Props#PSQL_POOL_SIZE} at a time.
+   * @param connectionName A name for what the connection is used for, to report errors with
+   * @param callback The callback to run
+   */
   public static void withConnection(String connectionName, Callback callback) {
     try {
-      // Get (or create) connection
-      Connection psql;
-      if (!namedConnections.containsKey(connectionName)) {
-        psql = DriverManager.getConnection(PostgresUtils.uri(), Props.PSQL_USERNAME, Props.PSQL_PASSWORD);
-        psql.setAutoCommit(true);
-        namedConnections.put(connectionName, psql);
-      } else {
-        psql = namedConnections.get(connectionName);
-      }
-      // Run callback
-      //noinspection SynchronizationOnLocalVariableOrMethodParameter
-      synchronized (psql) {
+      Connection psql = pool().borrow();
+      try {
         callback.apply(psql);
+      } finally {
+        pool().release(psql);
       }
     } catch (SQLException e) {
-      if (e instanceof BatchUpdateException) {
-        BatchUpdateException be = (BatchUpdateException) e;
-        Exception cause;
-        if ( (cause = be.getNextException()) != null) {
-          logger.log(cause);
-        }
-      }
+      logger.err("Error on connection " + connectionName);
+      logSQLException(e);
       throw new RuntimeException(e);
     }
   }
 
+  /** Log the cause of a failed batch, which JDBC keeps apart from the exception itself */
+  private static void logSQLException(SQLException e) {
+    Exception cause;
+    if ( (cause = e.getNextException()) != null) {
+      logger.log(cause);
+    }
+  }
+
 
   public static void exec(Connection psql, String sql) throws SQLException {
     Statement statement = psql.createStatement();
@@ -684,6 +1307,10 @@ public class PostgresUtils {
 
   /** Returns whether a specified table exists in the database */
   public static boolean haveTable(final String tableName) {
+    if (isLocal()) {
+      synchronized (localStores) { return localStores.containsKey(tableName) || localFile(tableName).exists(); }
+    }
+    if (knownTables.contains(tableName)) { return true; }
     final Pointer<Boolean> haveTable = new Pointer<Boolean>(false);
     withConnection(tableName, new Callback() {
       @Override
@@ -694,6 +1321,7 @@ public class PostgresUtils {
         if (tablesResultSet.next()) { haveTable.set(true); }
       }
     });
+    if (haveTable.dereference().orCrash()) { knownTables.add(tableName); }
     return haveTable.dereference().orCrash();
   }
 
@@ -703,7 +1331,7 @@ public class PostgresUtils {
    * @param callback The callback to run. The connection is automatically closed once the callback finishes
    * @param createStatement The statement to use to create the table, if it doesn't already exist
    */
-  public static void withTable(String tableName, final Callback callback, final Maybe<String> createStatement) {
+  public static void withTable(final String tableName, final Callback callback, final Maybe<String> createStatement) {
     final boolean doCreate;
 
     // Ensure that the table exists
@@ -728,6 +1356,7 @@ public class PostgresUtils {
           if (!psql.getAutoCommit()) {
             psql.commit();
           }
+          knownTables.add(tableName);
         }
         // Run callback
         callback.apply(psql);
@@ -738,7 +1367,20 @@ public class PostgresUtils {
   /** @see edu.stanford.nlp.kbp.slotfilling.common.PostgresUtils#withTable(String, edu.stanford.nlp.kbp.slotfilling.common.PostgresUtils.Callback, Maybe) */
   public static void withTable(String tableName, final Callback callback, String createStatement) { withTable(tableName, callback, Maybe.Just(createStatement)); }
 
+  /**
+   * Do a series of operations with a key/value table, creating it if it does not exist.
+   * If the caches are local ({@link Props#CACHE_BACKEND}), the table is a local file, and the callback is passed
+   * a null connection: only the key/value methods of {@link KeyValueCallback} may be used.
+   */
   public static void withKeyValueTable(String tableName, final Callback callback, String keyType, String valueType) {
+    if (isLocal()) {
+      try {
+        callback.apply(null);
+      } catch (SQLException e) {
+        throw new RuntimeException(e);
+      }
+      return;
+    }
     withTable(tableName, callback, Maybe.Just(
         "CREATE TABLE IF NOT EXISTS \"" + tableName + "\"( key " + keyType + " PRIMARY KEY, value " + valueType +" );" +
         "DROP FUNCTION IF EXISTS \"_jdbc_set_" + tableName.toLowerCase() + "\"(" + keyType + ", " + valueType + ");" +
@@ -818,6 +1460,19 @@ public class PostgresUtils {
   /** Drops a table from the database. USE WITH CARE (this is mostly just for tests)! */
   public static boolean dropTable(final String tableName) {
     if (!haveTable(tableName)) { return false; }
+    if (isLocal()) {
+      synchronized (localStores) {
+        KeyValueStore store = localStores.remove(tableName);
+        try {
+          if (store != null) { store.close(); }
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+        return localFile(tableName).delete();
+      }
+    }
+    flush();
+    knownTables.remove(tableName);
     withConnection(tableName, new Callback() {
       @Override
       public void apply(Connection psql) throws SQLException {
@@ -830,4 +1485,80 @@ public class PostgresUtils {
     });
     return true;
   }
+
+  /**
+   * Compare the throughput of the key/value caches on each backend: put a number of random values, then get them
+   * all back, on a number of threads. The Postgres backend is skipped if the database cannot be reached.
+   * Usage: PostgresUtils [properties file] [number of entries (default 10000)] [value size, in bytes (default 4096)] [threads (default 4)]
+   */
+  public static void main(final String[] args) throws IOException {
+    Properties props = new Properties();
+    InputStream input = new FileInputStream(args[0]);
+    try {
+      props.load(input);
+    } finally {
+      input.close();
+    }
+    final int numEntries = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+    final int valueSize = args.length > 2 ? Integer.parseInt(args[2]) : 4096;
+    final int numThreads = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+    SlotfillingSystem.exec(new Function<Properties, Object>() {
+      @Override
+      public Object apply(Properties props) {
+        // Random values
+        Random rand = new Random(42);
+        final String[] keys = new String[numEntries];
+        final String[] values = new String[numEntries];
+        char[] chars = new char[valueSize];
+        for (int i = 0; i < numEntries; ++i) {
+          keys[i] = "key" + i + "#" + rand.nextInt();
+          for (int k = 0; k < chars.length; ++k) { chars[k] = (char) ('a' + rand.nextInt(26)); }
+          values[i] = new String(chars);
+        }
+        final String table = "kv_benchmark";
+        for (Props.CacheBackend backend : Props.CacheBackend.values()) {
+          Props.CACHE_BACKEND = backend;
+          try {
+            dropTable(table);
+            for (final boolean doPut : new boolean[]{ true, false }) {
+              final AtomicLong found = new AtomicLong(0);
+              List<Runnable> tasks = new ArrayList<Runnable>();
+              for (int t = 0; t < numThreads; ++t) {
+                final int thread = t;
+                tasks.add(new Runnable() {
+                  @Override
+                  public void run() {
+                    for (int i = thread; i < numEntries; i += numThreads) {
+                      final int entry = i;
+                      withKeyStringTable(table, new KeyStringCallback() {
+                        @Override
+                        public void apply(Connection psql) throws SQLException {
+                          if (doPut) {
+                            put(psql, table, keys[entry], values[entry]);
+                          } else if (get(psql, table, keys[entry]).isDefined()) {
+                            found.incrementAndGet();
+                          }
+                        }
+                      });
+                    }
+                  }
+                });
+              }
+              long start = System.currentTimeMillis();
+              Redwood.Util.threadAndRun(backend + (doPut ? " puts" : " gets"), tasks, numThreads);
+              if (doPut) { flush(); }
+              double seconds = Math.max(System.currentTimeMillis() - start, 1) / 1000.0;
+              logger.log(backend + ": " + numEntries + (doPut ? " puts" : " gets (" + found.get() + " found)") + " of " + valueSize +
+                  " bytes on " + numThreads + " threads in " + seconds + " s: " + ((int) (numEntries / seconds)) + " ops/sec");
+            }
+            dropTable(table);
+          } catch (RuntimeException e) {
+            logger.warn("skipping the " + backend + " backend: " + e.getMessage());
+          }
+        }
+        logger.log(statistics());
+        return null;
+      }
+    }, props);
+  }
 }
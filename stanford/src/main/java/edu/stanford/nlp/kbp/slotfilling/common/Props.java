@@ -9,6 +9,7 @@ import edu.stanford.nlp.kbp.entitylinking.EntityLinker;
 import edu.stanford.nlp.kbp.slotfilling.classify.EnsembleRelationExtractor;
 import edu.stanford.nlp.kbp.slotfilling.classify.JointBayesRelationExtractor;
 import edu.stanford.nlp.kbp.slotfilling.classify.ModelType;
+import edu.stanford.nlp.kbp.slotfilling.classify.WeightPrecision;
 import edu.stanford.nlp.kbp.slotfilling.evaluate.KBPEvaluator;
 import edu.stanford.nlp.kbp.slotfilling.evaluate.GraphConsistencyPostProcessors.MergeStrategy;
 import edu.stanford.nlp.kbp.slotfilling.process.RelationFilter;
@@ -43,6 +44,8 @@ public class Props {
 
   @Option(name="kbp.model.dir", gloss="The directory to save and load the KBP models from", required=true)
   public static File KBP_MODEL_DIR = new File("/scr/nlp/data/tackbp2013/models/best");
+  @Option(name="kbp.model.binary", gloss="If true, save and load the KBP model in the (memory-mapped) binary model format, rather than as a serialized object")
+  public static boolean KBP_MODEL_BINARY = false;
   @Option(name="kbp.verbose", gloss="If true, logging will be more verbose")
   public static boolean KBP_VERBOSE = false;
 
@@ -66,6 +69,8 @@ public class Props {
   public static String PROCESS_REGEXNER_WITHCASE = "kbp_regexner_mapping.tab";
   @Option(name="process.relation.normalizecorefslot", gloss="Get the normalized slot value from coref, rather than from the literal span")
   public static boolean PROCESS_RELATION_NORMALIZECOREFSLOT = false;
+  @Option(name="process.threads", gloss="Number of threads to annotate and featurize the sentences of a single call on")
+  public static int PROCESS_THREADS = 1;
   @Option(name="process.wordclusters.file", gloss="File with mapping from words to clusters (tab separated)")
   public static File PROCESS_WORDCLUSTERS_FILE = new File("/u/nlp/data/pos_tags_are_useless/egw4-reut.512.clusters");
 
@@ -143,8 +148,24 @@ public class Props {
 
   @Option(name="train.model", gloss="Model to train from")
   public static ModelType TRAIN_MODEL = ModelType.LR_INC;
+  @Option(name="train.datums.threads.lookup", gloss="Threads looking training tuples up in the datum cache, when collecting datums")
+  public static int TRAIN_DATUMS_THREADS_LOOKUP = 1;
+  @Option(name="train.datums.threads.query", gloss="Threads querying IR for the sentences of uncached training tuples, when collecting datums")
+  public static int TRAIN_DATUMS_THREADS_QUERY = 1;
+  @Option(name="train.datums.threads.annotate", gloss="Threads annotating retrieved sentences, when collecting datums; each annotates one tuple at a time, ignoring process.threads")
+  public static int TRAIN_DATUMS_THREADS_ANNOTATE = 1;
+  @Option(name="train.datums.threads.featurize", gloss="Threads featurizing annotated sentences, when collecting datums; each featurizes one tuple at a time, ignoring process.threads")
+  public static int TRAIN_DATUMS_THREADS_FEATURIZE = 1;
+  @Option(name="train.datums.threads.write", gloss="Threads writing newly featurized datums back to the datum cache, when collecting datums")
+  public static int TRAIN_DATUMS_THREADS_WRITE = 1;
+  @Option(name="train.datums.capacity", gloss="The most training tuples in flight at once when collecting datums; this bounds the queues between stages, and how far the collection runs ahead of its consumer")
+  public static int TRAIN_DATUMS_CAPACITY = 64;
   @Option(name="train.tuples.featurecountthreshold", gloss="Threshold for the minimum number of times a feature should occur")
   public static int FEATURE_COUNT_THRESHOLD = 5;
+  @Option(name="train.features.hashbuckets", gloss="If positive, hash features into this many buckets rather than indexing every feature string, bounding the size of the model")
+  public static int FEATURE_HASH_BUCKETS = 0;
+  @Option(name="train.features.hashsigned", gloss="If hashing features, also give each a sign from a second hash, so that colliding features tend to cancel out rather than add up")
+  public static boolean FEATURE_HASH_SIGNED = true;
   @Option(name="train.negatives.subsampleratio", gloss="Subsample negative examples by this ratio")
   public static double TRAIN_NEGATIVES_SUBSAMPLERATIO = 0.1;
   @Option(name="train.negatives.incomplete", gloss="Only treat slot fills as negative if we know the correct slot fill")
@@ -215,6 +236,8 @@ public class Props {
   public static String PERCEPTRON_NORMALIZE = "L2J";
   @Option(name="train.perceptron.softmax")
   public static boolean PERCEPTRON_SOFTMAX = true;
+  @Option(name="train.perceptron.threads", gloss="The number of threads to train the Perceptron and Hoffmann extractors with, by iterative parameter mixing; 1 trains serially. The model depends on this number, and each thread holds a copy of the weights")
+  public static int PERCEPTRON_THREADS = 1;
 
 
   //
@@ -281,7 +304,7 @@ public class Props {
   @Option(name="test.graph.inference.depth", gloss="Depth of inference rules to run inference over. E.g., 3 means A->B->C is valid, and A->B->C->A is valid, but not A->B->C->D.")
   public static int TEST_GRAPH_INFERENCE_DEPTH = 3;
 
-  @Option(name="test.graph.document.budget", gloss="Entity budget limitting the number of entities added per document" )
+  @Option(name="test.graph.document.budget", gloss="Entity budget limitting the number of entities added to a graph, over all its documents" )
   public static int TEST_GRAPH_DOCUMENT_BUDGET = 1000;
 
   @Option(name="test.sentences.max.tokens", gloss="Largest number of tokens to consider in a given sentence" )
@@ -307,6 +330,8 @@ public class Props {
   public static KBPEvaluator.ScoreMode TEST_SCORE_MODE = KBPEvaluator.ScoreMode.OFFICIAL;
   @Option(name="test.anydoc", gloss="If true, accept any document as provenance")
   public static boolean TEST_ANYDOC = true;
+  @Option(name="test.model.precision", gloss="The precision to keep the weights of a loaded perceptron model at: DOUBLE, FLOAT, or INT8 (one byte per weight, with a scale per label)")
+  public static WeightPrecision TEST_MODEL_PRECISION = WeightPrecision.DOUBLE;
   @Option(name="test.rules.do", gloss="Use rule-based classifiers to augment the main classifier")
   public static boolean TEST_RULES_DO = false;
   @Option(name="test.rules.alternatenames.do", gloss="Extract alternate names from coref")
@@ -321,6 +346,12 @@ public class Props {
   public static int TEST_NQUERIES = Integer.MAX_VALUE;
   @Option(name="test.querystart", gloss="Index of first test query to process.  This property is ignored if test.nqueries is null.")
   public static int TEST_QUERYSTART = 0;
+  @Option(name="test.candidatesentences", gloss="The TSV file of candidate sentences for each query; it is indexed into a store in cache.candidatesentences.dir on first use")
+  public static File TEST_CANDIDATESENTENCES = new File("/var/local/vidhoon/thesis/stanford-RE/candidate_sentences.txt");
+  @Option(name="test.threads", gloss="Number of test queries to fill slots for concurrently. 1 runs the queries serially")
+  public static int TEST_THREADS = 1;
+  @Option(name="test.query.timeoutsec", gloss="Give up on a test query after this many seconds, when running with multiple test.threads. A finite timeout makes scores depend on timing (machine speed and load)")
+  public static long TEST_QUERY_TIMEOUTSEC = Long.MAX_VALUE;
   
   public static enum TUNE_MODE { NONE, GLOBAL, PER_RELATION }
   @Option(name="test.threshold.tune", gloss="Tune the threshold for the minimum confidence for slots")
@@ -344,6 +375,10 @@ public class Props {
   public static enum EnsembleCombinationMethod {AGREE_ANY, AGREE_ALL, AGREE_MOST, AGREE_TWO, AGREE_FIRST}
   @Option(name="test.ensemble.combination")
   public static EnsembleCombinationMethod TEST_ENSEMBLE_COMBINATION = EnsembleCombinationMethod.AGREE_MOST;
+  @Option(name="test.ensemble.threads", gloss="The number of threads, shared by all ensembles, to score the members of an ensemble on concurrently; 1 scores them in turn")
+  public static int TEST_ENSEMBLE_THREADS = 1;
+  @Option(name="test.ensemble.earlyexit", gloss="For AGREE_ALL and AGREE_FIRST, stop scoring the members of an ensemble once it is certain that no relation will be predicted")
+  public static boolean TEST_ENSEMBLE_EARLYEXIT = false;
 
   //
   // VALIDATE
@@ -370,6 +405,11 @@ public class Props {
 
   @Option(name="cache.lock", gloss="If true, try to lock files whenever possible for caching")
   public static boolean CACHE_LOCK = true;
+  public static enum CacheBackend { POSTGRES, LOCAL }
+  @Option(name="cache.backend", gloss="Where the key/value caches (datums, provenance, ...) are stored: POSTGRES, or LOCAL for a log-structured file per table in cache.local.dir")
+  public static CacheBackend CACHE_BACKEND = CacheBackend.POSTGRES;
+  @Option(name="cache.local.dir", gloss="The directory to keep the key/value caches in, if cache.backend is LOCAL")
+  public static File CACHE_LOCAL_DIR = new File("/tmp/kbp_cache");
   @Option(name="cache.sentences.do", gloss="Cache directory for sentence IR extractions")
   public static boolean CACHE_SENTENCES_DO = false;
   @Option(name="cache.sentences.redo", gloss="Overwrite the sentence cache with a new IR retrieval")
@@ -378,10 +418,20 @@ public class Props {
   public static boolean CACHE_DATUMS_DO = false;
   @Option(name="cache.datums.ignoreuncached", gloss="Ignore datums that are not cached -- this will potentially lose some datums, but doesn't run the risk of issuing lots of IR queries")
   public static boolean CACHE_DATUMS_IGNOREUNCACHED = false;
+  @Option(name="cache.datums.deflate", gloss="Deflate cached datums and provenances; they are several times smaller, but somewhat slower to decode")
+  public static boolean CACHE_DATUMS_DEFLATE = true;
   @Option(name="cache.provenance.do", gloss="Cache provenance of an entity pair")
   public static boolean CACHE_PROVENANCE_DO = false;
   @Option(name="cache.sentencegloss.do", gloss="Cache sentence gloss of a datum")
   public static boolean CACHE_SENTENCEGLOSS_DO = true;
+  @Option(name="cache.annotations.do", gloss="Cache the CoreNLP annotations of candidate sentences on local disk, across runs")
+  public static boolean CACHE_ANNOTATIONS_DO = false;
+  @Option(name="cache.annotations.dir", gloss="The directory to cache CoreNLP annotations of candidate sentences in")
+  public static File CACHE_ANNOTATIONS_DIR = new File("/tmp/kbp_annotation_cache");
+  @Option(name="cache.annotations.maxmb", gloss="The maximum size of the annotation cache on disk, in megabytes; least recently used entries are evicted beyond this")
+  public static long CACHE_ANNOTATIONS_MAXMB = 10240;
+  @Option(name="cache.candidatesentences.dir", gloss="The directory to keep the indexed store of the test.candidatesentences file in")
+  public static File CACHE_CANDIDATESENTENCES_DIR = new File("/tmp/kbp_candidate_cache");
 
   //
   // POSTGRES
@@ -398,8 +448,14 @@ public class Props {
   public static String PSQL_USERNAME = "kbp";
   @Option(name="psql.password", gloss="The password for the postgres session")
   public static String PSQL_PASSWORD = "kbp";
-  @Option(name="psql.batch", gloss="If true, batch writes to PSQL.")
+  @Option(name="psql.batch", gloss="If true, batch writes to PSQL: puts and increments are queued, and written by a background thread in multi-row batches.")
   public static boolean PSQL_BATCH = true;
+  @Option(name="psql.batch.size", gloss="The number of queued writes to send to PSQL in a single statement (at most 16383)")
+  public static int PSQL_BATCH_SIZE = 1000;
+  @Option(name="psql.batch.flushms", gloss="The longest time a write stays queued before it is sent to PSQL, in milliseconds")
+  public static long PSQL_BATCH_FLUSHMS = 1000;
+  @Option(name="psql.pool.size", gloss="The maximum number of connections to PSQL open at once; threads beyond this wait for a connection")
+  public static int PSQL_POOL_SIZE = 8;
 
   @Option(name="psql.tuffy.db", gloss="The database to store Tuffy data in")
   public static String PSQL_TUFFY_DB = "tuffy_kbp";
@@ -462,7 +518,7 @@ public class Props {
     
     TEST_RESPONSES = new File("/var/local/vidhoon/backup/ADEPT_stanford/stanford/src/main/resources/edu/stanford/nlp/kbp/slotfilling/sample_gold_response");
     // Create model path
-    Props.KBP_MODEL_PATH = Props.KBP_MODEL_DIR.getPath() + File.separator + "kbp_relation_model." + Props.TRAIN_MODEL.name() + "." + (int) (100.0 * Props.TRAIN_NEGATIVES_SUBSAMPLERATIO) + Props.SER_EXT;
+    Props.KBP_MODEL_PATH = Props.KBP_MODEL_DIR.getPath() + File.separator + "kbp_relation_model." + Props.TRAIN_MODEL.name() + "." + (int) (100.0 * Props.TRAIN_NEGATIVES_SUBSAMPLERATIO) + (Props.KBP_MODEL_BINARY ? Props.BIN_EXT : Props.SER_EXT);
     // Initialize Features
     for (String feature : TRAIN_JOINTBAYES_YFEATURES_INTERNAL) {
       TRAIN_JOINTBAYES_YFEATURES.add(Y_FEATURE_CLASS.valueOf(feature.toUpperCase()));
@@ -501,6 +557,8 @@ public class Props {
   public static final double SOFTMAX_GAMMA = 1.0;
   /** Extension for the serialized extractor models */
   public static final String SER_EXT = ".ser";
+  /** Extension for the extractor models in the binary model format */
+  public static final String BIN_EXT = ".bin";
 
   /** The table name for the datum cache */
   public static final String DB_TABLE_DATUM_CACHE = "datum_cache";
@@ -3,6 +3,7 @@ package edu.stanford.nlp.kbp.slotfilling.common;
 import edu.stanford.nlp.kbp.slotfilling.ir.KBPRelationProvenance;
 import edu.stanford.nlp.ling.BasicDatum;
 import edu.stanford.nlp.ling.Datum;
+import edu.stanford.nlp.util.Index;
 
 import java.io.PrintStream;
 import java.io.Serializable;
@@ -36,6 +37,24 @@ public class SentenceGroup extends AbstractList<Datum<String,String>> implements
 
   public final Maybe<? extends List<String>> sentenceGlossKeys;
 
+  /**
+   * The features of each datum as indices into the feature index they were last looked up in;
+   * see {@link SentenceGroup#featureIndices(Index)}. This is reset whenever the datums change.
+   */
+  private transient volatile FeatureIndices cachedFeatureIndices = null;
+
+  /** The features of every datum in a group, interned against a particular feature index */
+  private static class FeatureIndices {
+    public final Index<String> featureIndex;
+    public final int featureIndexSize;
+    public final int[][] indices;
+    private FeatureIndices(Index<String> featureIndex, int[][] indices) {
+      this.featureIndex = featureIndex;
+      this.featureIndexSize = featureIndex.size();
+      this.indices = indices;
+    }
+  }
+
   /** For reflection only! */
   @SuppressWarnings("UnusedDeclaration")
   private SentenceGroup() {
@@ -110,6 +129,7 @@ public class SentenceGroup extends AbstractList<Datum<String,String>> implements
   }
   @Override
   public Datum<String,String> set( int idx, Datum<String,String> datum ) {
+    cachedFeatureIndices = null;
     return datums.set( idx, datum );
   }
 
@@ -120,12 +140,14 @@ public class SentenceGroup extends AbstractList<Datum<String,String>> implements
   @Override
   public void add( int idx, Datum<String,String> datum ) {
     assert !sentenceGlossKeys.isDefined();
+    cachedFeatureIndices = null;
     datums.add(idx, datum);
     assert !sentenceGlossKeys.isDefined() || datums.size() == sentenceGlossKeys.get().size();
   }
 
   public void add(Datum<String, String> datum, KBPRelationProvenance provenance, String hexKey) {
     assert (this.sentenceGlossKeys.isDefined());
+    cachedFeatureIndices = null;
     datums.add(datum);
     provenances.add(provenance);
     sentenceGlossKeys.get().add(hexKey);
@@ -134,6 +156,7 @@ public class SentenceGroup extends AbstractList<Datum<String,String>> implements
 
   public void add(Datum<String, String> datum, KBPRelationProvenance provenance) {
     assert (this.sentenceGlossKeys.isDefined());
+    cachedFeatureIndices = null;
     datums.add(datum);
     provenances.add(provenance);
     if (sentenceGlossKeys.isDefined()) {
@@ -147,11 +170,42 @@ public class SentenceGroup extends AbstractList<Datum<String,String>> implements
     if (this.sentenceGlossKeys.isDefined()) {
       sentenceGlossKeys.get().remove(idx);
     }
+    cachedFeatureIndices = null;
     Datum<String, String> rtn =  datums.remove( idx );
     assert !sentenceGlossKeys.isDefined() || datums.size() == sentenceGlossKeys.get().size();
     return rtn;
   }
 
+  /**
+   * The features of each datum in this group, as indices into the given feature index.
+   * Features which are not in the index are dropped; duplicate features are kept.
+   * The result is cached for as long as the same (unchanged) index is asked for, so that a group being classified
+   * only has its feature strings looked up once, rather than once per label per classifier call.
+   * The returned arrays are shared, and must not be modified.
+   * @param featureIndex The feature index to intern features against.
+   * @return For each datum, the indices of its features.
+   */
+  public int[][] featureIndices(Index<String> featureIndex) {
+    FeatureIndices cached = cachedFeatureIndices;
+    if (cached != null && cached.featureIndex == featureIndex && cached.featureIndexSize == featureIndex.size()) {
+      return cached.indices;
+    }
+    int[][] indices = new int[datums.size()][];
+    int[] buffer = new int[64];
+    for (int i = 0; i < indices.length; ++i) {
+      Collection<String> features = datums.get(i).asFeatures();
+      if (buffer.length < features.size()) { buffer = new int[features.size()]; }
+      int size = 0;
+      for (String feature : features) {
+        int index = featureIndex.indexOf(feature);
+        if (index >= 0) { buffer[size++] = index; }
+      }
+      indices[i] = Arrays.copyOf(buffer, size);
+    }
+    cachedFeatureIndices = new FeatureIndices(featureIndex, indices);
+    return indices;
+  }
+
   public KBPRelationProvenance getProvenance( int idx ) {
     assert !sentenceGlossKeys.isDefined() || datums.size() == sentenceGlossKeys.get().size();
     return provenances.get( idx );
@@ -166,6 +220,7 @@ public class SentenceGroup extends AbstractList<Datum<String,String>> implements
       throw new IllegalStateException("Sentence gloss key size doesn't match datums size (for argument)!");
     }
 
+    cachedFeatureIndices = null;
     this.datums.addAll( other.datums );
     this.provenances.addAll( other.provenances );
 
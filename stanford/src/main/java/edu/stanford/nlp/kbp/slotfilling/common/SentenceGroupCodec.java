@@ -0,0 +1,701 @@
+package edu.stanford.nlp.kbp.slotfilling.common;
+
+import edu.stanford.nlp.ie.machinereading.structure.Span;
+import edu.stanford.nlp.kbp.slotfilling.SlotfillingSystem;
+import edu.stanford.nlp.kbp.slotfilling.ir.KBPRelationProvenance;
+import edu.stanford.nlp.ling.BasicDatum;
+import edu.stanford.nlp.ling.Datum;
+import edu.stanford.nlp.util.CoreMap;
+import edu.stanford.nlp.util.Function;
+import edu.stanford.nlp.util.logging.Redwood;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.text.DecimalFormat;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static edu.stanford.nlp.util.logging.Redwood.Util.*;
+
+/**
+ * <p>A compact binary encoding for the datums cached for a key (a map from {@link KBPair} to {@link SentenceGroup}),
+ * and for {@link KBPRelationProvenance}s; this is what the datum and provenance caches of {@link PostgresUtils} store.
+ * Compared to gzipped Java serialization, every string (feature, label, entity, docid, ...) is written once per value
+ * into a string table, and referenced thereafter by a varint id; token spans are written as varint deltas;
+ * and there are no class descriptors. Values decode exactly to what was encoded, sentence gloss keys included.</p>
+ *
+ * <p>A value is laid out as:</p>
+ * <pre>
+ *   'S' 'G' version flags [rawLength, if deflated] body
+ *   body       := sentences groups | sentences provenance
+ *   sentences  := length [Java serialized List&lt;CoreMap&gt;, if length &gt; 0]
+ *   groups     := count (pair sameKey [pair] datums provenances glossKeys)*
+ *   pair       := entityName entityType entityId slotValue slotType
+ *   datums     := count (labels features)*
+ *   provenance := shape docId indexName [sentenceIndex entitySpan slotSpan [justificationSpan]] score sentence
+ *   string     := 0 (null) | 1 length utf8 (a new entry in the table) | id + 2 (an existing entry)
+ * </pre>
+ *
+ * <p>The containing sentences of provenances have no compact form, and are Java serialized together in a single block,
+ * each distinct sentence once. If the {@link SentenceGroupCodec#FLAG_DEFLATED} flag is set, everything after the header
+ * is deflated against a preset dictionary of common feature prefixes, relation names and tags.</p>
+ *
+ * <p>Values which do not have an exact encoding (e.g., a group whose datums are not {@link BasicDatum}s, or whose key
+ * is a {@link KBTriple}) are rejected with an {@link IllegalArgumentException}; callers fall back to Java serialization,
+ * and tell the two apart on read with {@link SentenceGroupCodec#isEncoded(byte[])}.</p>
+ */
+public class SentenceGroupCodec {
+  private static final Redwood.RedwoodChannels logger = Redwood.channels("Codec");
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final byte MAGIC_0 = 'S';
+  private static final byte MAGIC_1 = 'G';
+  private static final byte VERSION = 1;
+  /** The magic number, version and flags */
+  private static final int HEADER = 4;
+  /** Everything after the header is deflated, against {@link SentenceGroupCodec#DICTIONARY} */
+  public static final int FLAG_DEFLATED = 0x1;
+
+  /** A provenance only knows its document */
+  private static final int SHAPE_DOCUMENT = 0;
+  /** A provenance knows its sentence, and the spans of the entity and slot value in it */
+  private static final int SHAPE_SENTENCE = 1;
+  /** A provenance knows its sentence, the spans of the entity and slot value, and a justification span */
+  private static final int SHAPE_JUSTIFIED = 2;
+
+  /**
+   * The preset dictionary for deflate: the strings most likely to occur in a value, most common last.
+   * This is part of the format: DO NOT change it, or cached values will no longer decode (bump the version instead).
+   */
+  private static final byte[] DICTIONARY = (
+      "CAUSE_OF_DEATHCRIMINAL_CHARGEIDEOLOGYRELIGIONNATIONALITYMODIFIERDURATIONURLTITLEMISCNUMBERDATE" +
+      "STATE_OR_PROVINCECOUNTRYCITYLOCATIONORGANIZATIONPERSON" +
+      "org:website org:dissolved org:founded org:number_of_employees/members org:political/religious_affiliation " +
+      "org:shareholders org:founded_by org:members org:member_of org:subsidiaries org:parents org:alternate_names " +
+      "org:stateorprovince_of_headquarters org:city_of_headquarters org:country_of_headquarters org:top_members/employees " +
+      "per:charges per:cause_of_death per:religion per:age per:date_of_death per:date_of_birth per:schools_attended " +
+      "per:stateorprovince_of_death per:city_of_death per:country_of_death per:stateorprovince_of_birth per:city_of_birth " +
+      "per:country_of_birth per:stateorprovinces_of_residence per:cities_of_residence per:countries_of_residence " +
+      "per:other_family per:siblings per:parents per:children per:spouse per:alternate_names per:origin per:member_of " +
+      "per:title per:employee_of _NR " +
+      "arg2_date_0arg2_date_1000arg2_date_1600arg2_date_1800arg2_date_1900arg2_date_2000arg2_date" +
+      "arg2_number_2arg2_number_20arg2_number_60arg2_number_100arg2_number" +
+      "arg1_malearg1_femalearg2_malearg2_femalearg_same_genderarg_different_genderarguments_have_same_head" +
+      "different_sentencesarg1BeforeArg2" +
+      "entity_counts_bin_lt6entity_counts_bin_lt10entity_counts_bin_ge10entity_counts_binentity_counts_" +
+      "surface_distance_bin_lt6surface_distance_bin_lt10surface_distance_bin_ge10surface_distance_binsurface_distance_" +
+      "dependency_path_length_dependency_path_lengthpath_length_dependency_path_trigger=span_words_trigger=" +
+      "arg1type=_and_arg2type=arg1subtype=_and_arg2subtype=" +
+      "cluster_arg0: cluster_arg1: cluster_args: cluster_in_dependency_path:span_cluster:" +
+      "POS_arg0: POS_arg1: POS_in_dependency_path: POSs: word_arg0: word_arg1: word_in_dependency_path:" +
+      "entity_between_args: span_bigram:span_word:stub: verb: words: " +
+      "surface_path_selective: surface_path_clusters: surface_path_POS: surface_path: " +
+      "left_windows_left_window_right_windows_right_window_leftargrightarg" +
+      "dependency_path_POS_dependency_path_edge_lowlevel_dependency_path_edge_dependency_path_" +
+      "<-nsubj<-dobj<-prep_in<-prep_of<-poss<-appos<-nn->nsubj->dobj->prep_in->prep_of->poss->appos->nn" +
+      "PRP$WDTWPRBRBSJJRJJSVBGVBNVBPVBZVBDVBCDPOSPRPDTCCTOINJJNNSNNPSNNPNN"
+  ).getBytes(UTF8);
+
+  private SentenceGroupCodec() { }
+
+  /** Returns true if these bytes were written by this codec (as opposed to, e.g., gzipped Java serialization) */
+  public static boolean isEncoded(byte[] bytes) {
+    return bytes.length >= HEADER && bytes[0] == MAGIC_0 && bytes[1] == MAGIC_1;
+  }
+
+  /**
+   * Encode the datums of a key.
+   * @param groups The sentence groups, by their key.
+   * @param deflate If true, deflate the encoding; this is typically several times smaller, at some cost in decode time.
+   * @return The encoded groups, to be read back with {@link SentenceGroupCodec#decode(byte[])}.
+   * @throws IllegalArgumentException If the groups cannot be encoded exactly.
+   */
+  public static byte[] encode(Map<KBPair, SentenceGroup> groups, boolean deflate) throws IOException {
+    Writer writer = new Writer();
+    writer.writeVarint(groups.size());
+    for (Map.Entry<KBPair, SentenceGroup> entry : groups.entrySet()) {
+      writer.writePair(entry.getKey());
+      SentenceGroup group = entry.getValue();
+      if (group.getClass() != SentenceGroup.class) { throw new IllegalArgumentException("Cannot encode a " + group.getClass()); }
+      if (group.key == entry.getKey()) {
+        writer.write(0);
+      } else {
+        writer.write(1);
+        writer.writePair(group.key);
+      }
+      writer.writeGroup(group);
+    }
+    return writer.finish(deflate);
+  }
+
+  /**
+   * Decode the datums of a key, as written by {@link SentenceGroupCodec#encode(Map, boolean)}.
+   * @throws IOException If the bytes are not a valid encoding.
+   */
+  public static Map<KBPair, SentenceGroup> decode(byte[] bytes) throws IOException {
+    try {
+      Reader reader = Reader.open(bytes);
+      int numGroups = reader.readVarint();
+      Map<KBPair, SentenceGroup> groups = new HashMap<KBPair, SentenceGroup>(Math.max(16, numGroups * 4 / 3 + 1));
+      for (int i = 0; i < numGroups; ++i) {
+        KBPair mapKey = reader.readPair();
+        KBPair key = reader.read() == 0 ? mapKey : reader.readPair();
+        groups.put(mapKey, reader.readGroup(key));
+      }
+      reader.expectEnd();
+      return groups;
+    } catch (RuntimeException e) {
+      throw new IOException("Corrupt sentence group encoding", e);
+    }
+  }
+
+  /**
+   * Encode a single provenance.
+   * @throws IllegalArgumentException If the provenance cannot be encoded exactly.
+   * @see SentenceGroupCodec#encode(Map, boolean)
+   */
+  public static byte[] encodeProvenance(KBPRelationProvenance provenance, boolean deflate) throws IOException {
+    Writer writer = new Writer();
+    writer.writeProvenance(provenance);
+    return writer.finish(deflate);
+  }
+
+  /** Decode a provenance written by {@link SentenceGroupCodec#encodeProvenance(KBPRelationProvenance, boolean)} */
+  public static KBPRelationProvenance decodeProvenance(byte[] bytes) throws IOException {
+    try {
+      Reader reader = Reader.open(bytes);
+      KBPRelationProvenance provenance = reader.readProvenance();
+      reader.expectEnd();
+      return provenance;
+    } catch (RuntimeException e) {
+      throw new IOException("Corrupt provenance encoding", e);
+    }
+  }
+
+  /** The body of a value, as it is being written; this also collects its string table, and its containing sentences */
+  private static class Writer {
+    private byte[] buffer = new byte[4096];
+    private int size = 0;
+    private final Map<String, Integer> strings = new HashMap<String, Integer>();
+    private final List<CoreMap> sentences = new ArrayList<CoreMap>();
+    private final Map<CoreMap, Integer> sentenceIds = new IdentityHashMap<CoreMap, Integer>();
+
+    private void ensure(int extra) {
+      if (size + extra > buffer.length) { buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra)); }
+    }
+
+    public void write(int b) {
+      ensure(1);
+      buffer[size++] = (byte) b;
+    }
+
+    public void writeVarint(int value) {
+      ensure(5);
+      while ((value & ~0x7F) != 0) {
+        buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      buffer[size++] = (byte) value;
+    }
+
+    /** Write a signed int, zigzag encoded so that small negative numbers stay small */
+    public void writeSigned(int value) {
+      writeVarint((value << 1) ^ (value >> 31));
+    }
+
+    public void writeString(String value) {
+      if (value == null) { writeVarint(0); return; }
+      Integer id = strings.get(value);
+      if (id != null) { writeVarint(id + 2); return; }
+      strings.put(value, strings.size());
+      byte[] utf8 = value.getBytes(UTF8);
+      writeVarint(1);
+      writeVarint(utf8.length);
+      ensure(utf8.length);
+      System.arraycopy(utf8, 0, buffer, size, utf8.length);
+      size += utf8.length;
+    }
+
+    public void writePair(KBPair pair) {
+      if (pair.getClass() != KBPair.class) { throw new IllegalArgumentException("Cannot encode a " + pair.getClass()); }
+      if (pair.entityId.isDefined() && pair.entityId.get() == null) { throw new IllegalArgumentException("Cannot encode a null entity id"); }
+      if (pair.slotType.isDefined() && pair.slotType.get() == null) { throw new IllegalArgumentException("Cannot encode a null slot type"); }
+      writeString(pair.entityName);
+      writeString(pair.entityType.name());
+      writeString(pair.entityId.getOrElse(null));
+      writeString(pair.slotValue);
+      writeString(pair.slotType.isDefined() ? pair.slotType.get().name() : null);
+    }
+
+    public void writeGroup(SentenceGroup group) {
+      // Datums
+      writeVarint(group.size());
+      for (Datum<String, String> datum : group) {
+        if (datum == null || datum.getClass() != BasicDatum.class) {
+          throw new IllegalArgumentException("Cannot encode a " + (datum == null ? null : datum.getClass()));
+        }
+        Collection<String> labels = datum.labels();
+        writeVarint(labels.size());
+        for (String label : labels) { writeString(label); }
+        Collection<String> features = datum.asFeatures();
+        writeVarint(features.size());
+        for (String feature : features) { writeString(feature); }
+      }
+      // Provenances
+      writeVarint(group.provenances.size());
+      for (KBPRelationProvenance provenance : group.provenances) {
+        if (provenance == null) {
+          write(0);
+        } else {
+          write(1);
+          writeProvenance(provenance);
+        }
+      }
+      // Sentence gloss keys
+      if (group.sentenceGlossKeys.isDefined()) {
+        List<String> keys = group.sentenceGlossKeys.get();
+        writeVarint(keys.size() + 1);
+        for (String key : keys) { writeString(key); }
+      } else {
+        writeVarint(0);
+      }
+    }
+
+    private void writeSpan(Span span, int relativeTo) {
+      if (span == null) { throw new IllegalArgumentException("Cannot encode a null span"); }
+      writeSigned(span.start() - relativeTo);
+      writeSigned(span.end() - span.start());
+    }
+
+    public void writeProvenance(KBPRelationProvenance provenance) {
+      if (provenance.getClass() != KBPRelationProvenance.class) { throw new IllegalArgumentException("Cannot encode a " + provenance.getClass()); }
+      // Figure out which constructor this provenance came from
+      int shape;
+      if (!provenance.sentenceIndex.isDefined()) {
+        if (provenance.entityMentionInSentence.isDefined() || provenance.slotValueMentionInSentence.isDefined() ||
+            provenance.justificationMention != null || provenance.score.isDefined()) {
+          throw new IllegalArgumentException("Cannot encode a provenance with spans but no sentence");
+        }
+        shape = SHAPE_DOCUMENT;
+      } else {
+        if (!provenance.entityMentionInSentence.isDefined() || !provenance.slotValueMentionInSentence.isDefined() ||
+            (provenance.justificationMention != null && !provenance.justificationMention.isDefined())) {
+          throw new IllegalArgumentException("Cannot encode a provenance with a sentence but missing spans");
+        }
+        shape = provenance.justificationMention == null ? SHAPE_SENTENCE : SHAPE_JUSTIFIED;
+      }
+      write(shape);
+      writeString(provenance.docId);
+      writeString(provenance.indexName);
+      if (shape != SHAPE_DOCUMENT) {
+        Span entity = provenance.entityMentionInSentence.get();
+        Span slot = provenance.slotValueMentionInSentence.get();
+        writeSigned(provenance.sentenceIndex.get());
+        writeSpan(entity, 0);
+        writeSpan(slot, entity.start());
+        if (shape == SHAPE_JUSTIFIED) { writeSpan(provenance.justificationMention.get(), slot.start()); }
+      }
+      // Score
+      if (provenance.score.isDefined()) {
+        if (provenance.score.get() == null) { throw new IllegalArgumentException("Cannot encode a null score"); }
+        ensure(9);
+        buffer[size++] = 1;
+        long bits = Double.doubleToRawLongBits(provenance.score.get());
+        for (int shift = 56; shift >= 0; shift -= 8) { buffer[size++] = (byte) (bits >>> shift); }
+      } else {
+        write(0);
+      }
+      // Containing sentence
+      if (provenance.containingSentenceLossy == null) { throw new IllegalArgumentException("Cannot encode a null sentence"); }
+      if (!provenance.containingSentenceLossy.isDefined()) {
+        writeVarint(0);
+      } else if (provenance.containingSentenceLossy.get() == null) {
+        writeVarint(1);
+      } else {
+        CoreMap sentence = provenance.containingSentenceLossy.get();
+        Integer id = sentenceIds.get(sentence);
+        if (id == null) {
+          id = sentences.size();
+          sentences.add(sentence);
+          sentenceIds.put(sentence, id);
+        }
+        writeVarint(id + 2);
+      }
+    }
+
+    /** Prepend the sentences to the body, and the header to that */
+    public byte[] finish(boolean deflate) throws IOException {
+      byte[] sentenceBlock = new byte[0];
+      if (!sentences.isEmpty()) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bytes);
+        oos.writeObject(new ArrayList<CoreMap>(sentences));
+        oos.close();
+        sentenceBlock = bytes.toByteArray();
+      }
+      Writer raw = new Writer();
+      raw.ensure(5 + sentenceBlock.length + size);
+      raw.writeVarint(sentenceBlock.length);
+      System.arraycopy(sentenceBlock, 0, raw.buffer, raw.size, sentenceBlock.length);
+      raw.size += sentenceBlock.length;
+      System.arraycopy(buffer, 0, raw.buffer, raw.size, size);
+      raw.size += size;
+
+      Writer out = new Writer();
+      out.write(MAGIC_0);
+      out.write(MAGIC_1);
+      out.write(VERSION);
+      if (!deflate) {
+        out.write(0);
+        out.ensure(raw.size);
+        System.arraycopy(raw.buffer, 0, out.buffer, out.size, raw.size);
+        out.size += raw.size;
+      } else {
+        out.write(FLAG_DEFLATED);
+        out.writeVarint(raw.size);
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+          deflater.setDictionary(DICTIONARY);
+          deflater.setInput(raw.buffer, 0, raw.size);
+          deflater.finish();
+          while (!deflater.finished()) {
+            out.ensure(4096);
+            out.size += deflater.deflate(out.buffer, out.size, out.buffer.length - out.size);
+          }
+        } finally {
+          deflater.end();
+        }
+      }
+      return Arrays.copyOf(out.buffer, out.size);
+    }
+  }
+
+  /** The body of a value, as it is being read */
+  private static class Reader {
+    private final byte[] buffer;
+    private int position;
+    private final int end;
+    private final List<String> strings = new ArrayList<String>();
+    private final List<CoreMap> sentences;
+
+    @SuppressWarnings("unchecked")
+    private Reader(byte[] buffer, int position, int end) throws IOException {
+      this.buffer = buffer;
+      this.position = position;
+      this.end = end;
+      int sentenceBlockLength = readVarint();
+      if (sentenceBlockLength > 0) {
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(buffer, this.position, sentenceBlockLength));
+        try {
+          this.sentences = (List<CoreMap>) ois.readObject();
+        } catch (ClassNotFoundException e) {
+          throw new IOException(e);
+        } finally {
+          ois.close();
+        }
+        this.position += sentenceBlockLength;
+      } else {
+        this.sentences = Collections.emptyList();
+      }
+    }
+
+    /** Check the header of a value, inflate it if need be, and start reading its body */
+    public static Reader open(byte[] bytes) throws IOException {
+      if (!isEncoded(bytes)) { throw new IOException("Not a sentence group encoding"); }
+      if (bytes[2] != VERSION) { throw new IOException("Unsupported sentence group encoding version: " + bytes[2]); }
+      if ((bytes[3] & FLAG_DEFLATED) == 0) { return new Reader(bytes, HEADER, bytes.length); }
+      Reader header = new Reader(bytes, HEADER);
+      int rawLength = header.readVarint();
+      byte[] raw = new byte[rawLength];
+      Inflater inflater = new Inflater(true);
+      try {
+        inflater.setDictionary(DICTIONARY);
+        inflater.setInput(bytes, header.position, bytes.length - header.position);
+        int inflated = 0;
+        while (inflated < rawLength) {
+          int n = inflater.inflate(raw, inflated, rawLength - inflated);
+          if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+            throw new IOException("Truncated sentence group encoding");
+          }
+          inflated += n;
+        }
+      } catch (DataFormatException e) {
+        throw new IOException(e);
+      } finally {
+        inflater.end();
+      }
+      return new Reader(raw, 0, raw.length);
+    }
+
+    /** A reader for just the header, which has neither sentences nor strings */
+    private Reader(byte[] buffer, int position) {
+      this.buffer = buffer;
+      this.position = position;
+      this.end = buffer.length;
+      this.sentences = Collections.emptyList();
+    }
+
+    public int read() {
+      if (position >= end) { throw new IllegalStateException("Unexpected end of encoding"); }
+      return buffer[position++] & 0xFF;
+    }
+
+    public int readVarint() {
+      int value = 0;
+      for (int shift = 0; shift < 35; shift += 7) {
+        int b = read();
+        value |= (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) { return value; }
+      }
+      throw new IllegalStateException("Malformed varint");
+    }
+
+    public int readSigned() {
+      int value = readVarint();
+      return (value >>> 1) ^ -(value & 1);
+    }
+
+    public String readString() {
+      int id = readVarint();
+      if (id == 0) { return null; }
+      if (id > 1) { return strings.get(id - 2); }
+      int length = readVarint();
+      if (length < 0 || position + length > end) { throw new IllegalStateException("Unexpected end of encoding"); }
+      String value = new String(buffer, position, length, UTF8);
+      position += length;
+      strings.add(value);
+      return value;
+    }
+
+    public KBPair readPair() {
+      String entityName = readString();
+      NERTag entityType = NERTag.valueOf(readString());
+      String entityId = readString();
+      String slotValue = readString();
+      String slotType = readString();
+      return new KBPair(Maybe.fromNull(entityId), entityName, entityType, slotValue,
+          slotType == null ? Maybe.<NERTag>Nothing() : Maybe.Just(NERTag.valueOf(slotType)));
+    }
+
+    public SentenceGroup readGroup(KBPair key) {
+      // Datums
+      int numDatums = readVarint();
+      List<Datum<String, String>> datums = new ArrayList<Datum<String, String>>(numDatums);
+      for (int i = 0; i < numDatums; ++i) {
+        int numLabels = readVarint();
+        List<String> labels = new ArrayList<String>(numLabels);
+        for (int k = 0; k < numLabels; ++k) { labels.add(readString()); }
+        int numFeatures = readVarint();
+        List<String> features = new ArrayList<String>(numFeatures);
+        for (int k = 0; k < numFeatures; ++k) { features.add(readString()); }
+        datums.add(new BasicDatum<String, String>(features, labels));
+      }
+      // Provenances
+      int numProvenances = readVarint();
+      List<KBPRelationProvenance> provenances = new ArrayList<KBPRelationProvenance>(numProvenances);
+      for (int i = 0; i < numProvenances; ++i) {
+        provenances.add(read() == 0 ? null : readProvenance());
+      }
+      // Sentence gloss keys
+      int numKeys = readVarint() - 1;
+      if (numKeys < 0) { return new SentenceGroup(key, datums, provenances); }
+      List<String> keys = new ArrayList<String>(numKeys);
+      for (int i = 0; i < numKeys; ++i) { keys.add(readString()); }
+      return new SentenceGroup(key, datums, provenances, keys);
+    }
+
+    private Span readSpan(int relativeTo) {
+      int start = readSigned() + relativeTo;
+      return new Span(start, start + readSigned());
+    }
+
+    public KBPRelationProvenance readProvenance() {
+      int shape = read();
+      String docId = readString();
+      String indexName = readString();
+      int sentenceIndex = 0;
+      Span entity = null;
+      Span slot = null;
+      Span justification = null;
+      if (shape != SHAPE_DOCUMENT) {
+        sentenceIndex = readSigned();
+        entity = readSpan(0);
+        slot = readSpan(entity.start());
+        if (shape == SHAPE_JUSTIFIED) { justification = readSpan(slot.start()); }
+      }
+      Maybe<Double> score = Maybe.Nothing();
+      if (read() != 0) {
+        long bits = 0;
+        for (int k = 0; k < 8; ++k) { bits = (bits << 8) | read(); }
+        score = Maybe.Just(Double.longBitsToDouble(bits));
+      }
+      int sentenceId = readVarint();
+      CoreMap sentence = sentenceId > 1 ? sentences.get(sentenceId - 2) : null;
+
+      KBPRelationProvenance provenance;
+      switch (shape) {
+        case SHAPE_DOCUMENT:
+          provenance = new KBPRelationProvenance(docId, indexName);
+          break;
+        case SHAPE_SENTENCE:
+          provenance = new KBPRelationProvenance(docId, indexName, sentenceIndex, entity, slot, sentence, score);
+          break;
+        case SHAPE_JUSTIFIED:
+          provenance = new KBPRelationProvenance(docId, indexName, sentenceIndex, entity, slot, justification, sentence, score);
+          break;
+        default:
+          throw new IllegalStateException("Unknown provenance shape: " + shape);
+      }
+      provenance.containingSentenceLossy = sentenceId == 0 ? Maybe.<CoreMap>Nothing() : Maybe.Just(sentence);
+      return provenance;
+    }
+
+    public void expectEnd() {
+      if (position != end) { throw new IllegalStateException((end - position) + " trailing bytes"); }
+    }
+  }
+
+  /** Returns true if two provenances have the same content; provenances do not define equals() */
+  static boolean sameProvenance(KBPRelationProvenance a, KBPRelationProvenance b) {
+    if (a == null || b == null) { return a == b; }
+    return (a.docId == null ? b.docId == null : a.docId.equals(b.docId)) &&
+        (a.indexName == null ? b.indexName == null : a.indexName.equals(b.indexName)) &&
+        a.sentenceIndex.equals(b.sentenceIndex) &&
+        a.entityMentionInSentence.equals(b.entityMentionInSentence) &&
+        a.slotValueMentionInSentence.equals(b.slotValueMentionInSentence) &&
+        (a.justificationMention == null ? b.justificationMention == null : a.justificationMention.equals(b.justificationMention)) &&
+        a.score.equals(b.score) &&
+        a.containingSentenceLossy.isDefined() == b.containingSentenceLossy.isDefined() &&
+        (!a.containingSentenceLossy.isDefined() ||
+            (a.containingSentenceLossy.get() == null ? b.containingSentenceLossy.get() == null : a.containingSentenceLossy.get().equals(b.containingSentenceLossy.get())));
+  }
+
+  /** Returns true if two groups have the same content, down to their provenances and sentence gloss keys */
+  static boolean sameGroup(SentenceGroup a, SentenceGroup b) {
+    if (!a.key.toString().equals(b.key.toString()) || a.size() != b.size() || a.provenances.size() != b.provenances.size() ||
+        !a.sentenceGlossKeys.equals(b.sentenceGlossKeys)) {
+      return false;
+    }
+    for (int i = 0; i < a.size(); ++i) {
+      if (!new ArrayList<String>(a.get(i).labels()).equals(new ArrayList<String>(b.get(i).labels())) ||
+          !new ArrayList<String>(a.get(i).asFeatures()).equals(new ArrayList<String>(b.get(i).asFeatures()))) {
+        return false;
+      }
+    }
+    for (int i = 0; i < a.provenances.size(); ++i) {
+      if (!sameProvenance(a.provenances.get(i), b.provenances.get(i))) { return false; }
+    }
+    return true;
+  }
+
+  /**
+   * Compare this codec to gzipped Java serialization on the datum cache ({@link Props#DB_TABLE_DATUM_CACHE}),
+   * in bytes per sentence group and decode time per sentence group, checking that every value round trips exactly.
+   * Usage: SentenceGroupCodec [properties file] [max keys = 10000] [decode passes = 5]
+   */
+  public static void main(String[] args) throws IOException {
+    Properties props = new Properties();
+    InputStream input = new FileInputStream(args[0]);
+    try {
+      props.load(input);
+    } finally {
+      input.close();
+    }
+    final int maxKeys = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+    final int passes = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+    SlotfillingSystem.exec(new Function<Properties, Object>() {
+      @Override
+      public Object apply(Properties props) {
+        // Read the cached datums
+        final List<Map<KBPair, SentenceGroup>> values = new ArrayList<Map<KBPair, SentenceGroup>>();
+        PostgresUtils.withKeyDatumTable(Props.DB_TABLE_DATUM_CACHE, new PostgresUtils.KeyDatumCallback() {
+          @Override
+          public void apply(Connection psql) throws SQLException {
+            Iterator<Map.Entry<String, Map<KBPair, SentenceGroup>>> entries = entries(psql, Props.DB_TABLE_DATUM_CACHE);
+            while (entries.hasNext() && values.size() < maxKeys) {
+              Map<KBPair, SentenceGroup> value = entries.next().getValue();
+              if (value != null) { values.add(value); }
+            }
+          }
+        });
+        int numGroups = 0;
+        for (Map<KBPair, SentenceGroup> value : values) { numGroups += value.size(); }
+        log("read " + values.size() + " keys (" + numGroups + " sentence groups) from " + Props.DB_TABLE_DATUM_CACHE);
+        if (numGroups == 0) { return null; }
+
+        // Encode every value in every format
+        String[] formats = new String[]{ "java+gzip", "codec", "codec+deflate" };
+        List<List<byte[]>> encoded = new ArrayList<List<byte[]>>();
+        for (String ignored : formats) { encoded.add(new ArrayList<byte[]>()); }
+        int unsupported = 0;
+        try {
+          for (Map<KBPair, SentenceGroup> value : values) {
+            try {
+              byte[] raw = encode(value, false);
+              byte[] deflated = encode(value, true);
+              encoded.get(0).add(PostgresUtils.KeyValueCallback.serialize(new HashMap<KBPair, SentenceGroup>(value)));
+              encoded.get(1).add(raw);
+              encoded.get(2).add(deflated);
+            } catch (IllegalArgumentException e) {
+              unsupported += 1;
+            }
+          }
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+        if (unsupported > 0) { warn(unsupported + " keys have no exact encoding, and are left out of the comparison"); }
+
+        // Check round trips
+        int mismatches = 0;
+        try {
+          for (int i = 0; i < encoded.get(0).size(); ++i) {
+            @SuppressWarnings("unchecked")
+            Map<KBPair, SentenceGroup> expected = (Map<KBPair, SentenceGroup>) PostgresUtils.KeyValueCallback.deserialize(encoded.get(0).get(i));
+            Map<KBPair, SentenceGroup> actual = decode(encoded.get(2).get(i));
+            if (expected.size() != actual.size()) { mismatches += 1; continue; }
+            for (Map.Entry<KBPair, SentenceGroup> entry : expected.entrySet()) {
+              SentenceGroup decoded = actual.get(entry.getKey());
+              if (decoded == null || !sameGroup(entry.getValue(), decoded)) { mismatches += 1; break; }
+            }
+          }
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+        if (mismatches > 0) { err(mismatches + " keys did not round trip exactly!"); }
+        else { log("every key round trips exactly"); }
+
+        // Decode
+        numGroups = 0;
+        for (byte[] bytes : encoded.get(1)) {
+          try { numGroups += decode(bytes).size(); } catch (IOException e) { throw new RuntimeException(e); }
+        }
+        DecimalFormat df = new DecimalFormat("0.0");
+        startTrack("Datum cache encodings (" + encoded.get(0).size() + " keys, " + numGroups + " sentence groups)");
+        for (int f = 0; f < formats.length; ++f) {
+          long bytes = 0;
+          for (byte[] value : encoded.get(f)) { bytes += value.length; }
+          long best = Long.MAX_VALUE;
+          for (int pass = 0; pass < passes; ++pass) {
+            long start = System.nanoTime();
+            try {
+              for (byte[] value : encoded.get(f)) {
+                if (f == 0) { PostgresUtils.KeyValueCallback.deserialize(value); } else { decode(value); }
+              }
+            } catch (IOException e) {
+              throw new RuntimeException(e);
+            }
+            best = Math.min(best, System.nanoTime() - start);
+          }
+          logger.log(formats[f] + ": " + df.format(((double) bytes) / numGroups) + " bytes/group; " +
+              df.format(((double) best) / 1000.0 / numGroups) + " us/group to decode");
+        }
+        endTrack("Datum cache encodings (" + encoded.get(0).size() + " keys, " + numGroups + " sentence groups)");
+        return null;
+      }
+    }, props);
+  }
+}
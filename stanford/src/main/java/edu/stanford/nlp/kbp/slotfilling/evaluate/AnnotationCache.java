@@ -0,0 +1,233 @@
+package edu.stanford.nlp.kbp.slotfilling.evaluate;
+
+import edu.stanford.nlp.kbp.slotfilling.common.Maybe;
+import edu.stanford.nlp.pipeline.Annotation;
+import edu.stanford.nlp.util.logging.Redwood;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.DecimalFormat;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static edu.stanford.nlp.util.logging.Redwood.Util.*;
+
+/**
+ * <p>A persistent, content-addressed cache of CoreNLP annotations, kept in a directory on local disk.</p>
+ *
+ * <p>An entry is keyed by a hash of the text that was annotated and of the annotator configuration
+ * (the annotators, and all the properties of those annotators), so that changing the pipeline never returns a stale
+ * annotation. Each entry is a gzipped serialized {@link Annotation}, stored at <code>dir/ab/abcdef...</code>.</p>
+ *
+ * <p>The cache is bounded in size: when it grows beyond its limit, the least recently used entries are evicted.
+ * Entries are touched when read, so recency survives across runs.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ */
+public class AnnotationCache {
+  private static final Redwood.RedwoodChannels logger = Redwood.channels("AnnCache");
+
+  private final File dir;
+  private final long maxBytes;
+  private final String configSignature;
+
+  /** The size of every entry on disk, from least to most recently used; guarded by this */
+  private final LinkedHashMap<String, Long> entrySizes = new LinkedHashMap<String, Long>(1024, 0.75f, true);
+  /** The total size of all entries; guarded by this */
+  private long totalBytes = 0;
+
+  private final AtomicLong hits = new AtomicLong(0);
+  private final AtomicLong misses = new AtomicLong(0);
+  private final AtomicLong evictions = new AtomicLong(0);
+
+  /**
+   * Open a cache in the given directory, creating it if necessary.
+   * @param dir The directory to store the cache in.
+   * @param maxBytes The maximum total size of the cache on disk.
+   * @param pipelineProps The properties the annotations are created with; see {@link AnnotationCache#configSignature(Properties)}.
+   */
+  public AnnotationCache(File dir, long maxBytes, Properties pipelineProps) {
+    this.dir = dir;
+    this.maxBytes = maxBytes;
+    this.configSignature = configSignature(pipelineProps);
+    if (!dir.exists() && !dir.mkdirs()) {
+      throw new IllegalArgumentException("Could not create annotation cache directory: " + dir);
+    }
+    // Index the existing entries, oldest first
+    startTrack("Indexing annotation cache at " + dir);
+    List<File> entries = new ArrayList<File>();
+    File[] shards = dir.listFiles();
+    for (File shard : shards == null ? new File[0] : shards) {
+      File[] files = shard.isDirectory() ? shard.listFiles() : null;
+      if (files != null) { entries.addAll(Arrays.asList(files)); }
+    }
+    Collections.sort(entries, new Comparator<File>() {
+      @Override
+      public int compare(File o1, File o2) {
+        long diff = o1.lastModified() - o2.lastModified();
+        return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+      }
+    });
+    synchronized (this) {
+      for (File entry : entries) {
+        entrySizes.put(entry.getName(), entry.length());
+        totalBytes += entry.length();
+      }
+      evictIfNecessary();
+    }
+    logger.log("" + entrySizes.size() + " entries; " + new DecimalFormat("0.0").format(((double) totalBytes) / 1024.0 / 1024.0) + " MB");
+    endTrack("Indexing annotation cache at " + dir);
+  }
+
+  /**
+   * Get the cached annotation of a text, if there is one.
+   * @param text The text which was annotated.
+   * @return The cached annotation, or {@link Maybe#Nothing()} on a cache miss.
+   */
+  public Maybe<Annotation> get(String text) {
+    String key = key(text);
+    boolean known;
+    synchronized (this) { known = entrySizes.get(key) != null; }  // get() also updates the LRU order
+    if (known) {
+      File file = fileFor(key);
+      try {
+        ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+        try {
+          Annotation ann = (Annotation) in.readObject();
+          //noinspection ResultOfMethodCallIgnored
+          file.setLastModified(System.currentTimeMillis());
+          hits.incrementAndGet();
+          return Maybe.Just(ann);
+        } finally {
+          in.close();
+        }
+      } catch (IOException e) {
+        logger.warn("could not read cached annotation " + file + ": " + e.getMessage());
+        remove(key);
+      } catch (ClassNotFoundException e) {
+        logger.warn("could not read cached annotation " + file + ": " + e.getMessage());
+        remove(key);
+      }
+    }
+    misses.incrementAndGet();
+    return Maybe.Nothing();
+  }
+
+  /**
+   * Cache the annotation of a text.
+   * Failures to write are logged and otherwise ignored, as the cache is only an optimization.
+   * @param text The text which was annotated.
+   * @param ann The annotation of that text.
+   */
+  public void put(String text, Annotation ann) {
+    String key = key(text);
+    File file = fileFor(key);
+    File tmpFile = new File(file.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+    try {
+      if (!file.getParentFile().exists() && !file.getParentFile().mkdirs() && !file.getParentFile().exists()) {
+        throw new IOException("could not create directory " + file.getParentFile());
+      }
+      ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmpFile))));
+      try {
+        out.writeObject(ann);
+      } finally {
+        out.close();
+      }
+      if (!tmpFile.renameTo(file)) {
+        throw new IOException("could not move " + tmpFile + " to " + file);
+      }
+    } catch (IOException e) {
+      logger.warn("could not cache annotation: " + e.getMessage());
+      //noinspection ResultOfMethodCallIgnored
+      tmpFile.delete();
+      return;
+    }
+    synchronized (this) {
+      Long oldSize = entrySizes.put(key, file.length());
+      totalBytes += file.length() - (oldSize == null ? 0 : oldSize);
+      evictIfNecessary();
+    }
+  }
+
+  /** The number of lookups which found a cached annotation */
+  public long hits() { return hits.get(); }
+
+  /** The number of lookups which did not find a cached annotation */
+  public long misses() { return misses.get(); }
+
+  /** Log the hit and miss counts, and the size of the cache */
+  public void logStats() {
+    long lookups = hits() + misses();
+    DecimalFormat df = new DecimalFormat("0.00");
+    synchronized (this) {
+      logger.log("annotation cache: " + hits() + " hits, " + misses() + " misses (" +
+          df.format(lookups == 0 ? 0.0 : 100.0 * ((double) hits()) / ((double) lookups)) + "% hit rate); " +
+          evictions.get() + " evictions; " + entrySizes.size() + " entries [" + df.format(((double) totalBytes) / 1024.0 / 1024.0) + " MB]");
+    }
+  }
+
+  private synchronized void remove(String key) {
+    Long size = entrySizes.remove(key);
+    if (size != null) { totalBytes -= size; }
+    //noinspection ResultOfMethodCallIgnored
+    fileFor(key).delete();
+  }
+
+  /** Evict least recently used entries until the cache is within its size limit; must hold the lock on this */
+  private void evictIfNecessary() {
+    Iterator<Map.Entry<String, Long>> iter = entrySizes.entrySet().iterator();
+    while (totalBytes > maxBytes && iter.hasNext()) {
+      Map.Entry<String, Long> entry = iter.next();
+      totalBytes -= entry.getValue();
+      iter.remove();
+      //noinspection ResultOfMethodCallIgnored
+      fileFor(entry.getKey()).delete();
+      evictions.incrementAndGet();
+    }
+  }
+
+  private File fileFor(String key) {
+    return new File(new File(dir, key.substring(0, 2)), key);
+  }
+
+  private String key(String text) {
+    return sha1(configSignature + '\u0000' + text);
+  }
+
+  /**
+   * A canonical string form of the annotator configuration: the annotators property, and every property
+   * prefixed by the name of one of the annotators (e.g., <code>parse.model</code>), in sorted order.
+   */
+  public static String configSignature(Properties props) {
+    String annotatorsProperty = props.getProperty("annotators", "");
+    Set<String> annotators = new HashSet<String>();
+    for (String annotator : annotatorsProperty.split("[,\\s]+")) {
+      if (!annotator.isEmpty()) { annotators.add(annotator); }
+    }
+    SortedMap<String, String> relevant = new TreeMap<String, String>();
+    relevant.put("annotators", annotatorsProperty);
+    for (String name : props.stringPropertyNames()) {
+      int dot = name.indexOf('.');
+      if (dot > 0 && annotators.contains(name.substring(0, dot))) {
+        relevant.put(name, props.getProperty(name));
+      }
+    }
+    return relevant.toString();
+  }
+
+  private static String sha1(String text) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(text.getBytes("UTF-8"));
+      StringBuilder b = new StringBuilder();
+      for (byte x : digest) { b.append(String.format("%02x", x & 0xFF)); }
+      return b.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
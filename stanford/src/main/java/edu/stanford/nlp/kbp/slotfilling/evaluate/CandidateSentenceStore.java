@@ -0,0 +1,331 @@
+package edu.stanford.nlp.kbp.slotfilling.evaluate;
+
+import edu.stanford.nlp.kbp.slotfilling.common.Maybe;
+import edu.stanford.nlp.kbp.slotfilling.common.SentenceDouble;
+import edu.stanford.nlp.util.logging.Redwood;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+import static edu.stanford.nlp.util.logging.Redwood.Util.endTrack;
+import static edu.stanford.nlp.util.logging.Redwood.Util.forceTrack;
+
+/**
+ * <p>An on-disk store of the candidate sentences for each query, keyed by query id and relation.</p>
+ *
+ * <p>The store is built once from the candidate sentences TSV file (columns: query id, relation name, ...,
+ * provenance at column 3, ..., sentence text at column 8), and saved in a cache directory, named after the TSV file
+ * (and a hash of its path) with the extension {@link CandidateSentenceStore#EXTENSION}. The TSV file is read in the
+ * platform's default charset, as it always has been. The rows for each query are stored contiguously, and an offset
+ * index from query id to that block is kept in memory. Reading the candidates for a query memory-maps only that
+ * query's block, so neither startup time nor resident memory grows with the size of the TSV file.</p>
+ *
+ * <p>The store is rebuilt if the TSV file changes. It is built into a temporary file in the cache directory, which
+ * is then renamed, so a partially built store is never opened. Instances are safe to share between threads.</p>
+ */
+public class CandidateSentenceStore {
+  private static final Redwood.RedwoodChannels logger = Redwood.channels("Candidates");
+
+  /** The extension of the store file */
+  public static final String EXTENSION = ".store";
+
+  private static final int MAGIC = 0x4B425053;  // "KBPS"
+  private static final int VERSION = 1;
+  /** magic, version, source length, source last modified, index offset */
+  private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 8;
+  /** The number of bytes of rows to collect in memory while building, before writing them to their blocks */
+  private static final int WRITE_BATCH_BYTES = 64 << 20;
+
+  /** The location of a single query's rows in the store file */
+  private static class Block {
+    public final long offset;
+    public final int length;
+    private Block(long offset, int length) {
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  private final File storeFile;
+  private final FileChannel channel;
+  private final Map<String, Block> index;
+
+  private CandidateSentenceStore(File storeFile) throws IOException {
+    this.storeFile = storeFile;
+    this.channel = new RandomAccessFile(storeFile, "r").getChannel();
+    this.index = Collections.unmodifiableMap(readIndex(channel));
+  }
+
+  /**
+   * Open the store for a candidate sentences TSV file, building it first if it does not exist or is stale.
+   * @param tsvFile The candidate sentences file the store is built from.
+   * @param cacheDir The directory to keep the store in; it is created if it does not exist.
+   * @return The opened store.
+   * @throws IOException If the store could not be built or read.
+   */
+  public static CandidateSentenceStore open(File tsvFile, File cacheDir) throws IOException {
+    if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+      throw new IOException("Could not create cache directory: " + cacheDir);
+    }
+    // TSV files of the same name in different directories get different stores
+    File storeFile = new File(cacheDir, tsvFile.getName() + "." +
+        Integer.toHexString(tsvFile.getAbsolutePath().hashCode()) + EXTENSION);
+    if (!isUpToDate(storeFile, tsvFile)) {
+      build(tsvFile, storeFile);
+    }
+    CandidateSentenceStore store = new CandidateSentenceStore(storeFile);
+    logger.log("opened " + storeFile + " [" + store.index.size() + " queries]");
+    return store;
+  }
+
+  /** Returns true if the given query has any candidate sentences */
+  public boolean contains(String queryId) {
+    return index.containsKey(queryId);
+  }
+
+  /** The number of queries in the store */
+  public int size() {
+    return index.size();
+  }
+
+  /**
+   * Read the candidate sentences for a query, grouped by relation name.
+   * The sentences for each relation are in the order they appear in the TSV file.
+   * @param queryId The query id to read the candidate sentences of.
+   * @return The candidate sentences, or {@link Maybe#Nothing()} if the query has no candidate sentences.
+   */
+  public Maybe<HashMap<String, ArrayList<SentenceDouble>>> get(String queryId) {
+    Block block = index.get(queryId);
+    if (block == null) { return Maybe.Nothing(); }
+    try {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, block.offset, block.length);
+      DataInputStream in = new DataInputStream(new ByteBufferInputStream(buffer));
+      HashMap<String, ArrayList<SentenceDouble>> byRelation = new HashMap<String, ArrayList<SentenceDouble>>();
+      int rows = in.readInt();
+      for (int i = 0; i < rows; ++i) {
+        String relation = readString(in);
+        String sentence = readString(in);
+        String provenance = readString(in);
+        ArrayList<SentenceDouble> sentences = byRelation.get(relation);
+        if (sentences == null) {
+          sentences = new ArrayList<SentenceDouble>();
+          byRelation.put(relation, sentences);
+        }
+        sentences.add(new SentenceDouble(sentence, provenance));
+      }
+      return Maybe.Just(byRelation);
+    } catch (IOException e) {
+      throw new RuntimeException("Could not read query " + queryId + " from " + storeFile, e);
+    }
+  }
+
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  //
+  // Building the store
+  //
+
+  /** Checks that the store exists, and was built from the current version of the TSV file */
+  private static boolean isUpToDate(File storeFile, File tsvFile) throws IOException {
+    if (!storeFile.exists()) { return false; }
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(storeFile)));
+    try {
+      return in.readInt() == MAGIC && in.readInt() == VERSION &&
+          in.readLong() == tsvFile.length() && in.readLong() == tsvFile.lastModified();
+    } catch (EOFException e) {
+      return false;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Build the store from a TSV file. This takes two passes over the file: the first computes the size of every
+   * query's block, and the second writes each row into its block. Apart from the per-query sizes and offsets, at most
+   * {@link CandidateSentenceStore#WRITE_BATCH_BYTES} of rows are kept in memory; each batch of rows is written
+   * with one write per query, in file order, so a TSV file grouped by query is written sequentially.
+   */
+  private static void build(File tsvFile, File storeFile) throws IOException {
+    forceTrack("Building candidate sentence store from " + tsvFile);
+    // Pass 1: block sizes
+    Map<String, long[]> sizesAndCounts = new LinkedHashMap<String, long[]>();
+    BufferedReader reader = new BufferedReader(new FileReader(tsvFile));
+    String line;
+    while ((line = reader.readLine()) != null) {
+      String[] fields = line.split("\t");
+      long[] sizeAndCount = sizesAndCounts.get(fields[0]);
+      if (sizeAndCount == null) {
+        sizeAndCount = new long[]{ 4, 0 };  // the block starts with its row count
+        sizesAndCounts.put(fields[0], sizeAndCount);
+      }
+      sizeAndCount[0] += encodedLength(fields[1]) + encodedLength(fields[8]) + encodedLength(fields[3]);
+      sizeAndCount[1] += 1;
+    }
+    reader.close();
+
+    // Lay out the blocks
+    Map<String, Block> index = new LinkedHashMap<String, Block>();
+    long offset = HEADER_SIZE;
+    for (Map.Entry<String, long[]> entry : sizesAndCounts.entrySet()) {
+      if (entry.getValue()[0] > Integer.MAX_VALUE) {
+        throw new IllegalStateException("Too many candidate sentences for query " + entry.getKey());
+      }
+      index.put(entry.getKey(), new Block(offset, (int) entry.getValue()[0]));
+      offset += entry.getValue()[0];
+    }
+    long indexOffset = offset;
+
+    // Pass 2: write the rows into their blocks
+    File tmpFile = File.createTempFile(storeFile.getName() + ".", ".tmp", storeFile.getParentFile());
+    FileOutputStream out = new FileOutputStream(tmpFile);
+    boolean written = false;
+    try {
+      FileChannel channel = out.getChannel();
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      header.putInt(MAGIC).putInt(VERSION).putLong(tsvFile.length()).putLong(tsvFile.lastModified()).putLong(indexOffset);
+      header.flip();
+      writeFully(channel, header, 0);
+      Map<String, Long> writePositions = new HashMap<String, Long>();
+      Map<String, ByteArrayOutputStream> batch = new HashMap<String, ByteArrayOutputStream>();
+      long batchSize = 0;
+      reader = new BufferedReader(new FileReader(tsvFile));
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.split("\t");
+        ByteArrayOutputStream rows = batch.get(fields[0]);
+        if (rows == null) {
+          rows = new ByteArrayOutputStream();
+          batch.put(fields[0], rows);
+        }
+        int sizeBefore = rows.size();
+        DataOutputStream row = new DataOutputStream(rows);
+        if (!writePositions.containsKey(fields[0])) {
+          row.writeInt((int) sizesAndCounts.get(fields[0])[1]);  // the block starts with its row count
+          writePositions.put(fields[0], index.get(fields[0]).offset);
+        }
+        writeString(row, fields[1]);  // relation name
+        writeString(row, fields[8]);  // sentence text
+        writeString(row, fields[3]);  // provenance
+        batchSize += rows.size() - sizeBefore;
+        if (batchSize >= WRITE_BATCH_BYTES) {
+          writeBatch(channel, index, batch, writePositions);
+          batchSize = 0;
+        }
+      }
+      reader.close();
+      writeBatch(channel, index, batch, writePositions);
+
+      // Write the index
+      channel.position(indexOffset);
+      DataOutputStream indexOut = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+      indexOut.writeInt(index.size());
+      for (Map.Entry<String, Block> entry : index.entrySet()) {
+        indexOut.writeUTF(entry.getKey());
+        indexOut.writeLong(entry.getValue().offset);
+        indexOut.writeInt(entry.getValue().length);
+      }
+      indexOut.flush();
+      written = true;
+    } finally {
+      out.close();
+      if (!written && !tmpFile.delete()) {
+        logger.warn("could not delete " + tmpFile);
+      }
+    }
+    if (storeFile.exists() && !storeFile.delete()) {
+      throw new IOException("Could not delete stale store: " + storeFile);
+    }
+    if (!tmpFile.renameTo(storeFile)) {
+      tmpFile.delete();
+      throw new IOException("Could not move " + tmpFile + " to " + storeFile);
+    }
+    logger.log("wrote " + index.size() + " queries to " + storeFile);
+    endTrack("Building candidate sentence store from " + tsvFile);
+  }
+
+  /** Append each query's batched rows to its block, in file order, and empty the batch */
+  private static void writeBatch(FileChannel channel, Map<String, Block> index,
+                                 Map<String, ByteArrayOutputStream> batch, Map<String, Long> writePositions) throws IOException {
+    if (batch.isEmpty()) { return; }
+    for (String queryId : index.keySet()) {  // the index is in file order
+      ByteArrayOutputStream rows = batch.get(queryId);
+      if (rows == null) { continue; }
+      long position = writePositions.get(queryId);
+      writeFully(channel, ByteBuffer.wrap(rows.toByteArray()), position);
+      writePositions.put(queryId, position + rows.size());
+    }
+    batch.clear();
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      position += channel.write(buffer, position);
+    }
+  }
+
+  private static Map<String, Block> readIndex(FileChannel channel) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    channel.read(header, 0);
+    header.flip();
+    if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+      throw new IOException("Not a candidate sentence store (or an old version)");
+    }
+    header.getLong();  // source length
+    header.getLong();  // source last modified
+    long indexOffset = header.getLong();
+    DataInputStream in = new DataInputStream(new ByteBufferInputStream(
+        channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, channel.size() - indexOffset)));
+    int size = in.readInt();
+    Map<String, Block> index = new HashMap<String, Block>(size * 2);
+    for (int i = 0; i < size; ++i) {
+      String queryId = in.readUTF();
+      index.put(queryId, new Block(in.readLong(), in.readInt()));
+    }
+    return index;
+  }
+
+  //
+  // Encoding utilities
+  //
+
+  private static int encodedLength(String str) throws UnsupportedEncodingException {
+    return 4 + str.getBytes("UTF-8").length;
+  }
+
+  /** Write a length-prefixed UTF-8 string; unlike writeUTF(), this is not limited to 64k */
+  private static void writeString(DataOutput out, String str) throws IOException {
+    byte[] bytes = str.getBytes("UTF-8");
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInput in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, "UTF-8");
+  }
+
+  /** A simple InputStream view of a ByteBuffer */
+  private static class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+    private ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? (buffer.get() & 0xFF) : -1;
+    }
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+      if (!buffer.hasRemaining()) { return -1; }
+      int toRead = Math.min(length, buffer.remaining());
+      buffer.get(bytes, offset, toRead);
+      return toRead;
+    }
+  }
+}
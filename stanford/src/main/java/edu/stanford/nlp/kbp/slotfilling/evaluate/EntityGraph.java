@@ -15,19 +15,125 @@ import java.util.*;
  * Specialized graph between entities and slot fills
  * TODO(arun): This graph is really somewhat of a hack in terms of how I extract out
  * entities and types from it. It could really be improved.
+ *
+ * In addition to the graph itself, this keeps two indices, updated on every modification of the graph:
+ * from an entity name to the vertices with that name, and from a vertex and relation name to the outgoing edges
+ * with that relation. Looking up an entity by name, or the slot fills of a relation, are therefore hash lookups.
  */
 public class EntityGraph extends DirectedMultiGraph<KBPEntity, KBPSlotFill> {
+  /** The vertices with a given name, in the order they were added */
+  private final Map<String, Set<KBPEntity>> verticesByName = new HashMap<String, Set<KBPEntity>>();
+  /** The outgoing edges of a vertex, by relation name */
+  private final Map<KBPEntity, Map<String, List<KBPSlotFill>>> edgesByRelation = new HashMap<KBPEntity, Map<String, List<KBPSlotFill>>>();
+
   public EntityGraph() {
     super();
   }
 
   public EntityGraph(DirectedMultiGraph<KBPEntity,KBPSlotFill> graph) {
     super(graph);
+    for (KBPEntity vertex : getAllVertices()) {
+      indexVertex(vertex);
+      for (KBPEntity child : getChildren(vertex)) {
+        for (KBPSlotFill edge : getEdges(vertex, child)) { indexEdge(vertex, edge); }
+      }
+    }
   }
 
   @Override
   public boolean addVertex(KBPEntity entity) {
-      return super.addVertex( entity );
+    if (super.addVertex( entity )) {
+      indexVertex(entity);
+      return true;
+    } else {
+      return false;
+    }
+  }
+
+  @Override
+  public boolean removeVertex(KBPEntity vertex) {
+    if (!containsVertex(vertex)) { return false; }
+    // Unindex the edges into this vertex; the edges out of it go with it
+    for (KBPEntity parent : getParents(vertex)) {
+      for (KBPSlotFill edge : getEdges(parent, vertex)) { unindexEdge(parent, edge); }
+    }
+    edgesByRelation.remove(vertex);
+    Set<KBPEntity> sameName = verticesByName.get(vertex.name);
+    if (sameName != null) {
+      sameName.remove(vertex);
+      if (sameName.isEmpty()) { verticesByName.remove(vertex.name); }
+    }
+    return super.removeVertex(vertex);
+  }
+
+  @Override
+  public void removeZeroDegreeNodes() {
+    List<KBPEntity> toDelete = new ArrayList<KBPEntity>();
+    for (KBPEntity vertex : getAllVertices()) {
+      if (getChildren(vertex).isEmpty() && getParents(vertex).isEmpty()) { toDelete.add(vertex); }
+    }
+    removeVertices(toDelete);
+  }
+
+  @Override
+  public boolean removeEdge(KBPEntity source, KBPEntity dest, KBPSlotFill data) {
+    if (super.removeEdge(source, dest, data)) {
+      unindexEdge(source, data);
+      return true;
+    } else {
+      return false;
+    }
+  }
+
+  @Override
+  public boolean removeEdges(KBPEntity source, KBPEntity dest) {
+    List<KBPSlotFill> removed = new ArrayList<KBPSlotFill>(getEdges(source, dest));
+    if (super.removeEdges(source, dest)) {
+      for (KBPSlotFill edge : removed) { unindexEdge(source, edge); }
+      return true;
+    } else {
+      return false;
+    }
+  }
+
+  @Override
+  public void clear() {
+    super.clear();
+    verticesByName.clear();
+    edgesByRelation.clear();
+  }
+
+  private void indexVertex(KBPEntity vertex) {
+    Set<KBPEntity> sameName = verticesByName.get(vertex.name);
+    if (sameName == null) {
+      sameName = new LinkedHashSet<KBPEntity>(2);
+      verticesByName.put(vertex.name, sameName);
+    }
+    sameName.add(vertex);
+  }
+
+  private void indexEdge(KBPEntity source, KBPSlotFill edge) {
+    Map<String, List<KBPSlotFill>> byRelation = edgesByRelation.get(source);
+    if (byRelation == null) {
+      byRelation = new HashMap<String, List<KBPSlotFill>>(4);
+      edgesByRelation.put(source, byRelation);
+    }
+    List<KBPSlotFill> edges = byRelation.get(edge.key.relationName);
+    if (edges == null) {
+      edges = new ArrayList<KBPSlotFill>(2);
+      byRelation.put(edge.key.relationName, edges);
+    }
+    edges.add(edge);
+  }
+
+  private void unindexEdge(KBPEntity source, KBPSlotFill edge) {
+    Map<String, List<KBPSlotFill>> byRelation = edgesByRelation.get(source);
+    if (byRelation == null) { return; }
+    List<KBPSlotFill> edges = byRelation.get(edge.key.relationName);
+    if (edges == null) { return; }
+    edges.remove(edge);
+    if (edges.isEmpty()) { byRelation.remove(edge.key.relationName); }
+    if (byRelation.isEmpty()) { edgesByRelation.remove(source); }
   }
 
 
@@ -71,6 +177,7 @@ public class EntityGraph extends DirectedMultiGraph<KBPEntity, KBPSlotFill> {
     assert( edge.key.getEntity().equals(source) );
     assert( edge.key.slotValue.equals(destination.name) );
     super.add( source, destination, edge );
+    indexEdge( source, edge );
 
     assert containsVertex(source);
     assert containsVertex(destination);
@@ -97,26 +204,31 @@ public class EntityGraph extends DirectedMultiGraph<KBPEntity, KBPSlotFill> {
     return KBPNew.from(edge1).score(newScore).provenance(bestProvenance).KBPSlotFill();
   }
 
-  public Iterable<KBPSlotFill> relation(final KBPEntity entity, final String reln) {
-    final EntityGraph graph = this;
-    return new Iterable<KBPSlotFill>() {
-      @Override
-      public Iterator<KBPSlotFill> iterator() {
-        return new RelationTypeIterator(graph, entity, reln);
-      }
-    };
+  /**
+   * The outgoing edges of an entity with the given relation.
+   * This is a snapshot, and is therefore safe to iterate over while modifying the graph.
+   */
+  public List<KBPSlotFill> relation(final KBPEntity entity, final String reln) {
+    Map<String, List<KBPSlotFill>> byRelation = edgesByRelation.get(entity);
+    if (byRelation == null) { return Collections.emptyList(); }
+    List<KBPSlotFill> edges = byRelation.get(reln);
+    if (edges == null) { return Collections.emptyList(); }
+    return new ArrayList<KBPSlotFill>(edges);
   }
   public Iterable<KBPSlotFill> relation(final KBPEntity entity, final RelationType reln) {
     return relation(entity, reln.canonicalName);
   }
-  public Iterable<KBPSlotFill> relation(final String reln) {
-    final EntityGraph graph = this;
-    return new Iterable<KBPSlotFill>() {
-      @Override
-      public Iterator<KBPSlotFill> iterator() {
-        return new RelationTypeIterator(graph, reln);
-      }
-    };
+  /**
+   * All the edges in the graph with the given relation.
+   * This is a snapshot, and is therefore safe to iterate over while modifying the graph.
+   */
+  public List<KBPSlotFill> relation(final String reln) {
+    List<KBPSlotFill> edges = new ArrayList<KBPSlotFill>();
+    for (Map<String, List<KBPSlotFill>> byRelation : edgesByRelation.values()) {
+      List<KBPSlotFill> edgesForVertex = byRelation.get(reln);
+      if (edgesForVertex != null) { edges.addAll(edgesForVertex); }
+    }
+    return edges;
   }
 
   public boolean isValidGraph() {
@@ -155,21 +267,24 @@ public class EntityGraph extends DirectedMultiGraph<KBPEntity, KBPSlotFill> {
     return node.type;
   }
 
+  /** Find a vertex with the given name; if there is more than one, the one added first */
   public Maybe<KBPEntity> findEntity( String name ) {
-    for(KBPEntity entity : getAllVertices() ) {
-      if( entity.name.equals( name ) ) return Maybe.Just(entity);
-    }
-    return Maybe.Nothing();
+    Set<KBPEntity> sameName = verticesByName.get(name);
+    if (sameName == null || sameName.isEmpty()) { return Maybe.Nothing(); }
+    return Maybe.Just(sameName.iterator().next());
   }
   public Maybe<KBPEntity> findEntity( KBPEntity entity ) {
-    return getAllVertices().contains( entity ) 
+    return containsVertex( entity )
       ? Maybe.Just(entity)
       : findEntity(entity.name);
   }
 
+  /** Find a child of the given vertex with the given name */
   public Maybe<KBPEntity> findEntity( KBPEntity head, String name ) {
-    for(KBPEntity entity : getChildren(head) ) {
-      if( entity.name.equals( name ) ) return Maybe.Just(entity);
+    Set<KBPEntity> sameName = verticesByName.get(name);
+    if (sameName == null) { return Maybe.Nothing(); }
+    for(KBPEntity entity : sameName ) {
+      if( isEdge( head, entity ) ) return Maybe.Just(entity);
     }
     return Maybe.Nothing();
   }
@@ -226,14 +341,14 @@ public class EntityGraph extends DirectedMultiGraph<KBPEntity, KBPSlotFill> {
     public void forwardToMatch() {
       peek = null;
       while(it.hasNext()) {
-        peek = it.next();
-        if(peek.key.relationName.equals(relationName)) break;
+        KBPSlotFill candidate = it.next();
+        if(candidate.key.relationName.equals(relationName)) { peek = candidate; break; }
       }
     }
 
     @Override
     public boolean hasNext() {
-      return it.hasNext();
+      return peek != null;
     }
 
     @Override
@@ -491,7 +491,7 @@ public class GoldResponseSet {
    * Get the set of provenances for any given slot fill.
    * @return A mapping from slot fills correct provenances for that fill.
    */
-  public Map<KBPSlotFill, Set<String>> correctProvenances() {
+  public synchronized Map<KBPSlotFill, Set<String>> correctProvenances() {
     if (correctProvenanceCached == null) {
       correctProvenanceCached = new HashMap<KBPSlotFill, Set<String>>();
       for (GoldResponse response : goldResponses.values()) {
@@ -551,7 +551,7 @@ public class GoldResponseSet {
    * will be tracked if this is called on every slot output by the slot filler.
    * @param fill The slot fill to register as guessed, before consistency is applied.
    */
-  public void registerResponse(KBPSlotFill fill) {
+  public synchronized void registerResponse(KBPSlotFill fill) {
     if (fill.key.tryKbpRelation().isDefined()) {
       GuessResponse response = new GuessResponse(fill);
       guessedResponses.remove(response);
@@ -565,7 +565,7 @@ public class GoldResponseSet {
    * @param fill The slot fill to discard.
    * @param cause The reason to discard this slot fill, e.g., no provenance or consistency failed.
    */
-  public void discardResponse(KBPSlotFill fill, ErrorType cause) {
+  public synchronized void discardResponse(KBPSlotFill fill, ErrorType cause) {
     if (fill.key.tryKbpRelation().isDefined()) {
       discardedResponses.add(Pair.makePair(new GuessResponse(fill), cause));
     }
@@ -579,7 +579,7 @@ public class GoldResponseSet {
    *              be re-added. For example, if a slot is discarded both from consistency and provenance, and the consistency
    *              discard is undone, it will still be registered as discarded from provenance.
    */
-  public void undoDiscardResponse(KBPSlotFill fill, ErrorType cause) {
+  public synchronized void undoDiscardResponse(KBPSlotFill fill, ErrorType cause) {
     if (fill.key.tryKbpRelation().isDefined()) {
       discardedResponses.remove(Pair.makePair(new GuessResponse(fill), cause));
     }
@@ -639,6 +639,13 @@ public class GoldResponseSet {
       @SuppressWarnings("SuspiciousMethodCalls")  // this comes about from the strange equals() semantics of the Gold/Guess responses
       @Override
       public void prettyLog(Redwood.RedwoodChannels channels, String description) {
+        // Snapshot the responses; other queries may still be registering responses concurrently
+        Set<GuessResponse> guessedResponses;
+        Set<Pair<GuessResponse,ErrorType>> discardedResponses;
+        synchronized (GoldResponseSet.this) {
+          guessedResponses = new HashSet<GuessResponse>(GoldResponseSet.this.guessedResponses);
+          discardedResponses = new HashSet<Pair<GuessResponse,ErrorType>>(GoldResponseSet.this.discardedResponses);
+        }
 
         // Collect responses we should get
         Set<GoldResponse> missingGoldResponses = new HashSet<GoldResponse>();
@@ -9,23 +9,45 @@ import edu.stanford.nlp.util.Generics;
 import edu.stanford.nlp.util.Pair;
 
 import java.io.File;
+import java.text.DecimalFormat;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import static edu.stanford.nlp.util.logging.Redwood.Util.*;
 
 /**
- * Inference rules
+ * Inference rules.
+ *
+ * Rules are applied one at a time, in order; the slot a rule infers is in the graph before the next rule is matched.
+ * The rules are compiled into a {@link RuleJoinPlan}, which finds the same matches as
+ * {@link GraphInferenceEngine#match(EntityGraph, Rule, KBPEntity)}, but checks the predicates rules share on the
+ * entity once, and only searches the rules whose predicates on the entity all hold.
+ * The engine keeps how often each rule matched, and how long it took to check; see {@link GraphInferenceEngine#logStatistics()}.
  */
 public class GraphInferenceEngine {
 
   final List<Rule> rules;
   private Maybe<KBPIR> irComponent;
   Set<String> validPredicates;
+  private final RuleJoinPlan plan;
+
+  // Statistics
+  private final AtomicLongArray ruleMatches;
+  private final AtomicLongArray ruleSearches;
+  private final AtomicLongArray ruleCheckNanos;
+  private final AtomicLong applications = new AtomicLong(0);
+  private final AtomicLong applicationNanos = new AtomicLong(0);
+  private final AtomicLong planNanos = new AtomicLong(0);
 
   public GraphInferenceEngine(final List<Rule> rules) {
     this.rules = rules;
+    this.plan = new RuleJoinPlan(rules);
+    this.ruleMatches = new AtomicLongArray(rules.size());
+    this.ruleSearches = new AtomicLongArray(rules.size());
+    this.ruleCheckNanos = new AtomicLongArray(rules.size());
     this.irComponent = Maybe.Nothing();
     validPredicates = new HashSet<String>();
     // Add all kbpRelations
@@ -106,9 +128,14 @@ public class GraphInferenceEngine {
       assert context.getB(arg1) != null;
       assert context.getB(arg2.get()) != null;
 
-      KBPEntity arg1Entity = context.getB(arg1);
-      KBPEntity arg2Entity = context.getB(arg2.get());
+      return apply(context.getB(arg1), context.getB(arg2.get()), graph);
+    }
 
+    /** As {@link Predicate#apply(Context, EntityGraph)}, given the entities bound to the arguments */
+    KBPSlotFill apply(KBPEntity arg1Entity, KBPEntity arg2Entity, EntityGraph graph) {
+      assert !isUnary();
+      assert arg1Entity != null;
+      assert arg2Entity != null;
 
       return KBPNew.from(arg1Entity).slotValue(arg2Entity).slotType(graph.guessType(arg2Entity)).rel(relation).KBPSlotFill();
     }
@@ -230,7 +257,7 @@ public class GraphInferenceEngine {
       return fill.size() > 0;
     }
 
-    final List<KBPSlotFill> edges = graph.getOutgoingEdges(graph.findEntity(x0).getOrElse(x0)); // Best effort to find
+    final KBPEntity x0Vertex = graph.findEntity(x0).getOrElse(x0); // Best effort to find
     final Pair<List<Predicate>,List<Predicate>> thingsToDo = CollectionUtils.split( originalHeads, new Function<Predicate, Boolean>() {
       @Override
       public Boolean apply(Predicate in) {
@@ -246,12 +273,9 @@ public class GraphInferenceEngine {
         if( pred.isUnary() ) return pred.matchUnary( x0, type );
         // Check if we even have any slots of this type.
         final String arg2 = pred.arg2.get();
-        return CollectionUtils.exists(edges, new Function<KBPSlotFill, Boolean>() {
+        return CollectionUtils.exists(graph.relation(x0Vertex, pred.relation), new Function<KBPSlotFill, Boolean>() {
           @Override
           public Boolean apply(final KBPSlotFill in) {
-            // Check if I have a relation that matches this.
-            if(!in.key.relationName.equals(pred.relation)) return false;
-
             // Try to match the argument.
             if( context.hasA(arg2) ) {
               return in.key.getSlotEntity().orCrash().name.equals(context.getB(arg2).name);
@@ -285,36 +309,7 @@ public class GraphInferenceEngine {
     try {
       if( match(graph, rule, new ArrayList<GraphInferenceEngine.Predicate>(rule.heads), headEntity, Maybe.Just(graph.guessType(headEntity)), context ) ) {
         // Great, we matched; now use the context to find out what the tail is and appropriately fill in provenance.
-        KBPEntity tailEntity = context.getB(rule.tail.arg2.get());
-        List<KBPRelationProvenance> justification = new ArrayList<KBPRelationProvenance>();
-        double score = 1.0;
-        for( final Predicate pred : rule.heads ) {
-          if( pred.isUnary() ) continue;
-          // Get the canonical entity :-/
-          KBPEntity arg1Entity = context.getB(pred.arg1);
-          KBPEntity arg2Entity = context.getB(pred.arg2.get());
-          // This search must work.
-          KBPSlotFill link = CollectionUtils.find( graph.getEdges(arg1Entity, arg2Entity), new Function<KBPSlotFill, Boolean>() {
-            @Override
-            public Boolean apply(KBPSlotFill in) {
-              return in.key.relationName.equals(pred.relation);
-            }
-          }).get();
-
-          double linkScore = link.score.getOrElse(1.0);
-          if (Double.isInfinite(linkScore) || Double.isNaN(linkScore)) { linkScore = 1.0; }
-          if (linkScore < 0.0) { linkScore = 0.0; }
-          if (linkScore > 1.0) { linkScore = 1.0; }
-          score *= linkScore;
-          // Add the provenance if I can
-          if( link.provenance.isDefined() ) justification.add( link.provenance.get() );
-        }
-
-        // TODO(arun): Do a better job of guessing type.
-        return Maybe.Just(
-            KBPNew.from(headEntity).slotValue(tailEntity.name).slotType(graph.guessType(tailEntity)).rel(rule.tail.relation)
-                  .provenance(( justification.size() > 0 ) ? Maybe.Just(justification.get(0))  : Maybe.<KBPRelationProvenance>Nothing())
-                  .score(score).KBPSlotFill());
+        return Maybe.Just(inferredFill(graph, rule, headEntity, context.map));
       } else {
         return Maybe.Nothing();
       }
@@ -324,27 +319,203 @@ public class GraphInferenceEngine {
     return Maybe.Nothing();
   }
 
+  /**
+   * Match a rule using a plan evaluated against the current graph; equivalent to
+   * {@link GraphInferenceEngine#match(EntityGraph, Rule, KBPEntity)}.
+   */
+  private Maybe<KBPSlotFill> match( RuleJoinPlan.Evaluation evaluation, EntityGraph graph, int ruleI, KBPEntity headEntity ) {
+    Rule rule = rules.get(ruleI);
+    if( !plan.isCompiled(ruleI) ) return match(graph, rule, headEntity);
+    try {
+      for( Map<String, KBPEntity> bindings : evaluation.search(ruleI) ) {
+        return Maybe.Just(inferredFill(graph, rule, headEntity, bindings));
+      }
+      return Maybe.Nothing();
+    } catch( Exception e ) {
+      err("Error while trying to match rule " + rule + " for entity " + headEntity);
+    }
+    return Maybe.Nothing();
+  }
+
+  /**
+   * Construct the slot fill inferred by a rule, once its body has been matched.
+   * @param bindings The entity bound to each variable of the rule.
+   */
+  private KBPSlotFill inferredFill( EntityGraph graph, Rule rule, KBPEntity headEntity, Map<String, KBPEntity> bindings ) {
+    KBPEntity tailEntity = bindings.get(rule.tail.arg2.get());
+    List<KBPRelationProvenance> justification = new ArrayList<KBPRelationProvenance>();
+    double score = 1.0;
+    for( final Predicate pred : rule.heads ) {
+      if( pred.isUnary() ) continue;
+      // Get the canonical entity :-/
+      KBPEntity arg1Entity = bindings.get(pred.arg1);
+      KBPEntity arg2Entity = bindings.get(pred.arg2.get());
+      // This search must work.
+      KBPSlotFill link = CollectionUtils.find( graph.getEdges(arg1Entity, arg2Entity), new Function<KBPSlotFill, Boolean>() {
+        @Override
+        public Boolean apply(KBPSlotFill in) {
+          return in.key.relationName.equals(pred.relation);
+        }
+      }).get();
+
+      double linkScore = link.score.getOrElse(1.0);
+      if (Double.isInfinite(linkScore) || Double.isNaN(linkScore)) { linkScore = 1.0; }
+      if (linkScore < 0.0) { linkScore = 0.0; }
+      if (linkScore > 1.0) { linkScore = 1.0; }
+      score *= linkScore;
+      // Add the provenance if I can
+      if( link.provenance.isDefined() ) justification.add( link.provenance.get() );
+    }
+
+    // TODO(arun): Do a better job of guessing type.
+    return KBPNew.from(headEntity).slotValue(tailEntity.name).slotType(graph.guessType(tailEntity)).rel(rule.tail.relation)
+        .provenance(( justification.size() > 0 ) ? Maybe.Just(justification.get(0))  : Maybe.<KBPRelationProvenance>Nothing())
+        .score(score).KBPSlotFill();
+  }
 
   /**
-   * Apply given rules to the graph
+   * Apply given rules to the graph.
+   * Each rule is matched against the graph including the slots inferred by the rules before it;
+   * so the plan is evaluated anew every time a slot is inferred.
    */
   public EntityGraph apply(EntityGraph graph, KBPEntity entity) {
     startTrack("Graph inference");
     log("Applying " + rules.size() + " rules");
+    long startTime = System.nanoTime();
     int addedSlots = 0;
-    for(Rule rule : rules) {
-      for( KBPSlotFill inferredFill : match(graph, rule, entity) ) {
+    long planStartTime = System.nanoTime();
+    RuleJoinPlan.Evaluation evaluation = plan.evaluate(graph, entity, irComponent);
+    BitSet candidates = evaluation.candidates();
+    planNanos.addAndGet(System.nanoTime() - planStartTime);
+    for (int ruleI = candidates.nextSetBit(0); ruleI >= 0; ruleI = candidates.nextSetBit(ruleI + 1)) {
+      long ruleStartTime = System.nanoTime();
+      Maybe<KBPSlotFill> inferredFill = match(evaluation, graph, ruleI, entity);
+      ruleSearches.incrementAndGet(ruleI);
+      ruleCheckNanos.addAndGet(ruleI, System.nanoTime() - ruleStartTime);
+      for (KBPSlotFill fill : inferredFill) {
+        addInference(graph, ruleI, fill);
         addedSlots += 1;
-        log( "Matched rule: " + rule );
-        log( inferredFill );
-        graph.add(inferredFill);
+        // The graph changed; re-evaluate the plan for the rules left
+        planStartTime = System.nanoTime();
+        evaluation = plan.evaluate(graph, entity, irComponent);
+        candidates = evaluation.candidates();
+        planNanos.addAndGet(System.nanoTime() - planStartTime);
       }
     }
+    applications.incrementAndGet();
+    applicationNanos.addAndGet(System.nanoTime() - startTime);
     log("Added " + addedSlots + " additional slots.");
     endTrack("Graph inference");
     return graph;
   }
 
+  private void addInference(EntityGraph graph, int ruleI, KBPSlotFill inferredFill) {
+    ruleMatches.incrementAndGet(ruleI);
+    log( "Matched rule: " + rules.get(ruleI) );
+    log( inferredFill );
+    graph.add(inferredFill);
+  }
+
+  /**
+   * Log how often each rule has matched over all applications of this engine,
+   * how often it had to be searched, and how long was spent checking its candidate matches.
+   */
+  public void logStatistics() {
+    startTrack("Graph inference statistics");
+    DecimalFormat df = new DecimalFormat("0.00");
+    log("" + applications.get() + " applications in " + df.format(((double) applicationNanos.get()) / 1000000.0) + " ms" +
+        ", of which " + df.format(((double) planNanos.get()) / 1000000.0) + " ms evaluating the plan");
+    log("" + plan.numCompiled() + " of " + rules.size() + " rules compiled into a plan of " + plan.numNodes() + " nodes");
+    List<Integer> matchedRules = new ArrayList<Integer>();
+    for (int ruleI = 0; ruleI < rules.size(); ++ruleI) {
+      if (ruleMatches.get(ruleI) > 0) { matchedRules.add(ruleI); }
+    }
+    Collections.sort(matchedRules, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        long diff = ruleMatches.get(b) - ruleMatches.get(a);
+        return diff < 0 ? -1 : (diff > 0 ? 1 : a - b);
+      }
+    });
+    for (int ruleI : matchedRules) {
+      log("" + ruleMatches.get(ruleI) + " matches in " + ruleSearches.get(ruleI) + " searches; " + df.format(((double) ruleCheckNanos.get(ruleI)) / 1000000.0) + " ms checking: " + rules.get(ruleI));
+    }
+    log("" + (rules.size() - matchedRules.size()) + " rules never matched");
+    endTrack("Graph inference statistics");
+  }
+
+  /**
+   * A simple benchmark of rule matching: matches every rule against a random graph, both with the compiled plan and
+   * with {@link GraphInferenceEngine#match(EntityGraph, Rule, KBPEntity)}, and checks that they find the same slot fills.
+   * Usage: GraphInferenceEngine [rules file] [number of edges (default 10000)] [number of pivot entities (default 100)]
+   */
+  public static void main(String[] args) {
+    List<Rule> rules = loadFromFile(new File(args[0]), Double.NEGATIVE_INFINITY);
+    int numEdges = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+    int numPivots = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+    GraphInferenceEngine engine = new GraphInferenceEngine(rules);
+
+    // Create a random graph
+    Random rand = new Random(42);
+    RelationType[] relations = RelationType.values();
+    List<KBPEntity> entities = new ArrayList<KBPEntity>();
+    for (int i = 0; i < Math.max(2, numEdges / 5); ++i) {
+      entities.add(KBPNew.entName("entity" + i).entType(rand.nextBoolean() ? NERTag.PERSON : NERTag.ORGANIZATION).KBPEntity());
+    }
+    EntityGraph graph = new EntityGraph();
+    for (int i = 0; i < numEdges; ++i) {
+      KBPEntity head = entities.get(rand.nextInt(entities.size()));
+      KBPEntity tail = entities.get(rand.nextInt(entities.size()));
+      RelationType relation = relations[rand.nextInt(relations.length)];
+      graph.add(head, tail, KBPNew.from(head).slotValue(tail).rel(relation.canonicalName).score(rand.nextDouble()).KBPSlotFill());
+    }
+    log("graph has " + graph.getNumVertices() + " vertices and " + graph.getNumEdges() + " edges; matching " + rules.size() + " rules");
+    log("" + engine.plan.numCompiled() + " rules compiled into a plan of " + engine.plan.numNodes() + " nodes");
+
+    // Match every rule for a number of pivots
+    for (int trial = 0; trial < 5; ++trial) {
+      // The reference matcher
+      long startTime = System.currentTimeMillis();
+      List<Maybe<KBPSlotFill>> expected = new ArrayList<Maybe<KBPSlotFill>>();
+      for (int i = 0; i < numPivots; ++i) {
+        KBPEntity pivot = entities.get(i % entities.size());
+        for (Rule rule : rules) { expected.add(engine.match(graph, rule, pivot)); }
+      }
+      long referenceElapsed = System.currentTimeMillis() - startTime;
+      // The plan
+      startTime = System.currentTimeMillis();
+      List<Maybe<KBPSlotFill>> actual = new ArrayList<Maybe<KBPSlotFill>>();
+      int searches = 0;
+      for (int i = 0; i < numPivots; ++i) {
+        KBPEntity pivot = entities.get(i % entities.size());
+        RuleJoinPlan.Evaluation evaluation = engine.plan.evaluate(graph, pivot, engine.irComponent);
+        BitSet candidates = evaluation.candidates();
+        searches += candidates.cardinality();
+        for (int ruleI = 0; ruleI < rules.size(); ++ruleI) {
+          actual.add(candidates.get(ruleI) ? engine.match(evaluation, graph, ruleI, pivot) : Maybe.<KBPSlotFill>Nothing());
+        }
+      }
+      long planElapsed = System.currentTimeMillis() - startTime;
+      // Compare
+      int matches = 0;
+      int mismatches = 0;
+      for (int i = 0; i < expected.size(); ++i) {
+        Maybe<KBPSlotFill> a = expected.get(i);
+        Maybe<KBPSlotFill> b = actual.get(i);
+        if (a.isDefined()) { matches += 1; }
+        if (a.isDefined() != b.isDefined() ||
+            (a.isDefined() && (!a.get().equals(b.get()) || !a.get().score.equals(b.get().score) || !a.get().provenance.equals(b.get().provenance)))) {
+          if (mismatches == 0) { warn("rule " + rules.get(i % rules.size()) + ": expected " + a + " but the plan found " + b); }
+          mismatches += 1;
+        }
+      }
+      log("trial " + trial + ": " + matches + " matches for " + numPivots + " pivots; " +
+          "match() took " + referenceElapsed + " ms, the plan " + planElapsed + " ms searching " + searches + " of " + (numPivots * rules.size()) + " rules; " +
+          mismatches + " mismatches");
+      if (mismatches > 0) { fatal("the plan does not match the reference matcher"); }
+    }
+  }
+
   /**
    * Apply the rules in GraphInferenceRules
    */
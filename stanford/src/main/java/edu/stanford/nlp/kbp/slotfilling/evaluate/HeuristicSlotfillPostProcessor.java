@@ -63,8 +63,97 @@ public abstract class HeuristicSlotfillPostProcessor extends SlotfillPostProcess
     }
   }
 
-  private boolean blockGibbsCanTransition(KBPEntity pivot, KBPSlotFill[] slotFills, GibbsState state) {
-    return state.restoreAndReturn(isConsistent(pivot, slotFills, state.slotsActive));
+  /**
+   * Checks the consistency of Gibbs transitions for a fixed set of candidate slot fills, incrementally.
+   * The unary validity of each slot and the pairwise compatibility of each pair of slots are computed at most once;
+   * a transition is then only checked against the slots it activates, assuming that the state it is
+   * transitioning from is consistent (as every state the Gibbs search visits is).
+   * Leave-one-out consistency depends on the entire set of active slots, and is re-checked in full,
+   * unless no processor imposes such a constraint.
+   */
+  private class ConsistencyChecker {
+    private static final byte UNKNOWN = 0;
+    private static final byte CONSISTENT = 1;
+    private static final byte INCONSISTENT = 2;
+
+    private final KBPEntity pivot;
+    private final KBPSlotFill[] slotFills;
+    /** Whether each slot is valid on its own */
+    private final byte[] unary;
+    /** Whether slot j may be kept alongside a higher scoring slot i; indexed as [i][j - i - 1] for i &lt; j */
+    private final byte[][] pairwise;
+    private final boolean checkLeaveOneOut;
+    private final IdentityHashSet<KBPSlotFill> others = new IdentityHashSet<KBPSlotFill>();
+
+    private ConsistencyChecker(KBPEntity pivot, KBPSlotFill[] slotFills) {
+      this.pivot = pivot;
+      this.slotFills = slotFills;
+      this.unary = new byte[slotFills.length];
+      this.pairwise = new byte[slotFills.length][];
+      for (int i = 0; i < slotFills.length; ++i) { pairwise[i] = new byte[slotFills.length - i - 1]; }
+      this.checkLeaveOneOut = hasLeaveOneOutConstraint();
+    }
+
+    private boolean isValid(int i) {
+      if (unary[i] == UNKNOWN) {
+        unary[i] = isValidSlotAndRewrite(pivot, slotFills[i]).isDefined() ? CONSISTENT : INCONSISTENT;
+      }
+      return unary[i] == CONSISTENT;
+    }
+
+    private boolean isPairwiseConsistent(int a, int b) {
+      int i = Math.min(a, b);
+      int j = Math.max(a, b);
+      byte[] row = pairwise[i];
+      if (row[j - i - 1] == UNKNOWN) {
+        row[j - i - 1] = pairwiseKeepLowerScoringFill(pivot, slotFills[i], slotFills[j]) ? CONSISTENT : INCONSISTENT;
+      }
+      return row[j - i - 1] == CONSISTENT;
+    }
+
+    /**
+     * Determine if the state after a transition is consistent, given that the state before it was.
+     * This is equivalent to {@link HeuristicSlotfillPostProcessor#isConsistent(KBPEntity, KBPSlotFill[], boolean[])}
+     * on the new state.
+     * @param state The transition, which has been applied but not yet restored.
+     */
+    private boolean isConsistentAfter(GibbsState state) {
+      boolean[] slotsActive = state.slotsActive;
+      // -- Singleton and Pairwise Consistency (only for the newly activated slots)
+      if (!isConsistentWithActive(slotsActive, state.toActivate)) { return false; }
+      if (state.toActivate2 != state.toActivate && !isConsistentWithActive(slotsActive, state.toActivate2)) { return false; }
+
+      // -- Hold-one-out Consistency
+      if (checkLeaveOneOut) {
+        others.clear();
+        for (int i = 0; i < slotFills.length; ++i) {
+          if (slotsActive[i]) { others.add(slotFills[i]); }
+        }
+        for (int i = 0; i < slotFills.length; ++i) {
+          if (slotsActive[i]) {
+            others.remove(slotFills[i]);
+            if (!leaveOneOutKeepHeldOutSlot(pivot, others, slotFills[i])) { return false; }
+            others.add(slotFills[i]);
+          }
+        }
+      }
+
+      // -- Everything Passes
+      return true;
+    }
+
+    private boolean isConsistentWithActive(boolean[] slotsActive, int changed) {
+      if (!slotsActive[changed]) { return true; }
+      if (!isValid(changed)) { return false; }
+      for (int j = 0; j < slotFills.length; ++j) {
+        if (j != changed && slotsActive[j] && !isPairwiseConsistent(changed, j)) { return false; }
+      }
+      return true;
+    }
+  }
+
+  private boolean blockGibbsCanTransition(ConsistencyChecker checker, GibbsState state) {
+    return state.restoreAndReturn(checker.isConsistentAfter(state));
   }
 
   private boolean isConsistent(KBPEntity pivot, KBPSlotFill[] slotFills, boolean[] slotsActive) {
@@ -184,10 +273,10 @@ public abstract class HeuristicSlotfillPostProcessor extends SlotfillPostProcess
   }
 
 
-  private int greedyEnableSlotsInPlace(KBPEntity pivot, KBPSlotFill[] sortedSlots, boolean[] slotsActive) {
+  private int greedyEnableSlotsInPlace(ConsistencyChecker checker, KBPSlotFill[] sortedSlots, boolean[] slotsActive) {
     int slotsEnabled = 0;
     for (int i = 0; i < sortedSlots.length; ++i) {
-      if (blockGibbsCanTransition(pivot, sortedSlots, new GibbsState(slotsActive, i, i, i))) {
+      if (blockGibbsCanTransition(checker, new GibbsState(slotsActive, i, i, i))) {
         debug("greedily enabling " + sortedSlots[i]);
         slotsActive[i] = true;
         slotsEnabled += 1;
@@ -225,7 +314,9 @@ public abstract class HeuristicSlotfillPostProcessor extends SlotfillPostProcess
     KBPSlotFill[] sortedSlots = filteredSlots.toArray(new KBPSlotFill[filteredSlots.size()]);
     Arrays.sort(sortedSlots);
     boolean[] slotsActive = new boolean[sortedSlots.length];
-    int slotsEnabled = greedyEnableSlotsInPlace(pivot, sortedSlots, slotsActive);
+    ConsistencyChecker checker = new ConsistencyChecker(pivot, sortedSlots);
+    long startTime = System.currentTimeMillis();
+    int slotsEnabled = greedyEnableSlotsInPlace(checker, sortedSlots, slotsActive);
     // (pass 1: greedy)
     debug("[begin gibbs] enabled " + slotsEnabled + " slots (of " + sortedSlots.length + ")");
     assert (isConsistent(pivot, sortedSlots, slotsActive));
@@ -246,7 +337,7 @@ public abstract class HeuristicSlotfillPostProcessor extends SlotfillPostProcess
         Arrays.fill(slotsActive, false);
         ArrayMath.shuffle(enableOrder, rand);
         for (int toEnable : enableOrder) {
-          if (blockGibbsCanTransition(pivot, sortedSlots, new GibbsState(slotsActive, toEnable, toEnable, toEnable))) {
+          if (blockGibbsCanTransition(checker, new GibbsState(slotsActive, toEnable, toEnable, toEnable))) {
             slotsActive[toEnable] = true;
           }
         }
@@ -261,7 +352,8 @@ public abstract class HeuristicSlotfillPostProcessor extends SlotfillPostProcess
       slotsActive = argmax;
       slotsEnabled = 0;
       for (boolean active : slotsActive) { slotsEnabled += active ? 1 : 0; }
-      debug("[end gibbs] enabled " + slotsEnabled + " slots (of " + sortedSlots.length + ") with objective " + max);
+      debug("[end gibbs] enabled " + slotsEnabled + " slots (of " + sortedSlots.length + ") with objective " + max +
+          " in " + (System.currentTimeMillis() - startTime) + " ms");
 
       /*
       // ^^ Alternative to above ^^
@@ -276,7 +368,7 @@ public abstract class HeuristicSlotfillPostProcessor extends SlotfillPostProcess
             for (int on2 = 0; on2 < slotsActive.length; ++on2) {
               double candidateObjective = new GibbsState(slotsActive, off, on, on2).restoreAndReturn(objectiveFn.apply(Pair.makePair(slotsActive, sortedSlots)));
               if (candidateObjective > objective &&
-                  blockGibbsCanTransition(pivot, sortedSlots, new GibbsState(slotsActive, off, on, on2))) {
+                  blockGibbsCanTransition(checker, new GibbsState(slotsActive, off, on, on2))) {
                 log("replacing " + sortedSlots[off] + " with " + sortedSlots[on] + (on == on2 ? "" : " and " + sortedSlots[on2]));
                 slotsActive[off] = false;
                 slotsActive[on] = true;
@@ -414,6 +506,10 @@ public abstract class HeuristicSlotfillPostProcessor extends SlotfillPostProcess
           counts.addAll(hpp.entailsDirectly(pivot, antecedent));
           return counts;
         }
+        @Override
+        protected boolean hasLeaveOneOutConstraint() {
+          return outer.hasLeaveOneOutConstraint() || hpp.hasLeaveOneOutConstraint();
+        }
       };
     } else {
       return super.and(alsoProcess);
@@ -466,6 +562,15 @@ public abstract class HeuristicSlotfillPostProcessor extends SlotfillPostProcess
    */
   public abstract Counter<Pair<RelationType, String>> entailsDirectly(KBPEntity pivot, KBPSlotFill antecedent);
 
+  /**
+   * Whether {@link HeuristicSlotfillPostProcessor#leaveOneOutKeepHeldOutSlot(KBPEntity, IdentityHashSet, KBPSlotFill)}
+   * can ever reject a slot. If it cannot, the consistency check can skip it entirely.
+   * @return False only if leave-one-out consistency is guaranteed to pass.
+   */
+  protected boolean hasLeaveOneOutConstraint() {
+    return true;
+  }
+
   /**
    * A default implementation (effectively a NOOP) so that selective methods can be overwritten
    */
@@ -486,6 +591,11 @@ public abstract class HeuristicSlotfillPostProcessor extends SlotfillPostProcess
     public Counter<Pair<RelationType, String>> entailsDirectly(KBPEntity pivot, KBPSlotFill antecedent) {
       return new ClassicCounter<Pair<RelationType, String>>();
     }
+    /** The leave-one-out check is a no-op; subclasses which override it must override this as well */
+    @Override
+    protected boolean hasLeaveOneOutConstraint() {
+      return false;
+    }
   }
 
 }
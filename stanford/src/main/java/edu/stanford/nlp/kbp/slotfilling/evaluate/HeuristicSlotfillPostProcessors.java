@@ -652,6 +652,10 @@ public class HeuristicSlotfillPostProcessors {
       }
       return true;
     }
+    @Override
+    protected boolean hasLeaveOneOutConstraint() {
+      return true;
+    }
   }
 
 
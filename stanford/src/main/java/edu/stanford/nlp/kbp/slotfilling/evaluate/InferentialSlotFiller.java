@@ -143,11 +143,15 @@ public class InferentialSlotFiller extends SimpleSlotFiller {
     // Re-run step1 consistency
     cleanRelations
         = Props.TEST_CONSISTENCY_DO ? SlotfillPostProcessor.unary(irComponent).postProcess(queryEntity, cleanRelations, goldResponses) : cleanRelations;
-    // Find missing provenances
+    // Find missing provenances, among the query's candidate sentences (read and annotated as the simple slot filler does)
+    QueryState state = new QueryState(queryEntity);
+    if (Props.TEST_PROVENANCE_DO && !cleanRelations.isEmpty() && queryEntity.queryId.isDefined()) {
+      retrieveRawSentences(state, Props.TEST_SENTENCES_PER_ENTITY);
+    }
     List<KBPSlotFill> withProvenance;
     withProvenance = new ArrayList<KBPSlotFill>(cleanRelations.size());
     for (KBPSlotFill fill : cleanRelations) {
-      KBPSlotFill augmented = KBPNew.from(fill).provenance(findBestProvenance(queryEntity, fill)).KBPSlotFill();
+      KBPSlotFill augmented = KBPNew.from(fill).provenance(findBestProvenance(queryEntity, fill, state)).KBPSlotFill();
       if (augmented.provenance.isDefined() && (!Props.TEST_PROVENANCE_DO || augmented.provenance.get().isOfficial())) {
         withProvenance.add(augmented);
       } else {
@@ -157,7 +161,7 @@ public class InferentialSlotFiller extends SimpleSlotFiller {
     logger.log("" + withProvenance.size() + " slot fills remain after provenance");
 
     // Run consistency pass 2
-    List<KBPSlotFill> consistentRelations = this.finalConsistencyAndProvenancePass(queryEntity, withProvenance, goldResponses);
+    List<KBPSlotFill> consistentRelations = this.finalConsistencyAndProvenancePass(queryEntity, state, withProvenance, goldResponses);
     endTrack("Consistency Pass II");
 
     printRelations(queryEntity, consistentRelations);
@@ -204,7 +208,7 @@ public class InferentialSlotFiller extends SimpleSlotFiller {
     forceTrack("Construct graph");
 
     // -- First pass construct a graph using the relation classifier
-    EntityGraph graph = extractRelationGraphWithClassifer(entity, rawDocuments, graphDepth, 2 * Props.TEST_GRAPH_MAXSIZE / rawDocuments.size());
+    EntityGraph graph = extractRelationGraphWithClassifer(entity, rawDocuments, graphDepth, 2 * Props.TEST_GRAPH_MAXSIZE);
     assert graph.isValidGraph();
     logger.log(BOLD, "Num Edges: " + graph.getNumEdges() );
     logger.log("Memory usage: " + Utils.getMemoryUsage() );
@@ -241,9 +245,7 @@ public class InferentialSlotFiller extends SimpleSlotFiller {
 
     // Construct datum
     startTrack("Collecting datums over graph");
-    for( Annotation doc : documents ) {
-      extractDatumGraphForClassifer(datumGraph, doc, entity, graphDepth, entityBudget);
-    }
+    extractDatumGraphForClassifer(datumGraph, documents, entity, graphDepth, entityBudget);
     logger.log("Num edges in datum graph: " + datumGraph.getNumEdges() );
     logger.log( "Memory usage: " + Utils.getMemoryUsage() );
     endTrack("Collecting datums over graph");
@@ -290,104 +292,160 @@ public class InferentialSlotFiller extends SimpleSlotFiller {
   /**
    * Construct a graph over the entities in a sentence by "recursively" searching for the entities.
    * The entity graph represents a graph between entities linked by sentences.
-   * The sentences are later processed to find relations
+   * The sentences are later processed to find relations.
+   *
+   * Each document is searched breadth first from the root entity.
+   * The search proceeds one depth at a time: every (document, entity) pair at the current depth is annotated and
+   * featurized concurrently, and then the results are added to the graph in a fixed order, so that the entity budgets
+   * are enforced (and the graph constructed) deterministically.
+   * The budgets are shared by all the documents: at most entityBudget entities are expanded, and at most
+   * {@link Props#TEST_GRAPH_DOCUMENT_BUDGET} entities are added to the graph.
+   *
+   * @param graph The graph to add datums to.
+   * @param documents The documents to search; these are not modified.
+   * @param root The entity to start the search from.
+   * @param maxDepth The maximum depth of the search; 1 only finds the relations of the root entity.
+   * @param entityBudget The maximum number of entities to expand, over all the documents.
    */
-  protected void extractDatumGraphForClassifer(DirectedGraph<KBPEntity, Pair<SentenceGroup, List<CoreMap>>> graph, Annotation document,
+  protected void extractDatumGraphForClassifer(DirectedGraph<KBPEntity, Pair<SentenceGroup, List<CoreMap>>> graph, final List<Annotation> documents,
                                                KBPEntity root, int maxDepth, int entityBudget) {
-    // Construct a queue
-    Queue<Pair<KBPEntity,Integer>> workQueue = new LinkedList<Pair<KBPEntity,Integer>>();
-    workQueue.offer( new Pair<KBPEntity,Integer>( root, maxDepth ) );
-
-    int perDocumentEntityBudget = Props.TEST_GRAPH_DOCUMENT_BUDGET;
-
-    while( workQueue.size() != 0 ) {
-      // Dequeue an entity (with it's depth information)
-      Pair<KBPEntity, Integer> item = workQueue.poll();
-      KBPEntity entity = item.first(); int depth = item.second();
-      forceTrack( String.format( "Augmenting entity: %s at depth %d", entity, depth )  );
-      assert depth > 0;
-
-      // IMPORTANT!: Create a copy of the document for the entity specific
-      // annotations.
-      // Things down the pipeline make use of these annotations.
-      Annotation documentForEntity = CoreMapUtils.copyDocument(document);
-      List<CoreMap> rawSentences = documentForEntity.get(CoreAnnotations.SentencesAnnotation.class);
-      assert rawSentences != document.get(CoreAnnotations.SentencesAnnotation.class);
-
-      // -- Annotation
-      PostIRAnnotator annotator = new PostIRAnnotator(entity.name, Maybe.Just(entity.type.name), Maybe.<String>Nothing(), Maybe.<String>Nothing(), true);
-
-      Redwood.startTrack("Annotating " + rawSentences.size() + " sentences...");
-      // Find the relevant sentences
-      List<CoreMap> supportingSentences = process.annotateSentenceFeatures(entity,
-          CollectionUtils.filter( CollectionUtils.subList( rawSentences, annotator.findRelevantSentences(documentForEntity) ), new Function<CoreMap, Boolean>() {
-            @Override
-            public Boolean apply(CoreMap in) {
-              if( in.get(CoreAnnotations.TokensAnnotation.class).size() > Props.TEST_SENTENCES_MAX_TOKENS ) {
-                logger.debug("Ignoring suspiciously long sentence (> " + Props.TEST_SENTENCES_MAX_TOKENS + " tokens): " + CoreMapUtils.sentenceToMinimalString(in));
-                return false;
-              }
-              return true;  //To change body of implemented methods use File | Settings | File Templates.
-            }
-          } ),
-          AnnotateMode.ALL_PAIRS);
-
-      logger.debug( "Found " + supportingSentences.size() + " relevant sentences." );
-      Redwood.endTrack("Annotating " + rawSentences.size() + " sentences...");
+    int graphEntityBudget = Props.TEST_GRAPH_DOCUMENT_BUDGET;
 
-      // -- Featurize
-      Annotation supportingSubDocument = new Annotation(supportingSentences);
-      for( Pair<SentenceGroup,List<CoreMap>> pair : process.featurizeWithSentences(supportingSubDocument, relationFilterForFeaturizer).values() ) {
-        //  Use the sentence group and stuff to populate edges
-        KBPair key = pair.first.key;
-        KBPEntity headEntity = key.getEntity();
-        if (!key.getSlotEntity().isDefined()) {
-          logger.warn("could not create slot entity for " + key);
-          continue;
-        }
-        KBPEntity tailEntity = key.getSlotEntity().get();
+    // Construct a frontier of (document index, entity, depth)
+    List<Triple<Integer, KBPEntity, Integer>> frontier = new ArrayList<Triple<Integer, KBPEntity, Integer>>();
+    for (int docI = 0; docI < documents.size(); ++docI) {
+      frontier.add(Triple.makeTriple(docI, root, maxDepth));
+    }
 
-        // -- Add to workQueue
-        // Try to make the slot value an entity.
-        // Check if the entity is already in the graph
-        if( depth > 1 &&
-            (!graph.containsVertex( tailEntity )) &&
-            tailEntity.type.isEntityType() ) {
-            // TODO(arun): Do something intelligent in how you prioritize
-            // what you add to the work queue; maybe have a priority queue
-            // (i.e. sorted list) with "promise"
-            if ( entityBudget > 0 ) {
-              workQueue.add( new Pair<KBPEntity,Integer>(tailEntity, depth-1) );
-              logger.debug( "Adding entity to work queue: " + tailEntity );
-              entityBudget--;
+    while( frontier.size() != 0 ) {
+      // -- Annotate and featurize the entire frontier
+      final List<Triple<Integer, KBPEntity, Integer>> level = frontier;
+      final List<Collection<Pair<SentenceGroup, List<CoreMap>>>> datumsForLevel
+          = new ArrayList<Collection<Pair<SentenceGroup, List<CoreMap>>>>(Collections.<Collection<Pair<SentenceGroup, List<CoreMap>>>>nCopies(level.size(), null));
+      List<Runnable> tasks = new ArrayList<Runnable>();
+      for (int i = 0; i < level.size(); ++i) {
+        final int itemI = i;
+        tasks.add(new Runnable() {
+          @Override
+          public void run() {
+            Triple<Integer, KBPEntity, Integer> item = level.get(itemI);
+            datumsForLevel.set(itemI, extractDatumsForEntity(documents.get(item.first), item.second, item.third));
+          }
+        });
+      }
+      long startTime = System.currentTimeMillis();
+      threadAndRun("Augmenting " + level.size() + " entities at depth " + level.get(0).third, tasks, Props.PROCESS_THREADS);
+      logger.debug("augmented " + level.size() + " entities in " + (System.currentTimeMillis() - startTime) + " ms");
+
+      // -- Add to the graph, in order
+      frontier = new ArrayList<Triple<Integer, KBPEntity, Integer>>();
+      for (int i = 0; i < level.size(); ++i) {
+        int docI = level.get(i).first; int depth = level.get(i).third;
+        for( Pair<SentenceGroup,List<CoreMap>> pair : datumsForLevel.get(i) ) {
+          //  Use the sentence group and stuff to populate edges
+          KBPair key = pair.first.key;
+          KBPEntity headEntity = key.getEntity();
+          if (!key.getSlotEntity().isDefined()) {
+            logger.warn("could not create slot entity for " + key);
+            continue;
+          }
+          KBPEntity tailEntity = key.getSlotEntity().get();
+
+          // -- Add to frontier
+          // Try to make the slot value an entity.
+          // Check if the entity is already in the graph
+          if( depth > 1 &&
+              (!graph.containsVertex( tailEntity )) &&
+              tailEntity.type.isEntityType() ) {
+              // TODO(arun): Do something intelligent in how you prioritize
+              // what you add to the work queue; maybe have a priority queue
+              // (i.e. sorted list) with "promise"
+              if ( entityBudget > 0 ) {
+                frontier.add(Triple.makeTriple(docI, tailEntity, depth - 1));
+                logger.debug( "Adding entity to work queue: " + tailEntity );
+                entityBudget--;
+              } else {
+                logger.debug("Reached maximum size of graph and will not add entity to work queue: " + tailEntity );
+              }
+          }
+          if(!graph.containsVertex(tailEntity)) {
+            if( graphEntityBudget > 0 ) {
+              // By adding the vertex to the graph, we can be sure that we
+              // will never double visit the entity
+              graph.addVertex( tailEntity );
+              graphEntityBudget--;
             } else {
-              logger.debug("Reached maximum size of graph and will not add entity to work queue: " + tailEntity );
+              logger.log( "graphEntityBudget exhausted, not adding " + tailEntity );
             }
-        }
-        if(!graph.containsVertex(tailEntity)) {
-          if( perDocumentEntityBudget > 0 ) {
-            // By adding the vertex to the graph, we can be sure that we
-            // will never double visit the entity
-            graph.addVertex( tailEntity );
-            perDocumentEntityBudget--;
-          } else {
-            logger.log( "perDocumentEntityBudget exhausted, not adding " + tailEntity );
           }
-        }
-        if( graph.containsVertex( tailEntity ) ) {
-          // -- Add to graph
-          if( graph.isEdge(headEntity,tailEntity) ) {
-            Pair<SentenceGroup, List<CoreMap>> pair_ = graph.getEdges(headEntity, tailEntity).get(0);
-            pair_.first.merge(pair.first);
-            pair_.second.addAll(pair.second);
-          } else {
-            graph.add(headEntity, tailEntity, pair);
+          if( graph.containsVertex( tailEntity ) ) {
+            // -- Add to graph
+            if( graph.isEdge(headEntity,tailEntity) ) {
+              Pair<SentenceGroup, List<CoreMap>> pair_ = graph.getEdges(headEntity, tailEntity).get(0);
+              pair_.first.merge(pair.first);
+              pair_.second.addAll(pair.second);
+            } else {
+              graph.add(headEntity, tailEntity, pair);
+            }
           }
         }
       }
-      endTrack( String.format( "Augmenting entity: %s at depth %d", entity, depth )  );
-      logger.debug( String.format( "Have %d more entities to process", workQueue.size() ) );
+      logger.debug( String.format( "Have %d more entities to process", frontier.size() ) );
+    }
+  }
+
+  /**
+   * Find the datums for an entity in a document.
+   * This is safe to call from multiple threads at once, as the document is never modified.
+   * Only the sentences relevant to the entity are copied in full and annotated; the rest of the document is shared.
+   *
+   * @param document The document to find datums in. This is not modified.
+   * @param entity The entity which is the head of every datum.
+   * @param depth The depth of the entity in the graph search, for logging.
+   * @return The featurized datums, along with the sentences they come from.
+   */
+  protected Collection<Pair<SentenceGroup, List<CoreMap>>> extractDatumsForEntity(Annotation document, KBPEntity entity, int depth) {
+    forceTrack( String.format( "Augmenting entity: %s at depth %d", entity, depth )  );
+    assert depth > 0;
+
+    // -- Annotation
+    PostIRAnnotator annotator = new PostIRAnnotator(entity.name, Maybe.Just(entity.type.name), Maybe.<String>Nothing(), Maybe.<String>Nothing(), true);
+
+    // IMPORTANT!: Create a copy of the document for the entity specific
+    // annotations.
+    // Things down the pipeline make use of these annotations.
+    // The copy only has its own tokens where PostIR annotates them, so only the relevant sentences are copied in full.
+    Annotation documentForEntity = annotator.copyForAnnotation(document);
+    List<CoreMap> rawSentences = documentForEntity.get(CoreAnnotations.SentencesAnnotation.class);
+    assert rawSentences != document.get(CoreAnnotations.SentencesAnnotation.class);
+
+    Redwood.startTrack("Annotating " + rawSentences.size() + " sentences...");
+    // Find the relevant sentences
+    List<CoreMap> relevantSentences = new ArrayList<CoreMap>();
+    for (CoreMap sentence : CollectionUtils.subList( rawSentences, annotator.findRelevantSentences(documentForEntity) )) {
+      relevantSentences.add(CoreMapUtils.copySentence(sentence));
     }
+    List<CoreMap> supportingSentences = process.annotateSentenceFeatures(entity,
+        CollectionUtils.filter( relevantSentences, new Function<CoreMap, Boolean>() {
+          @Override
+          public Boolean apply(CoreMap in) {
+            if( in.get(CoreAnnotations.TokensAnnotation.class).size() > Props.TEST_SENTENCES_MAX_TOKENS ) {
+              logger.debug("Ignoring suspiciously long sentence (> " + Props.TEST_SENTENCES_MAX_TOKENS + " tokens): " + CoreMapUtils.sentenceToMinimalString(in));
+              return false;
+            }
+            return true;  //To change body of implemented methods use File | Settings | File Templates.
+          }
+        } ),
+        AnnotateMode.ALL_PAIRS);
+
+    logger.debug( "Found " + supportingSentences.size() + " relevant sentences." );
+    Redwood.endTrack("Annotating " + rawSentences.size() + " sentences...");
+
+    // -- Featurize
+    Annotation supportingSubDocument = new Annotation(supportingSentences);
+    Collection<Pair<SentenceGroup, List<CoreMap>>> datums = process.featurizeWithSentences(supportingSubDocument, relationFilterForFeaturizer).values();
+    endTrack( String.format( "Augmenting entity: %s at depth %d", entity, depth )  );
+    return datums;
   }
 
 
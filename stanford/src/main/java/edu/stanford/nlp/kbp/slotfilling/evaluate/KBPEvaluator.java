@@ -12,6 +12,7 @@ import edu.stanford.nlp.util.logging.Redwood;
 import java.io.*;
 import java.text.DecimalFormat;
 import java.util.*;
+import java.util.concurrent.*;
 
 import static edu.stanford.nlp.util.logging.Redwood.Util.*;
 
@@ -135,17 +136,32 @@ public class KBPEvaluator implements Evaluator {
     // Fill slots
   //  startTrack("Processing Test Entities [" + entities.size() + "]");
     Map<KBPOfficialEntity, Collection<KBPSlotFill>> fillsByEntity = new HashMap<KBPOfficialEntity, Collection<KBPSlotFill>>();
-    for (KBPOfficialEntity entity : entities) {
-      List<KBPSlotFill> fills = slotFiller.fillSlots(entity);
-      if(fills!=null){
-    	  fillsByEntity.put(entity,fills ); 
+    if (Props.TEST_THREADS > 1 && entities.size() > 1) {
+      Map<KBPOfficialEntity, Collection<KBPSlotFill>> concurrentFills = fillSlotsConcurrently(entities, Props.TEST_THREADS, Props.TEST_QUERY_TIMEOUTSEC);
+      // Re-insert in query order, so that evaluation sees exactly the map the serial path would have built
+      for (KBPOfficialEntity entity : entities) {
+        Collection<KBPSlotFill> fills = concurrentFills.get(entity);
+        if (fills != null) { fillsByEntity.put(entity, fills); }
       }
-      else{
-    	  System.out.println("receiving null for fills."+ entities.size() );
+    } else {
+      for (KBPOfficialEntity entity : entities) {
+        List<KBPSlotFill> fills = slotFiller.fillSlots(entity);
+        if(fills!=null){
+      	  fillsByEntity.put(entity,fills ); 
+        }
+        else{
+      	  System.out.println("receiving null for fills."+ entities.size() );
+        }
+       
       }
-     
     }
    //endTrack("Processing Test Entities [" + entities.size() + "]");
+    if (slotFiller instanceof SimpleSlotFiller) {
+      for (AnnotationCache cache : ((SimpleSlotFiller) slotFiller).annotationCache) { cache.logStats(); }
+    }
+    if (slotFiller instanceof InferentialSlotFiller && ((InferentialSlotFiller) slotFiller).graphInferenceEngine != null) {
+      ((InferentialSlotFiller) slotFiller).graphInferenceEngine.logStatistics();
+    }
 
     // Evaluate datums
     startTrack("Evaluating Test Entities");
@@ -154,6 +170,97 @@ public class KBPEvaluator implements Evaluator {
     return score;
   }
 
+  /**
+   * Fill slots for a number of queries concurrently, on a fixed size pool of worker threads.
+   * The slot filler must be safe to call from multiple threads.
+   *
+   * <p>Note that with a finite timeout the result depends on timing: a query which finishes just in time on one run
+   * may be cancelled on another (e.g., on a slower or busier machine), and score as having no slot fills.
+   * Leave the timeout infinite for reproducible scores.</p>
+   *
+   * <p>Cancelling a query interrupts its thread, but a slot filler does not necessarily stop when interrupted;
+   * so this method waits for every worker to finish before returning, even after a query has timed out.</p>
+   *
+   * @param entities The queries to fill slots for
+   * @param numThreads The number of queries to run at once
+   * @param timeoutSeconds The maximum time to spend on a single query, after which the query is cancelled and
+   *                       treated as having no slot fills
+   * @return The slot fills for every query which completed in time, and for which the slot filler returned a result
+   */
+  protected Map<KBPOfficialEntity, Collection<KBPSlotFill>> fillSlotsConcurrently(List<KBPOfficialEntity> entities, int numThreads, final long timeoutSeconds) {
+    Map<KBPOfficialEntity, Collection<KBPSlotFill>> fillsByEntity = new ConcurrentHashMap<KBPOfficialEntity, Collection<KBPSlotFill>>();
+    ExecutorService workers = Executors.newFixedThreadPool(numThreads);
+    final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor();
+    List<Pair<KBPOfficialEntity, FutureTask<List<KBPSlotFill>>>> tasks = new ArrayList<Pair<KBPOfficialEntity, FutureTask<List<KBPSlotFill>>>>();
+
+    Redwood.startThreads("Processing Test Entities [" + entities.size() + "]");
+    for (final KBPOfficialEntity entity : entities) {
+      final FutureTask<List<KBPSlotFill>> task = new FutureTask<List<KBPSlotFill>>(new Callable<List<KBPSlotFill>>() {
+        @Override
+        public List<KBPSlotFill> call() throws Exception {
+          return slotFiller.fillSlots(entity);
+        }
+      });
+      tasks.add(Pair.makePair(entity, task));
+      workers.submit(new Runnable() {
+        @Override
+        public void run() {
+          // The timeout starts when the query starts running, not when it is queued
+          ScheduledFuture<?> timeout = null;
+          if (timeoutSeconds < Long.MAX_VALUE) {
+            timeout = watchdog.schedule(new Runnable() { @Override public void run() { task.cancel(true); } }, timeoutSeconds, TimeUnit.SECONDS);
+          }
+          try {
+            task.run();
+          } finally {
+            if (timeout != null) { timeout.cancel(false); }
+            Redwood.finishThread();
+          }
+        }
+      });
+    }
+    workers.shutdown();
+
+    // Wait for every query, in order
+    // Note that a cancelled query's result is never collected, even if its thread ignores the interrupt and finishes later
+    try {
+      for (Pair<KBPOfficialEntity, FutureTask<List<KBPSlotFill>>> task : tasks) {
+        try {
+          List<KBPSlotFill> fills = task.second.get();
+          if (fills != null) {
+            fillsByEntity.put(task.first, fills);
+          } else {
+            logger.warn("receiving null for fills: " + task.first);
+          }
+        } catch (CancellationException e) {
+          logger.err(RED, "timed out after " + timeoutSeconds + "s filling slots for: " + task.first);
+        } catch (ExecutionException e) {
+          throw new RuntimeException(e.getCause());
+        }
+      }
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    } finally {
+      workers.shutdownNow();
+      watchdog.shutdownNow();
+      // Wait for the threads of cancelled queries to actually stop, so that they neither log outside of the threaded
+      // region, nor share the slot filler with whatever runs after us (e.g., scoring)
+      boolean interrupted = false;
+      while (!workers.isTerminated()) {
+        try {
+          if (!workers.awaitTermination(60, TimeUnit.SECONDS)) {
+            logger.warn("still waiting for cancelled queries to stop...");
+          }
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) { Thread.currentThread().interrupt(); }
+      Redwood.endThreads("Processing Test Entities [" + entities.size() + "]");
+    }
+    return fillsByEntity;
+  }
+
   private Maybe<List<KBPOfficialEntity>> testEntitiesCache = Maybe.Nothing();
 
   @Override
@@ -0,0 +1,144 @@
+package edu.stanford.nlp.kbp.slotfilling.evaluate;
+
+import edu.stanford.nlp.kbp.slotfilling.common.Maybe;
+import edu.stanford.nlp.kbp.slotfilling.common.SentenceDouble;
+import edu.stanford.nlp.kbp.slotfilling.ir.KBPRelationProvenance;
+
+import java.text.DecimalFormat;
+import java.util.*;
+
+import static edu.stanford.nlp.util.logging.Redwood.Util.fatal;
+import static edu.stanford.nlp.util.logging.Redwood.Util.log;
+
+/**
+ * <p>An index from (relation, sentence text) to the provenance of that sentence, for the candidate sentences
+ * of a single query.</p>
+ *
+ * <p>This replaces a linear scan over the candidate sentences of a relation, which is called once per candidate
+ * sentence per slot fill. The index is built once per query, and lookups are constant time.
+ * If a sentence occurs more than once for a relation, the first occurrence wins, as it did for the linear scan.</p>
+ */
+public class ProvenanceIndex {
+
+  /** The relation the candidate sentences for per:employee_of and per:member_of are filed under */
+  public static final String EMPLOYEE_OR_MEMBER_OF = "per:employee_or_member_of";
+
+  private final Map<String, Map<String, KBPRelationProvenance>> provenanceByRelation;
+
+  /**
+   * Index the candidate sentences of a query.
+   * @param candidates The candidate sentences of the query, keyed by relation name.
+   */
+  public ProvenanceIndex(Map<String, ? extends List<SentenceDouble>> candidates) {
+    this.provenanceByRelation = new HashMap<String, Map<String, KBPRelationProvenance>>(candidates.size() * 2);
+    for (Map.Entry<String, ? extends List<SentenceDouble>> entry : candidates.entrySet()) {
+      Map<String, KBPRelationProvenance> bySentence = new HashMap<String, KBPRelationProvenance>(entry.getValue().size() * 2);
+      for (SentenceDouble candidate : entry.getValue()) {
+        if (!bySentence.containsKey(candidate.sentence)) {
+          bySentence.put(candidate.sentence, candidate.provenance);
+        }
+      }
+      provenanceByRelation.put(entry.getKey(), bySentence);
+    }
+  }
+
+  /**
+   * Look up the provenance of a sentence for a relation.
+   * Relations with no candidate sentences of their own which are subsumed by {@link ProvenanceIndex#EMPLOYEE_OR_MEMBER_OF}
+   * are looked up under that relation instead.
+   * @param relationName The relation the sentence is a candidate for.
+   * @param sentence The text of the sentence.
+   * @return The provenance of the sentence, if it is a candidate for the relation.
+   */
+  public Maybe<KBPRelationProvenance> get(String relationName, String sentence) {
+    Map<String, KBPRelationProvenance> bySentence = provenanceByRelation.get(relationName);
+    if (bySentence == null && (relationName.equals("per:member_of") || relationName.equals("per:employee_of"))) {
+      bySentence = provenanceByRelation.get(EMPLOYEE_OR_MEMBER_OF);
+    }
+    if (bySentence == null) { return Maybe.Nothing(); }
+    KBPRelationProvenance provenance = bySentence.get(sentence);
+    return provenance == null ? Maybe.<KBPRelationProvenance>Nothing() : Maybe.Just(provenance);
+  }
+
+  /** The number of relations with candidate sentences */
+  public int size() {
+    return provenanceByRelation.size();
+  }
+
+  /**
+   * The linear scan this index replaced, kept as the reference for {@link ProvenanceIndex#main(String[])}:
+   * the candidate sentences of the relation are compared to the sentence one by one.
+   */
+  private static Maybe<KBPRelationProvenance> scan(Map<String, ? extends List<SentenceDouble>> candidates, String relationName, String sentence) {
+    List<SentenceDouble> relationCandidates = candidates.get(relationName);
+    if (relationCandidates == null && (relationName.equals("per:member_of") || relationName.equals("per:employee_of"))) {
+      relationCandidates = candidates.get(EMPLOYEE_OR_MEMBER_OF);
+    }
+    if (relationCandidates == null) { return Maybe.Nothing(); }
+    for (SentenceDouble candidate : relationCandidates) {
+      if (candidate.sentence.equals(sentence)) { return Maybe.Just(candidate.provenance); }
+    }
+    return Maybe.Nothing();
+  }
+
+  /**
+   * A benchmark of provenance lookup on a synthetic query, against the linear scan this index replaced.
+   * As in {@link SimpleSlotFiller#findBestProvenance}, every candidate sentence is looked up for every slot fill; some
+   * fills are of relations which fall back to {@link ProvenanceIndex#EMPLOYEE_OR_MEMBER_OF}, or have no candidates.
+   * The index and the scan must return the same provenance for every lookup.
+   * Usage: ProvenanceIndex [number of sentences (default 10000)] [number of slot fills (default 20)]
+   */
+  public static void main(String[] args) {
+    int numSentences = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+    int numFills = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+    Random rand = new Random(42);
+
+    // A synthetic query: sentences spread over a few relations, with some repeated
+    String[] relations = new String[]{ "per:title", "per:employee_or_member_of", "per:spouse", "per:cities_of_residence" };
+    Map<String, ArrayList<SentenceDouble>> candidates = new HashMap<String, ArrayList<SentenceDouble>>();
+    List<String> sentences = new ArrayList<String>();
+    for (int i = 0; i < numSentences; ++i) {
+      String sentence = rand.nextInt(20) == 0 && !sentences.isEmpty()
+          ? sentences.get(rand.nextInt(sentences.size()))
+          : "Sentence " + i + " of the query, with some words to compare: " + Long.toHexString(rand.nextLong()) + " .";
+      sentences.add(sentence);
+      String relation = relations[rand.nextInt(relations.length)];
+      if (!candidates.containsKey(relation)) { candidates.put(relation, new ArrayList<SentenceDouble>()); }
+      candidates.get(relation).add(new SentenceDouble(sentence, "doc" + i + ":x:" + (i % 50) + ":0-1:2-3:0-10"));
+    }
+    // The slot fills to find provenance for
+    String[] fillRelations = new String[]{ "per:title", "per:employee_of", "per:member_of", "per:spouse", "per:cities_of_residence", "per:age" };
+
+    for (int trial = 0; trial < 5; ++trial) {
+      long start = System.nanoTime();
+      List<Maybe<KBPRelationProvenance>> expected = new ArrayList<Maybe<KBPRelationProvenance>>();
+      for (int fill = 0; fill < numFills; ++fill) {
+        String relation = fillRelations[fill % fillRelations.length];
+        for (String sentence : sentences) { expected.add(scan(candidates, relation, sentence)); }
+      }
+      double scanSeconds = ((double) (System.nanoTime() - start)) / 1e9;
+      start = System.nanoTime();
+      ProvenanceIndex index = new ProvenanceIndex(candidates);
+      List<Maybe<KBPRelationProvenance>> actual = new ArrayList<Maybe<KBPRelationProvenance>>();
+      for (int fill = 0; fill < numFills; ++fill) {
+        String relation = fillRelations[fill % fillRelations.length];
+        for (String sentence : sentences) { actual.add(index.get(relation, sentence)); }
+      }
+      double indexSeconds = ((double) (System.nanoTime() - start)) / 1e9;
+      // Compare; the provenances must be the very same objects
+      int found = 0;
+      int mismatches = 0;
+      for (int i = 0; i < expected.size(); ++i) {
+        Maybe<KBPRelationProvenance> a = expected.get(i);
+        Maybe<KBPRelationProvenance> b = actual.get(i);
+        if (a.isDefined()) { found += 1; }
+        if (a.isDefined() != b.isDefined() || (a.isDefined() && a.get() != b.get())) { mismatches += 1; }
+      }
+      log("trial " + trial + ": " + expected.size() + " lookups (" + found + " found) over " + numSentences + " sentences; " +
+          "scan " + new DecimalFormat("0.000").format(scanSeconds) + " s; " +
+          "index " + new DecimalFormat("0.000").format(indexSeconds) + " s, including building it; " +
+          mismatches + " mismatches");
+      if (mismatches > 0) { fatal("the index does not agree with the linear scan"); }
+    }
+  }
+}
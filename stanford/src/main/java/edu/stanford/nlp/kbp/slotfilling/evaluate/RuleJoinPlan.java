@@ -0,0 +1,392 @@
+package edu.stanford.nlp.kbp.slotfilling.evaluate;
+
+import edu.stanford.nlp.kbp.slotfilling.common.*;
+import edu.stanford.nlp.kbp.slotfilling.evaluate.GraphInferenceEngine.Predicate;
+import edu.stanford.nlp.kbp.slotfilling.evaluate.GraphInferenceEngine.Rule;
+import edu.stanford.nlp.kbp.slotfilling.ir.KBPIR;
+
+import java.util.*;
+
+/**
+ * <p>A set of inference rules, compiled into a join plan which finds exactly the slot fills
+ * {@link GraphInferenceEngine#match(EntityGraph, Rule, KBPEntity)} finds, rule by rule.</p>
+ *
+ * <p>The plan has two levels. The first is shared by all the rules. The predicates of a rule on x_0 (the entity slots
+ * are inferred for) are its anchors: match() checks all of them before anything else, and fails if any does -- if
+ * x_0 has no edge of an anchor relation, or is not of an anchor type. The anchors of every rule are sorted by relation,
+ * the relations most rules share first, and the rules are merged into a trie over them. Evaluating the trie checks each
+ * anchor once for all the rules sharing the prefix up to it, and leaves only the rules whose anchors all hold to be
+ * searched.</p>
+ *
+ * <p>The second level is a search for each of those rules. match() is not a conjunctive query: it checks the tail of a
+ * rule at the first leaf of its search, leaves the predicates it cannot reach from x_0 unchecked, and keeps the
+ * bindings and the consumed predicates of deeper successes when it backtracks; so its order of evaluation is part of its
+ * result. Each rule body is therefore compiled into that same search, but over numbered variables and bitmasks of
+ * predicates, rather than a map of variable names, copied lists and closures. The lookups into the graph (the vertex of
+ * an entity, its edges of a relation, its child of a given name) are made once for every state of the graph, and shared
+ * by all the rules.</p>
+ *
+ * <p>Rules which cannot be compiled (a unary tail, or more than {@link RuleJoinPlan#MAX_HEADS} predicates) are
+ * reported by {@link RuleJoinPlan#isCompiled(int)}, are always candidates, and should be matched with match().</p>
+ *
+ * <p>A plan is immutable once compiled; it can be evaluated from multiple threads at once.</p>
+ */
+class RuleJoinPlan {
+
+  /** The most predicates in the body of a rule this plan compiles; the predicates left to match are a bitmask */
+  static final int MAX_HEADS = 31;
+
+  /** A check of x_0: either that it has an edge of a relation, or that it is of a type */
+  private static final class Anchor {
+    final String relation;
+    final boolean unary;
+
+    Anchor(String relation, boolean unary) {
+      this.relation = relation;
+      this.unary = unary;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof Anchor)) return false;
+      Anchor anchor = (Anchor) o;
+      return unary == anchor.unary && relation.equals(anchor.relation);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * relation.hashCode() + (unary ? 1 : 0);
+    }
+
+    @Override
+    public String toString() {
+      return unary ? relation + "(x_0)" : relation + "(x_0,*)";
+    }
+  }
+
+  /** A node in the trie of anchors */
+  private static final class Node {
+    final Map<Anchor, Node> children = new LinkedHashMap<Anchor, Node>(4);
+    /** The rules whose last anchor leads to this node */
+    final List<Integer> rules = new ArrayList<Integer>(1);
+  }
+
+  /** A compiled rule body; variables are numbered in order of appearance, x_0 first */
+  private static final class CompiledRule {
+    final Rule rule;
+    /** The name of each variable */
+    final String[] variables;
+    /** The variable of the first argument of each predicate */
+    final int[] arg1;
+    /** The variable of the second argument of each predicate, or -1 for a unary predicate */
+    final int[] arg2;
+    /** By variable, the bitmask of the predicates of which it is the first argument */
+    final int[] predicatesOn;
+    final int tailArg1;
+    final int tailArg2;
+
+    CompiledRule(Rule rule, String[] variables, int[] arg1, int[] arg2, int[] predicatesOn, int tailArg1, int tailArg2) {
+      this.rule = rule;
+      this.variables = variables;
+      this.arg1 = arg1;
+      this.arg2 = arg2;
+      this.predicatesOn = predicatesOn;
+      this.tailArg1 = tailArg1;
+      this.tailArg2 = tailArg2;
+    }
+
+    /** The bitmask of all the predicates of the body */
+    int allHeads() {
+      return arg1.length == 0 ? 0 : (int) ((1L << arg1.length) - 1);
+    }
+  }
+
+  private final Node root = new Node();
+  private final int numNodes;
+  /** The compiled rules; null for rules which could not be compiled */
+  private final CompiledRule[] compiledRules;
+  /** The rules which could not be compiled, which are always candidates */
+  private final BitSet uncompiled = new BitSet();
+  private final int maxVariables;
+
+  /**
+   * Compile a list of rules.
+   * @param rules The rules to compile; rules are referred to by their index in this list.
+   */
+  RuleJoinPlan(List<Rule> rules) {
+    this.compiledRules = new CompiledRule[rules.size()];
+    int maxVariables = 1;
+    List<List<Anchor>> anchorsByRule = new ArrayList<List<Anchor>>();
+    final Map<Anchor, Integer> anchorCounts = new HashMap<Anchor, Integer>();
+    for (int ruleI = 0; ruleI < rules.size(); ++ruleI) {
+      Rule rule = rules.get(ruleI);
+      compiledRules[ruleI] = compile(rule);
+      if (compiledRules[ruleI] == null) {
+        uncompiled.set(ruleI);
+        anchorsByRule.add(null);
+        continue;
+      }
+      maxVariables = Math.max(maxVariables, compiledRules[ruleI].variables.length);
+      Set<Anchor> anchors = new LinkedHashSet<Anchor>();
+      for (Predicate head : rule.heads) {
+        if (head.arg1.equals("x_0")) { anchors.add(new Anchor(head.relation, head.isUnary())); }
+      }
+      for (Anchor anchor : anchors) {
+        Integer count = anchorCounts.get(anchor);
+        anchorCounts.put(anchor, count == null ? 1 : count + 1);
+      }
+      anchorsByRule.add(new ArrayList<Anchor>(anchors));
+    }
+    this.maxVariables = maxVariables;
+
+    // Order the anchors of every rule the same way, the most shared first, so that rules share the longest prefixes
+    Comparator<Anchor> order = new Comparator<Anchor>() {
+      @Override
+      public int compare(Anchor a, Anchor b) {
+        int byCount = anchorCounts.get(b) - anchorCounts.get(a);
+        if (byCount != 0) return byCount;
+        int byRelation = a.relation.compareTo(b.relation);
+        if (byRelation != 0) return byRelation;
+        return (a.unary ? 0 : 1) - (b.unary ? 0 : 1);
+      }
+    };
+    int numNodes = 1;
+    for (int ruleI = 0; ruleI < rules.size(); ++ruleI) {
+      List<Anchor> anchors = anchorsByRule.get(ruleI);
+      if (anchors == null) { continue; }
+      Collections.sort(anchors, order);
+      Node node = root;
+      for (Anchor anchor : anchors) {
+        Node child = node.children.get(anchor);
+        if (child == null) {
+          child = new Node();
+          node.children.put(anchor, child);
+          numNodes += 1;
+        }
+        node = child;
+      }
+      node.rules.add(ruleI);
+    }
+    this.numNodes = numNodes;
+  }
+
+  /** Compile a rule body, or return null if it cannot be compiled */
+  private static CompiledRule compile(Rule rule) {
+    if (rule.tail.isUnary() || rule.heads.size() > MAX_HEADS) { return null; }
+    Map<String, Integer> variables = new LinkedHashMap<String, Integer>();
+    variables.put("x_0", 0);
+    int[] arg1 = new int[rule.heads.size()];
+    int[] arg2 = new int[rule.heads.size()];
+    for (int i = 0; i < rule.heads.size(); ++i) {
+      Predicate head = rule.heads.get(i);
+      arg1[i] = variable(variables, head.arg1);
+      arg2[i] = head.isUnary() ? -1 : variable(variables, head.arg2.get());
+    }
+    int tailArg1 = variable(variables, rule.tail.arg1);
+    int tailArg2 = variable(variables, rule.tail.arg2.get());
+    int[] predicatesOn = new int[variables.size()];
+    for (int i = 0; i < arg1.length; ++i) { predicatesOn[arg1[i]] |= 1 << i; }
+    return new CompiledRule(rule, variables.keySet().toArray(new String[variables.size()]), arg1, arg2, predicatesOn, tailArg1, tailArg2);
+  }
+
+  private static int variable(Map<String, Integer> variables, String name) {
+    Integer index = variables.get(name);
+    if (index == null) {
+      index = variables.size();
+      variables.put(name, index);
+    }
+    return index;
+  }
+
+  /** Returns true if the given rule is compiled into this plan; if not, it should be matched with match() */
+  boolean isCompiled(int ruleIndex) {
+    return compiledRules[ruleIndex] != null;
+  }
+
+  /** The number of rules compiled into this plan */
+  int numCompiled() {
+    return compiledRules.length - uncompiled.cardinality();
+  }
+
+  /** The number of nodes in the trie of anchors, including the root */
+  int numNodes() {
+    return numNodes;
+  }
+
+  /**
+   * Start evaluating the plan against a graph.
+   * The evaluation must be discarded once the graph changes.
+   * @param graph The graph to match the rules against.
+   * @param pivot The entity to infer slots for (x_0).
+   * @param irComponent If defined, a candidate slot fill must survive the unary post-processors, as in match().
+   */
+  Evaluation evaluate(EntityGraph graph, KBPEntity pivot, Maybe<KBPIR> irComponent) {
+    return new Evaluation(graph, pivot, irComponent);
+  }
+
+  /**
+   * An evaluation of the plan against one state of a graph. It keeps the lookups into the graph, shared by all the rules,
+   * and the bindings and predicates left to match of the search for the current rule. Not thread-safe.
+   */
+  final class Evaluation {
+    private final EntityGraph graph;
+    private final KBPEntity pivot;
+    private final Maybe<KBPIR> irComponent;
+
+    private NERTag pivotType = null;
+    private final Map<KBPEntity, KBPEntity> vertices = new HashMap<KBPEntity, KBPEntity>();
+    private final Map<KBPEntity, Map<String, List<KBPSlotFill>>> edges = new HashMap<KBPEntity, Map<String, List<KBPSlotFill>>>();
+    private final Map<KBPEntity, Map<String, Maybe<KBPEntity>>> children = new HashMap<KBPEntity, Map<String, Maybe<KBPEntity>>>();
+
+    /** The rule being searched */
+    private CompiledRule rule;
+    /** The entity bound to each variable of the rule being searched, or null */
+    private final KBPEntity[] bindings = new KBPEntity[maxVariables];
+    /**
+     * By depth of the search, the predicates left to match: heads[d] is the list match() is called with at depth d,
+     * and heads[d + 1] the list of the predicates it leaves to its children (and which it takes for its own if it succeeds).
+     */
+    private final int[] heads = new int[maxVariables + 2];
+
+    private Evaluation(EntityGraph graph, KBPEntity pivot, Maybe<KBPIR> irComponent) {
+      this.graph = graph;
+      this.pivot = pivot;
+      this.irComponent = irComponent;
+    }
+
+    /**
+     * The rules worth searching: the compiled rules whose anchors all hold, and the rules which are not compiled.
+     */
+    BitSet candidates() {
+      BitSet candidates = (BitSet) uncompiled.clone();
+      collect(root, candidates);
+      return candidates;
+    }
+
+    private void collect(Node node, BitSet candidates) {
+      for (int ruleI : node.rules) { candidates.set(ruleI); }
+      for (Map.Entry<Anchor, Node> child : node.children.entrySet()) {
+        if (holds(child.getKey())) { collect(child.getValue(), candidates); }
+      }
+    }
+
+    private boolean holds(Anchor anchor) {
+      if (anchor.unary) {
+        return pivotType().name.equals(anchor.relation);
+      } else {
+        return !edges(vertex(pivot), anchor.relation).isEmpty();
+      }
+    }
+
+    /**
+     * Search for a match of a compiled rule, exactly as match() does.
+     * @return The binding of each variable of the rule, by name, if it matched.
+     */
+    Maybe<Map<String, KBPEntity>> search(int ruleIndex) {
+      rule = compiledRules[ruleIndex];
+      Arrays.fill(bindings, null);
+      bindings[0] = pivot;
+      heads[0] = rule.allHeads();
+      if (!search(0, pivot, 0, Maybe.Just(pivotType()))) { return Maybe.Nothing(); }
+      Map<String, KBPEntity> result = new HashMap<String, KBPEntity>();
+      for (int v = 0; v < rule.variables.length; ++v) {
+        if (bindings[v] != null) { result.put(rule.variables[v], bindings[v]); }
+      }
+      return Maybe.Just(result);
+    }
+
+    /**
+     * One call of match(), for the predicates in heads[depth].
+     * @param x0 The entity just bound to the variable var.
+     * @param type The type to check unary predicates on x0 against, if known.
+     */
+    private boolean search(int depth, KBPEntity x0, int var, Maybe<NERTag> type) {
+      int remaining = heads[depth];
+      // At the very bottom, just verify that this slot is valid
+      if (remaining == 0) { return checkTail(); }
+      int first = remaining & rule.predicatesOn[var];
+      heads[depth + 1] = remaining & ~rule.predicatesOn[var];
+      KBPEntity x0Vertex = null;
+      for (int todo = first; todo != 0; todo &= todo - 1) {
+        int p = Integer.numberOfTrailingZeros(todo);
+        Predicate pred = rule.rule.heads.get(p);
+        if (pred.isUnary()) {
+          if (!pred.matchUnary(x0, type)) { return false; }
+          continue;
+        }
+        if (x0Vertex == null) { x0Vertex = vertex(x0); }
+        int target = rule.arg2[p];
+        boolean matched = false;
+        for (KBPSlotFill fill : edges(x0Vertex, pred.relation)) {
+          KBPEntity slotEntity = fill.key.getSlotEntity().orCrash();
+          if (bindings[target] != null) {
+            if (slotEntity.name.equals(bindings[target].name)) { matched = true; break; }
+          } else {
+            KBPEntity unified = child(x0, slotEntity.name).getOrElse(slotEntity);
+            bindings[target] = unified;
+            if (search(depth + 1, unified, target, fill.key.slotType)) { matched = true; break; }
+            bindings[target] = null;
+          }
+        }
+        if (!matched) { return false; }
+      }
+      // As match() does, take the predicates the children left for our own
+      heads[depth] = heads[depth + 1];
+      return true;
+    }
+
+    private boolean checkTail() {
+      List<KBPSlotFill> fill = Collections.singletonList(rule.rule.tail.apply(bindings[rule.tailArg1], bindings[rule.tailArg2], graph));
+      if (irComponent.isDefined()) {
+        fill = SlotfillPostProcessor.unary(irComponent.get()).postProcess(pivot, fill);
+      }
+      return fill.size() > 0;
+    }
+
+    private NERTag pivotType() {
+      if (pivotType == null) { pivotType = graph.guessType(pivot); }
+      return pivotType;
+    }
+
+    /** The vertex of an entity, as match() finds it */
+    private KBPEntity vertex(KBPEntity entity) {
+      KBPEntity vertex = vertices.get(entity);
+      if (vertex == null) {
+        vertex = graph.findEntity(entity).getOrElse(entity);
+        vertices.put(entity, vertex);
+      }
+      return vertex;
+    }
+
+    /** The edges of a relation out of a vertex */
+    private List<KBPSlotFill> edges(KBPEntity vertex, String relation) {
+      Map<String, List<KBPSlotFill>> byRelation = edges.get(vertex);
+      if (byRelation == null) {
+        byRelation = new HashMap<String, List<KBPSlotFill>>(4);
+        edges.put(vertex, byRelation);
+      }
+      List<KBPSlotFill> result = byRelation.get(relation);
+      if (result == null) {
+        result = graph.relation(vertex, relation);
+        byRelation.put(relation, result);
+      }
+      return result;
+    }
+
+    /** The child of an entity with the given name */
+    private Maybe<KBPEntity> child(KBPEntity entity, String name) {
+      Map<String, Maybe<KBPEntity>> byName = children.get(entity);
+      if (byName == null) {
+        byName = new HashMap<String, Maybe<KBPEntity>>(4);
+        children.put(entity, byName);
+      }
+      Maybe<KBPEntity> result = byName.get(name);
+      if (result == null) {
+        result = graph.findEntity(entity, name);
+        byName.put(name, result);
+      }
+      return result;
+    }
+  }
+}
@@ -8,7 +8,10 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.text.DecimalFormat;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import edu.stanford.nlp.kbp.entitylinking.classify.namematcher.RuleBasedNameMatcher;
 //import edu.stanford.nlp.kbp.slotfilling.SlotfillingTasks;
@@ -47,6 +50,8 @@ import edu.stanford.nlp.util.logging.Redwood;
 public class SimpleSlotFiller implements SlotFiller {
 
   protected static final Redwood.RedwoodChannels logger = Redwood.channels("Infer");
+  /** The number of candidate sentences annotated by a single task when annotating on multiple threads */
+  private static final int ANNOTATE_CHUNK_SIZE = 16;
 
   // Defining Instance Variables
   protected final Properties props;
@@ -54,10 +59,19 @@ public class SimpleSlotFiller implements SlotFiller {
   public final KBPProcess process;
   public final RelationClassifier classifyComponent;
   public final Maybe<RelationFilter> relationFilterForFeaturizer;
-  public List<SentenceTriple> sentenceRecords = new ArrayList<SentenceTriple>();
-  StanfordCoreNLP mypipeline = null;
-  List<CoreMap> rawSentences=null;
-  HashMap<String,HashMap<String,ArrayList<SentenceDouble>>> sentencesContainer=null;
+  /**
+   * The idle pipelines the candidate sentences are annotated with.
+   * Some of their annotators (e.g., dcoref) are not thread-safe, so every pipeline has its own instances of those,
+   * and is borrowed by one thread at a time; see {@link SimpleSlotFiller#newPipeline(Properties)} and
+   * {@link SimpleSlotFiller#borrowPipeline()}.
+   */
+  private final BlockingQueue<AnnotationPipeline> pipelines = new LinkedBlockingQueue<AnnotationPipeline>();
+  /** The number of pipelines created so far; at most {@link Props#PROCESS_THREADS} */
+  private int numPipelines = 0;
+  /** A persistent cache of the annotations the pipelines produce, if enabled */
+  public final Maybe<AnnotationCache> annotationCache;
+  /** The candidate sentences for each query; these are read from disk one query at a time */
+  protected final CandidateSentenceStore candidateSentences;
   
   /**
    * Used to keep track of all the (entity, slot fill candidate) pairs recovered via IR
@@ -100,63 +114,93 @@ public class SimpleSlotFiller implements SlotFiller {
       this.irComponent = ir;
     }
     
-    mypipeline = new StanfordCoreNLP(props);
+    pipelines.add(newPipeline(props));
+    numPipelines = 1;
+    if (Props.CACHE_ANNOTATIONS_DO) {
+      this.annotationCache = Maybe.Just(new AnnotationCache(Props.CACHE_ANNOTATIONS_DIR, Props.CACHE_ANNOTATIONS_MAXMB * 1024 * 1024, props));
+    } else {
+      this.annotationCache = Maybe.Nothing();
+    }
 
-    /*populate sentences container*/
-    sentencesContainer=new HashMap<String,HashMap<String,ArrayList<SentenceDouble>>>();
     try {
-		BufferedReader br = new BufferedReader(new FileReader("/var/local/vidhoon/thesis/stanford-RE/candidate_sentences.txt"));
-		String text;
-		String delimiter="\t";
-		while((text=br.readLine()) != null){
-			//content+=text;
-			String[] fields=text.split(delimiter);
-			String eid=fields[0];//eid
-			String rn=fields[1];//relation name
-			String sent=fields[8];//sentence text			
-			String prov=fields[3]; //total provenance string
-			SentenceDouble sentRecord=new SentenceDouble(sent,prov);
-			//System.out.println("Inserting record for "+eid);
-			if(sentencesContainer.containsKey(eid)){
-				HashMap<String,ArrayList<SentenceDouble>> entitySentMap=sentencesContainer.get(eid);
-				if(entitySentMap.containsKey(rn)){
-					ArrayList<SentenceDouble> entityRelSents=entitySentMap.get(rn);					
-					entityRelSents.add(sentRecord);
-					entitySentMap.put(rn, entityRelSents);
-					sentencesContainer.put(eid, entitySentMap);
-				}
-				else{
-					//no sentences for that relation
-					ArrayList<SentenceDouble> entityRelSents=new ArrayList<SentenceDouble>();
-					entityRelSents.add(sentRecord);
-					entitySentMap.put(rn, entityRelSents);
-					sentencesContainer.put(eid, entitySentMap);
-				}
-			}
-			else{
-				//no entry for the entity itself
-				HashMap<String,ArrayList<SentenceDouble>> entitySentMap=new HashMap<String,ArrayList<SentenceDouble>>();
-				ArrayList<SentenceDouble> entityRelSents=new ArrayList<SentenceDouble>();
-				entityRelSents.add(sentRecord);
-				entitySentMap.put(rn, entityRelSents);
-				sentencesContainer.put(eid, entitySentMap);
-			}
+      candidateSentences = CandidateSentenceStore.open(Props.TEST_CANDIDATESENTENCES, Props.CACHE_CANDIDATESENTENCES_DIR);
+    } catch (IOException e) {
+      throw new RuntimeException("Could not open candidate sentences: " + Props.TEST_CANDIDATESENTENCES, e);
+    }
+  }
 
-		}	
-		br.close();
+  /**
+   * The state accumulated while filling slots for a single query.
+   * This is kept out of the instance fields so that {@link SimpleSlotFiller#fillSlots(KBPOfficialEntity)}
+   * can be called for multiple queries concurrently.
+   */
+  protected static class QueryState {
+    public final KBPOfficialEntity entity;
+    /** The candidate sentences retrieved for this query; these are the candidates for provenance */
+    public List<CoreMap> rawSentences = new ArrayList<CoreMap>();
+    /** The candidate sentences for this query, keyed by relation; their provenances are filled in as they are annotated */
+    public Map<String, ArrayList<SentenceDouble>> candidates = Collections.emptyMap();
+    private ProvenanceIndex provenanceIndex = null;
+    /** The datums of each raw sentence (by entity and index), as featurized for provenance; shared by all the slot fills of the query */
+    private final Map<Pair<KBPEntity, Integer>, SentenceDatums> provenanceDatums = new HashMap<Pair<KBPEntity, Integer>, SentenceDatums>();
+
+    public QueryState(KBPOfficialEntity entity) {
+      this.entity = entity;
+    }
 
+    /** An index over the candidate sentences for provenance lookup; this is built on first use, once the candidates are known */
+    public ProvenanceIndex provenanceIndex() {
+      if (provenanceIndex == null) {
+        provenanceIndex = new ProvenanceIndex(candidates);
+      }
+      return provenanceIndex;
     }
-    catch (IOException e) {
-		// TODO Auto-generated catch block
-		e.printStackTrace();
-	}
-    
-    
+  }
+
+  /**
+   * The datums featurized from a single candidate sentence when finding provenance, along with
+   * the classifier's score of each (datum, relation) pair which has been asked for.
+   * These depend only on the sentence, and not on the slot fill, so are computed at most once per query.
+   */
+  protected static class SentenceDatums {
+    public final Map<KBPair, SentenceGroup> datums;
+    private final Map<Pair<KBPair, RelationType>, Pair<Double, Maybe<KBPRelationProvenance>>> scores = new HashMap<Pair<KBPair, RelationType>, Pair<Double, Maybe<KBPRelationProvenance>>>();
+
+    public SentenceDatums(Map<KBPair, SentenceGroup> datums) {
+      this.datums = datums;
+    }
+  }
+
+  /** Get the datums of a raw sentence of the query for provenance, annotating and featurizing it only the first time it is asked for */
+  private SentenceDatums provenanceDatums(QueryState state, KBPEntity entity, int sentenceIndex, CoreMap sentence) {
+    Pair<KBPEntity, Integer> cacheKey = Pair.makePair(entity, sentenceIndex);
+    SentenceDatums cached = state.provenanceDatums.get(cacheKey);
+    if (cached == null) {
+      Annotation ann = new Annotation("");
+      List<CoreMap> sentences = Arrays.asList(sentence);
+      sentences = this.process.annotateSentenceFeatures(entity, sentences);
+      ann.set(CoreAnnotations.SentencesAnnotation.class, sentences);
+      cached = new SentenceDatums(this.process.featurize(ann));
+      state.provenanceDatums.put(cacheKey, cached);
+    }
+    return cached;
+  }
+
+  /** Classify a datum of a raw sentence for provenance, only calling the classifier the first time it is asked for */
+  private Pair<Double, Maybe<KBPRelationProvenance>> provenanceScore(SentenceDatums sentenceDatums, KBPair pair, RelationType relation) {
+    Pair<KBPair, RelationType> cacheKey = Pair.makePair(pair, relation);
+    Pair<Double, Maybe<KBPRelationProvenance>> score = sentenceDatums.scores.get(cacheKey);
+    if (score == null) {
+      score = this.classifyComponent.classifyRelation(sentenceDatums.datums.get(pair), relation, Maybe.<CoreMap[]>Nothing());
+      sentenceDatums.scores.put(cacheKey, score);
+    }
+    return score;
   }
 
   @Override
   public List<KBPSlotFill> fillSlots(final KBPOfficialEntity queryEntity) {
     startTrack("Annotating " + queryEntity);
+    final QueryState state = new QueryState(queryEntity);
 
     // -- Raw Classification
     startTrack("Raw Annotation");
@@ -164,7 +208,7 @@ public class SimpleSlotFiller implements SlotFiller {
     // Each of these tuples effectively represents (e_1, e_2, [datums]) where e_1 is the query entity.
     final Pair<? extends List<SentenceGroup>, ? extends Map<KBPair, CoreMap[]>> datumsAndSentences =
         Props.TEST_GOLDSLOTS ? Pair.makePair(new ArrayList<SentenceGroup>(), new HashMap<KBPair, CoreMap[]>())
-                             : queryAndProcessSentences(queryEntity, Props.TEST_SENTENCES_PER_ENTITY);
+                             : queryAndProcessSentences(state, Props.TEST_SENTENCES_PER_ENTITY);
         
     if(datumsAndSentences==null){
     	//no candidate sentences for the query
@@ -291,7 +335,7 @@ public class SimpleSlotFiller implements SlotFiller {
     // Filter on missing provenance
     List<KBPSlotFill> withProvenance = new ArrayList<KBPSlotFill>(cleanRelations.size());
     for (KBPSlotFill fill : cleanRelations) {     		
-     		fill.provenance=findBestProvenance(queryEntity, fill);
+     		fill.provenance=findBestProvenance(queryEntity, fill, state);
      		//System.out.println();
     		  //KBPNew.from(fill).provenance(findBestProvenance(queryEntity, fill)).KBPSlotFill();
       if ((!Props.TEST_PROVENANCE_DO || (fill.provenance.isDefined() /* && augmented.provenance.get().isOfficial()*/) ) && fill.provenance.get()!=null ) {
@@ -305,7 +349,7 @@ public class SimpleSlotFiller implements SlotFiller {
     for (KBPSlotFill slot : withProvenance) { goldResponses.registerResponse(slot); } // re-register after provenance
     logger.log("" + withProvenance.size() + " slot fills remain after provenance");
     // Run consistency pass 2
-    List<KBPSlotFill> consistentRelations = finalConsistencyAndProvenancePass(queryEntity, withProvenance, goldResponses);
+    List<KBPSlotFill> consistentRelations = finalConsistencyAndProvenancePass(queryEntity, state, withProvenance, goldResponses);
     */
     endTrack("Consistency and Inference");
    
@@ -323,14 +367,139 @@ public class SimpleSlotFiller implements SlotFiller {
   // Public Utilities
   //
   
-  private List<CoreMap> myquerySentences(KBPOfficialEntity entity,int sentLimit){
+  /** The annotators which cannot annotate several documents at once; every pooled pipeline creates its own */
+  private static final Set<String> UNSHARED_ANNOTATORS = Collections.singleton("dcoref");
+
+  /**
+   * Create a pipeline running the annotators of the given properties, for the pool of pipelines.
+   * Runs of annotators which CoreNLP runs on several documents at once (e.g., tokenize, pos, parse) are built by a
+   * StanfordCoreNLP, and so are shared through its annotator pool, as with any other StanfordCoreNLP; the annotators
+   * which are not thread-safe ({@link SimpleSlotFiller#UNSHARED_ANNOTATORS}) are created explicitly, for this pipeline
+   * alone. StanfordCoreNLP's global annotator pool is left as it is.
+   */
+  private static AnnotationPipeline newPipeline(Properties props) {
+    AnnotationPipeline pipeline = new AnnotationPipeline();
+    List<String> shared = new ArrayList<String>();
+    boolean first = true;
+    for (String name : props.getProperty("annotators", "").trim().split("[,\\s]+")) {
+      if (name.isEmpty()) { continue; }
+      if (!UNSHARED_ANNOTATORS.contains(name)) {
+        shared.add(name);
+        continue;
+      }
+      if (!shared.isEmpty()) {
+        pipeline.addAnnotator(sharedAnnotators(props, shared, first));
+        shared.clear();
+      }
+      pipeline.addAnnotator(new DeterministicCorefAnnotator(props));
+      first = false;
+    }
+    if (!shared.isEmpty()) {
+      pipeline.addAnnotator(sharedAnnotators(props, shared, first));
+    }
+    return pipeline;
+  }
+
+  /**
+   * A StanfordCoreNLP running just the given annotators, from its shared annotator pool.
+   * @param enforceRequirements False if the annotators run after others, which satisfy their requirements.
+   */
+  private static StanfordCoreNLP sharedAnnotators(Properties props, List<String> names, boolean enforceRequirements) {
+    Properties runProps = new Properties();
+    for (String key : props.stringPropertyNames()) { runProps.setProperty(key, props.getProperty(key)); }
+    runProps.setProperty("annotators", StringUtils.join(names, ","));
+    return new StanfordCoreNLP(runProps, enforceRequirements);
+  }
+
+  /**
+   * Take an idle pipeline for the exclusive use of this thread, creating one if fewer than {@link Props#PROCESS_THREADS}
+   * exist, and waiting for one to be returned otherwise.
+   * The pipeline must be handed back with {@link SimpleSlotFiller#returnPipeline(AnnotationPipeline)}.
+   */
+  private AnnotationPipeline borrowPipeline() {
+    AnnotationPipeline pipeline = pipelines.poll();
+    if (pipeline != null) { return pipeline; }
+    synchronized (pipelines) {
+      if (numPipelines < Math.max(1, Props.PROCESS_THREADS)) {
+        numPipelines += 1;
+        logger.log("creating annotation pipeline " + numPipelines);
+        return newPipeline(props);
+      }
+    }
+    try {
+      return pipelines.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+  }
+
+  private void returnPipeline(AnnotationPipeline pipeline) {
+    pipelines.add(pipeline);
+  }
+
+  /**
+   * Annotate candidate sentences with the full CoreNLP pipeline and PostIR.
+   * Each candidate is annotated as its own document, so that no coreference is found between unrelated sentences;
+   * the candidates are annotated in chunks on {@link Props#PROCESS_THREADS} threads, each with a pipeline of its own.
+   * If the annotation cache is enabled, CoreNLP is only run on the candidates which are not already cached.
+   * @param entity The query entity, for PostIR annotation
+   * @param candidates The candidate sentences to annotate
+   * @return For each candidate, in order, the sentences it was split into
+   */
+  private List<List<CoreMap>> annotateCandidates(KBPOfficialEntity entity, final List<SentenceDouble> candidates) {
+    final PostIRAnnotator postirAnn = new PostIRAnnotator(entity.name, Maybe.<String>Nothing(), Maybe.<String>Nothing(), Maybe.<String>Nothing(), true);
+    final List<List<CoreMap>> annotated = new ArrayList<List<CoreMap>>(Collections.<List<CoreMap>>nCopies(candidates.size(), null));
+    List<Runnable> tasks = new ArrayList<Runnable>();
+    for (int start = 0; start < candidates.size(); start += ANNOTATE_CHUNK_SIZE) {
+      final int chunkStart = start;
+      final int chunkEnd = Math.min(candidates.size(), start + ANNOTATE_CHUNK_SIZE);
+      tasks.add(new Runnable() {
+        @Override
+        public void run() {
+          AnnotationPipeline pipeline = null;
+          try {
+            for (int i = chunkStart; i < chunkEnd; ++i) {
+              String text = candidates.get(i).sentence;
+              Annotation document = null;
+              for (AnnotationCache cache : annotationCache) { document = cache.get(text).orNull(); }
+              if (document == null) {
+                if (pipeline == null) { pipeline = borrowPipeline(); }
+                document = new Annotation(text);
+                pipeline.annotate(document);
+                for (AnnotationCache cache : annotationCache) { cache.put(text, document); }
+              }
+              postirAnn.annotate(document);
+              annotated.set(i, document.get(SentencesAnnotation.class));
+            }
+          } finally {
+            if (pipeline != null) { returnPipeline(pipeline); }
+          }
+        }
+      });
+    }
+    long startTime = System.currentTimeMillis();
+    if (Props.PROCESS_THREADS <= 1 || tasks.size() <= 1) {
+      for (Runnable task : tasks) { task.run(); }
+    } else {
+      threadAndRun("Annotating " + candidates.size() + " candidate sentences", tasks, Props.PROCESS_THREADS);
+    }
+    logger.log("annotated " + candidates.size() + " candidate sentences on " + Math.max(1, Props.PROCESS_THREADS) + " threads at "
+        + new DecimalFormat("0.00").format(1000.0 * candidates.size() / Math.max(1, System.currentTimeMillis() - startTime)) + " sentences/second");
+    return annotated;
+  }
+
+  private List<CoreMap> myquerySentences(QueryState state,int sentLimit){
+	  KBPOfficialEntity entity = state.entity;
 	  List<CoreMap> resultSentences = new ArrayList<CoreMap>();
 	  System.out.println("querying sentences for "+entity.queryId);
 	  int counter=0;
-	  if(sentencesContainer.containsKey(entity.queryId.get())){
+	  Maybe<HashMap<String,ArrayList<SentenceDouble>>> candidates = candidateSentences.get(entity.queryId.get());
+	  if(candidates.isDefined()){
 		  HashSet<String> sentSet = new HashSet<String>();
-		  HashMap<String,ArrayList<SentenceDouble>> entitySentMap=sentencesContainer.get(entity.queryId.get());
-		  PostIRAnnotator postirAnn=new PostIRAnnotator(entity.name, Maybe.<String>Nothing(), Maybe.<String>Nothing(), Maybe.<String>Nothing(), true);
+		  HashMap<String,ArrayList<SentenceDouble>> entitySentMap=candidates.get();
+		  state.candidates = entitySentMap;
+		  List<SentenceDouble> unique = new ArrayList<SentenceDouble>();
 		  for(String key:entitySentMap.keySet()){
 			  ArrayList<SentenceDouble> entityRelSents=entitySentMap.get(key);
 			  for(SentenceDouble sd : entityRelSents){
@@ -340,22 +509,25 @@ public class SimpleSlotFiller implements SlotFiller {
 				  else{
 					  sentSet.add(sd.sentence);
 				  }
-				  if(resultSentences.size()>sentLimit)
-					  break;
-				  //System.out.println("processing  --  "+sd.sentence);
+				  unique.add(sd);
+			  }
+		  }
+
+		  // Annotate the candidates in batches, and align them back to their provenances.
+		  // As before, candidates are taken until more than sentLimit sentences (not candidates) have been found;
+		  // since a candidate splits into at least one sentence, a batch is no larger than the number of sentences still needed.
+		  int next = 0;
+		  while (next < unique.size() && resultSentences.size() <= sentLimit) {
+			  int batchSize = (int) Math.min(unique.size() - next, (long) sentLimit - resultSentences.size() + 1);
+			  List<SentenceDouble> batch = unique.subList(next, next + batchSize);
+			  next += batchSize;
+			  List<List<CoreMap>> annotated = annotateCandidates(entity, batch);
+			  for (int i = 0; i < batch.size() && resultSentences.size() <= sentLimit; ++i) {
 				  counter++;
-				  
-				  Annotation document = new Annotation(sd.sentence);
-				  mypipeline.annotate(document);				
-				  postirAnn.annotate(document);
-				  List<CoreMap> tempResults  = document.get(SentencesAnnotation.class);
-				 
-				  
-				  for(CoreMap res : tempResults){
-					  //	System.out.println("coremap: "+res);
-						resultSentences.add(res);
-						sd.provenance.containingSentenceLossy=Maybe.Just(res);
-				  }					
+				  for(CoreMap res : annotated.get(i)){
+					  resultSentences.add(res);
+					  batch.get(i).provenance.containingSentenceLossy=Maybe.Just(res);
+				  }
 			  }
 		  }
 		  
@@ -414,11 +586,12 @@ public class SimpleSlotFiller implements SlotFiller {
    * Runs a final pass for consistency and get any provenances that haven't been retrieved yet.
    *
    * @param queryEntity The entity we we are checking slots for
+   * @param state The state of the query, whose sentences are the candidate provenances
    * @param slotFills The candidate slot fills to filter for consistency
    * @param responseChecklist The response checklist to register fills that have been added or removed
    * @return A list of slot fills, guaranteed to be consistent and with provenance
    */
-  protected List<KBPSlotFill> finalConsistencyAndProvenancePass(KBPOfficialEntity queryEntity, List<KBPSlotFill> slotFills, GoldResponseSet responseChecklist) {
+  protected List<KBPSlotFill> finalConsistencyAndProvenancePass(KBPOfficialEntity queryEntity, QueryState state, List<KBPSlotFill> slotFills, GoldResponseSet responseChecklist) {
     // Run consistency pass 2
     List<KBPSlotFill> consistentRelations
       = Props.TEST_CONSISTENCY_DO ? SlotfillPostProcessor.global(irComponent).postProcess(queryEntity, slotFills, responseChecklist) : slotFills;
@@ -427,7 +600,7 @@ public class SimpleSlotFiller implements SlotFiller {
     List<KBPSlotFill> finalRelations = new ArrayList<KBPSlotFill>();
     for (KBPSlotFill fill : consistentRelations) {
       assert fill != null;
-      KBPSlotFill augmented = KBPNew.from(fill).provenance(findBestProvenance(queryEntity, fill)).KBPSlotFill();
+      KBPSlotFill augmented = KBPNew.from(fill).provenance(findBestProvenance(queryEntity, fill, state)).KBPSlotFill();
       if (!Props.TEST_PROVENANCE_DO || (augmented.provenance.isDefined() && augmented.provenance.get().isOfficial())) {
         finalRelations.add(augmented);
       } else {
@@ -444,18 +617,33 @@ public class SimpleSlotFiller implements SlotFiller {
     return finalRelations;
   }
 
+  /**
+   * Read and annotate the candidate sentences of a query, and store them in its state as its raw sentences;
+   * these are the candidate provenances for its slot fills.
+   *
+   * @param state The state of the query; its candidates are set as well.
+   * @return The raw sentences, or null if there are no candidate sentences for the query.
+   */
+  protected List<CoreMap> retrieveRawSentences(QueryState state, int sentencesPerEntity) {
+    List<CoreMap> rawSentences = myquerySentences(state, sentencesPerEntity);
+    if (rawSentences != null) { state.rawSentences = rawSentences; }
+    return rawSentences;
+  }
+
   /**
    * Query and annotate a KBPOfficialEntity to get a featurized and annotated KBPTuple.
    *
-   * @param entity The entity to query. This is a fancy way of saying "Obama"
+   * @param state The state of the query being processed; its entity is a fancy way of saying "Obama".
+   *              The raw sentences retrieved are stored in this state.
    * @return A list of featurized datums, and a collection of raw sentences (for rule-based annotators)
    */
-  private Pair<List<SentenceGroup>, Map<KBPair, CoreMap[]>> queryAndProcessSentences(KBPOfficialEntity entity, int sentencesPerEntity) {
+  private Pair<List<SentenceGroup>, Map<KBPair, CoreMap[]>> queryAndProcessSentences(QueryState state, int sentencesPerEntity) {
+    KBPOfficialEntity entity = state.entity;
     startTrack("Processing " + entity + " [" + sentencesPerEntity + " sentences max]");
 
     // -- IR
     // Get supporting sentences
-    rawSentences = myquerySentences(entity, sentencesPerEntity);
+    List<CoreMap> rawSentences = retrieveRawSentences(state, sentencesPerEntity);
     if(rawSentences==null){
     	return null;
     }
@@ -495,85 +683,24 @@ public class SimpleSlotFiller implements SlotFiller {
   }
 
 
-  protected KBPRelationProvenance getProvenance(String qid, String sentence, KBTriple key){
-//	  System.out.println( "get provenance for: "+sentence + " relation name: "+key.relationName);
-//	  System.out.println("querying sentences for "+qid);
-	  if(sentencesContainer.containsKey(qid)){
-		  HashMap<String,ArrayList<SentenceDouble>> entitySentMap=sentencesContainer.get(qid);
-		  if(entitySentMap.containsKey(key.relationName)){
-			  ArrayList<SentenceDouble> entityRelSents=entitySentMap.get(key.relationName);
-			  for(SentenceDouble sd : entityRelSents){
-				 if(sd.sentence.equals(sentence)){
-					 return sd.provenance;
-				 }
-			  }
-			  /*
-			  //sentence not found in that relation - try all other relations to see if the sentence is present and return provenance
-			  for(String k : entitySentMap.keySet()){
-				  ArrayList<SentenceDouble> erSents=entitySentMap.get(key.relationName);
-				  for(SentenceDouble sd : erSents){
-					 if(sd.sentence.equals(sentence)){
-						 return sd.provenance;
-					 }
-				  }
-			  }
-			  */
-			  
-			  //none of the relations contained the sentence - something is horribly wrong
-			 // System.out.println("Could nt find sentence against any relation - classifier has identified a new relation for a sentence");
-			  return null;
-		  }	  
-		  else if(key.relationName.equals("per:member_of") || key.relationName.equals("per:employee_of")){
-			  String rn= new String("per:employee_or_member_of");
-			  if(entitySentMap.containsKey(rn)){
-				  ArrayList<SentenceDouble> entityRelSents=entitySentMap.get(rn);
-				  for(SentenceDouble sd : entityRelSents){
-					 if(sd.sentence.equals(sentence)){
-						 return sd.provenance;
-					 }
-				  }
-				  return null;
-			  }
-			  else{
-				//  System.out.println("relation not found!!!! for provenance");
-				  return null;
-			  }
-			  
-		  }
-		  else{
-			 // System.out.println("relation not found!!!! for provenance");
-			  return null;
-		  }
-		 
-		  
-	  }
-	  else{
-	//	  System.out.println("returning null for "+qid);
-		  return null;
-	  }
-
-	  
-/*	  
-	  for(SentenceTriple sentRecord : sentenceRecords){
-		 
-		  String sent=sentRecord.sentence;
-		  String rel=sentRecord.relationType;
-		//  System.out.println( "sentence record " +sent);
-		  if(sent.equals(sentence) && rel.equals(key.relationName)){
-			  System.out.println( "sentence record found");
-			// System.out.println( sentRecord.provenance.toString());
-			 return sentRecord.provenance;
-		  }
-		  else if(sent.equals(sentence) && rel.equals("per:employee_or_member_of") && ( key.relationName.equals("per:employee") || key.relationName.equals("per:member_of"))){
-			  System.out.println( "sentence record found - hack");
-				 //System.out.println( sentRecord.provenance.toString());
-				 return sentRecord.provenance;
-		  }
-	  }
-*/	  
-	 
+  /**
+   * Get the provenance of a candidate sentence for a slot fill's relation.
+   * @param state The state of the query; the sentence is looked up in its candidate sentences.
+   * @param sentence The text of the sentence.
+   * @param key The slot fill the sentence is a candidate for.
+   * @return The provenance of the sentence, or null if it is not a candidate for this relation.
+   */
+  protected KBPRelationProvenance getProvenance(QueryState state, String sentence, KBTriple key){
+    return state.provenanceIndex().get(key.relationName, sentence).orNull();
   }
-  protected Maybe<KBPRelationProvenance> findBestProvenance(final KBPOfficialEntity entity, final KBPSlotFill fill) {
+
+  /**
+   * Find the best provenance for a slot fill, considering the given sentences as candidates.
+   * @param entity The query entity the slot fill is for
+   * @param fill The slot fill to find a provenance for
+   * @param state The state of the query; its raw sentences are used as candidate provenances
+   */
+  protected Maybe<KBPRelationProvenance> findBestProvenance(final KBPOfficialEntity entity, final KBPSlotFill fill, QueryState state) {
     if (!Props.TEST_PROVENANCE_DO) { return fill.provenance.orElse(Maybe.Just(new KBPRelationProvenance("unk_id", "/unk/index"))); }
     startTrack("Provenance For " + fill);
     final Pointer<KBPRelationProvenance> bestProvenance = new Pointer<KBPRelationProvenance>();
@@ -619,11 +746,12 @@ public class SimpleSlotFiller implements SlotFiller {
 //        List<CoreMap> potentialProvenances = this.irComponent.querySentences(entity.name, key.slotValue, key.relationName, 25, true);
 
         // List<CoreMap> potentialProvenances = myquerySentences(entity);
-        List<CoreMap> potentialProvenances = rawSentences;
+        List<CoreMap> potentialProvenances = state.rawSentences;
         
 //        if (!key.slotValue.equals(slotValue)) { potentialProvenances.addAll(this.irComponent.querySentences(entity.name, key.slotValue, key.relationName, 25, true)); }
 //        if (!entity.name.equals(entityName)) { potentialProvenances.addAll(this.irComponent.querySentences(entityName, key.slotValue, key.relationName, 25, true)); }
-        for(CoreMap sentence : potentialProvenances) {
+        for (int sentenceI = 0; sentenceI < potentialProvenances.size(); ++sentenceI) {
+          CoreMap sentence = potentialProvenances.get(sentenceI);
           if (sentence.get(CoreAnnotations.TokensAnnotation.class).size() > 150) { continue; }
           // Error check
          /* if (!sentence.containsKey(KBPAnnotations.SourceIndexAnnotation.class) && sentence.get(KBPAnnotations.SourceIndexAnnotation.class).toLowerCase().endsWith(Props.INDEX_OFFICIAL.getName().toLowerCase())) {
@@ -633,11 +761,8 @@ public class SimpleSlotFiller implements SlotFiller {
 
 
           // Try to classify provenance
-          Annotation ann = new Annotation("");
-          List<CoreMap> sentences = Arrays.asList(sentence);
-          sentences = this.process.annotateSentenceFeatures(key.getEntity(), sentences);
-          ann.set(CoreAnnotations.SentencesAnnotation.class, sentences);
-          Map<KBPair, SentenceGroup> datums = this.process.featurize(ann);
+          SentenceDatums sentenceDatums = provenanceDatums(state, key.getEntity(), sentenceI, sentence);
+          Map<KBPair, SentenceGroup> datums = sentenceDatums.datums;
           // Get the best key to match to
           KBPair pair = KBPNew.from(key).KBPair();  // default
           if (!datums.containsKey(pair)) {  // try to find a close match
@@ -659,7 +784,7 @@ public class SimpleSlotFiller implements SlotFiller {
           }
           // Classify
           if (datums.containsKey(pair)) {
-            Pair<Double, Maybe<KBPRelationProvenance>> candidate = this.classifyComponent.classifyRelation(datums.get(pair), RelationType.fromString(key.relationName).orCrash(), Maybe.<CoreMap[]>Nothing());
+            Pair<Double, Maybe<KBPRelationProvenance>> candidate = provenanceScore(sentenceDatums, pair, RelationType.fromString(key.relationName).orCrash());
             if (!bestProvenance.dereference().isDefined() || candidate.first > bestProvenanceProbability) {
               // Candidate provenance found
               boolean updated = false;
@@ -675,7 +800,7 @@ public class SimpleSlotFiller implements SlotFiller {
                 	System.out.println("setting provenance "+fill.key.relationName); bestProvenance.set(provenance); updated = true; 
                 	}
                 	*/
-            	  prov=getProvenance(entity.queryId.get(),sentence.toString(),fill.key);
+            	  prov=getProvenance(state,sentence.toString(),fill.key);
             	  //System.out.println("setting provenance "+fill.key.relationName); 
             	  if(prov==null){
             		//  System.out.println("received null provenance"); 
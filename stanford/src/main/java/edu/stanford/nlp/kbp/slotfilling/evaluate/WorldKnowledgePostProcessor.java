@@ -556,6 +556,11 @@ public class WorldKnowledgePostProcessor extends HeuristicSlotfillPostProcessor.
     }
   }
 
+  @Override
+  protected boolean hasLeaveOneOutConstraint() {
+    return doHoldOneOutConsistency;
+  }
+
   /** Fill in some slot fills we're pretty sure are true. For example, the state for a city */
   @Override
   public Counter<Pair<RelationType, String>> entailsDirectly(KBPEntity pivot, KBPSlotFill antecedent) {
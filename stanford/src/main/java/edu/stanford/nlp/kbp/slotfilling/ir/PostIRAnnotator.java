@@ -472,19 +472,7 @@ public class PostIRAnnotator implements Annotator {
         // The entity should be sufficiently long, it should match as an acronym, and it should not be clustered with anything yet
         String text = token.containsKey(OriginalTextAnnotation.class) ? token.originalText() : token.word();
         if (toMatchTokens.length >= 3 && text.length() >= 3) {
-          boolean isAcronym = true;
-          int indexInText = 0;
-          for (String toMatchToken : toMatchTokens) {
-            if (toMatchToken.length() == 0) { isAcronym = false; break; }    // Token is empty (for some strange reason)
-            if (indexInText >= text.length()) { isAcronym = false; break; }  // candidate acronym is too short
-            if (Character.toUpperCase(toMatchToken.charAt(0)) == text.charAt(indexInText)) { indexInText += 1; continue; }  // we match the word
-            if (dictionaries.stopWords.contains(toMatchToken.toLowerCase())) {
-              if (toMatchToken.charAt(0) == text.charAt(indexInText)) { indexInText += 1; continue; }  // we match lowercase stop word (e.g., BoA)
-              else { continue; } // Ignore stop words
-            }
-            isAcronym = false; break;  // default: no match
-          }
-          if (isAcronym) {
+          if (isAcronym(text, toMatchTokens)) {
             logger.debug("expanded acronym: " + text + " to " + StringUtils.join(toMatchTokens));
             // Set antecedent
             token.set(AntecedentAnnotation.class, toMatch);
@@ -510,6 +498,27 @@ public class PostIRAnnotator implements Annotator {
     }
   }
 
+  /**
+   * Check whether a token is an acronym of the item to match.
+   * @param text The text of the token.
+   * @param toMatchTokens The tokenized gloss of the item to match.
+   * @return True if every non-stop word of the item to match contributes the next letter of the text.
+   */
+  private static boolean isAcronym(String text, String[] toMatchTokens) {
+    int indexInText = 0;
+    for (String toMatchToken : toMatchTokens) {
+      if (toMatchToken.length() == 0) { return false; }    // Token is empty (for some strange reason)
+      if (indexInText >= text.length()) { return false; }  // candidate acronym is too short
+      if (Character.toUpperCase(toMatchToken.charAt(0)) == text.charAt(indexInText)) { indexInText += 1; continue; }  // we match the word
+      if (dictionaries.stopWords.contains(toMatchToken.toLowerCase())) {
+        if (toMatchToken.charAt(0) == text.charAt(indexInText)) { indexInText += 1; continue; }  // we match lowercase stop word (e.g., BoA)
+        else { continue; } // Ignore stop words
+      }
+      return false;  // default: no match
+    }
+    return true;
+  }
+
   /**
    * Try to find the largest enclosing consistent named entity span from the initial starting point.
    * Behavior is undefined (returns Maybe.Nothing) if the initial span has no, or has inconsistent Named
@@ -699,6 +708,72 @@ public class PostIRAnnotator implements Annotator {
     }
   }
 
+  /**
+   * Copy a document, so that it can be annotated by this annotator without modifying the original.
+   * Unlike {@link CoreMapUtils#copyDocument(Annotation)}, only the tokens this annotator may write to are copied:
+   * tokens in a coref mention, tokens with a Timex, and tokens which could be part of a literal or acronym match
+   * of the entity or slot value. Every other token is shared with the original, and must not be modified through the copy.
+   *
+   * @param document The document to copy. This is not modified.
+   * @return A copy of the document, with new sentences, and new tokens wherever this annotator may annotate a token.
+   */
+  public Annotation copyForAnnotation(Annotation document) {
+    List<CoreMap> sentences = document.get(SentencesAnnotation.class);
+    // Find the tokens in coref mentions
+    List<Set<Integer>> mentionTokens = new ArrayList<Set<Integer>>(sentences.size());
+    for (int sentI = 0; sentI < sentences.size(); ++sentI) { mentionTokens.add(new HashSet<Integer>()); }
+    if (doCoref && document.containsKey(CorefCoreAnnotations.CorefChainAnnotation.class)) {
+      for (CorefChain chain : document.get(CorefCoreAnnotations.CorefChainAnnotation.class).values()) {
+        for (CorefChain.CorefMention mention : chain.getMentionsInTextualOrder()) {
+          for (int i = mention.startIndex; i < mention.endIndex; ++i) { mentionTokens.get(mention.sentNum - 1).add(i - 1); }
+        }
+      }
+    }
+    // Copy the sentences
+    List<CoreMap> newSentences = new ArrayList<CoreMap>(sentences.size());
+    for (int sentI = 0; sentI < sentences.size(); ++sentI) {
+      CoreMap sentence = sentences.get(sentI);
+      CoreMap newSentence = new ArrayCoreMap(sentence);
+      if (sentence.containsKey(KBPAnnotations.AllAntecedentsAnnotation.class)) {
+        newSentence.set(KBPAnnotations.AllAntecedentsAnnotation.class, new HashSet<String>(sentence.get(KBPAnnotations.AllAntecedentsAnnotation.class)));
+      }
+      if (sentence.containsKey(KBPAnnotations.AlternateNamesAnnotation.class)) {
+        newSentence.set(KBPAnnotations.AlternateNamesAnnotation.class, new HashMap<String, Set<Span>>(sentence.get(KBPAnnotations.AlternateNamesAnnotation.class)));
+      }
+      List<CoreLabel> tokens = sentence.get(TokensAnnotation.class);
+      List<CoreLabel> newTokens = new ArrayList<CoreLabel>(tokens.size());
+      for (int i = 0; i < tokens.size(); ++i) {
+        CoreLabel token = tokens.get(i);
+        newTokens.add(mentionTokens.get(sentI).contains(i) || mayAnnotate(token) ? new CoreLabel(token) : token);
+      }
+      newSentence.set(TokensAnnotation.class, newTokens);
+      newSentences.add(newSentence);
+    }
+    Annotation newDocument = new Annotation(document);
+    newDocument.set(SentencesAnnotation.class, newSentences);
+    newDocument.set(DocIDAnnotation.class, document.get(DocIDAnnotation.class));
+    return newDocument;
+  }
+
+  /**
+   * Whether {@link PostIRAnnotator#annotateLiteralCoref(Annotation, String, Maybe, String[])} or
+   * {@link PostIRAnnotator#annotateTimex(Annotation)} could annotate this token.
+   */
+  private boolean mayAnnotate(CoreLabel token) {
+    if (token.containsKey(TimeAnnotations.TimexAnnotation.class)) { return true; }
+    String text = token.containsKey(OriginalTextAnnotation.class) ? token.originalText() : token.word();
+    List<String[]> toMatchTokens = new ArrayList<String[]>();
+    toMatchTokens.add(entityTokens);
+    if (slotValue.isDefined() && slotValueTokens.isDefined()) { toMatchTokens.add(slotValueTokens.get()); }
+    for (String[] toMatch : toMatchTokens) {
+      for (String toMatchToken : toMatch) {
+        if (approximateMatch(toMatchToken, token.originalText()) || approximateMatch(toMatchToken, token.word())) { return true; }
+      }
+      if (toMatch.length >= 3 && text != null && text.length() >= 3 && isAcronym(text, toMatch)) { return true; }
+    }
+    return false;
+  }
+
   /**
    * Uses PostIR annotation to identify relevant sentences.
    * @param document - document you want to annotate.
@@ -33,9 +33,15 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.text.DecimalFormat;
 import java.util.*;
+import java.util.regex.Pattern;
 
 import static edu.stanford.nlp.util.logging.Redwood.Util.*;
 
+/**
+ * Creates the features for a relation mention.
+ * A FeatureFactory holds no state beyond its configuration, and is safe to share between threads
+ * once it has been configured.
+ */
 public class FeatureFactory implements Serializable {
   private static final long serialVersionUID = -7376668998622546620L;
 
@@ -43,6 +49,9 @@ public class FeatureFactory implements Serializable {
 
   public static final String COREF_FEATURE = "is_coref";
 
+  /** Whitespace, which is not allowed in a feature */
+  private static final Pattern WHITESPACE_PATTERN = Pattern.compile("\\s+");
+
   public static enum DEPENDENCY_TYPE {
     BASIC, COLLAPSED, COLLAPSED_CCPROCESSED
   }
@@ -120,7 +129,7 @@ public class FeatureFactory implements Serializable {
 
   // BEGIN GRAFT
   public boolean addFeatures(Collection<String> features, RelationMention rel, List<String> types) {
-    Collection<String> rawFeatures = new ArrayList<String>();
+    Collection<String> rawFeatures = new ArrayList<String>(64);
     boolean retCode = addFeaturesRaw(rawFeatures, rel, types);
     postProcessFeatures(rawFeatures, features);
     return retCode;
@@ -135,8 +144,13 @@ public class FeatureFactory implements Serializable {
 
   private String postProcessFeature(String feat) {
     // do not allow spaces in a feature
-    feat = feat.replaceAll("\\s+", "_");
-
+    // (most features have no whitespace, so only fall back to the regex if there is some)
+    for (int i = 0; i < feat.length(); ++i) {
+      char c = feat.charAt(i);
+      if (c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == '\u000B') {
+        return WHITESPACE_PATTERN.matcher(feat).replaceAll("_");
+      }
+    }
     return feat;
   }
   // END GRAFT
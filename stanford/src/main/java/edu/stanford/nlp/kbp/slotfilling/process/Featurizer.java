@@ -41,12 +41,15 @@ public abstract class Featurizer {
     Counter<String> dupSents = new ClassicCounter<String>();
     
     HashMap<KBPair,Pair<SentenceGroup,List<CoreMap>>> datums = new HashMap<KBPair, Pair<SentenceGroup, List<CoreMap>>>();
-    for (CoreMap sentence : annotation.get(SentencesAnnotation.class)) {
+    List<CoreMap> sentences = annotation.get(SentencesAnnotation.class);
+    List<List<SentenceGroup>> featurizedSentences = featurizeSentences(sentences, relationFilter);
+    for (int sentI = 0; sentI < sentences.size(); ++sentI) {
+      CoreMap sentence = sentences.get(sentI);
       
       //debug: count duplicate sentences
       dupSents.incrementCount(CoreMapUtils.sentenceToMinimalString(sentence));
       
-      for(SentenceGroup sg : featurizeSentence(sentence, relationFilter)) {
+      for(SentenceGroup sg : featurizedSentences.get(sentI)) {
         KBPair key = sg.key;
         if( !datums.containsKey(key) ) {
           //TODO (arun) change to SentenceGroup.empty
@@ -69,6 +72,23 @@ public abstract class Featurizer {
     return datums;
   }
   
+  /**
+   * Featurize each of |sentences|, in order.
+   * By default this simply calls {@link Featurizer#featurizeSentence(CoreMap, Maybe)} on each sentence;
+   * implementations may override this to featurize sentences in parallel.
+   *
+   * @param sentences The sentences to featurize
+   * @param relationFilter Optional relation filter for within-sentence filtering
+   * @return For each sentence, the list of singleton sentence groups for that sentence.
+   */
+  protected List<List<SentenceGroup>> featurizeSentences(List<CoreMap> sentences, Maybe<RelationFilter> relationFilter) {
+    List<List<SentenceGroup>> featurized = new ArrayList<List<SentenceGroup>>(sentences.size());
+    for (CoreMap sentence : sentences) {
+      featurized.add(featurizeSentence(sentence, relationFilter));
+    }
+    return featurized;
+  }
+
   /**
    * Build datums for relations found in |sentence| and headed by |entity|.
    * 
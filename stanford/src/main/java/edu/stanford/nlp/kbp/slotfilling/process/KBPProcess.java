@@ -1,23 +1,28 @@
 package edu.stanford.nlp.kbp.slotfilling.process;
 
 import static edu.stanford.nlp.util.logging.Redwood.Util.err;
+import static edu.stanford.nlp.util.logging.Redwood.Util.fatal;
+import static edu.stanford.nlp.util.logging.Redwood.Util.threadAndRun;
 
+import java.io.*;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.text.DecimalFormat;
 import java.util.*;
 
 import edu.stanford.nlp.ie.machinereading.structure.*;
+import edu.stanford.nlp.kbp.slotfilling.SlotfillingSystem;
 import edu.stanford.nlp.kbp.slotfilling.common.*;
 import edu.stanford.nlp.kbp.slotfilling.common.KBPAnnotations.SourceIndexAnnotation;
 import edu.stanford.nlp.kbp.slotfilling.ir.KBPIR;
 import edu.stanford.nlp.kbp.slotfilling.ir.KBPRelationProvenance;
-import edu.stanford.nlp.kbp.slotfilling.ir.PostIRAnnotator;
 import edu.stanford.nlp.ling.*;
 import edu.stanford.nlp.ling.CoreAnnotations.DocIDAnnotation;
 import edu.stanford.nlp.ling.CoreAnnotations.SentencesAnnotation;
 import edu.stanford.nlp.pipeline.Annotation;
 import edu.stanford.nlp.pipeline.AnnotationPipeline;
 import edu.stanford.nlp.util.CoreMap;
+import edu.stanford.nlp.util.Function;
 import edu.stanford.nlp.util.logging.Redwood;
 
 /**
@@ -32,6 +37,11 @@ import edu.stanford.nlp.util.logging.Redwood;
  * The input should have already passed through {@link edu.stanford.nlp.kbp.slotfilling.ir.PostIRAnnotator}; the
  * output is ready to be passed into the classifier.</p>
  *
+ * <p>This class is thread-safe. The mention annotators are created fresh for every call, and the
+ * {@link FeatureFactory} is shared read-only. If process.threads is greater than one, the sentences passed to
+ * a single call are annotated and featurized in parallel, except on threads marked with
+ * {@link KBPProcess#processOnThisThreadOnly()}.</p>
+ *
  * <p>This is also the class where sentence gloss caching is managed. That is, every datum carries with itself a
  * hashed "sentence gloss key" which alleviates the need to carry around the raw sentence, but can be used to retrieve
  * that sentence if it is needed -- primarily, for Active Learning. See {@link KBPProcess#saveSentenceGloss(String, CoreMap, Maybe, Maybe)}
@@ -45,6 +55,12 @@ public class KBPProcess extends Featurizer implements DocumentAnnotator {
 
   protected static final Redwood.RedwoodChannels logger = Redwood.channels("Process");
 
+  /** The number of sentences annotated together by a single thread */
+  private static final int ANNOTATE_CHUNK_SIZE = 16;
+
+  /** Set on threads which annotate and featurize on their own, ignoring process.threads */
+  private static final ThreadLocal<Boolean> onThisThreadOnly = new ThreadLocal<Boolean>();
+
   private final FeatureFactory rff;
 
   private final Properties props;  // needed to create a StanfordCoreNLP down the line
@@ -64,6 +80,22 @@ public class KBPProcess extends Featurizer implements DocumentAnnotator {
     rff.setDoNotLexicalizeFirstArgument(true);
   }
 
+  /**
+   * From now on, annotate and featurize every call made on the calling thread on that thread alone, ignoring
+   * process.threads. This is for threads that are one of several already working concurrently (e.g., the stages of a
+   * {@link edu.stanford.nlp.kbp.slotfilling.train.DatumPipeline}), which are not inside a Redwood threaded region:
+   * {@link Redwood.Util#threadAndRun(String, Iterable, int)} keeps the state of its region in globals, so it must not
+   * be entered from two such threads at once.
+   */
+  public static void processOnThisThreadOnly() {
+    onThisThreadOnly.set(true);
+  }
+
+  /** The number of threads to annotate or featurize the sentences of a single call on */
+  private static int numThreads() {
+    return Boolean.TRUE.equals(onThisThreadOnly.get()) ? 1 : Props.PROCESS_THREADS;
+  }
+
   public Maybe<Datum<String,String>> featurize( RelationMention rel ) {
     try {
       Datum<String, String> d = rff.createDatum(rel);
@@ -75,8 +107,6 @@ public class KBPProcess extends Featurizer implements DocumentAnnotator {
     }
   }
 
-  // TODO(gabor) In principle, there's no reason this shouldn't multithread
-  // TODO (gabor) maybe this does mulithtread alsready ???
   /**
    * Featurize |sentence| with respect to |entity|, with optional |filter|.
    * 
@@ -91,7 +121,7 @@ public class KBPProcess extends Featurizer implements DocumentAnnotator {
    *          datum for one of the relations found in this sentence.
    */
   @Override
-  public synchronized List<SentenceGroup> featurizeSentence(CoreMap sentence, Maybe<RelationFilter> filter) {
+  public List<SentenceGroup> featurizeSentence(CoreMap sentence, Maybe<RelationFilter> filter) {
     List<RelationMention> relationMentionsForEntity = sentence.get(MachineReadingAnnotations.RelationMentionsAnnotation.class);
     List<RelationMention> relationMentionsForAllPairs = sentence.get(MachineReadingAnnotations.AllRelationMentionsAnnotation.class);
 
@@ -105,6 +135,31 @@ public class KBPProcess extends Featurizer implements DocumentAnnotator {
     return datumsForEntity;
   }
 
+  /** Featurize sentences in parallel, on process.threads threads (see {@link KBPProcess#processOnThisThreadOnly()}) */
+  @SuppressWarnings("unchecked")
+  @Override
+  protected List<List<SentenceGroup>> featurizeSentences(final List<CoreMap> sentences, final Maybe<RelationFilter> filter) {
+    if (numThreads() <= 1 || sentences.size() <= ANNOTATE_CHUNK_SIZE) {
+      return super.featurizeSentences(sentences, filter);
+    }
+    final List<SentenceGroup>[] featurized = new List[sentences.size()];
+    List<Runnable> tasks = new ArrayList<Runnable>();
+    for (int start = 0; start < sentences.size(); start += ANNOTATE_CHUNK_SIZE) {
+      final int chunkStart = start;
+      final int chunkEnd = Math.min(sentences.size(), start + ANNOTATE_CHUNK_SIZE);
+      tasks.add(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = chunkStart; i < chunkEnd; ++i) {
+            featurized[i] = featurizeSentence(sentences.get(i), filter);
+          }
+        }
+      });
+    }
+    threadAndRun("Featurizing " + sentences.size() + " sentences", tasks, numThreads());
+    return Arrays.asList(featurized);
+  }
+
   //Construct datums for these relation mentions.
   //Output is list of singleton sentence groups
   private List<SentenceGroup> featurizeRelations(List<RelationMention> relationMentions, CoreMap sentence) {
@@ -163,29 +218,63 @@ public class KBPProcess extends Featurizer implements DocumentAnnotator {
     return datums;
   }
 
-  public synchronized List<CoreMap> annotateSentenceFeatures (KBPEntity entity, List<CoreMap> sentences) {
+  public List<CoreMap> annotateSentenceFeatures (KBPEntity entity, List<CoreMap> sentences) {
     return annotateSentenceFeatures(entity,sentences,AnnotateMode.NORMAL);
   }
   
-  // TODO(gabor) In principle, there's no reason this shouldn't multithread. Particularly in the new framework
-  public synchronized List<CoreMap> annotateSentenceFeatures( KBPEntity entity,
-                                                              List<CoreMap> sentences, AnnotateMode annotateMode) {
+  public List<CoreMap> annotateSentenceFeatures( final KBPEntity entity,
+                                                 List<CoreMap> sentences, final AnnotateMode annotateMode) {
     // Check if PostIR was run
     for (CoreMap sentence : sentences) {
       if (!sentence.containsKey(KBPAnnotations.AllAntecedentsAnnotation.class) && !Props.JUNIT) {
         throw new IllegalStateException("Must pass sentence through PostIRAnnotator before calling AnnotateSentenceFeatures");
       }
     }
+    final List<KBPSlotFill> knownSlotFills = querier.getKnownSlotFillsForEntity(entity);
+
+    // Case: annotate on this thread
+    if (numThreads() <= 1 || sentences.size() <= ANNOTATE_CHUNK_SIZE) {
+      return annotateSentenceChunk(entity, knownSlotFills, sentences, annotateMode);
+    }
+
+    // Case: annotate chunks of sentences in parallel
+    int numChunks = (sentences.size() + ANNOTATE_CHUNK_SIZE - 1) / ANNOTATE_CHUNK_SIZE;
+    final List<List<CoreMap>> annotatedChunks = new ArrayList<List<CoreMap>>(Collections.<List<CoreMap>>nCopies(numChunks, null));
+    List<Runnable> tasks = new ArrayList<Runnable>();
+    for (int chunk = 0; chunk < numChunks; ++chunk) {
+      final int chunkIndex = chunk;
+      final List<CoreMap> chunkSentences = sentences.subList(chunk * ANNOTATE_CHUNK_SIZE, Math.min(sentences.size(), (chunk + 1) * ANNOTATE_CHUNK_SIZE));
+      tasks.add(new Runnable() {
+        @Override
+        public void run() {
+          annotatedChunks.set(chunkIndex, annotateSentenceChunk(entity, knownSlotFills, chunkSentences, annotateMode));
+        }
+      });
+    }
+    long startTime = System.currentTimeMillis();
+    threadAndRun("Annotating " + sentences.size() + " sentences", tasks, numThreads());
+    logger.debug("annotated " + sentences.size() + " sentences on " + numThreads() + " threads at "
+        + (1000.0 * sentences.size() / Math.max(1, System.currentTimeMillis() - startTime)) + " sentences/second");
+
+    // Return valid sentences, in their original order
+    List<CoreMap> annotated = new ArrayList<CoreMap>();
+    for (List<CoreMap> chunk : annotatedChunks) { annotated.addAll(chunk); }
+    return annotated;
+  }
 
+  /**
+   * Annotate a list of sentences on the current thread.
+   * A fresh annotation pipeline is created for every call, so this can be called from multiple threads at once.
+   */
+  private List<CoreMap> annotateSentenceChunk(KBPEntity entity, List<KBPSlotFill> knownSlotFills,
+                                              List<CoreMap> sentences, AnnotateMode annotateMode) {
     // Create the mention annotation pipeline
     AnnotationPipeline pipeline = new AnnotationPipeline();
-    PostIRAnnotator postirAnn=new PostIRAnnotator(entity.name, Maybe.<String>Nothing(), Maybe.<String>Nothing(), Maybe.<String>Nothing(), true);
 
     pipeline.addAnnotator(new EntityMentionAnnotator(entity));
     pipeline.addAnnotator(new SlotMentionAnnotator());
-    pipeline.addAnnotator(new RelationMentionAnnotator(entity, querier.getKnownSlotFillsForEntity(entity), annotateMode));
+    pipeline.addAnnotator(new RelationMentionAnnotator(entity, knownSlotFills, annotateMode));
     pipeline.addAnnotator(new PreFeaturizerAnnotator(props));
-    //pipeline.addAnnotator(postirAnn);
     // Annotate
     Annotation ann = new Annotation(sentences);
     pipeline.annotate(ann);
@@ -211,4 +300,90 @@ public class KBPProcess extends Featurizer implements DocumentAnnotator {
     return Maybe.Nothing(); // TODO(gabor) do nothing in the DEFT repository
   }
 
+  /** A fresh copy of a serialized list of sentences, so that each run of {@link KBPProcess#main(String[])} annotates pristine sentences */
+  @SuppressWarnings("unchecked")
+  private static List<CoreMap> copyOf(byte[] serializedSentences) throws IOException {
+    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serializedSentences));
+    try {
+      return (List<CoreMap>) in.readObject();
+    } catch (ClassNotFoundException e) {
+      throw new IOException(e);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * A benchmark of annotation and featurization throughput at 1, 4 and 16 threads (process.threads), on a fixed set of
+   * sentences retrieved once for an entity. Each run works on a fresh copy of the sentences, and every run must produce
+   * the same datums.
+   * Usage: KBPProcess [properties file] [entity name] [entity type, e.g., PERSON] [number of sentences (default 1000)]
+   */
+  public static void main(final String[] args) throws IOException {
+    Properties props = new Properties();
+    InputStream input = new FileInputStream(args[0]);
+    try {
+      props.load(input);
+    } finally {
+      input.close();
+    }
+    SlotfillingSystem.exec(new Function<Properties, Object>() {
+      @Override
+      public Object apply(Properties props) {
+        try {
+          SlotfillingSystem system = new SlotfillingSystem(props);
+          KBPProcess process = system.getProcess();
+          KBPEntity entity = KBPNew.entName(args[1]).entType(NERTag.valueOf(args[2])).KBPEntity();
+          int numSentences = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+          // The fixed sentence set
+          List<CoreMap> sentences = system.getIR().querySentences(entity.name, entity.type, numSentences);
+          ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+          ObjectOutputStream out = new ObjectOutputStream(bytes);
+          out.writeObject(new ArrayList<CoreMap>(sentences));
+          out.close();
+          byte[] serializedSentences = bytes.toByteArray();
+          logger.log("benchmarking on " + sentences.size() + " sentences for " + entity);
+
+          DecimalFormat df = new DecimalFormat("0.0");
+          int originalThreads = Props.PROCESS_THREADS;
+          Set<KBPair> expectedKeys = null;
+          int expectedDatums = -1;
+          try {
+            for (int numThreads : new int[]{ 1, 4, 16 }) {
+              Props.PROCESS_THREADS = numThreads;
+              for (int trial = 0; trial < 3; ++trial) {  // the first trial is a warmup
+                List<CoreMap> copy = copyOf(serializedSentences);
+                long start = System.nanoTime();
+                List<CoreMap> annotated = process.annotateSentenceFeatures(entity, copy, AnnotateMode.ALL_PAIRS);
+                double annotateSeconds = ((double) (System.nanoTime() - start)) / 1e9;
+                Annotation annotation = new Annotation("");
+                annotation.set(SentencesAnnotation.class, annotated);
+                start = System.nanoTime();
+                Map<KBPair, SentenceGroup> datums = process.featurize(annotation);
+                double featurizeSeconds = ((double) (System.nanoTime() - start)) / 1e9;
+                int numDatums = 0;
+                for (SentenceGroup group : datums.values()) { numDatums += group.size(); }
+                logger.log(numThreads + " threads, trial " + trial + ": " +
+                    "annotated " + df.format(copy.size() / annotateSeconds) + " sentences/sec; " +
+                    "featurized " + df.format(annotated.size() / featurizeSeconds) + " sentences/sec; " +
+                    datums.size() + " entity pairs, " + numDatums + " datums");
+                if (expectedKeys == null) {
+                  expectedKeys = new HashSet<KBPair>(datums.keySet());
+                  expectedDatums = numDatums;
+                } else if (!expectedKeys.equals(datums.keySet()) || expectedDatums != numDatums) {
+                  fatal("datums at " + numThreads + " threads differ from the datums at 1 thread");
+                }
+              }
+            }
+          } finally {
+            Props.PROCESS_THREADS = originalThreads;
+          }
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+        return null;
+      }
+    }, props);
+  }
+
 }
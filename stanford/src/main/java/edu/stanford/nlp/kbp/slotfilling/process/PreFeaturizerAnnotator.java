@@ -3,7 +3,6 @@ package edu.stanford.nlp.kbp.slotfilling.process;
 import edu.stanford.nlp.ie.machinereading.structure.MachineReadingAnnotations.*;
 import edu.stanford.nlp.ie.machinereading.structure.EntityMention;
 import edu.stanford.nlp.ie.machinereading.structure.RelationMention;
-import edu.stanford.nlp.io.IOUtils;
 import edu.stanford.nlp.kbp.slotfilling.common.*;
 import edu.stanford.nlp.kbp.slotfilling.common.KBPAnnotations.*;
 import edu.stanford.nlp.ling.CoreAnnotations.*;
@@ -13,14 +12,12 @@ import edu.stanford.nlp.parser.lexparser.ParserConstraint;
 import edu.stanford.nlp.pipeline.Annotation;
 import edu.stanford.nlp.pipeline.Annotator;
 import edu.stanford.nlp.pipeline.ParserAnnotator;
-import edu.stanford.nlp.pipeline.StanfordCoreNLP;
 import edu.stanford.nlp.trees.HeadFinder;
 import edu.stanford.nlp.trees.Tree;
 import edu.stanford.nlp.trees.TreeCoreAnnotations;
 import edu.stanford.nlp.util.CoreMap;
 import edu.stanford.nlp.util.logging.Redwood;
 
-import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
@@ -58,33 +55,18 @@ public class PreFeaturizerAnnotator implements Annotator {
     this.enforceAtLeastOneEntityInSentence = enforceAtLeastOneEntityInSentence;
   }
 
-  private static final List<TriggerSeq> triggers = new ArrayList<TriggerSeq>() {{
+  /** The relation trigger words, compiled once into a single matcher */
+  private static final TriggerMatcher triggers;
+  static {
+    TriggerMatcher matcher;
     try {
-      BufferedReader is = IOUtils.getBufferedReaderFromClasspathOrFileSystem(Props.INDEX_RELATIONTRIGGERS.getPath());
-      String line;
-      while ((line = is.readLine()) != null) {
-        line = line.trim();
-        int firstTab = line.indexOf('\t');
-        if (firstTab < 0) {
-          firstTab = line.indexOf(' ');
-        }
-        assert (firstTab > 0 && firstTab < line.length());
-        String label = line.substring(0, firstTab).trim();
-        List<CoreLabel> tokens = CoreMapUtils.tokenize(line.substring(firstTab).trim());
-        String[] words = new String[tokens.size()];
-        for (int i = 0; i < tokens.size(); i++)
-          words[i] = tokens.get(i).word();
-        add(new TriggerSeq(label, words));
-      }
-      is.close();
-
-      // make sure trigger sequences are sorted in descending order of length so
-      // we always match the longest sequence first
+      matcher = new TriggerMatcher(TriggerMatcher.readTriggers(Props.INDEX_RELATIONTRIGGERS.getPath()));
     } catch (IOException e) {
       logger.err(e);
+      matcher = new TriggerMatcher(new ArrayList<Map.Entry<String, String[]>>());
     }
-  }};
-  static { Collections.sort(triggers); }
+    triggers = matcher;
+  }
 
   /**
    * Take a dataset Annotation, generate their parse trees and identify syntactic heads (and head spans, if necessary).
@@ -328,13 +310,20 @@ public class PreFeaturizerAnnotator implements Annotator {
   }
 
   private Annotator getParser() {
+    synchronized (PreFeaturizerAnnotator.class) {
+      return getParserUnsynchronized();
+    }
+  }
+
+  /**
+   * The parser is created for this annotator, rather than borrowed from a StanfordCoreNLP pipeline, so that it is never
+   * shared with a pipeline another thread is annotating with. It is safe to call concurrently itself, as every call to
+   * {@link ParserAnnotator#annotate(Annotation)} parses with a parser query of its own.
+   */
+  private Annotator getParserUnsynchronized() {
     if(parserProcessorOrNull == null){
-      if (StanfordCoreNLP.getExistingAnnotator("parse") == null) {
-        logger.log("no StanfordCoreNLP has ever been created; manually creating parse annotator");
-        parserProcessorOrNull = new ParserAnnotator("parse", props);
-      } else {
-        parserProcessorOrNull = StanfordCoreNLP.getExistingAnnotator("parse");
-      }
+      logger.log("creating parse annotator");
+      parserProcessorOrNull = new ParserAnnotator("parse", props);
     }
     assert(parserProcessorOrNull != null);
     return parserProcessorOrNull;
@@ -392,45 +381,6 @@ public class PreFeaturizerAnnotator implements Annotator {
   }
 
   private static void markTriggerWords(List<CoreLabel> tokens) {
-    for (TriggerSeq seq : triggers) {
-      for (int start = 0; start < tokens.size() - seq.tokens.length;) {
-        boolean matches = true;
-        for (int i = 0; i < seq.tokens.length; i++) {
-          if (!tokens.get(start + i).word().equalsIgnoreCase(seq.tokens[i])) matches = false;
-        }
-        if (matches) {
-          tokens.get(start).set(TriggerAnnotation.class, "B-" + seq.label);
-          for (int i = 1; i < seq.tokens.length; i++)
-            tokens.get(start + i).set(TriggerAnnotation.class, "I-" + seq.label);
-
-          start += seq.tokens.length;
-        } else {
-          start++;
-        }
-      }
-    }
-  }
-
-  private static class TriggerSeq implements Comparable<TriggerSeq> {
-    String label;
-    String[] tokens;
-
-    public String toString() {
-      StringBuilder os = new StringBuilder();
-      os.append(label).append(":");
-      for (String t : tokens)
-        os.append(" ").append(t);
-      return os.toString();
-    }
-
-    public TriggerSeq(String l, String[] ts) {
-      label = l;
-      tokens = ts;
-    }
-
-    /** Descending order of lengths */
-    public int compareTo(TriggerSeq other) {
-      return other.tokens.length - this.tokens.length;
-    }
+    triggers.markTriggerWords(tokens);
   }
 }
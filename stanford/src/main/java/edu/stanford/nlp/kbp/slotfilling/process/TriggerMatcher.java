@@ -0,0 +1,290 @@
+package edu.stanford.nlp.kbp.slotfilling.process;
+
+import edu.stanford.nlp.io.IOUtils;
+import edu.stanford.nlp.kbp.slotfilling.common.CoreMapUtils;
+import edu.stanford.nlp.kbp.slotfilling.common.KBPAnnotations.TriggerAnnotation;
+import edu.stanford.nlp.kbp.slotfilling.common.Props;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.util.logging.Redwood;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.text.DecimalFormat;
+import java.util.*;
+
+/**
+ * <p>Marks relation trigger words (e.g., "wife of" for per:spouse) in a sentence.</p>
+ *
+ * <p>The trigger sequences are compiled once into an Aho-Corasick automaton over (case-folded) tokens, so that
+ * every occurrence of every trigger in a sentence is found in a single pass over its tokens, rather than
+ * one pass per trigger. Matching is case-insensitive, as with {@link String#equalsIgnoreCase(String)}.</p>
+ *
+ * <p>The tags are exactly those of the per-trigger scan this replaces. That scan went through the triggers longest
+ * first (in file order among triggers of the same length), tagged each trigger's leftmost non-overlapping occurrences,
+ * and overwrote whatever tags were already there; it never matched a trigger ending at the last token of a sentence.
+ * Here, each token thus gets its tag from the covering occurrence whose trigger came last in that order.
+ * The first token of an occurrence is tagged <code>B-label</code>, and the rest <code>I-label</code>.</p>
+ */
+public class TriggerMatcher {
+  private static final Redwood.RedwoodChannels logger = Redwood.channels("Trigger");
+
+  /** A state of the automaton: a prefix of one or more trigger sequences */
+  private static class Node {
+    final Map<String, Node> children = new HashMap<String, Node>(4);
+    /** The longest proper suffix of this prefix which is also a prefix of some trigger */
+    Node failure;
+    /** The nearest node along the failure chain which completes a trigger, if any */
+    Node outputLink;
+    /** The number of tokens in this prefix */
+    final int depth;
+    /** If this prefix is a complete trigger, its label; otherwise null */
+    String label;
+    /**
+     * If this prefix is a complete trigger, the position of that trigger in the order the triggers were scanned
+     * (longest first, then in file order); if it is listed more than once, the last of these.
+     */
+    int rank = -1;
+
+    Node(int depth) { this.depth = depth; }
+  }
+
+  private final Node root = new Node(0);
+  private final int numTriggers;
+
+  /**
+   * Compile a set of trigger sequences.
+   * @param triggers Pairs of (label, tokens of the trigger); empty sequences are ignored.
+   */
+  public TriggerMatcher(List<Map.Entry<String, String[]>> triggers) {
+    // Rank the triggers: longest first, then in file order (the sort is stable)
+    List<Map.Entry<String, String[]>> ranked = new ArrayList<Map.Entry<String, String[]>>(triggers);
+    Collections.sort(ranked, new Comparator<Map.Entry<String, String[]>>() {
+      @Override
+      public int compare(Map.Entry<String, String[]> a, Map.Entry<String, String[]> b) {
+        return b.getValue().length - a.getValue().length;
+      }
+    });
+    // Build the trie
+    int count = 0;
+    for (int rank = 0; rank < ranked.size(); ++rank) {
+      Map.Entry<String, String[]> trigger = ranked.get(rank);
+      if (trigger.getValue().length == 0) { continue; }
+      Node node = root;
+      for (String token : trigger.getValue()) {
+        String key = normalize(token);
+        Node child = node.children.get(key);
+        if (child == null) {
+          child = new Node(node.depth + 1);
+          node.children.put(key, child);
+        }
+        node = child;
+      }
+      if (node.label == null) { count += 1; }
+      node.label = trigger.getKey();
+      node.rank = rank;
+    }
+    this.numTriggers = count;
+
+    // Compute failure links, breadth first
+    root.failure = root;
+    Queue<Node> queue = new LinkedList<Node>();
+    for (Node child : root.children.values()) {
+      child.failure = root;
+      queue.add(child);
+    }
+    while (!queue.isEmpty()) {
+      Node node = queue.poll();
+      node.outputLink = node.failure.label != null ? node.failure : node.failure.outputLink;
+      for (Map.Entry<String, Node> entry : node.children.entrySet()) {
+        Node child = entry.getValue();
+        Node fallback = node.failure;
+        while (fallback != root && !fallback.children.containsKey(entry.getKey())) { fallback = fallback.failure; }
+        Node target = fallback.children.get(entry.getKey());
+        child.failure = (target == null || target == child) ? root : target;
+        queue.add(child);
+      }
+    }
+  }
+
+  /** The number of distinct trigger sequences in the automaton */
+  public int size() {
+    return numTriggers;
+  }
+
+  /**
+   * Tag the trigger words in a sentence with a {@link TriggerAnnotation}.
+   * Tokens which are not part of a trigger are left untouched.
+   * @param tokens The tokens of the sentence.
+   */
+  public void markTriggerWords(List<CoreLabel> tokens) {
+    String[] tags = null;
+    int[] tagRanks = null;
+    Map<Node, Integer> nextFree = null;
+    Node state = root;
+    // A trigger never ends at the last token
+    for (int i = 0; i < tokens.size() - 1; ++i) {
+      String token = normalize(tokens.get(i).word());
+      Node next = state.children.get(token);
+      while (next == null && state != root) {
+        state = state.failure;
+        next = state.children.get(token);
+      }
+      state = next == null ? root : next;
+      for (Node out = state.label != null ? state : state.outputLink; out != null; out = out.outputLink) {
+        int start = i + 1 - out.depth;
+        // Occurrences of a trigger are found left to right; keep them only if they do not overlap the last one kept
+        if (nextFree == null) {
+          tags = new String[tokens.size()];
+          tagRanks = new int[tokens.size()];
+          Arrays.fill(tagRanks, -1);
+          nextFree = new HashMap<Node, Integer>();
+        }
+        Integer free = nextFree.get(out);
+        if (free != null && start < free) { continue; }
+        nextFree.put(out, start + out.depth);
+        // A token is tagged by the trigger scanned last
+        for (int k = start; k <= i; ++k) {
+          if (out.rank > tagRanks[k]) {
+            tagRanks[k] = out.rank;
+            tags[k] = (k == start ? "B-" : "I-") + out.label;
+          }
+        }
+      }
+    }
+    if (tags == null) { return; }
+    for (int i = 0; i < tags.length; ++i) {
+      if (tags[i] != null) { tokens.get(i).set(TriggerAnnotation.class, tags[i]); }
+    }
+  }
+
+  /** Fold the case of a token, character by character, the way {@link String#equalsIgnoreCase(String)} compares */
+  private static String normalize(String token) {
+    char[] chars = token.toCharArray();
+    for (int i = 0; i < chars.length; ++i) {
+      chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+    }
+    return new String(chars);
+  }
+
+  /**
+   * Read a trigger file: one trigger per line, as a label followed by a tab (or space) and the text of the trigger.
+   * @param path The path to the trigger file, on the classpath or the file system.
+   * @return A list of (label, tokens of the trigger), in the order they are listed in the file.
+   */
+  public static List<Map.Entry<String, String[]>> readTriggers(String path) throws IOException {
+    List<Map.Entry<String, String[]>> triggers = new ArrayList<Map.Entry<String, String[]>>();
+    BufferedReader is = IOUtils.getBufferedReaderFromClasspathOrFileSystem(path);
+    try {
+      String line;
+      while ((line = is.readLine()) != null) {
+        line = line.trim();
+        if (line.isEmpty()) { continue; }
+        int firstTab = line.indexOf('\t');
+        if (firstTab < 0) {
+          firstTab = line.indexOf(' ');
+        }
+        assert (firstTab > 0 && firstTab < line.length());
+        String label = line.substring(0, firstTab).trim();
+        List<CoreLabel> tokens = CoreMapUtils.tokenize(line.substring(firstTab).trim());
+        String[] words = new String[tokens.size()];
+        for (int i = 0; i < tokens.size(); i++)
+          words[i] = tokens.get(i).word();
+        triggers.add(new AbstractMap.SimpleImmutableEntry<String, String[]>(label, words));
+      }
+    } finally {
+      is.close();
+    }
+    return triggers;
+  }
+
+  /**
+   * The per-trigger scan the automaton replaced, for reference (by main and the tests): the tag of each token, or null.
+   * @param sortedTriggers The triggers, longest first (in file order among triggers of the same length).
+   */
+  static String[] scanTriggerWords(List<CoreLabel> tokens, List<Map.Entry<String, String[]>> sortedTriggers) {
+    String[] tags = new String[tokens.size()];
+    for (Map.Entry<String, String[]> seq : sortedTriggers) {
+      String[] words = seq.getValue();
+      if (words.length == 0) { continue; }
+      for (int start = 0; start < tokens.size() - words.length;) {
+        boolean matches = true;
+        for (int i = 0; i < words.length; i++) {
+          if (!tokens.get(start + i).word().equalsIgnoreCase(words[i])) matches = false;
+        }
+        if (matches) {
+          tags[start] = "B-" + seq.getKey();
+          for (int i = 1; i < words.length; i++)
+            tags[start + i] = "I-" + seq.getKey();
+          start += words.length;
+        } else {
+          start++;
+        }
+      }
+    }
+    return tags;
+  }
+
+  /**
+   * A simple benchmark of the automaton against the one-scan-per-trigger matcher it replaced,
+   * checking that both tag every token of every sentence the same way.
+   * Usage: TriggerMatcher [sentences file, one sentence per line] [trigger file (default: index.relationtriggers)]
+   */
+  public static void main(String[] args) throws IOException {
+    final List<Map.Entry<String, String[]>> triggers = readTriggers(args.length > 1 ? args[1] : Props.INDEX_RELATIONTRIGGERS.getPath());
+    List<List<CoreLabel>> sentences = new ArrayList<List<CoreLabel>>();
+    for (String line : IOUtils.readLines(args[0])) {
+      if (!line.trim().isEmpty()) { sentences.add(CoreMapUtils.tokenize(line.trim())); }
+    }
+    // The old matcher scans the sentence once per trigger, longest trigger first
+    List<Map.Entry<String, String[]>> sortedTriggers = new ArrayList<Map.Entry<String, String[]>>(triggers);
+    Collections.sort(sortedTriggers, new Comparator<Map.Entry<String, String[]>>() {
+      @Override
+      public int compare(Map.Entry<String, String[]> a, Map.Entry<String, String[]> b) {
+        return b.getValue().length - a.getValue().length;
+      }
+    });
+    long startTime = System.currentTimeMillis();
+    TriggerMatcher matcher = new TriggerMatcher(triggers);
+    logger.log("compiled " + matcher.size() + " triggers in " + (System.currentTimeMillis() - startTime) + " ms");
+
+    DecimalFormat df = new DecimalFormat("0.00");
+    for (int trial = 0; trial < 5; ++trial) {
+      List<String[]> expected = new ArrayList<String[]>(sentences.size());
+      startTime = System.nanoTime();
+      for (List<CoreLabel> tokens : sentences) {
+        expected.add(scanTriggerWords(tokens, sortedTriggers));
+      }
+      double naiveMillis = ((double) (System.nanoTime() - startTime)) / 1000000.0;
+
+      for (List<CoreLabel> tokens : sentences) {
+        for (CoreLabel token : tokens) { token.remove(TriggerAnnotation.class); }
+      }
+      startTime = System.nanoTime();
+      for (List<CoreLabel> tokens : sentences) {
+        matcher.markTriggerWords(tokens);
+      }
+      double automatonMillis = ((double) (System.nanoTime() - startTime)) / 1000000.0;
+
+      // Compare the tags
+      long taggedTokens = 0;
+      int mismatches = 0;
+      for (int s = 0; s < sentences.size(); ++s) {
+        List<CoreLabel> tokens = sentences.get(s);
+        for (int i = 0; i < tokens.size(); ++i) {
+          String tag = tokens.get(i).get(TriggerAnnotation.class);
+          String expectedTag = expected.get(s)[i];
+          if (tag != null) { taggedTokens += 1; }
+          if (tag == null ? expectedTag != null : !tag.equals(expectedTag)) {
+            if (mismatches < 10) { logger.warn("tag mismatch at token " + i + " of sentence " + s + ": " + expectedTag + " expected, " + tag + " found"); }
+            mismatches += 1;
+          }
+        }
+      }
+
+      logger.log("trial " + trial + ": " + sentences.size() + " sentences; " +
+          "per-trigger scan " + df.format(naiveMillis) + " ms; " +
+          "automaton " + df.format(automatonMillis) + " ms (" + taggedTokens + " tagged tokens, " + mismatches + " mismatched); " +
+          "speedup " + df.format(naiveMillis / Math.max(automatonMillis, 1e-3)) + "x");
+    }
+  }
+}
@@ -0,0 +1,368 @@
+package edu.stanford.nlp.kbp.slotfilling.train;
+
+import edu.stanford.nlp.kbp.slotfilling.common.*;
+import edu.stanford.nlp.kbp.slotfilling.ir.KBPIR;
+import edu.stanford.nlp.kbp.slotfilling.process.KBPProcess;
+import edu.stanford.nlp.ling.CoreAnnotations;
+import edu.stanford.nlp.pipeline.Annotation;
+import edu.stanford.nlp.util.CoreMap;
+import edu.stanford.nlp.util.Factory;
+import edu.stanford.nlp.util.logging.Redwood;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.text.DecimalFormat;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static edu.stanford.nlp.util.logging.Redwood.Util.*;
+
+/**
+ * <p>Collects the datums of training tuples as a pipeline of stages, each on its own threads, with a bounded queue
+ * in front of each:</p>
+ * <ol>
+ *   <li>lookup: find the tuple in the datum cache, if caching is enabled; a cached tuple skips straight to the output;</li>
+ *   <li>query: retrieve sentences mentioning the entity and slot value from IR;</li>
+ *   <li>annotate: run {@link KBPProcess#annotateSentenceFeatures(KBPEntity, List)} on the sentences;</li>
+ *   <li>featurize: run {@link KBPProcess#featurize(Annotation)} on the annotated sentences;</li>
+ *   <li>write: put the datums back into the datum cache, if caching is enabled.</li>
+ * </ol>
+ *
+ * <p>The datums come out in the order of the tuples, exactly as if each tuple had been run through the stages in turn,
+ * so a dataset made from them does not depend on the number of threads. At most {@link Props#TRAIN_DATUMS_CAPACITY}
+ * tuples are in flight (queued, being processed, or finished but not yet consumed) at once. As every tuple is written
+ * back to the cache as soon as it is featurized, an interrupted run resumes where it left off.</p>
+ *
+ * <p>Throughput and utilization of each stage are logged periodically, and when the pipeline finishes;
+ * the busiest stage is the one to give more threads. The stage threads are the only parallelism: each annotates and
+ * featurizes on its own thread, ignoring process.threads (see {@link KBPProcess#processOnThisThreadOnly()}), as the
+ * stages run concurrently outside of any Redwood threaded region.</p>
+ */
+public class DatumPipeline {
+  protected static final Redwood.RedwoodChannels logger = Redwood.channels("Datums");
+
+  /** How often to log the throughput of the stages */
+  private static final long REPORT_INTERVAL_MILLIS = 60 * 1000;
+
+  private final KBPIR querier;
+  private final KBPProcess process;
+  private final int capacity;
+
+  /** A training tuple, and what the stages have made of it so far */
+  private static class Item {
+    public final int index;
+    public final KBTriple key;
+    public List<CoreMap> sentences = null;
+    public Maybe<Map<KBPair, SentenceGroup>> datums = Maybe.Nothing();
+    public boolean cached = false;
+
+    private Item(int index, KBTriple key) {
+      this.index = index;
+      this.key = key;
+    }
+  }
+
+  /** A step of the pipeline: a queue of items, and the threads working on them */
+  private abstract class Stage {
+    public final String name;
+    public final int numThreads;
+    public final BlockingQueue<Item> queue;
+    public final AtomicLong processed = new AtomicLong(0);
+    public final AtomicLong busyNanos = new AtomicLong(0);
+
+    private Stage(String name, int numThreads) {
+      this.name = name;
+      this.numThreads = Math.max(1, numThreads);
+      this.queue = new LinkedBlockingQueue<Item>(capacity);
+    }
+
+    /** Process an item, and pass it on to the next stage (or the output) */
+    protected abstract void process(Item item);
+
+    public void offer(Item item) {
+      try {
+        queue.put(item);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      }
+    }
+
+    public void start() {
+      for (int i = 0; i < numThreads; ++i) {
+        startThread("datums-" + name + "-" + i, new Runnable() {
+          @Override
+          public void run() {
+            KBPProcess.processOnThisThreadOnly();
+            while (!Thread.currentThread().isInterrupted()) {
+              Item item;
+              try {
+                item = queue.take();
+              } catch (InterruptedException e) {
+                return;
+              }
+              long start = System.nanoTime();
+              try {
+                process(item);
+              } catch (Throwable t) {
+                fail(item, t);
+                return;
+              }
+              busyNanos.addAndGet(System.nanoTime() - start);
+              processed.incrementAndGet();
+            }
+          }
+        });
+      }
+    }
+
+    public String statistics(long elapsedNanos, boolean isBottleneck) {
+      DecimalFormat df = new DecimalFormat("0.0");
+      double seconds = Math.max(1e-9, elapsedNanos / 1e9);
+      return name + ": " + processed.get() + " tuples (" + df.format(processed.get() / seconds) + "/s) on " +
+          numThreads + " threads, " + df.format(100.0 * utilization(elapsedNanos)) + "% busy, " + queue.size() + " queued" +
+          (isBottleneck ? " <- bottleneck" : "");
+    }
+
+    public double utilization(long elapsedNanos) {
+      return ((double) busyNanos.get()) / ((double) numThreads * Math.max(1, elapsedNanos));
+    }
+  }
+
+  private final Stage lookup;
+  private final Stage query;
+  private final Stage annotate;
+  private final Stage featurize;
+  private final Stage write;
+  private final List<Stage> stages;
+
+  private final List<Thread> threads = new ArrayList<Thread>();
+  /** Permits for tuples to enter the pipeline; released as the output is consumed */
+  private final Semaphore inFlight;
+  /** Finished items, by index, until they are consumed; also the monitor for the consumer to wait on */
+  private final Map<Integer, Item> finished = new HashMap<Integer, Item>();
+  private Throwable failure = null;
+  private Item failedItem = null;
+  private final AtomicLong numCached = new AtomicLong(0);
+
+  public DatumPipeline(KBPIR querier, KBPProcess process) {
+    this.querier = querier;
+    this.process = process;
+    this.capacity = Math.max(1, Props.TRAIN_DATUMS_CAPACITY);
+    this.inFlight = new Semaphore(capacity);
+
+    this.write = new Stage("write", Props.TRAIN_DATUMS_THREADS_WRITE) {
+      @Override
+      protected void process(final Item item) {
+        if (Props.CACHE_DATUMS_DO && !item.cached) {
+          PostgresUtils.withKeyDatumTable(Props.DB_TABLE_DATUM_CACHE, new PostgresUtils.KeyDatumCallback() {
+            @Override
+            public void apply(Connection psql) throws SQLException {
+              put(psql, Props.DB_TABLE_DATUM_CACHE, keyToString(item.key),
+                  item.datums.getOrElse(new HashMap<KBPair, SentenceGroup>()));
+            }
+          });
+        }
+        done(item);
+      }
+    };
+
+    this.featurize = new Stage("featurize", Props.TRAIN_DATUMS_THREADS_FEATURIZE) {
+      @Override
+      protected void process(Item item) {
+        try {
+          // Get datums from sentences.
+          Annotation annotation = new Annotation("");
+          annotation.set(CoreAnnotations.SentencesAnnotation.class, item.sentences);
+          item.datums = Maybe.<Map<KBPair, SentenceGroup>>Just(DatumPipeline.this.process.featurize(annotation));
+        } catch (RuntimeException e) {
+          logger.warn(e);
+        }
+        item.sentences = null;
+        write.offer(item);
+      }
+    };
+
+    this.annotate = new Stage("annotate", Props.TRAIN_DATUMS_THREADS_ANNOTATE) {
+      @Override
+      protected void process(Item item) {
+        item.sentences = DatumPipeline.this.process.annotateSentenceFeatures(item.key.getEntity(), item.sentences);
+        logger.logf("Keeping %d sentences after annotation for %s", item.sentences.size(), item.key);
+        if (item.sentences.size() > 0) {
+          featurize.offer(item);
+        } else {
+          item.sentences = null;
+          write.offer(item);
+        }
+      }
+    };
+
+    this.query = new Stage("query", Props.TRAIN_DATUMS_THREADS_QUERY) {
+      @Override
+      protected void process(Item item) {
+        // Query just for entity1 and entity2 without reln (
+        // so we don't bias the training data with what we think is indicative of the relation)
+        item.sentences = querier.querySentences(item.key.getEntity().name, item.key.slotValue, Props.TRAIN_SENTENCES_PER_ENTITY);
+        logger.logf("Found %d sentences for %s", item.sentences.size(), item.key);
+        annotate.offer(item);
+      }
+    };
+
+    this.lookup = new Stage("lookup", Props.TRAIN_DATUMS_THREADS_LOOKUP) {
+      @Override
+      protected void process(final Item item) {
+        if (Props.CACHE_DATUMS_DO) {
+          PostgresUtils.withKeyDatumTable(Props.DB_TABLE_DATUM_CACHE, new PostgresUtils.KeyDatumCallback() {
+            @Override
+            public void apply(Connection psql) throws SQLException {
+              Maybe<Map<KBPair, SentenceGroup>> cachedValue = get(psql, Props.DB_TABLE_DATUM_CACHE, keyToString(item.key));
+              if (cachedValue.isDefined()) {
+                item.datums = cachedValue;
+                item.cached = true;
+              }
+            }
+          });
+        }
+        if (item.cached) {
+          numCached.incrementAndGet();
+          done(item);
+        } else {
+          query.offer(item);
+        }
+      }
+    };
+
+    this.stages = Arrays.asList(lookup, query, annotate, featurize, write);
+    if (Props.PROCESS_THREADS > 1) {
+      logger.warn("process.threads=" + Props.PROCESS_THREADS + " is ignored when collecting datums; " +
+          "set train.datums.threads.annotate and train.datums.threads.featurize instead");
+    }
+  }
+
+  private void startThread(String name, Runnable runnable) {
+    Thread thread = new Thread(runnable, name);
+    thread.setDaemon(true);
+    synchronized (threads) { threads.add(thread); }
+    thread.start();
+  }
+
+  /** Hand a finished item to the consumer */
+  private void done(Item item) {
+    synchronized (finished) {
+      finished.put(item.index, item);
+      finished.notifyAll();
+    }
+  }
+
+  /** Record the failure of a stage; the consumer rethrows it when it next waits on the pipeline */
+  private void fail(Item item, Throwable t) {
+    synchronized (finished) {
+      if (failure == null) {
+        failure = t;
+        failedItem = item;
+      }
+      finished.notifyAll();
+    }
+  }
+
+  /** Wait for the item with the given index to come out of the pipeline */
+  private Item awaitFinished(int index) {
+    synchronized (finished) {
+      while (!finished.containsKey(index)) {
+        if (failure != null) {
+          shutdown();
+          throw new RuntimeException("Could not collect datums" + (failedItem != null ? " for " + failedItem.key : ""), failure);
+        }
+        try {
+          finished.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          shutdown();
+          throw new RuntimeException(e);
+        }
+      }
+      return finished.remove(index);
+    }
+  }
+
+  private void shutdown() {
+    synchronized (threads) {
+      for (Thread thread : threads) { thread.interrupt(); }
+      threads.clear();
+    }
+  }
+
+  private void report(String title, long elapsedNanos, long numConsumed) {
+    startTrack(title);
+    Stage bottleneck = null;
+    for (Stage stage : stages) {
+      if (bottleneck == null || stage.utilization(elapsedNanos) > bottleneck.utilization(elapsedNanos)) { bottleneck = stage; }
+    }
+    for (Stage stage : stages) { logger.log(stage.statistics(elapsedNanos, stage == bottleneck)); }
+    logger.log(numConsumed + " tuples done (" + numCached.get() + " from the cache) in " +
+        new DecimalFormat("0.0").format(elapsedNanos / 1e9) + "s");
+    endTrack(title);
+  }
+
+  /**
+   * Start collecting the datums of the given tuples.
+   * The returned iterator must be read to the end; the pipeline's threads stop once it is.
+   * @param tuples The tuples to collect datums for.
+   * @return The sentence groups of every tuple, in the order of the tuples (and, within a tuple, in sorted order).
+   * @throws RuntimeException From the iterator, if any stage failed on any tuple.
+   */
+  public Iterator<SentenceGroup> run(Collection<KBTriple> tuples) {
+    final List<KBTriple> keys = new ArrayList<KBTriple>(tuples);
+    final long startTime = System.nanoTime();
+    for (Stage stage : stages) { stage.start(); }
+    startThread("datums-feeder", new Runnable() {
+      @Override
+      public void run() {
+        try {
+          for (int i = 0; i < keys.size(); ++i) {
+            inFlight.acquire();
+            lookup.offer(new Item(i, keys.get(i)));
+          }
+        } catch (InterruptedException ignored) {
+        } catch (RuntimeException e) {
+          if (!Thread.currentThread().isInterrupted()) { fail(null, e); }
+        }
+      }
+    });
+
+    return CollectionUtils.iteratorFromMaybeIterableFactory(new Factory<Maybe<Iterable<SentenceGroup>>>() {
+      private int nextIndex = 0;
+      private long lastReport = System.currentTimeMillis();
+
+      @Override
+      public Maybe<Iterable<SentenceGroup>> create() {
+        if (nextIndex >= keys.size()) {
+          if (nextIndex == keys.size()) {
+            nextIndex += 1;
+            shutdown();
+            report("Collected datums for " + keys.size() + " tuples", System.nanoTime() - startTime, keys.size());
+          }
+          return null;
+        }
+        Item item = awaitFinished(nextIndex);
+        nextIndex += 1;
+        inFlight.release();
+        if (System.currentTimeMillis() - lastReport > REPORT_INTERVAL_MILLIS) {
+          lastReport = System.currentTimeMillis();
+          report("Collecting datums (" + nextIndex + " / " + keys.size() + " tuples)", System.nanoTime() - startTime, nextIndex);
+        }
+        if (item.datums.isDefined()) {
+          // sort so we have a consistent iteration order
+          ArrayList<SentenceGroup> values = new ArrayList<SentenceGroup>(item.datums.get().values());
+          Collections.sort(values);
+          return Maybe.Just((Iterable<SentenceGroup>) values);
+        } else {
+          return Maybe.Nothing();
+        }
+      }
+    });
+  }
+}
@@ -10,6 +10,7 @@ import java.text.DecimalFormat;
 import java.util.*;
 
 import edu.stanford.nlp.io.IOUtils;
+import edu.stanford.nlp.kbp.slotfilling.classify.HashedFeatureIndex;
 import edu.stanford.nlp.kbp.slotfilling.classify.KBPDataset;
 import edu.stanford.nlp.kbp.slotfilling.classify.RelationClassifier;
 import edu.stanford.nlp.kbp.slotfilling.classify.TrainingStatistics;
@@ -18,8 +19,6 @@ import edu.stanford.nlp.kbp.slotfilling.common.CollectionUtils;
 import edu.stanford.nlp.kbp.slotfilling.ir.KBPIR;
 import edu.stanford.nlp.kbp.slotfilling.process.FeatureFactory;
 import edu.stanford.nlp.kbp.slotfilling.process.KBPProcess;
-import edu.stanford.nlp.ling.CoreAnnotations;
-import edu.stanford.nlp.pipeline.Annotation;
 import edu.stanford.nlp.stats.ClassicCounter;
 import edu.stanford.nlp.stats.Counter;
 import edu.stanford.nlp.stats.Counters;
@@ -86,9 +85,10 @@ public class KBPTrainer {
 
   /**
    * Creates a (lazy) iterator of datums given a collection of query tuples.
-   * If a datum is found in the cache, it is returned. Otherwise, the datum is created lazily.
-   * NOTE: When fetching from cached, the datums can include those not in the requested tuples
-   *       and the ordering is different from the input tuples
+   * If a datum is found in the cache, it is returned. Otherwise, the datum is created lazily,
+   * by a {@link DatumPipeline} which queries, annotates and featurizes several tuples at once.
+   * NOTE: When reading only cached datums (cache.datums.ignoreuncached), the datums can include those not in the
+   *       requested tuples and the ordering is different from the input tuples
    * @param tuples The tuples to query
    * @return A lazy iterator of {@link SentenceGroup}s corresponding to the datums for that query.
    *         Note that this includes both positive and negative datums.
@@ -126,88 +126,7 @@ public class KBPTrainer {
     }
 
     // Else, start caching!
-    return CollectionUtils.iteratorFromMaybeIterableFactory(new Factory<Maybe<Iterable<SentenceGroup>>>() {
-      Iterator<KBTriple> iter = tuples.iterator();
-
-      @Override
-      public Maybe<Iterable<SentenceGroup>> create() {
-        if (iter.hasNext()) {
-          final KBTriple key = iter.next();
-          final Pointer<Map<KBPair, SentenceGroup>> datums = new Pointer<Map<KBPair, SentenceGroup>>();
-
-          // Try Cache
-          if (Props.CACHE_DATUMS_DO) {
-            PostgresUtils.withKeyDatumTable(Props.DB_TABLE_DATUM_CACHE, new PostgresUtils.KeyDatumCallback() {
-              @Override
-              public void apply(Connection psql) throws SQLException {
-                Maybe<Map<KBPair, SentenceGroup>> cachedValue = get(psql, Props.DB_TABLE_DATUM_CACHE, keyToString(key));
-                if (cachedValue.isDefined()) {
-                  datums.set(cachedValue.get());
-                }
-              }
-            });
-          }
-
-          // Run Featurizer
-          if (!datums.dereference().isDefined()) {
-            startTrack(key.toString());
-            KBPEntity entity1 = key.getEntity();
-            String entity2 = key.slotValue;
-            // vv (1) Query Sentence In Lucene vv
-            // Query just for entity1 and entity2 without reln (
-            // so we don't bias the training data with what we think is indicative of the relation)
-            List<CoreMap> sentences = querier.querySentences(entity1.name, entity2, Props.TRAIN_SENTENCES_PER_ENTITY);
-            // ^^
-            logger.logf("Found %d sentences for %s", sentences.size(), key);
-            // vv (2) Annotate Sentence vv
-            sentences = process.annotateSentenceFeatures(entity1, sentences);
-            // ^^
-            logger.logf("Keeping %d sentences after annotation", sentences.size());
-
-            HashMap<KBPair, SentenceGroup> featurized;
-            if (sentences.size() > 0) {
-              try {
-                // Get datums from sentences.
-                Annotation annotation = new Annotation("");
-                annotation.set(CoreAnnotations.SentencesAnnotation.class, sentences);
-                // vv (3) Featurize Sentence vv
-                featurized = process.featurize(annotation);
-                // ^^
-                datums.set(featurized);
-              } catch (RuntimeException e) {
-                logger.warn(e);
-              }
-            }
-            endTrack(key.toString());
-          }
-
-          // Cache
-          if (Props.CACHE_DATUMS_DO) {
-            PostgresUtils.withKeyDatumTable(Props.DB_TABLE_DATUM_CACHE, new PostgresUtils.KeyDatumCallback() {
-              @Override
-              public void apply(Connection psql) throws SQLException {
-                if (datums.dereference().isDefined()) {
-                  put(psql, Props.DB_TABLE_DATUM_CACHE, keyToString(key), datums.dereference().get());
-                } else {
-                  put(psql, Props.DB_TABLE_DATUM_CACHE, keyToString(key), new HashMap<KBPair, SentenceGroup>());
-                }
-              }
-            });
-          }
-
-          // Return
-          if (datums.dereference().isDefined()) {
-            ArrayList<SentenceGroup> values = new ArrayList<SentenceGroup>(datums.dereference().get().values());
-            Collections.sort(values);
-            return Maybe.Just((Iterable<SentenceGroup>) values);
-          } else {
-            return Maybe.Nothing();
-          }
-        } else {
-          return null;
-        }
-      }
-    });
+    return new DatumPipeline(querier, process).run(tuples);
   }
 
   /**
@@ -254,7 +173,10 @@ public class KBPTrainer {
     startTrack("Making dataset");
     logger.log("Train unlabeled = " + Props.TRAIN_UNLABELED + " with " + Props.TRAIN_UNLABELED_SELECT);
     // Go through the datums and collect all the duplicated instances across types
-    KBPDataset<String, String> dataset = new KBPDataset<String,String>();
+    KBPDataset<String, String> dataset = Props.FEATURE_HASH_BUCKETS > 0
+        ? new KBPDataset<String,String>(new HashedFeatureIndex(Props.FEATURE_HASH_BUCKETS, Props.FEATURE_HASH_SIGNED), new HashIndex<String>())
+        : new KBPDataset<String,String>();
+    if (Props.FEATURE_HASH_BUCKETS > 0) { logger.log("hashing features into " + Props.FEATURE_HASH_BUCKETS + (Props.FEATURE_HASH_SIGNED ? " signed" : "") + " buckets"); }
     Random rand = new Random(0);
     int numDatumsWithPositiveLabels = 0;
     int numDatumsWithMultipleLabels = 0;
@@ -0,0 +1,150 @@
+package edu.stanford.nlp.kbp.slotfilling.common;
+
+import edu.stanford.nlp.ie.machinereading.structure.Span;
+import edu.stanford.nlp.kbp.slotfilling.ir.KBPRelationProvenance;
+import edu.stanford.nlp.ling.BasicDatum;
+import edu.stanford.nlp.ling.CoreAnnotations;
+import edu.stanford.nlp.ling.Datum;
+import edu.stanford.nlp.ling.RVFDatum;
+import edu.stanford.nlp.stats.ClassicCounter;
+import edu.stanford.nlp.util.ArrayCoreMap;
+import edu.stanford.nlp.util.CoreMap;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that {@link SentenceGroupCodec} decodes exactly what it encoded, with and without deflate.
+ */
+public class SentenceGroupCodecTest {
+
+  private static CoreMap sentence(String text) {
+    CoreMap sentence = new ArrayCoreMap();
+    sentence.set(CoreAnnotations.TextAnnotation.class, text);
+    return sentence;
+  }
+
+  private static Datum<String, String> datum(String label, String... features) {
+    return new BasicDatum<String, String>(Arrays.asList(features), label);
+  }
+
+  /** Two groups, covering every provenance shape, a shared sentence, a null provenance, and both forms of gloss keys */
+  private static Map<KBPair, SentenceGroup> groups() {
+    CoreMap shared = sentence("Barack Obama was born in Honolulu , Hawaii .");
+    KBPair born = KBPNew.entName("Barack Obama").entType(NERTag.PERSON).entId("E0001")
+        .slotValue("Hawaii").slotType(NERTag.STATE_OR_PROVINCE).KBPair();
+    SentenceGroup bornGroup = new SentenceGroup(born,
+        Arrays.asList(
+            datum("per:stateorprovince_of_birth", "arg1type=PERSON_and_arg2type=STATE_OR_PROVINCE", "word_in_dependency_path:born"),
+            datum("_NR", "arg1type=PERSON_and_arg2type=STATE_OR_PROVINCE", "surface_distance_bin_lt6"),
+            datum("per:stateorprovince_of_birth")),
+        Arrays.asList(
+            new KBPRelationProvenance("APW_ENG_20070101.0001", "/index/2010", 3, new Span(0, 2), new Span(7, 8), shared, Maybe.Just(0.75)),
+            new KBPRelationProvenance("APW_ENG_20070101.0001", "/index/2010", 3, new Span(0, 2), new Span(7, 8), new Span(0, 9), shared, Maybe.<Double>Nothing()),
+            null),
+        Arrays.asList("a1b2c3", "a1b2c3", "d4e5f6"));
+
+    // A key whose group holds an equal, but distinct, key; with a non-ASCII value and no slot type
+    KBPair city = KBPNew.entName("Barack Obama").entType(NERTag.PERSON).slotValue("Ḥonolulu").KBPair();
+    KBPair cityCopy = KBPNew.from(city).KBPair();
+    SentenceGroup cityGroup = new SentenceGroup(cityCopy,
+        Arrays.asList(datum("per:city_of_birth", "arg1type=PERSON_and_arg2type=CITY", "span_word:born")),
+        Arrays.asList(new KBPRelationProvenance("NYT_ENG_20070101.0002", "/index/2010")));
+
+    Map<KBPair, SentenceGroup> groups = new LinkedHashMap<KBPair, SentenceGroup>();
+    groups.put(born, bornGroup);
+    groups.put(city, cityGroup);
+    return groups;
+  }
+
+  private static void assertSameGroups(Map<KBPair, SentenceGroup> expected, Map<KBPair, SentenceGroup> actual) {
+    assertEquals(expected.size(), actual.size());
+    for (Map.Entry<KBPair, SentenceGroup> entry : expected.entrySet()) {
+      SentenceGroup decoded = actual.get(entry.getKey());
+      assertNotNull("missing group for " + entry.getKey(), decoded);
+      assertTrue("group for " + entry.getKey() + " did not round trip", SentenceGroupCodec.sameGroup(entry.getValue(), decoded));
+      assertEquals(entry.getValue().key.entityId, decoded.key.entityId);
+      assertEquals(entry.getValue().key.slotType, decoded.key.slotType);
+    }
+    for (KBPair key : actual.keySet()) {
+      boolean found = false;
+      for (KBPair expectedKey : expected.keySet()) {
+        if (expectedKey.toString().equals(key.toString())) { found = true; }
+      }
+      assertTrue("unexpected key " + key, found);
+    }
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    Map<KBPair, SentenceGroup> groups = groups();
+    byte[] bytes = SentenceGroupCodec.encode(groups, false);
+    assertTrue(SentenceGroupCodec.isEncoded(bytes));
+    assertSameGroups(groups, SentenceGroupCodec.decode(bytes));
+  }
+
+  @Test
+  public void testDeflatedRoundTrip() throws IOException {
+    Map<KBPair, SentenceGroup> groups = groups();
+    byte[] bytes = SentenceGroupCodec.encode(groups, true);
+    assertTrue(SentenceGroupCodec.isEncoded(bytes));
+    assertTrue((bytes[3] & SentenceGroupCodec.FLAG_DEFLATED) != 0);
+    assertSameGroups(groups, SentenceGroupCodec.decode(bytes));
+  }
+
+  @Test
+  public void testEmptyRoundTrip() throws IOException {
+    Map<KBPair, SentenceGroup> groups = new HashMap<KBPair, SentenceGroup>();
+    assertTrue(SentenceGroupCodec.decode(SentenceGroupCodec.encode(groups, false)).isEmpty());
+    assertTrue(SentenceGroupCodec.decode(SentenceGroupCodec.encode(groups, true)).isEmpty());
+  }
+
+  @Test
+  public void testSharedSentenceIsDecodedOnce() throws IOException {
+    Map<KBPair, SentenceGroup> decoded = SentenceGroupCodec.decode(SentenceGroupCodec.encode(groups(), true));
+    for (SentenceGroup group : decoded.values()) {
+      if (group.provenances.size() < 2) { continue; }
+      assertSame(group.provenances.get(0).containingSentenceLossy.get(), group.provenances.get(1).containingSentenceLossy.get());
+    }
+  }
+
+  @Test
+  public void testProvenanceRoundTrip() throws IOException {
+    List<KBPRelationProvenance> provenances = Arrays.asList(
+        new KBPRelationProvenance("APW_ENG_20070101.0001", "/index/2010"),
+        new KBPRelationProvenance("APW_ENG_20070101.0001", null, 12, new Span(4, 6), new Span(1, 2), sentence("Born in Hawaii , Barack Obama ..."), Maybe.Just(-1.5)),
+        new KBPRelationProvenance("APW_ENG_20070101.0001", "/index/2010", 0, new Span(0, 1), new Span(2, 3), new Span(0, 3), null, Maybe.Just(1.0)));
+    for (KBPRelationProvenance provenance : provenances) {
+      for (boolean deflate : new boolean[]{ false, true }) {
+        KBPRelationProvenance decoded = SentenceGroupCodec.decodeProvenance(SentenceGroupCodec.encodeProvenance(provenance, deflate));
+        assertTrue(provenance + " did not round trip", SentenceGroupCodec.sameProvenance(provenance, decoded));
+      }
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRejectsOtherDatums() throws IOException {
+    KBPair pair = KBPNew.entName("Barack Obama").entType(NERTag.PERSON).slotValue("Hawaii").KBPair();
+    Datum<String, String> datum = new RVFDatum<String, String>(new ClassicCounter<String>(), "_NR");
+    Map<KBPair, SentenceGroup> groups = new HashMap<KBPair, SentenceGroup>();
+    groups.put(pair, new SentenceGroup(pair, datum, new KBPRelationProvenance("APW_ENG_20070101.0001", "/index/2010")));
+    SentenceGroupCodec.encode(groups, false);
+  }
+
+  @Test
+  public void testRejectsCorruptEncodings() throws IOException {
+    byte[] bytes = SentenceGroupCodec.encode(groups(), false);
+    assertFalse(SentenceGroupCodec.isEncoded(new byte[]{ 0x1f, (byte) 0x8b, 0x08, 0x00 }));
+    for (int length : new int[]{ 0, 3, 4, bytes.length / 2, bytes.length - 1 }) {
+      try {
+        SentenceGroupCodec.decode(Arrays.copyOf(bytes, length));
+        fail("decoded an encoding truncated to " + length + " bytes");
+      } catch (IOException expected) {
+        // good
+      }
+    }
+  }
+}
@@ -0,0 +1,132 @@
+package edu.stanford.nlp.kbp.slotfilling.process;
+
+import edu.stanford.nlp.kbp.slotfilling.common.KBPAnnotations.TriggerAnnotation;
+import edu.stanford.nlp.ling.CoreLabel;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that {@link TriggerMatcher} tags every token exactly as the per-trigger scan it replaced
+ * ({@link TriggerMatcher#scanTriggerWords(List, List)}).
+ */
+public class TriggerMatcherTest {
+
+  private static Map.Entry<String, String[]> trigger(String label, String text) {
+    return new AbstractMap.SimpleImmutableEntry<String, String[]>(label, text.split(" "));
+  }
+
+  private static List<CoreLabel> tokens(String text) {
+    List<CoreLabel> tokens = new ArrayList<CoreLabel>();
+    for (String word : text.split(" ")) {
+      CoreLabel token = new CoreLabel();
+      token.setWord(word);
+      tokens.add(token);
+    }
+    return tokens;
+  }
+
+  /** The tags of the reference scan, which expects the triggers longest first (in file order otherwise) */
+  private static String[] scan(List<Map.Entry<String, String[]>> triggers, String sentence) {
+    List<Map.Entry<String, String[]>> sorted = new ArrayList<Map.Entry<String, String[]>>(triggers);
+    Collections.sort(sorted, new Comparator<Map.Entry<String, String[]>>() {
+      @Override
+      public int compare(Map.Entry<String, String[]> a, Map.Entry<String, String[]> b) {
+        return b.getValue().length - a.getValue().length;
+      }
+    });
+    return TriggerMatcher.scanTriggerWords(tokens(sentence), sorted);
+  }
+
+  /** The tags of the automaton */
+  private static String[] match(List<Map.Entry<String, String[]>> triggers, String sentence) {
+    List<CoreLabel> tokens = tokens(sentence);
+    new TriggerMatcher(triggers).markTriggerWords(tokens);
+    String[] tags = new String[tokens.size()];
+    for (int i = 0; i < tags.length; ++i) { tags[i] = tokens.get(i).get(TriggerAnnotation.class); }
+    return tags;
+  }
+
+  /** Check the automaton against both the reference scan and the expected tags */
+  private static void check(List<Map.Entry<String, String[]>> triggers, String sentence, String... expected) {
+    assertArrayEquals(expected, scan(triggers, sentence));
+    assertArrayEquals(expected, match(triggers, sentence));
+  }
+
+  @Test
+  public void testSingleTrigger() {
+    List<Map.Entry<String, String[]>> triggers = Arrays.asList(trigger("spouse", "wife of"));
+    check(triggers, "she is the wife of the king .",
+        null, null, null, "B-spouse", "I-spouse", null, null, null);
+    check(triggers, "no triggers here .",
+        null, null, null, null);
+  }
+
+  @Test
+  public void testOverlappingTriggers() {
+    // Both triggers have the same length; the one listed later is scanned later, and overwrites the shared token
+    List<Map.Entry<String, String[]>> triggers = Arrays.asList(trigger("spouse", "wife of"), trigger("parent", "of the"));
+    check(triggers, "she is the wife of the king .",
+        null, null, null, "B-spouse", "B-parent", "I-parent", null, null);
+    // A shorter trigger is scanned after a longer one, and overwrites it
+    triggers = Arrays.asList(trigger("spouse", "the wife of"), trigger("parent", "wife"));
+    check(triggers, "she is the wife of the king .",
+        null, null, "B-spouse", "B-parent", "I-spouse", null, null, null);
+    // A trigger which overlaps itself is only matched at its leftmost non-overlapping occurrences
+    triggers = Arrays.asList(trigger("laugh", "ha ha"));
+    check(triggers, "ha ha ha ha ha .",
+        "B-laugh", "I-laugh", "B-laugh", "I-laugh", null, null);
+  }
+
+  @Test
+  public void testDuplicateTriggers() {
+    // The same trigger listed twice is tagged with the label listed last
+    List<Map.Entry<String, String[]>> triggers = Arrays.asList(
+        trigger("spouse", "married to"), trigger("other_family", "married to"), trigger("spouse", "wife"));
+    check(triggers, "he was married to his wife .",
+        null, null, "B-other_family", "I-other_family", null, "B-spouse", null);
+  }
+
+  @Test
+  public void testTriggerEndingOnLastToken() {
+    // The reference scan never matches a trigger ending at the last token
+    List<Map.Entry<String, String[]>> triggers = Arrays.asList(trigger("spouse", "wife of"), trigger("child", "son"));
+    check(triggers, "his son", null, null);
+    check(triggers, "she is the wife of", null, null, null, null, null);
+    check(triggers, "she is the wife of him", null, null, null, "B-spouse", "I-spouse", null);
+    check(triggers, "son", (String) null);
+  }
+
+  @Test
+  public void testCaseFolding() {
+    List<Map.Entry<String, String[]>> triggers = Arrays.asList(trigger("spouse", "Wife Of"), trigger("title", "ΠΡΟΕΔΡΟΣ"));
+    check(triggers, "the WIFE of the president .",
+        null, "B-spouse", "I-spouse", null, null, null);
+    // Final sigma folds to the same letter as capital sigma, as with String.equalsIgnoreCase; accents do not fold
+    check(triggers, "ο προεδρος .", null, "B-title", null);
+    check(triggers, "ο πρόεδρος .", null, null, null);
+  }
+
+  @Test
+  public void testRandomSentences() {
+    String[] vocabulary = { "a", "b", "c", "A", "B", "d" };
+    Random random = new Random(42);
+    for (int trial = 0; trial < 200; ++trial) {
+      List<Map.Entry<String, String[]>> triggers = new ArrayList<Map.Entry<String, String[]>>();
+      int numTriggers = 1 + random.nextInt(6);
+      for (int t = 0; t < numTriggers; ++t) {
+        StringBuilder text = new StringBuilder(vocabulary[random.nextInt(vocabulary.length)]);
+        int length = 1 + random.nextInt(3);
+        for (int k = 1; k < length; ++k) { text.append(" ").append(vocabulary[random.nextInt(vocabulary.length)]); }
+        triggers.add(trigger("label" + random.nextInt(3), text.toString()));
+      }
+      StringBuilder sentence = new StringBuilder(vocabulary[random.nextInt(vocabulary.length)]);
+      int length = 1 + random.nextInt(12);
+      for (int k = 1; k < length; ++k) { sentence.append(" ").append(vocabulary[random.nextInt(vocabulary.length)]); }
+      assertArrayEquals("trial " + trial + ": " + sentence,
+          scan(triggers, sentence.toString()), match(triggers, sentence.toString()));
+    }
+  }
+}